@@ -1,18 +1,64 @@
 package br.com.caelum.pm73.curso;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.hibernate.Session;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.Work;
 import org.hibernate.tool.hbm2ddl.SchemaExport;
 
+import br.com.caelum.pm73.dao.ConfiguracaoDoBanco;
 import br.com.caelum.pm73.dao.CriadorDeSessao;
 
 public class CriaTabelas {
 
+	public enum TipoDeTabela { MEMORY, CACHED }
+
 	public static void main(String[] args) {
 		
-		Configuration cfg = new CriadorDeSessao().getConfig();
+		TipoDeTabela tipo = args.length > 0 ? TipoDeTabela.valueOf(args[0].toUpperCase()) : TipoDeTabela.MEMORY;
+		
+		CriadorDeSessao criador = new CriadorDeSessao();
+		criaEsquema(criador, tipo, true);
+		
+		new PlanosDeExecucao(criador).imprime(System.out);
+	}
+	
+	/**
+	 * Cria as tabelas do CriadorDeSessao (e dos shards, se houver). Usado
+	 * tambem pelos testes, uma vez por JVM, no banco em memoria.
+	 */
+	public static void criaEsquema(CriadorDeSessao criador, TipoDeTabela tipo, boolean mostraDdl) {
+		Session session = criador.getSession();
+		try {
+			defineTipoDeTabela(session, tipo);
+		} finally {
+			session.close();
+		}
+		
+		Configuration cfg = criador.getConfig();
 		SchemaExport se = new SchemaExport(cfg);
 		
-		se.create(true, true);
+		se.create(mostraDdl, true);
+		
+		if(!new ConfiguracaoDoBanco().getUrlsDosShards().isEmpty()) {
+			criador.getShards().criaTabelas();
+		}
+	}
+	
+	private static void defineTipoDeTabela(Session session, final TipoDeTabela tipo) {
+		session.doWork(new Work() {
+			public void execute(Connection conexao) throws SQLException {
+				Statement statement = conexao.createStatement();
+				try {
+					statement.execute("SET DATABASE DEFAULT TABLE TYPE " + tipo.name());
+				} finally {
+					statement.close();
+				}
+			}
+		});
 	}
 	
 }
@@ -0,0 +1,46 @@
+package br.com.caelum.pm73.curso;
+
+import org.hibernate.Session;
+import org.hibernate.tool.hbm2ddl.SchemaUpdate;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+
+/**
+ * Migra um banco criado antes de Usuario.emailNormalizado sem recriar as
+ * tabelas: acrescenta as colunas que faltam, preenche o email normalizado
+ * dos usuarios existentes e so entao cria o indice unico UK_USUARIO_EMAIL.
+ * Bancos criados pelo CriaTabelas ja saem com tudo isso.
+ */
+public class NormalizaEmails {
+
+	public static void main(String[] args) {
+
+		CriadorDeSessao criador = new CriadorDeSessao();
+		new SchemaUpdate(criador.getConfig()).execute(true, true);
+
+		Session session = criador.getSession();
+
+		try {
+			session.beginTransaction();
+			int normalizados = new UsuarioDao(session).normalizaEmails();
+			if(!temIndiceUnico(session)) {
+				session.createSQLQuery("alter table Usuario add constraint UK_USUARIO_EMAIL unique (emailNormalizado)")
+						.executeUpdate();
+			}
+			session.getTransaction().commit();
+			System.out.println(normalizados + " emails normalizados");
+		} finally {
+			session.close();
+			criador.getSessionFactory().close();
+		}
+	}
+
+	private static boolean temIndiceUnico(Session session) {
+		Number indices = (Number) session.createSQLQuery("select count(*) from information_schema.table_constraints " +
+				"where constraint_name = 'UK_USUARIO_EMAIL'")
+				.uniqueResult();
+		return indices.intValue() > 0;
+	}
+
+}
@@ -0,0 +1,96 @@
+package br.com.caelum.pm73.curso;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import br.com.caelum.pm73.dao.ContadorDeSql;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Plano de execucao das consultas do LeilaoDao. Cada metodo e chamado de
+ * verdade numa sessao com ContadorDeSql, e o EXPLAIN e feito sobre o SQL
+ * que o Hibernate gerou, com os parametros ainda em "?".
+ */
+public class PlanosDeExecucao {
+
+	private final CriadorDeSessao criador;
+	private final ContadorDeSql contador = new ContadorDeSql();
+	private final Map<String, List<String>> consultas = new LinkedHashMap<String, List<String>>();
+
+	public PlanosDeExecucao(CriadorDeSessao criador) {
+		this.criador = criador;
+	}
+
+	public void imprime(final PrintStream saida) {
+		Session session = criador.getSession(contador);
+		try {
+			captura(new LeilaoDao(session));
+			
+			session.doWork(new Work() {
+				public void execute(Connection conexao) throws SQLException {
+					for(Map.Entry<String, List<String>> consulta : consultas.entrySet()) {
+						saida.println("== " + consulta.getKey());
+						for(String sql : consulta.getValue()) {
+							saida.println(sql);
+							imprimePlano(conexao, sql, saida);
+						}
+						saida.println();
+					}
+				}
+			});
+		} finally {
+			session.close();
+		}
+	}
+
+	private void captura(LeilaoDao dao) {
+		Calendar hoje = Calendar.getInstance();
+		Usuario usuario = new Usuario("plano", "plano@pm73");
+		usuario.setId(1);
+		
+		contador.zera();
+		dao.novos();
+		guarda("LeilaoDao.novos");
+		dao.antigos();
+		guarda("LeilaoDao.antigos");
+		dao.porPeriodo(hoje, hoje);
+		guarda("LeilaoDao.porPeriodo");
+		dao.disputadosEntre(100, 1000);
+		guarda("LeilaoDao.disputadosEntre");
+		dao.total();
+		guarda("LeilaoDao.total");
+		dao.listaLeiloesDoUsuario(usuario);
+		guarda("LeilaoDao.listaLeiloesDoUsuario");
+		dao.getValorInicialMedioDoUsuario(usuario);
+		guarda("LeilaoDao.getValorInicialMedioDoUsuario");
+	}
+
+	private void guarda(String metodo) {
+		consultas.put(metodo, contador.getSqls());
+		contador.zera();
+	}
+
+	private void imprimePlano(Connection conexao, String sql, PrintStream saida) throws SQLException {
+		PreparedStatement statement = conexao.prepareStatement("EXPLAIN PLAN FOR " + sql);
+		try {
+			ResultSet plano = statement.executeQuery();
+			while(plano.next()) {
+				saida.println(plano.getString(1));
+			}
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package br.com.caelum.pm73.curso;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.EstatisticasDoUsuarioDao;
+
+public class ReconstroiEstatisticas {
+
+	public static void main(String[] args) {
+		
+		Session session = new CriadorDeSessao().getSession();
+		
+		try {
+			session.beginTransaction();
+			new EstatisticasDoUsuarioDao(session).reconstroi();
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+	
+}
@@ -0,0 +1,249 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
+
+/**
+ * Mantem um InstantaneoDeLeiloes para relatorios, lido da sessao de
+ * leitura do CriadorDeSessao (replicas, quando houver).
+ *
+ * A primeira carga le LEILAO e LANCE inteiros via JDBC. As seguintes sao
+ * incrementais: varrem so (id, versao), que o @Version das entidades
+ * incrementa a cada alteracao, e releem apenas as linhas novas ou com
+ * versao diferente; linhas apagadas somem do novo instantaneo. Quando
+ * mais de um quarto da tabela mudou, vale mais reler tudo.
+ *
+ * Quem consulta nunca espera a atualizacao: o instantaneo anterior
+ * continua valendo ate o novo ficar pronto.
+ */
+public class AnaliseDeLeiloes {
+
+	private static final int TAMANHO_DO_FETCH = 10000;
+	private static final int IDS_POR_CONSULTA = 500;
+
+	private final CriadorDeSessao criador;
+	private final ExecutorService paralelo;
+
+	private volatile InstantaneoDeLeiloes instantaneo;
+	private ScheduledExecutorService agendador;
+
+	private final AtomicLong cargasCompletas = new AtomicLong();
+	private final AtomicLong atualizacoes = new AtomicLong();
+	private final AtomicLong linhasRelidas = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+
+	public AnaliseDeLeiloes(CriadorDeSessao criador, ExecutorService paralelo) {
+		this.criador = criador;
+		this.paralelo = paralelo;
+	}
+
+	public InstantaneoDeLeiloes getInstantaneo() {
+		InstantaneoDeLeiloes atual = instantaneo;
+		return atual == null ? carrega() : atual;
+	}
+
+	public synchronized InstantaneoDeLeiloes carrega() {
+		instantaneo = le(null);
+		cargasCompletas.incrementAndGet();
+		return instantaneo;
+	}
+
+	public synchronized InstantaneoDeLeiloes atualiza() {
+		if(instantaneo == null) return carrega();
+
+		instantaneo = le(instantaneo);
+		atualizacoes.incrementAndGet();
+		return instantaneo;
+	}
+
+	public synchronized void atualizaACada(long intervaloEmMilis) {
+		if(agendador != null) agendador.shutdownNow();
+
+		agendador = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable tarefa) {
+				Thread thread = new Thread(tarefa, "pm73-analise");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		agendador.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					atualiza();
+				} catch(RuntimeException e) {
+					falhas.incrementAndGet();
+				}
+			}
+		}, intervaloEmMilis, intervaloEmMilis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void paraDeAtualizar() {
+		if(agendador == null) return;
+		agendador.shutdownNow();
+		agendador = null;
+	}
+
+	public long getCargasCompletas() {
+		return cargasCompletas.get();
+	}
+
+	public long getAtualizacoes() {
+		return atualizacoes.get();
+	}
+
+	public long getLinhasRelidas() {
+		return linhasRelidas.get();
+	}
+
+	public long getFalhas() {
+		return falhas.get();
+	}
+
+	private InstantaneoDeLeiloes le(final InstantaneoDeLeiloes anterior) {
+		Session session = criador.getSessionDeLeitura();
+		try {
+			return session.doReturningWork(new ReturningWork<InstantaneoDeLeiloes>() {
+				public InstantaneoDeLeiloes execute(Connection conexao) throws SQLException {
+					long inicio = System.currentTimeMillis();
+					ColunasDeLeilao leiloes = anterior == null
+							? (ColunasDeLeilao) carregaTudo(conexao, new ColunasDeLeilao(0))
+							: (ColunasDeLeilao) atualiza(conexao, anterior.getLeiloes());
+					ColunasDeLance lances = anterior == null
+							? (ColunasDeLance) carregaTudo(conexao, new ColunasDeLance(0))
+							: (ColunasDeLance) atualiza(conexao, anterior.getLances());
+					return new InstantaneoDeLeiloes(leiloes, lances, paralelo, inicio);
+				}
+			});
+		} finally {
+			session.close();
+		}
+	}
+
+	private ColunasDoInstantaneo carregaTudo(Connection conexao, ColunasDoInstantaneo colunas) throws SQLException {
+		Statement statement = conexao.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			statement.setFetchSize(TAMANHO_DO_FETCH);
+			ResultSet resultado = statement.executeQuery(colunas.getSelect() + " order by id");
+			while(resultado.next()) {
+				colunas.le(resultado);
+			}
+			linhasRelidas.addAndGet(colunas.getTamanho());
+			return colunas;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private ColunasDoInstantaneo atualiza(Connection conexao, ColunasDoInstantaneo atuais) throws SQLException {
+		int[][] noBanco = versoes(conexao, atuais.getTabela());
+		int[] ids = noBanco[0];
+		int[] versoes = noBanco[1];
+
+		BitSet mantidas = new BitSet(atuais.getTamanho());
+		int[] relidas = new int[ids.length];
+		int quantasRelidas = 0;
+
+		int i = 0;
+		for(int j = 0; j < ids.length; j++) {
+			while(i < atuais.getTamanho() && atuais.id(i) < ids[j]) i++;
+
+			if(i < atuais.getTamanho() && atuais.id(i) == ids[j] && atuais.versao(i) == versoes[j]) {
+				mantidas.set(i);
+			} else {
+				relidas[quantasRelidas++] = ids[j];
+			}
+		}
+
+		if(quantasRelidas > ids.length / 4) {
+			return carregaTudo(conexao, atuais.vazia(ids.length));
+		}
+
+		ColunasDoInstantaneo novas = relePorId(conexao, atuais.vazia(quantasRelidas),
+				Arrays.copyOf(relidas, quantasRelidas));
+		return junta(atuais, mantidas, novas);
+	}
+
+	private int[][] versoes(Connection conexao, String tabela) throws SQLException {
+		int[] ids = new int[1024];
+		int[] versoes = new int[1024];
+		int tamanho = 0;
+
+		Statement statement = conexao.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			statement.setFetchSize(TAMANHO_DO_FETCH);
+			ResultSet resultado = statement.executeQuery("select id, versao from " + tabela + " order by id");
+			while(resultado.next()) {
+				if(tamanho == ids.length) {
+					ids = Arrays.copyOf(ids, tamanho * 2);
+					versoes = Arrays.copyOf(versoes, tamanho * 2);
+				}
+				ids[tamanho] = resultado.getInt(1);
+				versoes[tamanho] = resultado.getInt(2);
+				tamanho++;
+			}
+		} finally {
+			statement.close();
+		}
+		return new int[][] { Arrays.copyOf(ids, tamanho), Arrays.copyOf(versoes, tamanho) };
+	}
+
+	private ColunasDoInstantaneo relePorId(Connection conexao, ColunasDoInstantaneo colunas, int[] ids) throws SQLException {
+		for(int inicio = 0; inicio < ids.length; inicio += IDS_POR_CONSULTA) {
+			int fim = Math.min(ids.length, inicio + IDS_POR_CONSULTA);
+
+			StringBuilder sql = new StringBuilder(colunas.getSelect()).append(" where id in (");
+			for(int i = inicio; i < fim; i++) {
+				sql.append(i == inicio ? "?" : ", ?");
+			}
+			sql.append(") order by id");
+
+			PreparedStatement statement = conexao.prepareStatement(sql.toString());
+			try {
+				for(int i = inicio; i < fim; i++) {
+					statement.setInt(i - inicio + 1, ids[i]);
+				}
+				ResultSet resultado = statement.executeQuery();
+				while(resultado.next()) {
+					colunas.le(resultado);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		linhasRelidas.addAndGet(colunas.getTamanho());
+		return colunas;
+	}
+
+	/**
+	 * Intercala as linhas mantidas do instantaneo anterior com as relidas;
+	 * as duas estao em ordem de id e nao tem ids em comum.
+	 */
+	private ColunasDoInstantaneo junta(ColunasDoInstantaneo atuais, BitSet mantidas, ColunasDoInstantaneo novas) {
+		ColunasDoInstantaneo juntas = atuais.vazia(mantidas.cardinality() + novas.getTamanho());
+		int nova = 0;
+		for(int i = mantidas.nextSetBit(0); i >= 0; i = mantidas.nextSetBit(i + 1)) {
+			while(nova < novas.getTamanho() && novas.id(nova) < atuais.id(i)) {
+				juntas.copia(novas, nova++);
+			}
+			juntas.copia(atuais, i);
+		}
+		while(nova < novas.getTamanho()) {
+			juntas.copia(novas, nova++);
+		}
+		return juntas;
+	}
+}
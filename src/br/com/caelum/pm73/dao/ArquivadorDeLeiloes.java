@@ -0,0 +1,141 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import br.com.caelum.pm73.dominio.TipoDeAlteracao;
+
+/**
+ * Move leiloes encerrados, e seus lances, para as tabelas LeilaoArquivado
+ * e LanceArquivado em lotes, com um commit por lote. Cada lote e atomico,
+ * e refaz na mesma transacao as estatisticas dos donos e licitantes dos
+ * leiloes que moveu, entao uma execucao interrompida pode simplesmente ser
+ * repetida: ela continua a partir dos leiloes encerrados que ainda estao
+ * em Leilao, e o que ja foi arquivado nao deixa estatisticas para tras.
+ *
+ * O arquivador controla as proprias transacoes; a sessao recebida nao
+ * deve ter uma transacao aberta.
+ */
+public class ArquivadorDeLeiloes {
+
+	private static final String COLUNAS_LEILAO =
+			"id, versao, nome, valorInicial, dono_id, dataAbertura, usado, encerrado, quantidadeDeLances";
+	private static final String COLUNAS_LANCE = "id, versao, valor, data, usuario_id, leilao_id";
+
+	private final Session session;
+	private final int tamanhoDoLote;
+
+	public ArquivadorDeLeiloes(Session session, int tamanhoDoLote) {
+		if(tamanhoDoLote < 1) {
+			throw new IllegalArgumentException("Tamanho do lote deve ser positivo: " + tamanhoDoLote);
+		}
+		this.session = session;
+		this.tamanhoDoLote = tamanhoDoLote;
+	}
+
+	public int arquivaEncerrados() {
+		criaTabelasDeArquivo();
+
+		int arquivados = 0;
+		while(true) {
+			session.beginTransaction();
+			try {
+				int noLote = arquivaProximoLote();
+				session.getTransaction().commit();
+
+				if(noLote == 0) break;
+				arquivados += noLote;
+			} catch(RuntimeException e) {
+				session.getTransaction().rollback();
+				throw e;
+			}
+		}
+		return arquivados;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int arquivaProximoLote() {
+		List<Integer> ids = session
+				.createSQLQuery("select id from Leilao where encerrado = true order by id")
+				.setMaxResults(tamanhoDoLote)
+				.list();
+		if(ids.isEmpty()) return 0;
+
+		Set<Integer> afetados = new HashSet<Integer>();
+		afetados.addAll(lista("select distinct dono_id from Leilao " +
+				"where id in (:ids) and dono_id is not null", ids));
+		afetados.addAll(lista("select distinct usuario_id from Lance " +
+				"where leilao_id in (:ids) and usuario_id is not null", ids));
+
+		CaixaDeSaida caixaDeSaida = new CaixaDeSaida(session);
+		caixaDeSaida.registraEmMassa("Lance", TipoDeAlteracao.REMOVIDO, "leilao_id in (:ids)",
+				Collections.<String, Object>singletonMap("ids", ids));
+		caixaDeSaida.registraEmMassa("Leilao", TipoDeAlteracao.REMOVIDO, "id in (:ids)",
+				Collections.<String, Object>singletonMap("ids", ids));
+		executa("insert into LanceArquivado (" + COLUNAS_LANCE + ") " +
+				"select " + COLUNAS_LANCE + " from Lance where leilao_id in (:ids)", ids);
+		executa("insert into LeilaoArquivado (" + COLUNAS_LEILAO + ") " +
+				"select " + COLUNAS_LEILAO + " from Leilao where id in (:ids)", ids);
+		executa("delete from Lance where leilao_id in (:ids)", ids);
+		executa("delete from Leilao where id in (:ids)", ids);
+		new EstatisticasDoUsuarioDao(session).reconstroi(afetados);
+
+		return ids.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Integer> lista(String sql, List<Integer> ids) {
+		return session.createSQLQuery(sql)
+				.setParameterList("ids", ids)
+				.list();
+	}
+
+	private void executa(String sql, List<Integer> ids) {
+		session.createSQLQuery(sql)
+				.setParameterList("ids", ids)
+				.executeUpdate();
+	}
+
+	public void criaTabelasDeArquivo() {
+		session.doWork(new Work() {
+			public void execute(Connection conexao) throws SQLException {
+				criaSeNaoExiste(conexao, "LEILAOARQUIVADO", "create table LeilaoArquivado (" +
+						"id integer not null primary key, versao integer not null, " +
+						"nome varchar(255), valorInicial double, " +
+						"dono_id integer, dataAbertura bigint, usado boolean not null, " +
+						"encerrado boolean not null, quantidadeDeLances integer not null, " +
+						"arquivadoEm timestamp default current_timestamp)");
+				criaSeNaoExiste(conexao, "LANCEARQUIVADO", "create table LanceArquivado (" +
+						"id integer not null primary key, versao integer not null, " +
+						"valor double not null, data bigint, " +
+						"usuario_id integer, leilao_id integer, " +
+						"arquivadoEm timestamp default current_timestamp)");
+			}
+		});
+	}
+
+	private void criaSeNaoExiste(Connection conexao, String tabela, String ddl) throws SQLException {
+		ResultSet tabelas = conexao.getMetaData().getTables(null, null, tabela, null);
+		try {
+			if(tabelas.next()) return;
+		} finally {
+			tabelas.close();
+		}
+
+		Statement statement = conexao.createStatement();
+		try {
+			statement.execute(ddl);
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Resolve muitos ids de uma vez para os porIds dos DAOs: primeiro o que
+ * ja esta carregado na sessao, depois o que estiver no CacheDeEntidades
+ * e, so para o que faltar, consultas "in" de ate IDS_POR_CONSULTA ids
+ * cada.
+ */
+class BuscaPorIds<T> {
+
+	static final int IDS_POR_CONSULTA = 500;
+
+	private final Session session;
+	private final Class<T> tipo;
+
+	BuscaPorIds(Session session, Class<T> tipo) {
+		this.session = session;
+		this.tipo = tipo;
+	}
+
+	@SuppressWarnings("unchecked")
+	ResultadoPorIds<T> busca(Collection<Integer> ids) {
+		LinkedHashSet<Integer> pedidos = new LinkedHashSet<Integer>(ids);
+		pedidos.remove(null);
+
+		Map<Integer, T> achados = new HashMap<Integer, T>();
+		List<Integer> faltando = new ArrayList<Integer>();
+		for(Integer id : pedidos) {
+			T conhecido = naSessao(id);
+			if(conhecido == null && noCache(id)) {
+				conhecido = (T) session.get(tipo, id);
+			}
+			if(conhecido == null) {
+				faltando.add(id);
+			} else {
+				achados.put(id, conhecido);
+			}
+		}
+
+		for(int inicio = 0; inicio < faltando.size(); inicio += IDS_POR_CONSULTA) {
+			List<Integer> lote = faltando.subList(inicio, Math.min(faltando.size(), inicio + IDS_POR_CONSULTA));
+			List<T> lidos = session.createQuery("from " + tipo.getSimpleName() + " e where e.id in (:ids)")
+					.setParameterList("ids", lote)
+					.list();
+			for(T lido : lidos) {
+				Integer id = (Integer) session.getIdentifier(lido);
+				achados.put(id, lido);
+			}
+		}
+
+		List<T> encontrados = new ArrayList<T>(achados.size());
+		List<Integer> ausentes = new ArrayList<Integer>();
+		for(Integer id : pedidos) {
+			T achado = achados.get(id);
+			if(achado == null) {
+				ausentes.add(id);
+			} else {
+				encontrados.add(achado);
+			}
+		}
+		return new ResultadoPorIds<T>(encontrados, ausentes, achados);
+	}
+
+	private boolean noCache(Integer id) {
+		return session.getSessionFactory().getCache().containsEntity(tipo, id);
+	}
+
+	private T naSessao(Integer id) {
+		SessionImplementor implementacao = (SessionImplementor) session;
+		EntityPersister persister = implementacao.getFactory().getEntityPersister(tipo.getName());
+		PersistenceContext contexto = implementacao.getPersistenceContext();
+		return tipo.cast(contexto.getEntity(implementacao.generateEntityKey(id, persister)));
+	}
+}
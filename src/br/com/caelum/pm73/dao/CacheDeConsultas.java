@@ -0,0 +1,88 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache em memoria, compartilhado entre sessoes, para resultados de
+ * consultas do LeilaoDao. Guarda so ids e valores imutaveis (Long, listas
+ * de ResumoDeLeilao), nunca entidades, que pertencem a sessao que as
+ * carregou; quem le ids do cache carrega as entidades na propria sessao
+ * (e, com o cache ligado, o Hibernate as monta a partir do
+ * CacheDeEntidades).
+ *
+ * As escritas invalidam as regioes na hora e de novo no fim da transacao
+ * (ver EscritasDaSessao), e guarda recebe a geracao lida antes da
+ * consulta, para que um resultado anterior a escrita nao volte ao cache.
+ */
+public class CacheDeConsultas {
+
+	public static final String LEILAO_NOVOS = "Leilao.novos";
+	public static final String LEILAO_TOTAL = "Leilao.total";
+
+	public static final CacheDeConsultas DESLIGADO = new CacheDeConsultas(false, new ConfiguracaoDoBanco());
+
+	private final boolean habilitado;
+	private final ConfiguracaoDoBanco configuracao;
+	private final ConcurrentMap<String, RegiaoDeCache> regioes = new ConcurrentHashMap<String, RegiaoDeCache>();
+
+	public CacheDeConsultas(ConfiguracaoDoBanco configuracao) {
+		this(true, configuracao);
+	}
+
+	private CacheDeConsultas(boolean habilitado, ConfiguracaoDoBanco configuracao) {
+		this.habilitado = habilitado;
+		this.configuracao = configuracao;
+	}
+
+	public Object busca(String regiao, Object chave) {
+		if(!habilitado) return null;
+		return getRegiao(regiao).busca(chave);
+	}
+
+	public long geracao(String regiao) {
+		if(!habilitado) return 0;
+		return getRegiao(regiao).getGeracao();
+	}
+
+	public void guarda(String regiao, Object chave, Object valor, long geracao) {
+		if(!habilitado || valor == null) return;
+		getRegiao(regiao).guarda(chave, valor, geracao);
+	}
+
+	public void invalida(String... nomes) {
+		if(!habilitado) return;
+		for(String nome : nomes) {
+			getRegiao(nome).limpa();
+		}
+	}
+
+	/**
+	 * Invalida todas as regioes, como se cada uma tivesse sofrido uma
+	 * escrita.
+	 */
+	public void limpa() {
+		for(RegiaoDeCache regiao : regioes.values()) {
+			regiao.limpa();
+		}
+	}
+
+	public boolean isHabilitado() {
+		return habilitado;
+	}
+
+	public RegiaoDeCache getRegiao(String nome) {
+		RegiaoDeCache regiao = regioes.get(nome);
+		if(regiao != null) return regiao;
+
+		RegiaoDeCache nova = RegiaoDeCache.configurada(nome, configuracao);
+		regiao = regioes.putIfAbsent(nome, nova);
+		return regiao == null ? nova : regiao;
+	}
+
+	public Collection<RegiaoDeCache> getRegioes() {
+		return new ArrayList<RegiaoDeCache>(regioes.values());
+	}
+}
@@ -0,0 +1,401 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.NaturalIdRegion;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cache.spi.TimestampsRegion;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.cfg.Settings;
+
+/**
+ * Cache de segundo nivel do Hibernate para Usuario e Leilao, em memoria e
+ * sem servidor externo. Ligado com pm73.cache.habilitado, so na fabrica
+ * da base principal (as replicas nao veem as escritas e nao o usam).
+ *
+ * Cada regiao e uma RegiaoDeCache (TTL, tamanho maximo, acertos, falhas
+ * e remocoes) com o estado desmontado que o Hibernate entrega: ids e
+ * valores, nunca a entidade. Cada sessao monta a sua propria instancia a
+ * partir dele, como faria com uma linha do banco.
+ *
+ * A estrategia e READ_WRITE, nos moldes da do ehcache: quem altera ou
+ * apaga uma entidade trava a entrada ate o fim da transacao; uma entrada
+ * travada nao e lida nem sobrescrita, e so volta a ser preenchida por
+ * sessoes abertas depois do commit. Updates e deletes em massa (HQL ou
+ * SQL) esvaziam a regiao antes de rodar e de novo no fim da transacao.
+ */
+public class CacheDeEntidades implements RegionFactory {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Instantes em milissegundos deslocados 12 bits, como no ehcache. */
+	private static final int BITS_POR_MILI = 12;
+	private static final int TEMPO_DE_TRAVA = 60000 << BITS_POR_MILI;
+	private static final AtomicLong ultimoInstante = new AtomicLong();
+
+	private final ConcurrentMap<String, Regiao> regioes = new ConcurrentHashMap<String, Regiao>();
+	private volatile ConfiguracaoDoBanco configuracao;
+
+	public void start(Settings settings, Properties propriedades) throws CacheException {
+		this.configuracao = new ConfiguracaoDoBanco(propriedades);
+	}
+
+	public void stop() {
+		for(Regiao regiao : regioes.values()) {
+			regiao.destroy();
+		}
+		regioes.clear();
+	}
+
+	public boolean isMinimalPutsEnabledByDefault() {
+		return false;
+	}
+
+	public AccessType getDefaultAccessType() {
+		return AccessType.READ_WRITE;
+	}
+
+	public long nextTimestamp() {
+		return proximoInstante();
+	}
+
+	public EntityRegion buildEntityRegion(String nome, Properties propriedades, CacheDataDescription descricao)
+			throws CacheException {
+		Regiao regiao = new Regiao(RegiaoDeCache.configurada(nome, configuracao), descricao);
+		regioes.put(nome, regiao);
+		return regiao;
+	}
+
+	public NaturalIdRegion buildNaturalIdRegion(String nome, Properties propriedades, CacheDataDescription descricao)
+			throws CacheException {
+		throw new CacheException("CacheDeEntidades so guarda entidades: " + nome);
+	}
+
+	public CollectionRegion buildCollectionRegion(String nome, Properties propriedades, CacheDataDescription descricao)
+			throws CacheException {
+		throw new CacheException("CacheDeEntidades so guarda entidades: " + nome);
+	}
+
+	public QueryResultsRegion buildQueryResultsRegion(String nome, Properties propriedades) throws CacheException {
+		throw new CacheException("CacheDeEntidades so guarda entidades; consultas ficam no CacheDeConsultas: " + nome);
+	}
+
+	public TimestampsRegion buildTimestampsRegion(String nome, Properties propriedades) throws CacheException {
+		throw new CacheException("CacheDeEntidades so guarda entidades; consultas ficam no CacheDeConsultas: " + nome);
+	}
+
+	/**
+	 * As regioes de entidade criadas pelo Hibernate, com os contadores de
+	 * cada uma.
+	 */
+	public Collection<RegiaoDeCache> getRegioes() {
+		Collection<RegiaoDeCache> cadaUma = new ArrayList<RegiaoDeCache>();
+		for(Regiao regiao : regioes.values()) {
+			cadaUma.add(regiao.cache);
+		}
+		return cadaUma;
+	}
+
+	static long proximoInstante() {
+		long agora = System.currentTimeMillis() << BITS_POR_MILI;
+		while(true) {
+			long anterior = ultimoInstante.get();
+			long proximo = Math.max(agora, anterior + 1);
+			if(ultimoInstante.compareAndSet(anterior, proximo)) return proximo;
+		}
+	}
+
+	private static class Regiao implements EntityRegion {
+
+		private final RegiaoDeCache cache;
+		private final CacheDataDescription descricao;
+		private int emMassa;
+		private long liberadaEm;
+
+		Regiao(RegiaoDeCache cache, CacheDataDescription descricao) {
+			this.cache = cache;
+			this.descricao = descricao;
+		}
+
+		public EntityRegionAccessStrategy buildAccessStrategy(AccessType tipo) throws CacheException {
+			if(tipo != AccessType.READ_WRITE) {
+				throw new CacheException("CacheDeEntidades so tem a estrategia READ_WRITE, nao " + tipo);
+			}
+			return new Acesso(this);
+		}
+
+		public boolean isTransactionAware() {
+			return false;
+		}
+
+		public CacheDataDescription getCacheDataDescription() {
+			return descricao;
+		}
+
+		public String getName() {
+			return cache.getNome();
+		}
+
+		public void destroy() throws CacheException {
+			cache.limpa();
+		}
+
+		public boolean contains(Object chave) {
+			return cache.espia(chave) instanceof Item;
+		}
+
+		public long getSizeInMemory() {
+			return -1;
+		}
+
+		public long getElementCountInMemory() {
+			return cache.getTamanho();
+		}
+
+		public long getElementCountOnDisk() {
+			return 0;
+		}
+
+		@SuppressWarnings("rawtypes")
+		public Map toMap() {
+			return Collections.emptyMap();
+		}
+
+		public long nextTimestamp() {
+			return proximoInstante();
+		}
+
+		public int getTimeout() {
+			return TEMPO_DE_TRAVA;
+		}
+
+		@SuppressWarnings("unchecked")
+		boolean podeSobrescrever(Object atual, Object versao) {
+			return atual != null && versao != null && descricao.isVersioned()
+					&& ((Comparator<Object>) descricao.getVersionComparator()).compare(atual, versao) < 0;
+		}
+	}
+
+	/**
+	 * Estado desmontado de uma entidade, legivel por sessoes abertas
+	 * depois de guardado.
+	 */
+	private static class Item {
+
+		private final Object valor;
+		private final Object versao;
+		private final long guardadoEm;
+
+		Item(Object valor, Object versao) {
+			this.valor = valor;
+			this.versao = versao;
+			this.guardadoEm = proximoInstante();
+		}
+	}
+
+	/**
+	 * Entrada em alteracao. Enquanto houver transacoes com ela travada,
+	 * nada a le nem a sobrescreve; depois, so sessoes abertas apos a
+	 * ultima liberacao a preenchem de novo.
+	 */
+	private static class Trava implements SoftLock {
+
+		private final Object versao;
+		private long expiraEm;
+		private long liberadaEm;
+		private int travas = 1;
+		private boolean concorrente;
+
+		Trava(Object versao) {
+			this.versao = versao;
+			this.expiraEm = proximoInstante() + TEMPO_DE_TRAVA;
+		}
+
+		void trava() {
+			concorrente = true;
+			travas++;
+			expiraEm = proximoInstante() + TEMPO_DE_TRAVA;
+		}
+
+		void libera() {
+			if(--travas == 0) liberadaEm = proximoInstante();
+		}
+
+		boolean podeSerSobrescrita(long inicioDaSessao, Object novaVersao, Regiao regiao) {
+			if(inicioDaSessao > expiraEm) return true;
+			if(travas > 0) return false;
+			if(versao != null && novaVersao != null) return regiao.podeSobrescrever(versao, novaVersao);
+			return inicioDaSessao > liberadaEm;
+		}
+	}
+
+	private static class Acesso implements EntityRegionAccessStrategy {
+
+		private final Regiao regiao;
+		private final RegiaoDeCache cache;
+
+		Acesso(Regiao regiao) {
+			this.regiao = regiao;
+			this.cache = regiao.cache;
+		}
+
+		public EntityRegion getRegion() {
+			return regiao;
+		}
+
+		public Object get(Object chave, long inicioDaSessao) throws CacheException {
+			synchronized(cache) {
+				Object entrada = cache.espia(chave);
+				boolean legivel = entrada instanceof Item && ((Item) entrada).guardadoEm < inicioDaSessao;
+				cache.conta(legivel);
+				return legivel ? ((Item) entrada).valor : null;
+			}
+		}
+
+		public boolean putFromLoad(Object chave, Object valor, long inicioDaSessao, Object versao)
+				throws CacheException {
+			return putFromLoad(chave, valor, inicioDaSessao, versao, false);
+		}
+
+		public boolean putFromLoad(Object chave, Object valor, long inicioDaSessao, Object versao,
+				boolean minimalPut) throws CacheException {
+			synchronized(cache) {
+				if(regiao.emMassa > 0 || inicioDaSessao <= regiao.liberadaEm) return false;
+
+				Object entrada = cache.espia(chave);
+				boolean pode = entrada == null
+						|| (entrada instanceof Trava && ((Trava) entrada).podeSerSobrescrita(inicioDaSessao, versao, regiao))
+						|| (entrada instanceof Item && regiao.podeSobrescrever(((Item) entrada).versao, versao));
+				if(pode) cache.poe(chave, new Item(valor, versao));
+				return pode;
+			}
+		}
+
+		public SoftLock lockItem(Object chave, Object versao) throws CacheException {
+			synchronized(cache) {
+				Object entrada = cache.espia(chave);
+				Trava trava;
+				if(entrada instanceof Trava && ((Trava) entrada).travas > 0) {
+					trava = (Trava) entrada;
+					trava.trava();
+				} else {
+					trava = new Trava(versao);
+				}
+				cache.poe(chave, trava);
+				return trava;
+			}
+		}
+
+		public void unlockItem(Object chave, SoftLock trava) throws CacheException {
+			synchronized(cache) {
+				Object entrada = cache.espia(chave);
+				if(entrada == trava) {
+					((Trava) entrada).libera();
+				} else {
+					travaAposExpirar(chave);
+				}
+			}
+		}
+
+		public boolean insert(Object chave, Object valor, Object versao) throws CacheException {
+			return false;
+		}
+
+		public boolean afterInsert(Object chave, Object valor, Object versao) throws CacheException {
+			synchronized(cache) {
+				if(cache.espia(chave) != null) return false;
+				cache.poe(chave, new Item(valor, versao));
+				return true;
+			}
+		}
+
+		public boolean update(Object chave, Object valor, Object versaoAtual, Object versaoAnterior)
+				throws CacheException {
+			return false;
+		}
+
+		public boolean afterUpdate(Object chave, Object valor, Object versaoAtual, Object versaoAnterior,
+				SoftLock trava) throws CacheException {
+			synchronized(cache) {
+				Object entrada = cache.espia(chave);
+				if(entrada != trava) {
+					travaAposExpirar(chave);
+					return false;
+				}
+				Trava minha = (Trava) entrada;
+				if(minha.concorrente) {
+					minha.libera();
+					return false;
+				}
+				cache.poe(chave, new Item(valor, versaoAtual));
+				return true;
+			}
+		}
+
+		/**
+		 * Um delete trava a entrada em lockItem e a libera em unlockItem,
+		 * depois do commit; ate la ela ja nao e lida.
+		 */
+		public void remove(Object chave) throws CacheException {
+		}
+
+		public void removeAll() throws CacheException {
+			cache.limpa();
+		}
+
+		public void evict(Object chave) throws CacheException {
+			cache.invalida(chave);
+		}
+
+		public void evictAll() throws CacheException {
+			cache.limpa();
+		}
+
+		/**
+		 * Inicio de um update ou delete em massa: a regiao fica vazia e nao
+		 * aceita entradas ate unlockRegion, no fim da transacao.
+		 */
+		public SoftLock lockRegion() throws CacheException {
+			synchronized(cache) {
+				regiao.emMassa++;
+				cache.limpa();
+				return null;
+			}
+		}
+
+		public void unlockRegion(SoftLock trava) throws CacheException {
+			synchronized(cache) {
+				regiao.emMassa--;
+				regiao.liberadaEm = proximoInstante();
+				cache.limpa();
+			}
+		}
+
+		/**
+		 * A trava sumiu (expirou ou saiu pelo tamanho maximo) antes do fim
+		 * da transacao; a entrada fica travada por mais um TEMPO_DE_TRAVA,
+		 * para que nada lido antes do commit fique no cache.
+		 */
+		private void travaAposExpirar(Object chave) {
+			Trava trava = new Trava(null);
+			trava.libera();
+			trava.liberadaEm = trava.expiraEm;
+			cache.poe(chave, trava);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Cache de (nome, email normalizado) para o id do usuario, usado pelo
+ * UsuarioDao.porNomeEEmail. Guarda so ids, nunca entidades, entao pode ser
+ * compartilhado entre sessoes: o DAO carrega o usuario pelo id na propria
+ * sessao e confere nome e email antes de confiar na entrada.
+ *
+ * Buscas sem resultado tambem sao guardadas (AUSENTE), por
+ * ttl_ausente_ms, para que logins com email errado nao repitam a consulta.
+ * Salvar, atualizar e deletar pelo UsuarioDao invalidam as entradas do
+ * usuario; escritas feitas por fora (outro processo, SQL direto) so
+ * aparecem quando a entrada ausente expira.
+ *
+ * As entradas ficam em SEGMENTOS mapas LRU independentes, cada um com seu
+ * proprio lock, limitados juntos a pm73.identidades.maximo.
+ */
+public class CacheDeIdentidades {
+
+	public static final int DESCONHECIDO = -1;
+	public static final int AUSENTE = 0;
+
+	private static final int SEGMENTOS = 16;
+
+	public static final CacheDeIdentidades DESLIGADO = new CacheDeIdentidades(0, 0);
+
+	private static volatile CacheDeIdentidades padrao;
+
+	private final boolean habilitado;
+	private final long ttlDeAusentes;
+	private final Segmento[] segmentos;
+	private final ConcurrentMap<Integer, Chave> chavesPorId = new ConcurrentHashMap<Integer, Chave>();
+
+	private final AtomicLong acertos = new AtomicLong();
+	private final AtomicLong acertosDeAusentes = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+	private final AtomicLong remocoes = new AtomicLong();
+
+	public CacheDeIdentidades(ConfiguracaoDoBanco configuracao) {
+		this(configuracao.getMaximoDeIdentidades(), configuracao.getTtlDeIdentidadesAusentesEmMilis());
+	}
+
+	public CacheDeIdentidades(int maximo, long ttlDeAusentesEmMilis) {
+		this.habilitado = maximo > 0;
+		this.ttlDeAusentes = ttlDeAusentesEmMilis;
+		this.segmentos = new Segmento[SEGMENTOS];
+		for(int i = 0; i < SEGMENTOS; i++) {
+			segmentos[i] = new Segmento(Math.max(1, (maximo + SEGMENTOS - 1) / SEGMENTOS));
+		}
+	}
+
+	public static CacheDeIdentidades padrao() {
+		if(padrao == null) {
+			synchronized(CacheDeIdentidades.class) {
+				if(padrao == null) {
+					ConfiguracaoDoBanco configuracao = new ConfiguracaoDoBanco();
+					padrao = configuracao.isCacheDeIdentidadesHabilitado()
+							? new CacheDeIdentidades(configuracao) : DESLIGADO;
+				}
+			}
+		}
+		return padrao;
+	}
+
+	/**
+	 * Id guardado para o par, AUSENTE se a ultima busca nao achou ninguem
+	 * ou DESCONHECIDO se o par nao esta no cache.
+	 */
+	public int busca(String nome, String email) {
+		if(!habilitado) return DESCONHECIDO;
+
+		Chave chave = new Chave(nome, email);
+		Entrada entrada = segmentoDe(chave).busca(chave);
+		if(entrada == null) {
+			falhas.incrementAndGet();
+			return DESCONHECIDO;
+		}
+		if(entrada.id == AUSENTE) {
+			if(entrada.expiraEm < System.currentTimeMillis()) {
+				segmentoDe(chave).remove(chave);
+				falhas.incrementAndGet();
+				return DESCONHECIDO;
+			}
+			acertosDeAusentes.incrementAndGet();
+			return AUSENTE;
+		}
+		acertos.incrementAndGet();
+		return entrada.id;
+	}
+
+	public void guarda(String nome, String email, int id) {
+		if(!habilitado) return;
+
+		Chave chave = new Chave(nome, email);
+		Chave anterior = chavesPorId.put(id, chave);
+		if(anterior != null && !anterior.equals(chave)) segmentoDe(anterior).remove(anterior);
+		segmentoDe(chave).guarda(chave, new Entrada(id, Long.MAX_VALUE));
+	}
+
+	public void guardaAusente(String nome, String email) {
+		if(!habilitado) return;
+
+		Chave chave = new Chave(nome, email);
+		segmentoDe(chave).guarda(chave, new Entrada(AUSENTE, System.currentTimeMillis() + ttlDeAusentes));
+	}
+
+	public void invalida(String nome, String email) {
+		if(!habilitado) return;
+
+		Chave chave = new Chave(nome, email);
+		segmentoDe(chave).remove(chave);
+	}
+
+	public void invalida(int id) {
+		if(!habilitado) return;
+
+		Chave chave = chavesPorId.remove(id);
+		if(chave != null) segmentoDe(chave).remove(chave);
+	}
+
+	public void limpa() {
+		for(Segmento segmento : segmentos) {
+			segmento.limpa();
+		}
+		chavesPorId.clear();
+	}
+
+	public boolean isHabilitado() {
+		return habilitado;
+	}
+
+	public int getTamanho() {
+		int tamanho = 0;
+		for(Segmento segmento : segmentos) {
+			tamanho += segmento.getTamanho();
+		}
+		return tamanho;
+	}
+
+	public long getAcertos() {
+		return acertos.get();
+	}
+
+	public long getAcertosDeAusentes() {
+		return acertosDeAusentes.get();
+	}
+
+	public long getFalhas() {
+		return falhas.get();
+	}
+
+	public long getRemocoes() {
+		return remocoes.get();
+	}
+
+	private Segmento segmentoDe(Chave chave) {
+		int hash = chave.hashCode();
+		hash ^= (hash >>> 16);
+		return segmentos[hash & (SEGMENTOS - 1)];
+	}
+
+	private static class Chave {
+
+		private final String nome;
+		private final String email;
+
+		Chave(String nome, String email) {
+			this.nome = nome;
+			this.email = Usuario.normaliza(email);
+		}
+
+		@Override
+		public boolean equals(Object outro) {
+			if(!(outro instanceof Chave)) return false;
+			Chave chave = (Chave) outro;
+			return igual(nome, chave.nome) && igual(email, chave.email);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (nome == null ? 0 : nome.hashCode()) + (email == null ? 0 : email.hashCode());
+		}
+
+		private static boolean igual(String um, String outro) {
+			return um == null ? outro == null : um.equals(outro);
+		}
+	}
+
+	private static class Entrada {
+
+		private final int id;
+		private final long expiraEm;
+
+		Entrada(int id, long expiraEm) {
+			this.id = id;
+			this.expiraEm = expiraEm;
+		}
+	}
+
+	private class Segmento {
+
+		private final Map<Chave, Entrada> entradas;
+
+		Segmento(final int maximo) {
+			this.entradas = new LinkedHashMap<Chave, Entrada>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Chave, Entrada> maisAntiga) {
+					if(size() <= maximo) return false;
+
+					remocoes.incrementAndGet();
+					Entrada removida = maisAntiga.getValue();
+					if(removida.id != AUSENTE) chavesPorId.remove(removida.id, maisAntiga.getKey());
+					return true;
+				}
+			};
+		}
+
+		synchronized Entrada busca(Chave chave) {
+			return entradas.get(chave);
+		}
+
+		synchronized void guarda(Chave chave, Entrada entrada) {
+			entradas.put(chave, entrada);
+		}
+
+		synchronized void remove(Chave chave) {
+			entradas.remove(chave);
+		}
+
+		synchronized void limpa() {
+			entradas.clear();
+		}
+
+		synchronized int getTamanho() {
+			return entradas.size();
+		}
+	}
+}
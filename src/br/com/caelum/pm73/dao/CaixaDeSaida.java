@@ -0,0 +1,79 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dominio.EventoDeAlteracao;
+import br.com.caelum.pm73.dominio.TipoDeAlteracao;
+
+/**
+ * Grava EventoDeAlteracao na sessao do DAO, dentro da transacao da propria
+ * escrita: o evento so existe se a alteracao foi confirmada. Operacoes em
+ * massa geram os eventos com um INSERT ... SELECT sobre as mesmas linhas,
+ * sem carregar nada. Ligada com pm73.eventos.habilitados=true.
+ *
+ * Os eventos sao entregues aos assinantes, e depois apagados, pelo
+ * RetransmissorDeEventos; ligue a caixa de saida so onde ele roda, ou a
+ * tabela EventoDeAlteracao cresce sem limite.
+ */
+public class CaixaDeSaida {
+
+	private static volatile Boolean habilitada;
+
+	private final Session session;
+	private final boolean ligada;
+
+	public CaixaDeSaida(Session session) {
+		this(session, isHabilitada());
+	}
+
+	public CaixaDeSaida(Session session, boolean ligada) {
+		this.session = session;
+		this.ligada = ligada;
+	}
+
+	public void registra(String entidade, int id, TipoDeAlteracao tipo) {
+		if(!ligada) return;
+		session.save(new EventoDeAlteracao(entidade, id, tipo));
+	}
+
+	/**
+	 * Um evento para cada linha de entidade que satisfaz a condicao SQL,
+	 * com os parametros nomeados dados; chame antes do UPDATE ou DELETE que
+	 * usa a mesma condicao. Descarrega a sessao antes, ja que o SQL nativo
+	 * precisa ver as linhas ainda pendentes nela. O insert declara que so
+	 * escreve em EventoDeAlteracao; sem isso, o Hibernate esvaziaria todas
+	 * as regioes do CacheDeEntidades a cada evento.
+	 */
+	public int registraEmMassa(String entidade, TipoDeAlteracao tipo, String condicao, Map<String, Object> parametros) {
+		if(!ligada) return 0;
+
+		session.flush();
+		Query insert = session.createSQLQuery("insert into EventoDeAlteracao (entidade, entidadeId, tipo, criadoEm) " +
+				"select '" + entidade + "', id, '" + tipo.name() + "', " + System.currentTimeMillis() +
+				" from " + entidade + " where " + condicao)
+				.addSynchronizedQuerySpace("EventoDeAlteracao");
+		for(Map.Entry<String, Object> parametro : parametros.entrySet()) {
+			if(parametro.getValue() instanceof Collection) {
+				insert.setParameterList(parametro.getKey(), (Collection<?>) parametro.getValue());
+			} else {
+				insert.setParameter(parametro.getKey(), parametro.getValue());
+			}
+		}
+		return insert.executeUpdate();
+	}
+
+	public boolean isLigada() {
+		return ligada;
+	}
+
+	private static boolean isHabilitada() {
+		if(habilitada == null) {
+			habilitada = new ConfiguracaoDoBanco().isEventosHabilitados();
+		}
+		return habilitada;
+	}
+}
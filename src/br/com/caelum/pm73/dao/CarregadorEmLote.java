@@ -0,0 +1,107 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Junta buscas por um unico id numa so chamada a porIds. carrega(id) so
+ * anota o pedido; o primeiro get() de qualquer Adiado busca de uma vez
+ * todos os ids anotados ate ali, inclusive os de outras threads que
+ * compartilham o carregador. Cada id e buscado uma unica vez.
+ *
+ * Vale por uma requisicao, como a sessao do DAO: crie um por unidade de
+ * trabalho e descarte junto com ela. As buscas sao serializadas no
+ * proprio carregador, entao a sessao nunca e usada por duas threads ao
+ * mesmo tempo.
+ */
+public class CarregadorEmLote<T> {
+
+	public interface Busca<T> {
+		ResultadoPorIds<T> porIds(List<Integer> ids);
+	}
+
+	private final Busca<T> busca;
+	private final Set<Integer> pendentes = new LinkedHashSet<Integer>();
+	private final Map<Integer, T> carregados = new HashMap<Integer, T>();
+	private int buscas;
+
+	public CarregadorEmLote(Busca<T> busca) {
+		this.busca = busca;
+	}
+
+	public static CarregadorEmLote<Usuario> deUsuarios(final UsuarioDao dao) {
+		return new CarregadorEmLote<Usuario>(new Busca<Usuario>() {
+			public ResultadoPorIds<Usuario> porIds(List<Integer> ids) {
+				return dao.porIds(ids);
+			}
+		});
+	}
+
+	public static CarregadorEmLote<Leilao> deLeiloes(final LeilaoDao dao) {
+		return new CarregadorEmLote<Leilao>(new Busca<Leilao>() {
+			public ResultadoPorIds<Leilao> porIds(List<Integer> ids) {
+				return dao.porIds(ids);
+			}
+		});
+	}
+
+	public synchronized Adiado carrega(int id) {
+		if(!carregados.containsKey(id)) pendentes.add(id);
+		return new Adiado(id);
+	}
+
+	/**
+	 * Busca agora todos os ids pendentes.
+	 */
+	public synchronized void despacha() {
+		if(pendentes.isEmpty()) return;
+
+		List<Integer> ids = new ArrayList<Integer>(pendentes);
+		pendentes.clear();
+		ResultadoPorIds<T> resultado = busca.porIds(ids);
+		buscas++;
+		for(Integer id : ids) {
+			carregados.put(id, resultado.get(id));
+		}
+	}
+
+	public synchronized int getBuscas() {
+		return buscas;
+	}
+
+	private synchronized T resolve(int id) {
+		if(!carregados.containsKey(id)) {
+			pendentes.add(id);
+			despacha();
+		}
+		return carregados.get(id);
+	}
+
+	/**
+	 * Entidade pedida a um CarregadorEmLote; get() devolve null se o id
+	 * nao existe, como session.get.
+	 */
+	public class Adiado {
+
+		private final int id;
+
+		private Adiado(int id) {
+			this.id = id;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public T get() {
+			return resolve(id);
+		}
+	}
+}
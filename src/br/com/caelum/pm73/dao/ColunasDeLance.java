@@ -0,0 +1,55 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Colunas de LANCE.
+ */
+class ColunasDeLance extends ColunasDoInstantaneo {
+
+	int[] leiloes;
+	int[] usuarios;
+	double[] valores;
+	long[] datas;
+
+	ColunasDeLance(int capacidade) {
+		super(capacidade);
+		cresceResto(ids.length);
+	}
+
+	String getTabela() {
+		return "Lance";
+	}
+
+	String getColunas() {
+		return "leilao_id, usuario_id, valor, data";
+	}
+
+	ColunasDoInstantaneo vazia(int capacidade) {
+		return new ColunasDeLance(capacidade);
+	}
+
+	protected void cresceResto(int capacidade) {
+		leiloes = leiloes == null ? new int[capacidade] : Arrays.copyOf(leiloes, capacidade);
+		usuarios = usuarios == null ? new int[capacidade] : Arrays.copyOf(usuarios, capacidade);
+		valores = valores == null ? new double[capacidade] : Arrays.copyOf(valores, capacidade);
+		datas = datas == null ? new long[capacidade] : Arrays.copyOf(datas, capacidade);
+	}
+
+	protected void leResto(ResultSet resultado, int linha) throws SQLException {
+		leiloes[linha] = resultado.getInt(3);
+		usuarios[linha] = resultado.getInt(4);
+		valores[linha] = resultado.getDouble(5);
+		datas[linha] = resultado.getLong(6);
+	}
+
+	protected void copiaResto(ColunasDoInstantaneo origem, int de, int para) {
+		ColunasDeLance outra = (ColunasDeLance) origem;
+		leiloes[para] = outra.leiloes[de];
+		usuarios[para] = outra.usuarios[de];
+		valores[para] = outra.valores[de];
+		datas[para] = outra.datas[de];
+	}
+}
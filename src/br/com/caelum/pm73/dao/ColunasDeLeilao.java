@@ -0,0 +1,63 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Colunas de LEILAO; valorInicial nulo vira NaN e dono nulo vira 0.
+ */
+class ColunasDeLeilao extends ColunasDoInstantaneo {
+
+	double[] valoresIniciais;
+	long[] datasDeAbertura;
+	int[] donos;
+	int[] quantidadesDeLances;
+	final BitSet usados = new BitSet();
+	final BitSet encerrados = new BitSet();
+
+	ColunasDeLeilao(int capacidade) {
+		super(capacidade);
+		cresceResto(ids.length);
+	}
+
+	String getTabela() {
+		return "Leilao";
+	}
+
+	String getColunas() {
+		return "valorInicial, dataAbertura, dono_id, quantidadeDeLances, usado, encerrado";
+	}
+
+	ColunasDoInstantaneo vazia(int capacidade) {
+		return new ColunasDeLeilao(capacidade);
+	}
+
+	protected void cresceResto(int capacidade) {
+		valoresIniciais = valoresIniciais == null ? new double[capacidade] : Arrays.copyOf(valoresIniciais, capacidade);
+		datasDeAbertura = datasDeAbertura == null ? new long[capacidade] : Arrays.copyOf(datasDeAbertura, capacidade);
+		donos = donos == null ? new int[capacidade] : Arrays.copyOf(donos, capacidade);
+		quantidadesDeLances = quantidadesDeLances == null ? new int[capacidade] : Arrays.copyOf(quantidadesDeLances, capacidade);
+	}
+
+	protected void leResto(ResultSet resultado, int linha) throws SQLException {
+		double valor = resultado.getDouble(3);
+		valoresIniciais[linha] = resultado.wasNull() ? Double.NaN : valor;
+		datasDeAbertura[linha] = resultado.getLong(4);
+		donos[linha] = resultado.getInt(5);
+		quantidadesDeLances[linha] = resultado.getInt(6);
+		usados.set(linha, resultado.getBoolean(7));
+		encerrados.set(linha, resultado.getBoolean(8));
+	}
+
+	protected void copiaResto(ColunasDoInstantaneo origem, int de, int para) {
+		ColunasDeLeilao outra = (ColunasDeLeilao) origem;
+		valoresIniciais[para] = outra.valoresIniciais[de];
+		datasDeAbertura[para] = outra.datasDeAbertura[de];
+		donos[para] = outra.donos[de];
+		quantidadesDeLances[para] = outra.quantidadesDeLances[de];
+		usados.set(para, outra.usados.get(de));
+		encerrados.set(para, outra.encerrados.get(de));
+	}
+}
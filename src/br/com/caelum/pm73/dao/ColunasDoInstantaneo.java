@@ -0,0 +1,83 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Linhas de uma tabela guardadas coluna a coluna em arrays primitivos,
+ * ordenadas por id. As duas primeiras colunas lidas sao sempre id e
+ * versao, usadas pela atualizacao incremental para achar o que mudou.
+ */
+abstract class ColunasDoInstantaneo {
+
+	protected int tamanho;
+	protected int[] ids;
+	protected int[] versoes;
+
+	ColunasDoInstantaneo(int capacidade) {
+		capacidade = Math.max(16, capacidade);
+		this.ids = new int[capacidade];
+		this.versoes = new int[capacidade];
+	}
+
+	abstract String getTabela();
+
+	/**
+	 * Colunas lidas depois de id e versao, na ordem de leResto.
+	 */
+	abstract String getColunas();
+
+	abstract ColunasDoInstantaneo vazia(int capacidade);
+
+	protected abstract void cresceResto(int capacidade);
+
+	protected abstract void leResto(ResultSet resultado, int linha) throws SQLException;
+
+	protected abstract void copiaResto(ColunasDoInstantaneo origem, int de, int para);
+
+	final String getSelect() {
+		return "select id, versao, " + getColunas() + " from " + getTabela();
+	}
+
+	final void le(ResultSet resultado) throws SQLException {
+		garante(tamanho + 1);
+		ids[tamanho] = resultado.getInt(1);
+		versoes[tamanho] = resultado.getInt(2);
+		leResto(resultado, tamanho);
+		tamanho++;
+	}
+
+	final void copia(ColunasDoInstantaneo origem, int linha) {
+		garante(tamanho + 1);
+		ids[tamanho] = origem.ids[linha];
+		versoes[tamanho] = origem.versoes[linha];
+		copiaResto(origem, linha, tamanho);
+		tamanho++;
+	}
+
+	final int getTamanho() {
+		return tamanho;
+	}
+
+	final int id(int linha) {
+		return ids[linha];
+	}
+
+	final int versao(int linha) {
+		return versoes[linha];
+	}
+
+	final int posicaoDe(int id) {
+		return Arrays.binarySearch(ids, 0, tamanho, id);
+	}
+
+	private void garante(int capacidade) {
+		if(capacidade <= ids.length) return;
+
+		int nova = Math.max(capacidade, ids.length + (ids.length >> 1));
+		ids = Arrays.copyOf(ids, nova);
+		versoes = Arrays.copyOf(versoes, nova);
+		cresceResto(nova);
+	}
+}
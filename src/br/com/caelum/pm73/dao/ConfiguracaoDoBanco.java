@@ -0,0 +1,188 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class ConfiguracaoDoBanco {
+
+	public static final String ARQUIVO = "/pm73.properties";
+	public static final String URL_EM_MEMORIA = "jdbc:hsqldb:mem:pm73";
+
+	private final Properties propriedades;
+
+	public ConfiguracaoDoBanco() {
+		this(carregaArquivo());
+	}
+
+	public ConfiguracaoDoBanco(Properties padrao) {
+		this.propriedades = new Properties();
+		this.propriedades.putAll(padrao);
+		this.propriedades.putAll(System.getProperties());
+	}
+
+	/**
+	 * Com pm73.banco.memoria=true, um banco HSQLDB em memoria, proprio de
+	 * cada JVM, no lugar de pm73.connection.url.
+	 */
+	public String getUrl() {
+		if(isBancoEmMemoria()) return URL_EM_MEMORIA;
+		return texto("pm73.connection.url", "jdbc:hsqldb:caelum.db;shutdown=true");
+	}
+
+	public boolean isBancoEmMemoria() {
+		return Boolean.parseBoolean(texto("pm73.banco.memoria", "false"));
+	}
+
+	public String getUsuario() {
+		return texto("pm73.connection.username", "sa");
+	}
+
+	public String getSenha() {
+		return texto("pm73.connection.password", "");
+	}
+
+	/**
+	 * SQL no stdout, so para desenvolvimento: desligado por padrao, ligue
+	 * com -Dpm73.show_sql=true.
+	 */
+	public boolean isShowSql() {
+		return Boolean.parseBoolean(texto("pm73.show_sql", "false"));
+	}
+
+	public int getTamanhoDoLote() {
+		return inteiro("pm73.jdbc.batch_size", 50);
+	}
+
+	public int getTamanhoDoFetch() {
+		return inteiro("pm73.jdbc.fetch_size", 100);
+	}
+
+	public int getMinimoDeConexoes() {
+		return inteiro("pm73.pool.minimo", 1);
+	}
+
+	public int getMaximoDeConexoes() {
+		return inteiro("pm73.pool.maximo", 10);
+	}
+
+	public long getOciosidadeMaximaEmMilis() {
+		return inteiro("pm73.pool.ociosidade_maxima_ms", 300000);
+	}
+
+	public long getEsperaMaximaEmMilis() {
+		return inteiro("pm73.pool.espera_maxima_ms", 30000);
+	}
+
+	public boolean isCacheHabilitado() {
+		return Boolean.parseBoolean(texto("pm73.cache.habilitado", "false"));
+	}
+
+	/**
+	 * As chaves pm73.cache.*, que o CriadorDeSessao repassa ao Hibernate
+	 * para o CacheDeEntidades configurar as regioes.
+	 */
+	public Properties getPropriedadesDoCache() {
+		Properties cache = new Properties();
+		for(String chave : propriedades.stringPropertyNames()) {
+			if(chave.startsWith("pm73.cache.")) cache.setProperty(chave, propriedades.getProperty(chave));
+		}
+		return cache;
+	}
+
+	public boolean isCacheDeIdentidadesHabilitado() {
+		return Boolean.parseBoolean(texto("pm73.identidades.habilitado", "true"));
+	}
+
+	public int getMaximoDeIdentidades() {
+		return inteiro("pm73.identidades.maximo", 100000);
+	}
+
+	public long getTtlDeIdentidadesAusentesEmMilis() {
+		return inteiro("pm73.identidades.ttl_ausente_ms", 5000);
+	}
+
+	public boolean isEventosHabilitados() {
+		return Boolean.parseBoolean(texto("pm73.eventos.habilitados", "false"));
+	}
+
+	public int getTamanhoDoLoteDeEventos() {
+		return inteiro("pm73.eventos.lote", 500);
+	}
+
+	public int getLotesPorAssinante() {
+		return inteiro("pm73.eventos.lotes_por_assinante", 4);
+	}
+
+	public long getEsperaPorLacunaEmMilis() {
+		return inteiro("pm73.eventos.espera_por_lacuna_ms", 1000);
+	}
+
+	public List<String> getUrlsDasReplicas() {
+		return lista("pm73.replicas.urls");
+	}
+
+	public String getBalanceamentoDeLeitura() {
+		return texto("pm73.replicas.balanceamento", "rodizio");
+	}
+
+	public List<String> getUrlsDosShards() {
+		return lista("pm73.shards.urls");
+	}
+
+	public boolean isMetricasHabilitadas() {
+		return Boolean.parseBoolean(texto("pm73.metricas.habilitadas", "false"));
+	}
+
+	public long getLimiteDeConsultaLentaEmMilis() {
+		return inteiro("pm73.metricas.lenta_ms", 500);
+	}
+
+	public boolean isJmxHabilitado() {
+		return Boolean.parseBoolean(texto("pm73.metricas.jmx", "false"));
+	}
+
+	public String texto(String chave, String padrao) {
+		String valor = propriedades.getProperty(chave);
+		return valor == null ? padrao : valor.trim();
+	}
+
+	public int inteiro(String chave, int padrao) {
+		String valor = propriedades.getProperty(chave);
+		if(valor == null || valor.trim().isEmpty()) return padrao;
+
+		try {
+			return Integer.parseInt(valor.trim());
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Valor invalido para " + chave + ": " + valor, e);
+		}
+	}
+
+	private List<String> lista(String chave) {
+		List<String> valores = new ArrayList<String>();
+		for(String valor : texto(chave, "").split(",")) {
+			if(!valor.trim().isEmpty()) valores.add(valor.trim());
+		}
+		return valores;
+	}
+
+	private static Properties carregaArquivo() {
+		Properties propriedades = new Properties();
+		InputStream arquivo = ConfiguracaoDoBanco.class.getResourceAsStream(ARQUIVO);
+		if(arquivo == null) return propriedades;
+
+		try {
+			propriedades.load(arquivo);
+			return propriedades;
+		} catch(IOException e) {
+			throw new IllegalStateException("Nao foi possivel ler " + ARQUIVO, e);
+		} finally {
+			try {
+				arquivo.close();
+			} catch(IOException e) {
+			}
+		}
+	}
+}
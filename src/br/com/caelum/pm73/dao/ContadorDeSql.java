@@ -0,0 +1,44 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conta, e guarda, os comandos SQL preparados na sessao desde o ultimo
+ * zera(). Os comandos guardados sao os que o Hibernate gerou de fato, com
+ * "?" no lugar dos parametros.
+ */
+public class ContadorDeSql extends InterceptadorDeMetricas {
+
+	private static final long serialVersionUID = 1L;
+
+	private final AtomicInteger quantidade = new AtomicInteger();
+	private final List<String> sqls = new ArrayList<String>();
+
+	@Override
+	public String onPrepareStatement(String sql) {
+		quantidade.incrementAndGet();
+		synchronized(sqls) {
+			sqls.add(sql);
+		}
+		return super.onPrepareStatement(sql);
+	}
+
+	public int getQuantidade() {
+		return quantidade.get();
+	}
+
+	public List<String> getSqls() {
+		synchronized(sqls) {
+			return new ArrayList<String>(sqls);
+		}
+	}
+
+	public void zera() {
+		quantidade.set(0);
+		synchronized(sqls) {
+			sqls.clear();
+		}
+	}
+}
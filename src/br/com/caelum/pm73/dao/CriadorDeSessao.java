@@ -1,41 +1,214 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.Interceptor;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.cache.spi.RegionFactory;
 import org.hibernate.cfg.AnnotationConfiguration;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 
+import br.com.caelum.pm73.dominio.EstatisticasDoUsuario;
+import br.com.caelum.pm73.dominio.EventoDeAlteracao;
+import br.com.caelum.pm73.dominio.EventoNaoEntregue;
 import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.LanceRejeitado;
 import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.PosicaoDoDiario;
 import br.com.caelum.pm73.dominio.Usuario;
 
 @SuppressWarnings("deprecation")
 public class CriadorDeSessao {
 
-	private static AnnotationConfiguration config;
-	private static SessionFactory sf;
-	
+	private static volatile AnnotationConfiguration config;
+	private static volatile SessionFactory sf;
+	private static volatile long tempoDeInicializacao;
+	private static volatile CacheDeConsultas cache;
+	private static volatile RoteadorDeLeitura roteador;
+	private static volatile Shards shards;
+
 	public Session getSession() {
+		return getSessionFactory().openSession();
+	}
+
+	public Session getSession(Interceptor interceptor) {
+		return getSessionFactory().withOptions().interceptor(interceptor).openSession();
+	}
+
+	/**
+	 * Sessao somente leitura numa das replicas de pm73.replicas.urls,
+	 * escolhida pelo RoteadorDeLeitura; sem replicas configuradas, abre
+	 * na base principal. Para ler o que acabou de escrever, use a sessao
+	 * principal (ou um DAO criado com as duas, que troca sozinho).
+	 */
+	public Session getSessionDeLeitura() {
+		RoteadorDeLeitura leitura = getRoteadorDeLeitura();
+		Session session = leitura.temReplicas() ? leitura.escolhe().abreSessao() : getSession();
+		session.setDefaultReadOnly(true);
+		return session;
+	}
+
+	public SessionFactory getSessionFactory() {
 		if(sf == null) {
-			sf = getConfig().buildSessionFactory();
+			synchronized(CriadorDeSessao.class) {
+				if(sf == null) {
+					long inicio = System.nanoTime();
+					SessionFactory fabrica = getConfig().buildSessionFactory();
+					tempoDeInicializacao = System.nanoTime() - inicio;
+					getMetricas().registraNoJmx("tipo=Hibernate", new EstatisticasDoHibernate(fabrica.getStatistics()));
+					sf = fabrica;
+				}
+			}
 		}
-		
-		return sf.openSession();
+		return sf;
 	}
 
 	public Configuration getConfig() {
 		if(config == null) {
-			config = new AnnotationConfiguration()
+			synchronized(CriadorDeSessao.class) {
+				if(config == null) {
+					config = criaConfig(new ConfiguracaoDoBanco());
+				}
+			}
+		}
+		return config;
+	}
+
+	public PoolDeConexoes getPool() {
+		return PoolDeConexoes.de(getSessionFactory());
+	}
+
+	public RoteadorDeLeitura getRoteadorDeLeitura() {
+		if(roteador == null) {
+			synchronized(CriadorDeSessao.class) {
+				if(roteador == null) {
+					ConfiguracaoDoBanco banco = new ConfiguracaoDoBanco();
+					List<Replica> replicas = new ArrayList<Replica>();
+					for(String url : banco.getUrlsDasReplicas()) {
+						replicas.add(new Replica(url, criaConfig(banco, url)));
+					}
+					roteador = new RoteadorDeLeitura(replicas,
+							RoteadorDeLeitura.Balanceamento.de(banco.getBalanceamentoDeLeitura()));
+				}
+			}
+		}
+		return roteador;
+	}
+
+	/**
+	 * Shards de pm73.shards.urls; sem configuracao, um unico shard na
+	 * base principal.
+	 */
+	public Shards getShards() {
+		if(shards == null) {
+			synchronized(CriadorDeSessao.class) {
+				if(shards == null) {
+					ConfiguracaoDoBanco banco = new ConfiguracaoDoBanco();
+					List<String> urls = banco.getUrlsDosShards();
+					shards = criaShards(urls.isEmpty() ? Collections.singletonList(banco.getUrl()) : urls);
+				}
+			}
+		}
+		return shards;
+	}
+
+	public Shards criaShards(List<String> urls) {
+		ConfiguracaoDoBanco banco = new ConfiguracaoDoBanco();
+		List<Shard> criados = new ArrayList<Shard>();
+		for(String url : urls) {
+			criados.add(new Shard(criados.size(), url, criaConfig(banco, url)));
+		}
+		return new Shards(criados);
+	}
+
+	public CacheDeConsultas getCache() {
+		if(cache == null) {
+			synchronized(CriadorDeSessao.class) {
+				if(cache == null) {
+					ConfiguracaoDoBanco banco = new ConfiguracaoDoBanco();
+					cache = banco.isCacheHabilitado() ? new CacheDeConsultas(banco) : CacheDeConsultas.DESLIGADO;
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Regioes do CacheDeEntidades da base principal, com acertos, falhas e
+	 * remocoes; vazio com o cache desligado.
+	 */
+	public Collection<RegiaoDeCache> getRegioesDeEntidades() {
+		return regioesDeEntidades(getSessionFactory());
+	}
+
+	static Collection<RegiaoDeCache> regioesDeEntidades(SessionFactory fabrica) {
+		RegionFactory regioes = ((SessionFactoryImplementor) fabrica).getSettings().getRegionFactory();
+		if(regioes instanceof CacheDeEntidades) return ((CacheDeEntidades) regioes).getRegioes();
+		return Collections.emptyList();
+	}
+
+	public MetricasDeDao getMetricas() {
+		return MetricasDeDao.padrao();
+	}
+
+	public long getTempoDeInicializacaoEmMilis() {
+		return tempoDeInicializacao / 1000000;
+	}
+
+	/**
+	 * Configuracao da base principal; com pm73.cache.habilitado, liga o
+	 * CacheDeEntidades para Usuario e Leilao. As replicas e os shards
+	 * ficam sem ele.
+	 */
+	AnnotationConfiguration criaConfig(ConfiguracaoDoBanco banco) {
+		AnnotationConfiguration configuracao = criaConfig(banco, banco.getUrl());
+		if(banco.isCacheHabilitado()) {
+			configuracao
+				.setProperty("hibernate.cache.use_second_level_cache", "true")
+				.setProperty("hibernate.cache.use_query_cache", "false")
+				.setProperty("hibernate.cache.region.factory_class", CacheDeEntidades.class.getName())
+				.addProperties(banco.getPropriedadesDoCache());
+		}
+		return configuracao;
+	}
+
+	private AnnotationConfiguration criaConfig(ConfiguracaoDoBanco banco, String url) {
+		AnnotationConfiguration configuracao = new AnnotationConfiguration();
+		if(banco.isMetricasHabilitadas()) {
+			configuracao.setInterceptor(new InterceptadorDeMetricas());
+		}
+
+		configuracao
 		    .addAnnotatedClass(Lance.class)
 		    .addAnnotatedClass(Leilao.class)
 		    .addAnnotatedClass(Usuario.class)
+		    .addAnnotatedClass(EstatisticasDoUsuario.class)
+		    .addAnnotatedClass(PosicaoDoDiario.class)
+		    .addAnnotatedClass(EventoDeAlteracao.class)
+		    .addAnnotatedClass(LanceRejeitado.class)
+		    .addAnnotatedClass(EventoNaoEntregue.class)
 			.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
-			.setProperty("hibernate.connection.url", "jdbc:hsqldb:caelum.db;shutdown=true")
+			.setProperty("hibernate.connection.url", url)
 			.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
-			.setProperty("hibernate.connection.username", "sa")
-			.setProperty("hibernate.connection.password", "")
-			.setProperty("hibernate.show_sql", "true");
-		}
-		return config;
+			.setProperty("hibernate.connection.username", banco.getUsuario())
+			.setProperty("hibernate.connection.password", banco.getSenha())
+			.setProperty("hibernate.connection.provider_class", PoolDeConexoes.class.getName())
+			.setProperty("pm73.pool.minimo", String.valueOf(banco.getMinimoDeConexoes()))
+			.setProperty("pm73.pool.maximo", String.valueOf(banco.getMaximoDeConexoes()))
+			.setProperty("pm73.pool.ociosidade_maxima_ms", String.valueOf(banco.getOciosidadeMaximaEmMilis()))
+			.setProperty("pm73.pool.espera_maxima_ms", String.valueOf(banco.getEsperaMaximaEmMilis()))
+			.setProperty("hibernate.id.new_generator_mappings", "true")
+			.setProperty("hibernate.jdbc.batch_size", String.valueOf(banco.getTamanhoDoLote()))
+			.setProperty("hibernate.order_inserts", "true")
+			.setProperty("hibernate.jdbc.fetch_size", String.valueOf(banco.getTamanhoDoFetch()))
+			.setProperty("hibernate.generate_statistics", String.valueOf(banco.isMetricasHabilitadas()))
+			.setProperty("hibernate.cache.use_second_level_cache", "false")
+			.setProperty("hibernate.show_sql", String.valueOf(banco.isShowSql()));
+		return configuracao;
 	}
 }
@@ -0,0 +1,45 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Medicao de uma unica chamada de metodo de DAO. Criado por
+ * MetricasDeDao.inicia e encerrado com termina() num finally (ver
+ * DaoMedido).
+ */
+public class Cronometro {
+
+	static final Cronometro PARADO = new Cronometro(null, null);
+
+	private final MetricasDeDao metricas;
+	private final MetricaDeMetodo metrica;
+	private final long inicio;
+	private final long sqlsIniciais;
+	private final long entidadesIniciais;
+	private long linhas;
+
+	Cronometro(MetricasDeDao metricas, MetricaDeMetodo metrica) {
+		this.metricas = metricas;
+		this.metrica = metrica;
+		if(metrica == null) {
+			this.inicio = 0;
+			this.sqlsIniciais = 0;
+			this.entidadesIniciais = 0;
+		} else {
+			this.sqlsIniciais = InterceptadorDeMetricas.sqlsDaThread();
+			this.entidadesIniciais = InterceptadorDeMetricas.entidadesDaThread();
+			this.inicio = System.nanoTime();
+		}
+	}
+
+	public void conta(long quantidade) {
+		if(metrica != null) linhas += quantidade;
+	}
+
+	public void termina() {
+		if(metrica == null) return;
+
+		long nanos = System.nanoTime() - inicio;
+		metricas.registra(metrica, nanos, linhas,
+				InterceptadorDeMetricas.sqlsDaThread() - sqlsIniciais,
+				InterceptadorDeMetricas.entidadesDaThread() - entidadesIniciais);
+	}
+}
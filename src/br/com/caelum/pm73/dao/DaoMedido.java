@@ -0,0 +1,129 @@
+package br.com.caelum.pm73.dao;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.util.proxy.MethodFilter;
+import javassist.util.proxy.MethodHandler;
+import javassist.util.proxy.ProxyFactory;
+
+/**
+ * Mede os metodos publicos de um DAO sem codigo de metrica no DAO: cria
+ * uma subclasse com o javassist (o mesmo que o Hibernate usa nos proxies
+ * lazy) e passa cada chamada por um Cronometro. O nome da metrica vem do
+ * proprio metodo, como "LeilaoDao.novos(PlanoDeBusca)", e as linhas vem
+ * do retorno: tamanho de colecao ou pagina, o int devolvido pelas
+ * operacoes em massa e percorre*, ou 1 para qualquer outro objeto.
+ *
+ * Quando um metodo do DAO chama outro (salvarEmLote sem tamanho, por
+ * exemplo), so a chamada de fora e medida.
+ */
+class DaoMedido implements MethodHandler {
+
+	private static final ThreadLocal<Boolean> MEDINDO = new ThreadLocal<Boolean>();
+	private static final ConcurrentMap<Method, String> NOMES = new ConcurrentHashMap<Method, String>();
+
+	private static final MethodFilter PUBLICOS = new MethodFilter() {
+		public boolean isHandled(Method metodo) {
+			return Modifier.isPublic(metodo.getModifiers())
+					&& metodo.getDeclaringClass() != Object.class
+					&& !metodo.getName().startsWith("set");
+		}
+	};
+
+	private final MetricasDeDao metricas;
+
+	private DaoMedido(MetricasDeDao metricas) {
+		this.metricas = metricas;
+	}
+
+	static <T> T cria(MetricasDeDao metricas, Class<T> tipo, Object... argumentos) {
+		Constructor<T> construtor = construtorPara(tipo, argumentos);
+		try {
+			if(!metricas.isHabilitadas()) return construtor.newInstance(argumentos);
+
+			ProxyFactory fabrica = new ProxyFactory();
+			fabrica.setSuperclass(tipo);
+			fabrica.setFilter(PUBLICOS);
+			return tipo.cast(fabrica.create(construtor.getParameterTypes(), argumentos, new DaoMedido(metricas)));
+		} catch(InvocationTargetException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Falha criando " + tipo.getSimpleName(), e.getCause());
+		} catch(NoSuchMethodException e) {
+			throw new IllegalStateException("Falha criando " + tipo.getSimpleName(), e);
+		} catch(InstantiationException e) {
+			throw new IllegalStateException("Falha criando " + tipo.getSimpleName(), e);
+		} catch(IllegalAccessException e) {
+			throw new IllegalStateException("Falha criando " + tipo.getSimpleName(), e);
+		}
+	}
+
+	public Object invoke(Object dao, Method metodo, Method original, Object[] argumentos) throws Throwable {
+		if(MEDINDO.get() != null) return chama(dao, original, argumentos);
+
+		Cronometro cronometro = metricas.inicia(nome(metodo));
+		MEDINDO.set(Boolean.TRUE);
+		try {
+			Object resultado = chama(dao, original, argumentos);
+			cronometro.conta(linhas(resultado));
+			return resultado;
+		} finally {
+			MEDINDO.remove();
+			cronometro.termina();
+		}
+	}
+
+	static String nome(Method metodo) {
+		String nome = NOMES.get(metodo);
+		if(nome != null) return nome;
+
+		StringBuilder texto = new StringBuilder(metodo.getDeclaringClass().getSimpleName())
+				.append('.').append(metodo.getName()).append('(');
+		Class<?>[] parametros = metodo.getParameterTypes();
+		for(int i = 0; i < parametros.length; i++) {
+			if(i > 0) texto.append(',');
+			texto.append(parametros[i].getSimpleName());
+		}
+		nome = texto.append(')').toString();
+		NOMES.putIfAbsent(metodo, nome);
+		return nome;
+	}
+
+	private static Object chama(Object dao, Method original, Object[] argumentos) throws Throwable {
+		try {
+			return original.invoke(dao, argumentos);
+		} catch(InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static long linhas(Object resultado) {
+		if(resultado == null) return 0;
+		if(resultado instanceof Collection) return ((Collection<?>) resultado).size();
+		if(resultado instanceof Pagina) return ((Pagina<?>) resultado).getItens().size();
+		if(resultado instanceof ResultadoPorIds) return ((ResultadoPorIds<?>) resultado).getEncontrados().size();
+		if(resultado instanceof Integer) return (Integer) resultado;
+		return 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Constructor<T> construtorPara(Class<T> tipo, Object[] argumentos) {
+		for(Constructor<?> construtor : tipo.getConstructors()) {
+			Class<?>[] parametros = construtor.getParameterTypes();
+			if(parametros.length != argumentos.length) continue;
+
+			boolean aceita = true;
+			for(int i = 0; i < parametros.length && aceita; i++) {
+				aceita = argumentos[i] == null || parametros[i].isInstance(argumentos[i]);
+			}
+			if(aceita) return (Constructor<T>) construtor;
+		}
+		throw new IllegalArgumentException("Nenhum construtor de " + tipo.getSimpleName() +
+				" recebe " + argumentos.length + " argumento(s) desses tipos");
+	}
+}
@@ -0,0 +1,97 @@
+package br.com.caelum.pm73.dao;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Escritas feitas pelos DAOs na transacao corrente de cada sessao. Enquanto
+ * a transacao nao termina, pendentes() avisa qualquer DAO da mesma sessao
+ * que ha dados ainda nao commitados; quando ela termina, com commit ou
+ * rollback, rodam as invalidacoes registradas. Assim o cache compartilhado
+ * perde as entradas de novo depois que a escrita ficou visivel (ou foi
+ * desfeita) para as outras sessoes, e nao so antes dela.
+ *
+ * escreveu() vale pela vida da sessao, commitada ou nao: e o que faz todos
+ * os DAOs da mesma sessao lerem da principal depois da primeira escrita
+ * de qualquer um deles, e nao de uma replica possivelmente atrasada.
+ */
+final class EscritasDaSessao implements Synchronization {
+
+	private static final Map<Session, EscritasDaSessao> ABERTAS =
+			Collections.synchronizedMap(new WeakHashMap<Session, EscritasDaSessao>());
+	private static final Map<Session, Boolean> ESCREVERAM =
+			Collections.synchronizedMap(new WeakHashMap<Session, Boolean>());
+
+	private final WeakReference<Session> session;
+	private final Set<Runnable> invalidacoes = new LinkedHashSet<Runnable>();
+
+	private EscritasDaSessao(Session session) {
+		this.session = new WeakReference<Session>(session);
+	}
+
+	/**
+	 * Roda a invalidacao agora e, se houver transacao ativa, de novo no fim
+	 * dela. Invalidacoes iguais (o mesmo Runnable) rodam uma vez so.
+	 */
+	static void registra(Session session, Runnable invalidacao) {
+		ESCREVERAM.put(session, Boolean.TRUE);
+		invalidacao.run();
+
+		Transaction transacao = session.getTransaction();
+		if(!transacao.isActive()) return;
+
+		synchronized(ABERTAS) {
+			EscritasDaSessao escritas = ABERTAS.get(session);
+			if(escritas == null) {
+				escritas = new EscritasDaSessao(session);
+				ABERTAS.put(session, escritas);
+				transacao.registerSynchronization(escritas);
+			}
+			escritas.invalidacoes.add(invalidacao);
+		}
+	}
+
+	static boolean pendentes(Session session) {
+		return ABERTAS.containsKey(session);
+	}
+
+	static boolean escreveu(Session session) {
+		return ESCREVERAM.containsKey(session);
+	}
+
+	/**
+	 * A sessao que os DAOs devem usar para consultas: a de leitura, ate a
+	 * sessao principal ter escrito por algum DAO ou ter alteracoes ainda nao
+	 * descarregadas feitas direto nas entidades.
+	 */
+	static Session paraLeitura(Session session, Session leitura) {
+		if(leitura == session || escreveu(session) || session.isDirty()) return session;
+		return leitura;
+	}
+
+	public void beforeCompletion() {
+	}
+
+	public void afterCompletion(int status) {
+		List<Runnable> aRodar;
+		synchronized(ABERTAS) {
+			Session terminada = session.get();
+			if(terminada != null) ABERTAS.remove(terminada);
+			aRodar = new ArrayList<Runnable>(invalidacoes);
+		}
+		for(Runnable invalidacao : aRodar) {
+			invalidacao.run();
+		}
+	}
+}
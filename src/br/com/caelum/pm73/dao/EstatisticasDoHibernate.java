@@ -0,0 +1,56 @@
+package br.com.caelum.pm73.dao;
+
+import org.hibernate.stat.Statistics;
+
+/**
+ * Expoe via JMX os contadores globais do Hibernate
+ * (hibernate.generate_statistics), ligados junto com as metricas.
+ */
+public class EstatisticasDoHibernate implements EstatisticasDoHibernateMBean {
+
+	private final Statistics estatisticas;
+
+	public EstatisticasDoHibernate(Statistics estatisticas) {
+		this.estatisticas = estatisticas;
+	}
+
+	public long getComandosPreparados() {
+		return estatisticas.getPrepareStatementCount();
+	}
+
+	public long getEntidadesCarregadas() {
+		return estatisticas.getEntityLoadCount();
+	}
+
+	public long getEntidadesBuscadas() {
+		return estatisticas.getEntityFetchCount();
+	}
+
+	public long getColecoesBuscadas() {
+		return estatisticas.getCollectionFetchCount();
+	}
+
+	public long getConsultasExecutadas() {
+		return estatisticas.getQueryExecutionCount();
+	}
+
+	public long getConsultaMaisLentaEmMilis() {
+		return estatisticas.getQueryExecutionMaxTime();
+	}
+
+	public String getConsultaMaisLenta() {
+		return estatisticas.getQueryExecutionMaxTimeQueryString();
+	}
+
+	public long getTransacoes() {
+		return estatisticas.getTransactionCount();
+	}
+
+	public long getSessoesAbertas() {
+		return estatisticas.getSessionOpenCount();
+	}
+
+	public void zera() {
+		estatisticas.clear();
+	}
+}
@@ -0,0 +1,24 @@
+package br.com.caelum.pm73.dao;
+
+public interface EstatisticasDoHibernateMBean {
+
+	long getComandosPreparados();
+
+	long getEntidadesCarregadas();
+
+	long getEntidadesBuscadas();
+
+	long getColecoesBuscadas();
+
+	long getConsultasExecutadas();
+
+	long getConsultaMaisLentaEmMilis();
+
+	String getConsultaMaisLenta();
+
+	long getTransacoes();
+
+	long getSessoesAbertas();
+
+	void zera();
+}
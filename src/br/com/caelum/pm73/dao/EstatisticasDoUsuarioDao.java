@@ -0,0 +1,268 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.persister.entity.EntityPersister;
+
+import br.com.caelum.pm73.dominio.EstatisticasDoUsuario;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Mantem EstatisticasDoUsuario em dia a cada escrita feita pelo LeilaoDao,
+ * para que media, menor, maior e quantidades sejam lidas por chave.
+ * Operacoes em massa usam reconstroi(usuarios) so para os donos e
+ * licitantes dos leiloes que apagam: deletaEncerrados de uma vez, o
+ * arquivamento a cada lote.
+ */
+public class EstatisticasDoUsuarioDao {
+
+	private static final int TAMANHO_DO_BLOCO = 500;
+	private static final String INSERE_RECALCULADAS = "insert into EstatisticasDoUsuario (usuarioId, versao, " +
+			"quantidadeDeLeiloes, somaDosValoresIniciais, menorValorInicial, " +
+			"maiorValorInicial, quantidadeDeLances) " +
+			"select u.id, 0, " +
+			"(select count(l.valorInicial) from Leilao l where l.dono_id = u.id), " +
+			"coalesce((select sum(l.valorInicial) from Leilao l where l.dono_id = u.id), 0), " +
+			"(select min(l.valorInicial) from Leilao l where l.dono_id = u.id), " +
+			"(select max(l.valorInicial) from Leilao l where l.dono_id = u.id), " +
+			"(select count(*) from Lance la where la.usuario_id = u.id) " +
+			"from Usuario u";
+
+	private final Session session;
+
+	public EstatisticasDoUsuarioDao(Session session) {
+		this.session = session;
+	}
+
+	public EstatisticasDoUsuario doUsuario(Usuario usuario) {
+		return (EstatisticasDoUsuario) session.get(EstatisticasDoUsuario.class, usuario.getId());
+	}
+
+	public void leilaoSalvo(Leilao leilao) {
+		if(persistido(leilao.getDono())) {
+			paraUsuario(leilao.getDono().getId()).adicionaLeilao(leilao.getValorInicial());
+		}
+		Map<Integer, Integer> lancesPorUsuario = new HashMap<Integer, Integer>();
+		for(Lance lance : leilao.getLances()) {
+			if(persistido(lance.getUsuario())) soma(lancesPorUsuario, lance.getUsuario().getId(), 1);
+		}
+		for(Map.Entry<Integer, Integer> lances : lancesPorUsuario.entrySet()) {
+			adicionaLances(lances.getKey(), lances.getValue());
+		}
+	}
+
+	public void lanceSalvo(Lance lance) {
+		if(persistido(lance.getUsuario())) {
+			adicionaLances(lance.getUsuario().getId(), 1);
+		}
+	}
+
+	/**
+	 * Chamado com o leilao devolvido pelo merge, antes de qualquer flush:
+	 * o banco ainda tem o estado anterior, e a diferenca entre os lances de
+	 * la e os do leilao gerenciado (novos pelo cascade, removidos como
+	 * orfaos) e o que muda na quantidade de lances de cada usuario.
+	 */
+	public void leilaoAtualizado(final Leilao leilao) {
+		Object[] anterior = session.doReturningWork(new ReturningWork<Object[]>() {
+			public Object[] execute(Connection conexao) throws SQLException {
+				return valoresNoBanco(conexao, leilao.getId());
+			}
+		});
+		Map<Integer, Integer> lancesAnteriores = session.doReturningWork(new ReturningWork<Map<Integer, Integer>>() {
+			public Map<Integer, Integer> execute(Connection conexao) throws SQLException {
+				return lancesNoBanco(conexao, leilao.getId());
+			}
+		});
+		atualizaLances(lancesAnteriores, leilao);
+
+		if(anterior == null) {
+			session.flush();
+			if(persistido(leilao.getDono())) recalcula(leilao.getDono().getId());
+			return;
+		}
+
+		Integer donoAnterior = (Integer) anterior[0];
+		Double valorAnterior = (Double) anterior[1];
+		if(donoAnterior != null) {
+			removeLeilao(donoAnterior, valorAnterior);
+		}
+		if(persistido(leilao.getDono())) {
+			paraUsuario(leilao.getDono().getId()).adicionaLeilao(leilao.getValorInicial());
+		}
+	}
+
+	public void leilaoDeletado(Leilao leilao) {
+		if(persistido(leilao.getDono())) {
+			removeLeilao(leilao.getDono().getId(), leilao.getValorInicial());
+		}
+		for(Lance lance : leilao.getLances()) {
+			if(persistido(lance.getUsuario())) {
+				paraUsuario(lance.getUsuario().getId()).removeLance();
+			}
+		}
+	}
+
+	public void usuarioDeletado(Usuario usuario) {
+		EstatisticasDoUsuario estatisticas = doUsuario(usuario);
+		if(estatisticas != null) session.delete(estatisticas);
+	}
+
+	public void recalcula(int usuarioId) {
+		Object[] agregados = (Object[]) session.createQuery("select count(l.valorInicial), " +
+				"sum(l.valorInicial), min(l.valorInicial), max(l.valorInicial) " +
+				"from Leilao l where l.dono.id = :usuario")
+				.setParameter("usuario", usuarioId)
+				.uniqueResult();
+
+		Double soma = (Double) agregados[1];
+		paraUsuario(usuarioId).redefine(((Long) agregados[0]).intValue(),
+				soma == null ? 0.0 : soma, (Double) agregados[2], (Double) agregados[3]);
+	}
+
+	public void reconstroi() {
+		session.createSQLQuery("delete from EstatisticasDoUsuario").executeUpdate();
+		session.createSQLQuery(INSERE_RECALCULADAS).executeUpdate();
+	}
+
+	/**
+	 * Como reconstroi(), mas so para os usuarios dados, em blocos de ate
+	 * 500 ids. Para operacoes em massa que sabem quem foi afetado.
+	 */
+	public void reconstroi(Collection<Integer> usuarios) {
+		List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(usuarios));
+		for(int inicio = 0; inicio < ids.size(); inicio += TAMANHO_DO_BLOCO) {
+			List<Integer> bloco = ids.subList(inicio, Math.min(inicio + TAMANHO_DO_BLOCO, ids.size()));
+			session.createSQLQuery("delete from EstatisticasDoUsuario where usuarioId in (:ids)")
+					.setParameterList("ids", bloco)
+					.executeUpdate();
+			session.createSQLQuery(INSERE_RECALCULADAS + " where u.id in (:ids)")
+					.setParameterList("ids", bloco)
+					.executeUpdate();
+		}
+	}
+
+	private void atualizaLances(Map<Integer, Integer> anteriores, Leilao leilao) {
+		Map<Integer, Integer> diferencas = new HashMap<Integer, Integer>();
+		for(Lance lance : leilao.getLances()) {
+			if(persistido(lance.getUsuario())) soma(diferencas, lance.getUsuario().getId(), 1);
+		}
+		for(Map.Entry<Integer, Integer> anterior : anteriores.entrySet()) {
+			soma(diferencas, anterior.getKey(), -anterior.getValue());
+		}
+
+		for(Map.Entry<Integer, Integer> diferenca : diferencas.entrySet()) {
+			EstatisticasDoUsuario estatisticas = paraUsuario(diferenca.getKey());
+			for(int i = 0; i < diferenca.getValue(); i++) estatisticas.adicionaLance();
+			for(int i = 0; i > diferenca.getValue(); i--) estatisticas.removeLance();
+		}
+	}
+
+	private static void soma(Map<Integer, Integer> diferencas, int usuarioId, int quantidade) {
+		Integer atual = diferencas.get(usuarioId);
+		int nova = (atual == null ? 0 : atual) + quantidade;
+		if(nova == 0) diferencas.remove(usuarioId);
+		else diferencas.put(usuarioId, nova);
+	}
+
+	/**
+	 * Um UPDATE atomico, sem ler a linha: lances do mesmo usuario em
+	 * leiloes diferentes so esperam o lock da linha, em vez de disputar a
+	 * versao dela. A versao sobe mesmo assim, para que quem grave a entidade
+	 * lida antes (media, extremos) falhe e tente de novo em vez de apagar o
+	 * incremento. Se a entidade ja esta nesta sessao, ou a linha ainda nao
+	 * existe, o lance e contado nela.
+	 */
+	private void adicionaLances(int usuarioId, int quantidade) {
+		EstatisticasDoUsuario estatisticas = naSessao(usuarioId);
+		if(estatisticas == null) {
+			int alteradas = session.createQuery("update versioned EstatisticasDoUsuario e " +
+					"set e.quantidadeDeLances = e.quantidadeDeLances + :quantidade where e.usuarioId = :usuario")
+					.setParameter("quantidade", quantidade)
+					.setParameter("usuario", usuarioId)
+					.executeUpdate();
+			if(alteradas > 0) return;
+			estatisticas = paraUsuario(usuarioId);
+		}
+		for(int i = 0; i < quantidade; i++) estatisticas.adicionaLance();
+	}
+
+	private EstatisticasDoUsuario naSessao(int usuarioId) {
+		SessionImplementor implementacao = (SessionImplementor) session;
+		EntityPersister persister = implementacao.getFactory().getEntityPersister(EstatisticasDoUsuario.class.getName());
+		PersistenceContext contexto = implementacao.getPersistenceContext();
+		return (EstatisticasDoUsuario) contexto.getEntity(implementacao.generateEntityKey(usuarioId, persister));
+	}
+
+	private void removeLeilao(int usuarioId, Double valorInicial) {
+		EstatisticasDoUsuario estatisticas = paraUsuario(usuarioId);
+		if(!estatisticas.removeLeilao(valorInicial)) return;
+
+		Object[] extremos = (Object[]) session.createQuery("select min(l.valorInicial), " +
+				"max(l.valorInicial) from Leilao l where l.dono.id = :usuario")
+				.setParameter("usuario", usuarioId)
+				.uniqueResult();
+		estatisticas.redefineExtremos((Double) extremos[0], (Double) extremos[1]);
+	}
+
+	private EstatisticasDoUsuario paraUsuario(int usuarioId) {
+		EstatisticasDoUsuario estatisticas = (EstatisticasDoUsuario) session.get(EstatisticasDoUsuario.class, usuarioId);
+		if(estatisticas == null) {
+			estatisticas = new EstatisticasDoUsuario(usuarioId);
+			session.save(estatisticas);
+		}
+		return estatisticas;
+	}
+
+	private static boolean persistido(Usuario usuario) {
+		return usuario != null && usuario.getId() != 0;
+	}
+
+	private static Map<Integer, Integer> lancesNoBanco(Connection conexao, int leilaoId) throws SQLException {
+		PreparedStatement statement = conexao.prepareStatement(
+				"select usuario_id, count(*) from Lance where leilao_id = ? and usuario_id is not null " +
+				"group by usuario_id");
+		try {
+			statement.setInt(1, leilaoId);
+			ResultSet resultado = statement.executeQuery();
+			Map<Integer, Integer> lances = new HashMap<Integer, Integer>();
+			while(resultado.next()) {
+				lances.put(resultado.getInt(1), resultado.getInt(2));
+			}
+			return lances;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static Object[] valoresNoBanco(Connection conexao, int leilaoId) throws SQLException {
+		PreparedStatement statement = conexao.prepareStatement(
+				"select dono_id, valorInicial from Leilao where id = ?");
+		try {
+			statement.setInt(1, leilaoId);
+			ResultSet resultado = statement.executeQuery();
+			if(!resultado.next()) return null;
+
+			Integer dono = (Integer) resultado.getObject(1);
+			Double valor = (Double) resultado.getObject(2);
+			return new Object[] { dono, valor };
+		} finally {
+			statement.close();
+		}
+	}
+}
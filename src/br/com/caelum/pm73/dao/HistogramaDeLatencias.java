@@ -0,0 +1,74 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias sem lock, com faixas em potencias de 2
+ * microssegundos. Os percentis devolvem o limite superior da faixa,
+ * o que basta para acompanhar p50/p99 sem guardar cada amostra.
+ */
+public class HistogramaDeLatencias {
+
+	private static final int FAIXAS = 40;
+
+	private final AtomicLongArray contagens = new AtomicLongArray(FAIXAS);
+	private final AtomicLong quantidade = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong maximo = new AtomicLong();
+
+	public void registra(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		int faixa = Math.min(FAIXAS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		contagens.incrementAndGet(faixa);
+		quantidade.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long maior = maximo.get();
+		while(nanos > maior && !maximo.compareAndSet(maior, nanos)) {
+			maior = maximo.get();
+		}
+	}
+
+	public long getQuantidade() {
+		return quantidade.get();
+	}
+
+	public long getMediaEmMicros() {
+		long vezes = quantidade.get();
+		return vezes == 0 ? 0 : total.get() / vezes / 1000;
+	}
+
+	public long getMaximoEmMicros() {
+		return maximo.get() / 1000;
+	}
+
+	public long percentilEmMicros(double percentil) {
+		long vezes = quantidade.get();
+		if(vezes == 0) return 0;
+
+		long alvo = (long) Math.ceil(percentil / 100.0 * vezes);
+		long acumulado = 0;
+		for(int faixa = 0; faixa < FAIXAS; faixa++) {
+			acumulado += contagens.get(faixa);
+			if(acumulado >= alvo) return faixa == 0 ? 0 : 1L << faixa;
+		}
+		return getMaximoEmMicros();
+	}
+
+	public void zera() {
+		for(int faixa = 0; faixa < FAIXAS; faixa++) {
+			contagens.set(faixa, 0);
+		}
+		quantidade.set(0);
+		total.set(0);
+		maximo.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d media=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+				getQuantidade(), getMediaEmMicros(), percentilEmMicros(50),
+				percentilEmMicros(90), percentilEmMicros(99), getMaximoEmMicros());
+	}
+}
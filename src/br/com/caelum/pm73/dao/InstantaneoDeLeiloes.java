@@ -0,0 +1,237 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copia imutavel de LEILAO e LANCE em colunas de arrays primitivos, para
+ * consultas de relatorio que varrem a tabela inteira. Cada consulta divide
+ * as linhas em blocos, varre os blocos em paralelo no executor recebido
+ * e junta os resultados parciais; os lacos internos so leem arrays
+ * primitivos, o que o JIT consegue desenrolar e vetorizar.
+ *
+ * Os resultados sao os mesmos do LeilaoDao no momento da carga; para
+ * dados atualizados use AnaliseDeLeiloes, que troca o instantaneo
+ * periodicamente.
+ */
+public class InstantaneoDeLeiloes {
+
+	private static final long SETE_DIAS = TimeUnit.DAYS.toMillis(7);
+	private static final int TAMANHO_DO_BLOCO = 1 << 16;
+
+	private final ColunasDeLeilao leiloes;
+	private final ColunasDeLance lances;
+	private final ExecutorService paralelo;
+	private final long carregadoEm;
+
+	InstantaneoDeLeiloes(ColunasDeLeilao leiloes, ColunasDeLance lances, ExecutorService paralelo, long carregadoEm) {
+		this.leiloes = leiloes;
+		this.lances = lances;
+		this.paralelo = paralelo;
+		this.carregadoEm = carregadoEm;
+	}
+
+	public int getQuantidadeDeLeiloes() {
+		return leiloes.getTamanho();
+	}
+
+	public int getQuantidadeDeLances() {
+		return lances.getTamanho();
+	}
+
+	public long getCarregadoEmMilis() {
+		return carregadoEm;
+	}
+
+	ColunasDeLeilao getLeiloes() {
+		return leiloes;
+	}
+
+	ColunasDeLance getLances() {
+		return lances;
+	}
+
+	/**
+	 * Equivalente a LeilaoDao.total(): leiloes nao encerrados.
+	 */
+	public long total() {
+		return leiloes.getTamanho() - leiloes.encerrados.cardinality();
+	}
+
+	/**
+	 * Ids dos leiloes abertos ha mais de sete dias, como LeilaoDao.antigos().
+	 */
+	public int[] antigos() {
+		return abertosAntesDe(System.currentTimeMillis() - SETE_DIAS);
+	}
+
+	public int[] abertosAntesDe(final long dataEmMilis) {
+		final long[] datas = leiloes.datasDeAbertura;
+		return ids(leiloes, new Bloco<Selecao>() {
+			public Selecao varre(int inicio, int fim) {
+				Selecao selecao = new Selecao(inicio, fim);
+				for(int i = inicio; i < fim; i++) {
+					if(datas[i] < dataEmMilis) selecao.marca(i);
+				}
+				return selecao;
+			}
+		});
+	}
+
+	/**
+	 * Ids dos leiloes de LeilaoDao.disputadosEntre(inicio, fim).
+	 */
+	public int[] disputadosEntre(final double inicio, final double fim) {
+		final double[] valores = leiloes.valoresIniciais;
+		final int[] quantidades = leiloes.quantidadesDeLances;
+		final BitSet encerrados = leiloes.encerrados;
+		return ids(leiloes, new Bloco<Selecao>() {
+			public Selecao varre(int de, int ate) {
+				Selecao selecao = new Selecao(de, ate);
+				for(int i = de; i < ate; i++) {
+					if(valores[i] >= inicio && valores[i] <= fim && quantidades[i] > 3) selecao.marca(i);
+				}
+				selecao.linhas.andNot(encerrados.get(de, ate));
+				return selecao;
+			}
+		});
+	}
+
+	/**
+	 * Media do valor inicial dos leiloes do dono, ignorando valores nulos;
+	 * 0.0 quando ele nao tem leiloes, como no LeilaoDao.
+	 */
+	public double valorInicialMedioDoUsuario(final int usuarioId) {
+		final int[] donos = leiloes.donos;
+		final double[] valores = leiloes.valoresIniciais;
+		double soma = 0;
+		long quantidade = 0;
+		for(double[] parcial : emBlocos(leiloes.getTamanho(), new Bloco<double[]>() {
+			public double[] varre(int inicio, int fim) {
+				double somaDoBloco = 0;
+				int doBloco = 0;
+				for(int i = inicio; i < fim; i++) {
+					if(donos[i] == usuarioId && !Double.isNaN(valores[i])) {
+						somaDoBloco += valores[i];
+						doBloco++;
+					}
+				}
+				return new double[] { somaDoBloco, doBloco };
+			}
+		})) {
+			soma += parcial[0];
+			quantidade += (long) parcial[1];
+		}
+		return quantidade == 0 ? 0.0 : soma / quantidade;
+	}
+
+	/**
+	 * Ids, em ordem, dos leiloes em que o usuario deu lance, como
+	 * LeilaoDao.listaLeiloesDoUsuario(usuario).
+	 */
+	public int[] leiloesDoUsuario(final int usuarioId) {
+		final int[] usuarios = lances.usuarios;
+		final int[] doLeilao = lances.leiloes;
+		BitSet encontrados = new BitSet();
+		for(BitSet parcial : emBlocos(lances.getTamanho(), new Bloco<BitSet>() {
+			public BitSet varre(int inicio, int fim) {
+				BitSet parcial = new BitSet();
+				for(int i = inicio; i < fim; i++) {
+					if(usuarios[i] == usuarioId) parcial.set(doLeilao[i]);
+				}
+				return parcial;
+			}
+		})) {
+			encontrados.or(parcial);
+		}
+
+		int[] ids = new int[encontrados.cardinality()];
+		int posicao = 0;
+		for(int id = encontrados.nextSetBit(0); id >= 0; id = encontrados.nextSetBit(id + 1)) {
+			if(leiloes.posicaoDe(id) >= 0) ids[posicao++] = id;
+		}
+		return Arrays.copyOf(ids, posicao);
+	}
+
+	private int[] ids(ColunasDoInstantaneo colunas, Bloco<Selecao> bloco) {
+		List<Selecao> selecoes = emBlocos(colunas.getTamanho(), bloco);
+		int total = 0;
+		for(Selecao selecao : selecoes) {
+			total += selecao.linhas.cardinality();
+		}
+
+		int[] ids = new int[total];
+		int posicao = 0;
+		for(Selecao selecao : selecoes) {
+			BitSet linhas = selecao.linhas;
+			for(int i = linhas.nextSetBit(0); i >= 0; i = linhas.nextSetBit(i + 1)) {
+				ids[posicao++] = colunas.id(selecao.inicio + i);
+			}
+		}
+		return ids;
+	}
+
+	private <T> List<T> emBlocos(int tamanho, final Bloco<T> bloco) {
+		List<T> parciais = new ArrayList<T>();
+		if(tamanho <= TAMANHO_DO_BLOCO) {
+			parciais.add(bloco.varre(0, tamanho));
+			return parciais;
+		}
+
+		List<Future<T>> futuros = new ArrayList<Future<T>>();
+		for(int inicio = 0; inicio < tamanho; inicio += TAMANHO_DO_BLOCO) {
+			final int de = inicio;
+			final int ate = Math.min(tamanho, inicio + TAMANHO_DO_BLOCO);
+			futuros.add(paralelo.submit(new Callable<T>() {
+				public T call() {
+					return bloco.varre(de, ate);
+				}
+			}));
+		}
+
+		try {
+			for(Future<T> futuro : futuros) {
+				parciais.add(futuro.get());
+			}
+			return parciais;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrompido varrendo o instantaneo", e);
+		} catch(ExecutionException e) {
+			throw new IllegalStateException("Falha varrendo o instantaneo", e.getCause());
+		} finally {
+			for(Future<T> futuro : futuros) {
+				futuro.cancel(true);
+			}
+		}
+	}
+
+	private interface Bloco<T> {
+		T varre(int inicio, int fim);
+	}
+
+	/**
+	 * Linhas selecionadas num bloco, relativas ao inicio dele.
+	 */
+	private static class Selecao {
+
+		private final int inicio;
+		private final BitSet linhas;
+
+		Selecao(int inicio, int fim) {
+			this.inicio = inicio;
+			this.linhas = new BitSet(fim - inicio);
+		}
+
+		void marca(int linha) {
+			linhas.set(linha - inicio);
+		}
+	}
+}
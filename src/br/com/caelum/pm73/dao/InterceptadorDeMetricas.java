@@ -0,0 +1,53 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.Serializable;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.type.Type;
+
+/**
+ * Conta, por thread, os comandos SQL preparados e as entidades carregadas.
+ * O Cronometro le esses contadores no inicio e no fim de cada metodo dos
+ * DAOs; como a contagem e so um incremento num ThreadLocal, o custo fica
+ * baixo o bastante para deixar ligado em producao.
+ *
+ * Comandos disparados no flush (inserts e updates pendentes) sao contados
+ * na thread, mas so entram na metrica do metodo se o flush acontecer
+ * dentro dele.
+ */
+public class InterceptadorDeMetricas extends EmptyInterceptor {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<Contadores> CONTADORES = new ThreadLocal<Contadores>() {
+		@Override
+		protected Contadores initialValue() {
+			return new Contadores();
+		}
+	};
+
+	@Override
+	public String onPrepareStatement(String sql) {
+		CONTADORES.get().sqls++;
+		return super.onPrepareStatement(sql);
+	}
+
+	@Override
+	public boolean onLoad(Object entidade, Serializable id, Object[] estado, String[] propriedades, Type[] tipos) {
+		CONTADORES.get().entidades++;
+		return super.onLoad(entidade, id, estado, propriedades, tipos);
+	}
+
+	static long sqlsDaThread() {
+		return CONTADORES.get().sqls;
+	}
+
+	static long entidadesDaThread() {
+		return CONTADORES.get().entidades;
+	}
+
+	private static class Contadores {
+		long sqls;
+		long entidades;
+	}
+}
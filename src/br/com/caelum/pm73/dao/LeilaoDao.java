@@ -1,101 +1,626 @@
 package br.com.caelum.pm73.dao;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.proxy.HibernateProxy;
 
+import br.com.caelum.pm73.dominio.EstatisticasDoUsuario;
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.TipoDeAlteracao;
 import br.com.caelum.pm73.dominio.Usuario;
 
 public class LeilaoDao {
 
+	private static final String SELECT_RESUMO = "select new " + ResumoDeLeilao.class.getName() +
+			"(l.id, l.nome, l.valorInicial, l.dataAbertura) from Leilao l ";
+	private static final long SETE_DIAS = TimeUnit.DAYS.toMillis(7);
+	private static final int LINHAS_POR_LIMPEZA = 100;
+
 	private final Session session;
+	private final Session leitura;
+	private final CacheDeConsultas cache;
+	private final EstatisticasDoUsuarioDao estatisticas;
+	private final CaixaDeSaida caixaDeSaida;
+	private final Runnable invalidaCache = new Runnable() {
+		public void run() {
+			cache.invalida(CacheDeConsultas.LEILAO_NOVOS, CacheDeConsultas.LEILAO_TOTAL);
+		}
+	};
+	private int tamanhoDoFetch;
 
 	public LeilaoDao(Session session) {
+		this(session, CacheDeConsultas.DESLIGADO);
+	}
+	
+	public LeilaoDao(Session session, CacheDeConsultas cache) {
+		this(session, session, cache);
+	}
+	
+	/**
+	 * Consultas de listagem e relatorio vao para a sessao de leitura
+	 * (normalmente numa replica, ver CriadorDeSessao.getSessionDeLeitura)
+	 * ate a primeira escrita na sessao principal, feita por este ou por
+	 * qualquer outro DAO dela (ver EscritasDaSessao.paraLeitura); dai em
+	 * diante tudo vai para a principal, para que o chamador leia o que
+	 * escreveu.
+	 * porId continua na principal, pois o leilao devolvido costuma ser
+	 * alterado em seguida.
+	 */
+	public LeilaoDao(Session session, Session leitura) {
+		this(session, leitura, CacheDeConsultas.DESLIGADO);
+	}
+	
+	public LeilaoDao(Session session, Session leitura, CacheDeConsultas cache) {
 		this.session = session;
+		this.leitura = leitura;
+		this.cache = cache;
+		this.estatisticas = new EstatisticasDoUsuarioDao(session);
+		this.caixaDeSaida = new CaixaDeSaida(session);
 	}
 	
 	public void salvar(Leilao leilao) {
+		registraEscrita();
 		session.save(leilao);
 		
 		for(Lance lance : leilao.getLances()) {
 			session.save(lance);
 		}
+		estatisticas.leilaoSalvo(leilao);
+		caixaDeSaida.registra("Leilao", leilao.getId(), TipoDeAlteracao.CRIADO);
+		for(Lance lance : leilao.getLances()) {
+			caixaDeSaida.registra("Lance", lance.getId(), TipoDeAlteracao.CRIADO);
+		}
+	}
+	
+	public void salvaLance(Lance lance) {
+		registraEscrita();
+		session.save(lance);
+		estatisticas.lanceSalvo(lance);
+		caixaDeSaida.registra("Lance", lance.getId(), TipoDeAlteracao.CRIADO);
+	}
+	
+	public void salvarEmLote(Collection<Leilao> leiloes) {
+		salvarEmLote(leiloes, new ConfiguracaoDoBanco().getTamanhoDoLote());
+	}
+	
+	/**
+	 * Grava numa sessao filha, que usa a conexao (e portanto a transacao)
+	 * desta, descarregada e limpa a cada tamanhoDoLote linhas; o commit ou
+	 * rollback continua sendo o da transacao do chamador. A sessao do
+	 * chamador nao e limpa: o que ela gerencia continua gerenciado, e o que
+	 * ainda nao tinha sido descarregado vai para o banco antes do lote. Os
+	 * leiloes e lances recebidos saem com id, mas fora de qualquer sessao;
+	 * para altera-los depois, use porId.
+	 */
+	public void salvarEmLote(Collection<Leilao> leiloes, int tamanhoDoLote) {
+		if(tamanhoDoLote < 1) {
+			throw new IllegalArgumentException("Tamanho do lote deve ser positivo: " + tamanhoDoLote);
+		}
+		
+		registraEscrita();
+		Session lote = abreLote();
+		try {
+			int pendentes = 0;
+			List<Integer> salvos = new ArrayList<Integer>();
+			for(Leilao leilao : leiloes) {
+				lote.save(leilao);
+				salvos.add(leilao.getId());
+				pendentes++;
+				
+				for(Lance lance : leilao.getLances()) {
+					lote.save(lance);
+					pendentes++;
+				}
+				estatisticas.leilaoSalvo(leilao);
+				
+				if(pendentes >= tamanhoDoLote) {
+					descarregaLote(lote, salvos);
+					pendentes = 0;
+				}
+			}
+			
+			descarregaLote(lote, salvos);
+		} finally {
+			lote.close();
+		}
 	}
 	
 	public Leilao porId(int id) {
 		return (Leilao) session.get(Leilao.class, id);
 	}
 	
+	/**
+	 * Varios leiloes de uma vez, na sessao principal como porId, em
+	 * consultas "in" de ate 500 ids e reaproveitando os que ja estao na
+	 * sessao.
+	 */
+	public ResultadoPorIds<Leilao> porIds(Collection<Integer> ids) {
+		return new BuscaPorIds<Leilao>(session, Leilao.class).busca(ids);
+	}
+	
+	/**
+	 * Com cache, guarda so os ids; num acerto os leiloes sao carregados
+	 * pelo id na sessao de leitura.
+	 */
 	@SuppressWarnings("unchecked")
 	public List<Leilao> novos() {
-		return session.createQuery("from Leilao l where usado = false")
+		if(!usaCache()) return consultaNovos(paraLeitura()).list();
+		
+		List<Integer> ids = (List<Integer>) cache.busca(CacheDeConsultas.LEILAO_NOVOS, "novos");
+		if(ids != null) return new BuscaPorIds<Leilao>(paraLeitura(), Leilao.class).busca(ids).getEncontrados();
+		
+		long geracao = cache.geracao(CacheDeConsultas.LEILAO_NOVOS);
+		List<Leilao> novos = consultaNovos(paraLeitura()).list();
+		List<Integer> lidos = new ArrayList<Integer>(novos.size());
+		for(Leilao leilao : novos) {
+			lidos.add(leilao.getId());
+		}
+		cache.guarda(CacheDeConsultas.LEILAO_NOVOS, "novos", Collections.unmodifiableList(lidos), geracao);
+		return novos;
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> novos(PlanoDeBusca plano) {
+		return paraLeitura().createQuery("select distinct l from Leilao l " + plano.getJuncoes() +
+				" where l.usado = false")
 				.list();
 	}
 	
 	@SuppressWarnings("unchecked")
-	public List<Leilao> antigos() {
-		Calendar seteDiasAtras = Calendar.getInstance();
-		seteDiasAtras.add(Calendar.DAY_OF_MONTH, -7);
+	public List<ResumoDeLeilao> resumoDosNovos() {
+		boolean usaCache = usaCache();
+		if(usaCache) {
+			List<ResumoDeLeilao> cacheados = (List<ResumoDeLeilao>) cache.busca(CacheDeConsultas.LEILAO_NOVOS, "resumo");
+			if(cacheados != null) return cacheados;
+		}
 		
-		return session.createQuery("from Leilao l where dataAbertura < :data")
-				.setParameter("data", seteDiasAtras)
-				.list();
+		long geracao = cache.geracao(CacheDeConsultas.LEILAO_NOVOS);
+		List<ResumoDeLeilao> resumos = Collections.unmodifiableList(paraLeitura()
+				.createQuery(SELECT_RESUMO + "where l.usado = false")
+				.list());
+		if(usaCache) cache.guarda(CacheDeConsultas.LEILAO_NOVOS, "resumo", resumos, geracao);
+		return resumos;
+	}
+	
+	public Pagina<Leilao> novos(String continuacao, int tamanho) {
+		return pagina(consultaPaginada("l.usado = false", continuacao), tamanho);
+	}
+	
+	public int percorreNovos(ProcessadorDeLeilao processador) {
+		Session percurso = abrePercurso();
+		try {
+			return percorre(percurso, consultaNovos(percurso), processador);
+		} finally {
+			percurso.close();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> antigos() {
+		return consultaAntigos(paraLeitura()).list();
+	}
+	
+	public Pagina<Leilao> antigos(String continuacao, int tamanho) {
+		Query consulta = consultaPaginada("l.dataAbertura < :data", continuacao)
+				.setParameter("data", seteDiasAtras());
+		return pagina(consulta, tamanho);
+	}
+	
+	public int percorreAntigos(ProcessadorDeLeilao processador) {
+		Session percurso = abrePercurso();
+		try {
+			return percorre(percurso, consultaAntigos(percurso), processador);
+		} finally {
+			percurso.close();
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
 	public List<Leilao> porPeriodo(Calendar inicio, Calendar fim) {
-		return session.createQuery("from Leilao l where l.dataAbertura " +
+		return consultaPorPeriodo(paraLeitura(), inicio, fim).list();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<ResumoDeLeilao> resumoPorPeriodo(Calendar inicio, Calendar fim) {
+		return paraLeitura().createQuery(SELECT_RESUMO + "where l.dataAbertura " +
 				"between :inicio and :fim and l.encerrado = false")
-				.setParameter("inicio", inicio)
-				.setParameter("fim", fim)
+				.setParameter("inicio", inicio.getTimeInMillis())
+				.setParameter("fim", fim.getTimeInMillis())
 				.list();
 	}
 	
+	public Pagina<Leilao> porPeriodo(Calendar inicio, Calendar fim, String continuacao, int tamanho) {
+		Query consulta = consultaPaginada("l.dataAbertura between :inicio and :fim " +
+				"and l.encerrado = false", continuacao)
+				.setParameter("inicio", inicio.getTimeInMillis())
+				.setParameter("fim", fim.getTimeInMillis());
+		return pagina(consulta, tamanho);
+	}
+	
+	public int percorrePorPeriodo(Calendar inicio, Calendar fim, ProcessadorDeLeilao processador) {
+		Session percurso = abrePercurso();
+		try {
+			return percorre(percurso, consultaPorPeriodo(percurso, inicio, fim), processador);
+		} finally {
+			percurso.close();
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	public List<Leilao> disputadosEntre(double inicio, double fim) {
-		return session.createQuery("from Leilao l where l.valorInicial " +
+		return paraLeitura().createQuery("from Leilao l where l.valorInicial " +
 				"between :inicio and :fim and l.encerrado = false " +
-				"and size(l.lances) > 3")
+				"and l.quantidadeDeLances > 3")
 				.setParameter("inicio", inicio)
 				.setParameter("fim", fim)
 				.list();
 	}
 	
 	public Long total() {
-		return (Long) session.createQuery("select count(l) from Leilao l where l.encerrado = false")
+		boolean usaCache = usaCache();
+		if(usaCache) {
+			Long cacheado = (Long) cache.busca(CacheDeConsultas.LEILAO_TOTAL, "total");
+			if(cacheado != null) return cacheado;
+		}
+		
+		long geracao = cache.geracao(CacheDeConsultas.LEILAO_TOTAL);
+		Long total = (Long) paraLeitura().createQuery("select count(l) from Leilao l where l.encerrado = false")
 				.uniqueResult();
+		if(usaCache) cache.guarda(CacheDeConsultas.LEILAO_TOTAL, "total", total, geracao);
+		return total;
 	}
 	
+	/**
+	 * Alem do evento do leilao, gera um para cada lance que o merge
+	 * acrescentou (cascade) ou removeu (orfao): os lances do leilao
+	 * gerenciado sao comparados com os que ja existiam antes dele, no
+	 * banco ou salvos nesta sessao sem descarregar.
+	 */
 	public void atualiza(Leilao leilao) {
-		session.merge(leilao);
+		registraEscrita();
+		Set<Integer> anteriores = leilao.getId() == 0 ? new HashSet<Integer>() : lancesExistentes(leilao.getId());
+		
+		Leilao gerenciado = (Leilao) session.merge(leilao);
+		estatisticas.leilaoAtualizado(gerenciado);
+		caixaDeSaida.registra("Leilao", gerenciado.getId(),
+				leilao.getId() == 0 ? TipoDeAlteracao.CRIADO : TipoDeAlteracao.ALTERADO);
+		for(Lance lance : gerenciado.getLances()) {
+			if(!anteriores.remove(lance.getId())) {
+				caixaDeSaida.registra("Lance", lance.getId(), TipoDeAlteracao.CRIADO);
+			}
+		}
+		for(Integer removido : anteriores) {
+			caixaDeSaida.registra("Lance", removido, TipoDeAlteracao.REMOVIDO);
+		}
 	}
 	
 	public void deleta(Leilao leilao) {
+		registraEscrita();
 		session.delete(leilao);
+		estatisticas.leilaoDeletado(leilao);
+		for(Lance lance : leilao.getLances()) {
+			caixaDeSaida.registra("Lance", lance.getId(), TipoDeAlteracao.REMOVIDO);
+		}
+		caixaDeSaida.registra("Leilao", leilao.getId(), TipoDeAlteracao.REMOVIDO);
 	}
 	
-	public void deletaEncerrados() {
+	/**
+	 * Apaga os leiloes encerrados, com seus lances, e devolve quantos
+	 * leiloes foram apagados. As estatisticas sao refeitas so para os
+	 * donos e licitantes desses leiloes.
+	 */
+	@SuppressWarnings("unchecked")
+	public int deletaEncerrados() {
+		registraEscrita();
+		caixaDeSaida.registraEmMassa("Lance", TipoDeAlteracao.REMOVIDO, "leilao_id in " +
+				"(select id from Leilao where encerrado = true)", Collections.<String, Object>emptyMap());
+		caixaDeSaida.registraEmMassa("Leilao", TipoDeAlteracao.REMOVIDO, "encerrado = true",
+				Collections.<String, Object>emptyMap());
+		Set<Integer> afetados = new HashSet<Integer>();
+		afetados.addAll(session.createQuery("select distinct l.dono.id from Leilao l " +
+				"where l.encerrado = true").list());
+		afetados.addAll(session.createQuery("select distinct la.usuario.id from Lance la " +
+				"where la.leilao.encerrado = true").list());
+		afetados.remove(null);
 		session
+			.createQuery("delete from Lance la where la.leilao.id in " +
+					"(select l.id from Leilao l where l.encerrado = true)")
+			.executeUpdate();
+		int apagados = session
 			.createQuery("delete from Leilao l where l.encerrado = true")
 			.executeUpdate();
+		estatisticas.reconstroi(afetados);
+		return apagados;
+	}
+	
+	public int encerraAbertosAntesDe(Calendar data) {
+		registraEscrita();
+		caixaDeSaida.registraEmMassa("Leilao", TipoDeAlteracao.ALTERADO, "encerrado = false and dataAbertura < :data",
+				Collections.<String, Object>singletonMap("data", data.getTimeInMillis()));
+		return session
+			.createQuery("update versioned Leilao l set l.encerrado = true " +
+					"where l.encerrado = false and l.dataAbertura < :data")
+			.setParameter("data", data.getTimeInMillis())
+			.executeUpdate();
+	}
+	
+	public int corrigeQuantidadeDeLances() {
+		registraEscrita();
+		String desatualizados = "quantidadeDeLances <> " +
+				"(select count(*) from Lance where Lance.leilao_id = Leilao.id)";
+		caixaDeSaida.registraEmMassa("Leilao", TipoDeAlteracao.ALTERADO, desatualizados,
+				Collections.<String, Object>emptyMap());
+		return session.createSQLQuery("update Leilao set versao = versao + 1, quantidadeDeLances = " +
+				"(select count(*) from Lance where Lance.leilao_id = Leilao.id) " +
+				"where " + desatualizados)
+				.executeUpdate();
 	}
 	
 	@SuppressWarnings("unchecked")
 	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario) {
-		return session.createQuery("select distinct lance.leilao " +
+		return consultaLeiloesDoUsuario(paraLeitura(), usuario).list();
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario, PlanoDeBusca plano) {
+		return paraLeitura().createQuery("select distinct l from Leilao l " + plano.getJuncoes() +
+				" where l.id in (select lance.leilao.id from Lance lance where lance.usuario = :usuario)")
+				.setParameter("usuario", usuario)
+				.list();
+	}
+	
+	public int percorreLeiloesDoUsuario(Usuario usuario, ProcessadorDeLeilao processador) {
+		Session percurso = abrePercurso();
+		try {
+			return percorre(percurso, consultaLeiloesDoUsuario(percurso, usuario), processador);
+		} finally {
+			percurso.close();
+		}
+	}
+	
+	public double getValorInicialMedioDoUsuario(Usuario usuario) {
+		EstatisticasDoUsuario doUsuario = estatisticas.doUsuario(usuario);
+		return doUsuario == null ? 0.0 : doUsuario.getValorInicialMedio();
+	}
+	
+	public EstatisticasDoUsuario getEstatisticasDoUsuario(Usuario usuario) {
+		return estatisticas.doUsuario(usuario);
+	}
+	
+	public int percorreLancesDosLeiloesAbertos(ProcessadorDeLance processador) {
+		Query consulta = paraLeitura().createQuery("select la.leilao.id, la.usuario.id, la.valor " +
+				"from Lance la where la.leilao.encerrado = false");
+		if(tamanhoDoFetch > 0) consulta.setFetchSize(tamanhoDoFetch);
+		
+		ScrollableResults resultados = consulta.scroll(ScrollMode.FORWARD_ONLY);
+		int processados = 0;
+		try {
+			while(resultados.next()) {
+				processador.processa((Integer) resultados.get(0), (Integer) resultados.get(1),
+						(Double) resultados.get(2));
+				processados++;
+			}
+			return processados;
+		} finally {
+			resultados.close();
+		}
+	}
+	
+	public void setTamanhoDoFetch(int tamanhoDoFetch) {
+		this.tamanhoDoFetch = tamanhoDoFetch;
+	}
+	
+	private Query consultaNovos(Session origem) {
+		return origem.createQuery("from Leilao l where usado = false");
+	}
+	
+	private Query consultaAntigos(Session origem) {
+		return origem.createQuery("from Leilao l where dataAbertura < :data")
+				.setParameter("data", seteDiasAtras());
+	}
+	
+	private void descarregaLote(Session lote, List<Integer> salvos) {
+		lote.flush();
+		if(!salvos.isEmpty()) {
+			caixaDeSaida.registraEmMassa("Leilao", TipoDeAlteracao.CRIADO, "id in (:ids)",
+					Collections.<String, Object>singletonMap("ids", salvos));
+			caixaDeSaida.registraEmMassa("Lance", TipoDeAlteracao.CRIADO, "leilao_id in (:ids)",
+					Collections.<String, Object>singletonMap("ids", salvos));
+			salvos.clear();
+		}
+		lote.clear();
+	}
+	
+	/**
+	 * Ids dos lances do leilao no banco, lidos direto na conexao, sem o
+	 * auto flush de uma consulta, mais os que a sessao salvou e ainda nao
+	 * descarregou.
+	 */
+	private Set<Integer> lancesExistentes(final int leilaoId) {
+		Set<Integer> existentes = session.doReturningWork(new ReturningWork<Set<Integer>>() {
+			public Set<Integer> execute(Connection conexao) throws SQLException {
+				PreparedStatement statement = conexao.prepareStatement("select id from Lance where leilao_id = ?");
+				try {
+					statement.setInt(1, leilaoId);
+					ResultSet resultado = statement.executeQuery();
+					Set<Integer> ids = new HashSet<Integer>();
+					while(resultado.next()) {
+						ids.add(resultado.getInt(1));
+					}
+					return ids;
+				} finally {
+					statement.close();
+				}
+			}
+		});
+		
+		for(Object chave : session.getStatistics().getEntityKeys()) {
+			EntityKey entidade = (EntityKey) chave;
+			if(!Lance.class.getName().equals(entidade.getEntityName())) continue;
+			
+			Lance lance = (Lance) session.get(Lance.class, entidade.getIdentifier());
+			if(lance != null && idDoLeilao(lance) == leilaoId) existentes.add(lance.getId());
+		}
+		return existentes;
+	}
+	
+	private static int idDoLeilao(Lance lance) {
+		Leilao leilao = lance.getLeilao();
+		if(leilao instanceof HibernateProxy) {
+			return (Integer) ((HibernateProxy) leilao).getHibernateLazyInitializer().getIdentifier();
+		}
+		return leilao == null ? 0 : leilao.getId();
+	}
+	
+	private long seteDiasAtras() {
+		return System.currentTimeMillis() - SETE_DIAS;
+	}
+	
+	private Query consultaPorPeriodo(Session origem, Calendar inicio, Calendar fim) {
+		return origem.createQuery("from Leilao l where l.dataAbertura " +
+				"between :inicio and :fim and l.encerrado = false")
+				.setParameter("inicio", inicio.getTimeInMillis())
+				.setParameter("fim", fim.getTimeInMillis());
+	}
+	
+	private Query consultaLeiloesDoUsuario(Session origem, Usuario usuario) {
+		return origem.createQuery("select distinct lance.leilao " +
 								   "from Lance lance " +
 								   "where lance.usuario = :usuario")
-				.setParameter("usuario", usuario).list();
+				.setParameter("usuario", usuario);
 	}
 	
-	public double getValorInicialMedioDoUsuario(Usuario usuario) {
-		return (Double) session.createQuery("select avg(leilao.valorInicial) " +
-											"from Leilao leilao " +
-											"where leilao.dono = :usuario")
-					.setParameter("usuario", usuario)
-					.uniqueResult();
+	private Query consultaPaginada(String filtro, String continuacao) {
+		if(continuacao == null) {
+			return paraLeitura().createQuery("from Leilao l where " + filtro +
+					" order by l.dataAbertura, l.id");
+		}
+		
+		String[] partes = continuacao.split(":");
+		if(partes.length != 2) {
+			throw new IllegalArgumentException("Continuacao de pagina invalida: " + continuacao);
+		}
+		
+		long ultimaData;
+		int ultimoId;
+		try {
+			ultimaData = Long.parseLong(partes[0], Character.MAX_RADIX);
+			ultimoId = Integer.parseInt(partes[1], Character.MAX_RADIX);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Continuacao de pagina invalida: " + continuacao, e);
+		}
+		
+		return paraLeitura().createQuery("from Leilao l where " + filtro +
+				" and (l.dataAbertura > :ultimaData or (l.dataAbertura = :ultimaData and l.id > :ultimoId))" +
+				" order by l.dataAbertura, l.id")
+				.setParameter("ultimaData", ultimaData)
+				.setParameter("ultimoId", ultimoId);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Pagina<Leilao> pagina(Query consulta, int tamanho) {
+		if(tamanho < 1) {
+			throw new IllegalArgumentException("Tamanho da pagina deve ser positivo: " + tamanho);
+		}
+		
+		List<Leilao> leiloes = consulta.setMaxResults(tamanho + 1).list();
+		if(leiloes.size() <= tamanho) {
+			return new Pagina<Leilao>(leiloes, null);
+		}
+		
+		leiloes = leiloes.subList(0, tamanho);
+		Leilao ultimo = leiloes.get(tamanho - 1);
+		String continuacao = Long.toString(ultimo.getDataAberturaEmMilis(), Character.MAX_RADIX) +
+				":" + Integer.toString(ultimo.getId(), Character.MAX_RADIX);
+		return new Pagina<Leilao>(leiloes, continuacao);
+	}
+	
+	/**
+	 * Sessao so para um percorre*: usa a conexao (e portanto a transacao)
+	 * da sessao de leitura, mas tem contexto de persistencia proprio. Assim
+	 * nem o leilao, nem o dono que vem junto, nem os lances inicializados no
+	 * processa ficam na sessao do chamador. O que o chamador ainda nao
+	 * descarregou vai para o banco antes, como no auto flush da consulta.
+	 */
+	private Session abreLote() {
+		if(session.isDirty()) session.flush();
+		
+		return session.sessionWithOptions()
+				.connection()
+				.interceptor()
+				.openSession();
+	}
+	
+	private Session abrePercurso() {
+		Session origem = paraLeitura();
+		if(origem.isDirty()) origem.flush();
+		
+		Session percurso = origem.sessionWithOptions()
+				.connection()
+				.interceptor()
+				.openSession();
+		percurso.setDefaultReadOnly(true);
+		return percurso;
+	}
+	
+	/**
+	 * Limpa a sessao do percurso a cada LINHAS_POR_LIMPEZA leiloes (ou a
+	 * cada fetch, se maior), para a memoria nao crescer com o resultado.
+	 * O leilao so vale dentro do processa: depois disso esta desanexado.
+	 */
+	private int percorre(Session percurso, Query consulta, ProcessadorDeLeilao processador) {
+		if(tamanhoDoFetch > 0) consulta.setFetchSize(tamanhoDoFetch);
+		int linhasPorLimpeza = Math.max(LINHAS_POR_LIMPEZA, tamanhoDoFetch);
+		
+		ScrollableResults resultados = consulta
+				.setReadOnly(true)
+				.scroll(ScrollMode.FORWARD_ONLY);
+		int processados = 0;
+		try {
+			while(resultados.next()) {
+				Leilao leilao = (Leilao) resultados.get(0);
+				processador.processa(leilao);
+				processados++;
+				if(processados % linhasPorLimpeza == 0) percurso.clear();
+			}
+			percurso.clear();
+			return processados;
+		} finally {
+			resultados.close();
+		}
+	}
+	
+	private Session paraLeitura() {
+		return EscritasDaSessao.paraLeitura(session, leitura);
+	}
+	
+	private void registraEscrita() {
+		EscritasDaSessao.registra(session, invalidaCache);
+	}
+	
+	/**
+	 * O que esta sessao escreveu e ainda nao commitou nao pode ir para o
+	 * cache compartilhado, nem sair dele no lugar do que ela mesma leria.
+	 */
+	private boolean usaCache() {
+		return cache.isHabilitado() && !EscritasDaSessao.pendentes(session) && !session.isDirty();
 	}
 }
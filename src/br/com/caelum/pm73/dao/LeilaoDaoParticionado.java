@@ -0,0 +1,167 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.hibernate.HibernateException;
+
+import br.com.caelum.pm73.dominio.EstatisticasDoUsuario;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * LeilaoDao sobre Shards: cada leilao mora, junto com seus lances, num
+ * unico shard. Escritas e buscas por id vao direto ao shard do leilao;
+ * consultas que cruzam shards (listaLeiloesDoUsuario, novos, total) rodam
+ * em paralelo no ExecutorService, uma tarefa por shard, e os resultados
+ * sao juntados aqui.
+ *
+ * As EstatisticasDoUsuario ficam em cada shard, mantidas pelo LeilaoDao
+ * dele so com os leiloes e lances daquele shard (assim a atualizacao entra
+ * na mesma transacao da escrita); getEstatisticasDoUsuario soma as de
+ * todos os shards.
+ */
+public class LeilaoDaoParticionado {
+
+	private final SessoesParticionadas sessoes;
+	private final ExecutorService paralelo;
+
+	public LeilaoDaoParticionado(SessoesParticionadas sessoes, ExecutorService paralelo) {
+		this.sessoes = sessoes;
+		this.paralelo = paralelo;
+	}
+
+	public void salvar(Leilao leilao) {
+		Shard shard = sessoes.getShards().paraNovoLeilao();
+		if(leilao.getDono() != null) sessoes.replica(shard, leilao.getDono());
+		for(Lance lance : leilao.getLances()) {
+			sessoes.replica(shard, lance.getUsuario());
+		}
+		daoDo(shard).salvar(leilao);
+		if(!shard.contem(leilao.getId())) {
+			throw new IllegalStateException("Id " + leilao.getId() + " fora da faixa do " + shard);
+		}
+	}
+
+	public void salvaLance(Lance lance) {
+		Shard shard = sessoes.getShards().doId(lance.getLeilao().getId());
+		sessoes.replica(shard, lance.getUsuario());
+		daoDo(shard).salvaLance(lance);
+	}
+
+	public Leilao porId(int id) {
+		return daoDo(sessoes.getShards().doId(id)).porId(id);
+	}
+
+	public List<Leilao> novos() {
+		List<Leilao> novos = new ArrayList<Leilao>();
+		for(List<Leilao> doShard : emTodos(new ConsultaPorShard<List<Leilao>>() {
+			public List<Leilao> executa(LeilaoDao dao) {
+				return dao.novos();
+			}
+		})) {
+			novos.addAll(doShard);
+		}
+		return novos;
+	}
+
+	public List<Leilao> listaLeiloesDoUsuario(final Usuario usuario) {
+		List<Leilao> leiloes = new ArrayList<Leilao>();
+		for(List<Leilao> doShard : emTodos(new ConsultaPorShard<List<Leilao>>() {
+			public List<Leilao> executa(LeilaoDao dao) {
+				return dao.listaLeiloesDoUsuario(usuario);
+			}
+		})) {
+			leiloes.addAll(doShard);
+		}
+		return leiloes;
+	}
+
+	public Long total() {
+		long total = 0;
+		for(Long doShard : emTodos(new ConsultaPorShard<Long>() {
+			public Long executa(LeilaoDao dao) {
+				return dao.total();
+			}
+		})) {
+			total += doShard;
+		}
+		return total;
+	}
+
+	public EstatisticasDoUsuario getEstatisticasDoUsuario(final Usuario usuario) {
+		EstatisticasDoUsuario soma = null;
+		for(EstatisticasDoUsuario doShard : emTodos(new ConsultaPorShard<EstatisticasDoUsuario>() {
+			public EstatisticasDoUsuario executa(LeilaoDao dao) {
+				return dao.getEstatisticasDoUsuario(usuario);
+			}
+		})) {
+			if(doShard == null) continue;
+			if(soma == null) soma = new EstatisticasDoUsuario(usuario.getId());
+			soma.acumula(doShard);
+		}
+		return soma;
+	}
+
+	public double getValorInicialMedioDoUsuario(Usuario usuario) {
+		EstatisticasDoUsuario estatisticas = getEstatisticasDoUsuario(usuario);
+		return estatisticas == null ? 0.0 : estatisticas.getValorInicialMedio();
+	}
+
+	/**
+	 * Percorre os shards em sequencia: o processador nao precisa ser
+	 * thread-safe.
+	 */
+	public void percorreLancesDosLeiloesAbertos(ProcessadorDeLance processador) {
+		for(Shard shard : sessoes.getShards().getTodos()) {
+			daoDo(shard).percorreLancesDosLeiloesAbertos(processador);
+		}
+	}
+
+	private LeilaoDao daoDo(Shard shard) {
+		return new LeilaoDao(sessoes.daShard(shard));
+	}
+
+	private <T> List<T> emTodos(final ConsultaPorShard<T> consulta) {
+		List<Shard> shards = sessoes.getShards().getTodos();
+		for(Shard shard : shards) {
+			sessoes.daShard(shard);
+		}
+
+		List<Future<T>> pendentes = new ArrayList<Future<T>>(shards.size());
+		for(final Shard shard : shards) {
+			pendentes.add(paralelo.submit(new Callable<T>() {
+				public T call() {
+					return consulta.executa(daoDo(shard));
+				}
+			}));
+		}
+
+		List<T> resultados = new ArrayList<T>(shards.size());
+		try {
+			for(Future<T> pendente : pendentes) {
+				resultados.add(pendente.get());
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException("Interrompido esperando os shards", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new HibernateException("Falha consultando os shards", e.getCause());
+		} finally {
+			for(Future<T> pendente : pendentes) {
+				pendente.cancel(true);
+			}
+		}
+		return resultados;
+	}
+
+	private interface ConsultaPorShard<T> {
+		T executa(LeilaoDao dao);
+	}
+}
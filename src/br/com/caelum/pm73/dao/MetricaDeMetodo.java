@@ -0,0 +1,92 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totais de um metodo de DAO: chamadas, latencia, linhas devolvidas,
+ * comandos SQL e entidades carregadas. Exposta via JMX pelo MetricasDeDao.
+ */
+public class MetricaDeMetodo implements MetricaDeMetodoMBean {
+
+	private final String nome;
+	private final HistogramaDeLatencias latencias = new HistogramaDeLatencias();
+	private final AtomicLong linhas = new AtomicLong();
+	private final AtomicLong sqls = new AtomicLong();
+	private final AtomicLong entidades = new AtomicLong();
+	private final AtomicLong lentas = new AtomicLong();
+
+	MetricaDeMetodo(String nome) {
+		this.nome = nome;
+	}
+
+	void registra(long nanos, long linhas, long sqls, long entidades) {
+		latencias.registra(nanos);
+		this.linhas.addAndGet(linhas);
+		this.sqls.addAndGet(sqls);
+		this.entidades.addAndGet(entidades);
+	}
+
+	void registraLenta() {
+		lentas.incrementAndGet();
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public long getChamadas() {
+		return latencias.getQuantidade();
+	}
+
+	public long getLatenciaMediaEmMicros() {
+		return latencias.getMediaEmMicros();
+	}
+
+	public long getLatenciaP50EmMicros() {
+		return latencias.percentilEmMicros(50);
+	}
+
+	public long getLatenciaP99EmMicros() {
+		return latencias.percentilEmMicros(99);
+	}
+
+	public long getLatenciaMaximaEmMicros() {
+		return latencias.getMaximoEmMicros();
+	}
+
+	public long getLinhas() {
+		return linhas.get();
+	}
+
+	public long getSqls() {
+		return sqls.get();
+	}
+
+	public long getEntidadesCarregadas() {
+		return entidades.get();
+	}
+
+	public long getLentas() {
+		return lentas.get();
+	}
+
+	public HistogramaDeLatencias getLatencias() {
+		return latencias;
+	}
+
+	public void zera() {
+		latencias.zera();
+		linhas.set(0);
+		sqls.set(0);
+		entidades.set(0);
+		lentas.set(0);
+	}
+
+	@Override
+	public String toString() {
+		long chamadas = Math.max(1, getChamadas());
+		return String.format("%-40s %s  linhas/chamada %.1f  sql/chamada %.1f  entidades/chamada %.1f",
+				nome, latencias, (double) getLinhas() / chamadas,
+				(double) getSqls() / chamadas, (double) getEntidadesCarregadas() / chamadas);
+	}
+}
@@ -0,0 +1,26 @@
+package br.com.caelum.pm73.dao;
+
+public interface MetricaDeMetodoMBean {
+
+	String getNome();
+
+	long getChamadas();
+
+	long getLatenciaMediaEmMicros();
+
+	long getLatenciaP50EmMicros();
+
+	long getLatenciaP99EmMicros();
+
+	long getLatenciaMaximaEmMicros();
+
+	long getLinhas();
+
+	long getSqls();
+
+	long getEntidadesCarregadas();
+
+	long getLentas();
+
+	void zera();
+}
@@ -0,0 +1,163 @@
+package br.com.caelum.pm73.dao;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registro das metricas dos metodos de LeilaoDao e UsuarioDao criados por
+ * cria(). Cada metrica vira um MBean em br.com.caelum.pm73:tipo=Dao quando
+ * pm73.metricas.jmx estiver ligado, e chamadas acima de
+ * pm73.metricas.lenta_ms sao avisadas ao RelatorioDeMetricas na hora.
+ */
+public class MetricasDeDao {
+
+	public static final String DOMINIO_JMX = "br.com.caelum.pm73";
+
+	public static final MetricasDeDao DESLIGADAS = new MetricasDeDao(false, 0, false);
+
+	private static volatile MetricasDeDao padrao;
+
+	private final boolean habilitadas;
+	private final long limiteDeLentidao;
+	private final boolean jmx;
+	private final ConcurrentMap<String, MetricaDeMetodo> metricas = new ConcurrentHashMap<String, MetricaDeMetodo>();
+	private volatile RelatorioDeMetricas relatorio = new RelatorioEmTexto(System.err);
+	private ScheduledExecutorService agendador;
+
+	public MetricasDeDao(ConfiguracaoDoBanco configuracao) {
+		this(configuracao.isMetricasHabilitadas(),
+				configuracao.getLimiteDeConsultaLentaEmMilis() * 1000000L,
+				configuracao.isJmxHabilitado());
+	}
+
+	private MetricasDeDao(boolean habilitadas, long limiteDeLentidao, boolean jmx) {
+		this.habilitadas = habilitadas;
+		this.limiteDeLentidao = limiteDeLentidao;
+		this.jmx = jmx;
+	}
+
+	/**
+	 * Instancia compartilhada, a de CriadorDeSessao.getMetricas().
+	 */
+	public static MetricasDeDao padrao() {
+		if(padrao == null) {
+			synchronized(MetricasDeDao.class) {
+				if(padrao == null) {
+					ConfiguracaoDoBanco configuracao = new ConfiguracaoDoBanco();
+					padrao = configuracao.isMetricasHabilitadas() ? new MetricasDeDao(configuracao) : DESLIGADAS;
+				}
+			}
+		}
+		return padrao;
+	}
+
+	/**
+	 * DAO medido: new LeilaoDao(session) vira
+	 * metricas.cria(LeilaoDao.class, session), com os mesmos argumentos do
+	 * construtor. Com as metricas desligadas devolve o DAO comum.
+	 */
+	public <T> T cria(Class<T> dao, Object... argumentos) {
+		return DaoMedido.cria(this, dao, argumentos);
+	}
+
+	public Cronometro inicia(String metodo) {
+		if(!habilitadas) return Cronometro.PARADO;
+		return new Cronometro(this, metrica(metodo));
+	}
+
+	void registra(MetricaDeMetodo metrica, long nanos, long linhas, long sqls, long entidades) {
+		metrica.registra(nanos, linhas, sqls, entidades);
+		if(limiteDeLentidao > 0 && nanos > limiteDeLentidao) {
+			metrica.registraLenta();
+			relatorio.consultaLenta(metrica.getNome(), nanos / 1000, linhas, sqls, entidades);
+		}
+	}
+
+	public boolean isHabilitadas() {
+		return habilitadas;
+	}
+
+	public MetricaDeMetodo metrica(String metodo) {
+		MetricaDeMetodo metrica = metricas.get(metodo);
+		if(metrica != null) return metrica;
+
+		MetricaDeMetodo nova = new MetricaDeMetodo(metodo);
+		metrica = metricas.putIfAbsent(metodo, nova);
+		if(metrica != null) return metrica;
+
+		if(jmx) registraNoJmx("tipo=Dao,metodo=" + ObjectName.quote(metodo), nova);
+		return nova;
+	}
+
+	public Collection<MetricaDeMetodo> getMetricas() {
+		return new ArrayList<MetricaDeMetodo>(metricas.values());
+	}
+
+	public void setRelatorio(RelatorioDeMetricas relatorio) {
+		this.relatorio = relatorio;
+	}
+
+	public void reporta() {
+		List<MetricaDeMetodo> todas = new ArrayList<MetricaDeMetodo>(metricas.values());
+		relatorio.reporta(todas);
+	}
+
+	public synchronized void reportaACada(long intervaloEmMilis) {
+		if(agendador != null) agendador.shutdownNow();
+
+		agendador = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable tarefa) {
+				Thread thread = new Thread(tarefa, "pm73-metricas");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		agendador.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				reporta();
+			}
+		}, intervaloEmMilis, intervaloEmMilis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void paraDeReportar() {
+		if(agendador == null) return;
+		agendador.shutdownNow();
+		agendador = null;
+	}
+
+	public void zera() {
+		for(MetricaDeMetodo metrica : metricas.values()) {
+			metrica.zera();
+		}
+	}
+
+	/**
+	 * Registra um MBean no dominio br.com.caelum.pm73. Falhas (nome ja
+	 * registrado por outra SessionFactory, por exemplo) sao ignoradas:
+	 * metrica nenhuma deve derrubar a aplicacao.
+	 */
+	public boolean registraNoJmx(String propriedades, Object mbean) {
+		if(!jmx) return false;
+		try {
+			MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+			ObjectName nome = new ObjectName(DOMINIO_JMX + ":" + propriedades);
+			if(servidor.isRegistered(nome)) servidor.unregisterMBean(nome);
+			servidor.registerMBean(mbean, nome);
+			return true;
+		} catch(JMException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+public class Pagina<T> {
+
+	private final List<T> itens;
+	private final String continuacao;
+
+	public Pagina(List<T> itens, String continuacao) {
+		this.itens = Collections.unmodifiableList(itens);
+		this.continuacao = continuacao;
+	}
+
+	public List<T> getItens() {
+		return itens;
+	}
+
+	public String getContinuacao() {
+		return continuacao;
+	}
+
+	public boolean temProxima() {
+		return continuacao != null;
+	}
+}
@@ -0,0 +1,17 @@
+package br.com.caelum.pm73.dao;
+
+public enum PlanoDeBusca {
+
+	RESUMO("left join fetch l.dono"),
+	COMPLETO("left join fetch l.dono left join fetch l.lances la left join fetch la.usuario");
+
+	private final String juncoes;
+
+	private PlanoDeBusca(String juncoes) {
+		this.juncoes = juncoes;
+	}
+
+	String getJuncoes() {
+		return juncoes;
+	}
+}
@@ -0,0 +1,237 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.service.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+public class PoolDeConexoes implements ConnectionProvider, Configurable, Stoppable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String url;
+	private String usuario;
+	private String senha;
+	private int minimo;
+	private int maximo;
+	private long ociosidadeMaxima;
+	private long esperaMaxima;
+
+	private Semaphore vagas;
+	private final LinkedBlockingDeque<ConexaoOciosa> ociosas = new LinkedBlockingDeque<ConexaoOciosa>();
+
+	private final AtomicInteger ativas = new AtomicInteger();
+	private final AtomicLong criadas = new AtomicLong();
+	private final AtomicLong emprestimos = new AtomicLong();
+	private final AtomicLong esperaTotal = new AtomicLong();
+	private final AtomicLong esperaMaximaObservada = new AtomicLong();
+	private final AtomicLong esgotamentos = new AtomicLong();
+
+	@SuppressWarnings("rawtypes")
+	public void configure(Map valores) {
+		ConfiguracaoDoBanco padrao = new ConfiguracaoDoBanco();
+
+		this.url = valor(valores, "hibernate.connection.url", padrao.getUrl());
+		this.usuario = valor(valores, "hibernate.connection.username", padrao.getUsuario());
+		this.senha = valor(valores, "hibernate.connection.password", padrao.getSenha());
+		this.minimo = Integer.parseInt(valor(valores, "pm73.pool.minimo", String.valueOf(padrao.getMinimoDeConexoes())));
+		this.maximo = Integer.parseInt(valor(valores, "pm73.pool.maximo", String.valueOf(padrao.getMaximoDeConexoes())));
+		this.ociosidadeMaxima = Long.parseLong(valor(valores, "pm73.pool.ociosidade_maxima_ms", String.valueOf(padrao.getOciosidadeMaximaEmMilis())));
+		this.esperaMaxima = Long.parseLong(valor(valores, "pm73.pool.espera_maxima_ms", String.valueOf(padrao.getEsperaMaximaEmMilis())));
+
+		if(maximo < 1 || minimo < 0 || minimo > maximo) {
+			throw new HibernateException("Pool invalido: minimo=" + minimo + ", maximo=" + maximo);
+		}
+
+		String driver = valor(valores, "hibernate.connection.driver_class", null);
+		if(driver != null) {
+			try {
+				Class.forName(driver);
+			} catch(ClassNotFoundException e) {
+				throw new HibernateException("Driver JDBC nao encontrado: " + driver, e);
+			}
+		}
+
+		this.vagas = new Semaphore(maximo, true);
+
+		try {
+			for(int i = 0; i < minimo; i++) {
+				ociosas.offerFirst(new ConexaoOciosa(abre()));
+			}
+		} catch(SQLException e) {
+			throw new HibernateException("Nao foi possivel abrir as conexoes iniciais do pool", e);
+		}
+	}
+
+	public Connection getConnection() throws SQLException {
+		long inicio = System.nanoTime();
+		try {
+			if(!vagas.tryAcquire(esperaMaxima, TimeUnit.MILLISECONDS)) {
+				esgotamentos.incrementAndGet();
+				throw new SQLException("Pool esgotado: nenhuma conexao livre em " + esperaMaxima + "ms");
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrompido esperando conexao do pool");
+		}
+		registraEspera(System.nanoTime() - inicio);
+
+		try {
+			Connection conexao = proximaOciosa();
+			ativas.incrementAndGet();
+			return conexao;
+		} catch(SQLException e) {
+			vagas.release();
+			throw e;
+		}
+	}
+
+	public void closeConnection(Connection conexao) throws SQLException {
+		ativas.decrementAndGet();
+		try {
+			if(!conexao.isClosed()) {
+				if(!conexao.getAutoCommit()) conexao.rollback();
+				ociosas.offerFirst(new ConexaoOciosa(conexao));
+			}
+		} finally {
+			vagas.release();
+		}
+		descartaExcedentes();
+	}
+
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public boolean isUnwrappableAs(Class tipo) {
+		return ConnectionProvider.class.equals(tipo) || PoolDeConexoes.class.isAssignableFrom(tipo);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T unwrap(Class<T> tipo) {
+		if(isUnwrappableAs(tipo)) return (T) this;
+		throw new HibernateException("Nao e possivel converter o pool para " + tipo);
+	}
+
+	public void stop() {
+		ConexaoOciosa ociosa;
+		while((ociosa = ociosas.pollFirst()) != null) {
+			fecha(ociosa.conexao);
+		}
+	}
+
+	public static PoolDeConexoes de(SessionFactory fabrica) {
+		return ((SessionFactoryImplementor) fabrica).getServiceRegistry()
+				.getService(ConnectionProvider.class)
+				.unwrap(PoolDeConexoes.class);
+	}
+
+	public int getConexoesAtivas() {
+		return ativas.get();
+	}
+
+	public int getConexoesOciosas() {
+		return ociosas.size();
+	}
+
+	public int getMaximoDeConexoes() {
+		return maximo;
+	}
+
+	public long getConexoesCriadas() {
+		return criadas.get();
+	}
+
+	public long getEmprestimos() {
+		return emprestimos.get();
+	}
+
+	public long getEsgotamentos() {
+		return esgotamentos.get();
+	}
+
+	public long getEsperaMediaEmMicros() {
+		long total = emprestimos.get();
+		return total == 0 ? 0 : esperaTotal.get() / total / 1000;
+	}
+
+	public long getEsperaMaximaEmMicros() {
+		return esperaMaximaObservada.get() / 1000;
+	}
+
+	private Connection proximaOciosa() throws SQLException {
+		ConexaoOciosa ociosa;
+		while((ociosa = ociosas.pollFirst()) != null) {
+			if(!ociosa.expirou(ociosidadeMaxima) && !ociosa.conexao.isClosed()) {
+				return ociosa.conexao;
+			}
+			fecha(ociosa.conexao);
+		}
+		return abre();
+	}
+
+	private void descartaExcedentes() {
+		while(ociosas.size() > minimo) {
+			ConexaoOciosa maisAntiga = ociosas.peekLast();
+			if(maisAntiga == null || !maisAntiga.expirou(ociosidadeMaxima)) return;
+			if(ociosas.removeLastOccurrence(maisAntiga)) fecha(maisAntiga.conexao);
+		}
+	}
+
+	private void registraEspera(long nanos) {
+		emprestimos.incrementAndGet();
+		esperaTotal.addAndGet(nanos);
+
+		long maior = esperaMaximaObservada.get();
+		while(nanos > maior && !esperaMaximaObservada.compareAndSet(maior, nanos)) {
+			maior = esperaMaximaObservada.get();
+		}
+	}
+
+	private Connection abre() throws SQLException {
+		Connection conexao = DriverManager.getConnection(url, usuario, senha);
+		criadas.incrementAndGet();
+		return conexao;
+	}
+
+	private void fecha(Connection conexao) {
+		try {
+			conexao.close();
+		} catch(SQLException e) {
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static String valor(Map valores, String chave, String padrao) {
+		Object valor = valores.get(chave);
+		return valor == null ? padrao : valor.toString().trim();
+	}
+
+	private static class ConexaoOciosa {
+
+		private final Connection conexao;
+		private final long desde;
+
+		ConexaoOciosa(Connection conexao) {
+			this.conexao = conexao;
+			this.desde = System.currentTimeMillis();
+		}
+
+		boolean expirou(long ociosidadeMaxima) {
+			return System.currentTimeMillis() - desde > ociosidadeMaxima;
+		}
+	}
+}
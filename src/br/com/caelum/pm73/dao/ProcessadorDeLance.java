@@ -0,0 +1,10 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Recebe os lances de uma consulta percorrida com cursor, ja projetados,
+ * sem carregar entidades.
+ */
+public interface ProcessadorDeLance {
+
+	void processa(int leilaoId, int usuarioId, double valor);
+}
@@ -0,0 +1,12 @@
+package br.com.caelum.pm73.dao;
+
+import br.com.caelum.pm73.dominio.Leilao;
+
+/**
+ * Recebe, um a um, os leiloes de uma consulta percorrida com cursor.
+ * Cada leilao e removido da sessao logo depois de processado.
+ */
+public interface ProcessadorDeLeilao {
+
+	void processa(Leilao leilao);
+}
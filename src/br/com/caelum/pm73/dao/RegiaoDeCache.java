@@ -0,0 +1,153 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RegiaoDeCache {
+
+	private final String nome;
+	private final long ttl;
+	private final int maximo;
+	private final Map<Object, Entrada> entradas;
+	private long geracao;
+
+	private final AtomicLong acertos = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+	private final AtomicLong remocoes = new AtomicLong();
+
+	/**
+	 * Regiao com pm73.cache.NOME.ttl_ms e .maximo, ou com os valores
+	 * gerais pm73.cache.ttl_ms e pm73.cache.maximo.
+	 */
+	static RegiaoDeCache configurada(String nome, ConfiguracaoDoBanco configuracao) {
+		return new RegiaoDeCache(nome,
+				configuracao.inteiro("pm73.cache." + nome + ".ttl_ms", configuracao.inteiro("pm73.cache.ttl_ms", 60000)),
+				configuracao.inteiro("pm73.cache." + nome + ".maximo", configuracao.inteiro("pm73.cache.maximo", 1000)));
+	}
+
+	public RegiaoDeCache(String nome, long ttlEmMilis, int maximo) {
+		this.nome = nome;
+		this.ttl = ttlEmMilis;
+		this.maximo = maximo;
+		this.entradas = new LinkedHashMap<Object, Entrada>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Entrada> maisAntiga) {
+				if(size() <= RegiaoDeCache.this.maximo) return false;
+				
+				remocoes.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	public synchronized Object busca(Object chave) {
+		Entrada entrada = entradas.get(chave);
+		if(entrada == null) {
+			falhas.incrementAndGet();
+			return null;
+		}
+		if(entrada.expirou()) {
+			entradas.remove(chave);
+			remocoes.incrementAndGet();
+			falhas.incrementAndGet();
+			return null;
+		}
+		acertos.incrementAndGet();
+		return entrada.valor;
+	}
+
+	/**
+	 * Como busca, mas sem contar acerto nem falha: para quem precisa olhar a
+	 * entrada antes de decidir se ela vale como acerto (CacheDeEntidades).
+	 */
+	synchronized Object espia(Object chave) {
+		Entrada entrada = entradas.get(chave);
+		if(entrada == null) return null;
+		if(entrada.expirou()) {
+			entradas.remove(chave);
+			remocoes.incrementAndGet();
+			return null;
+		}
+		return entrada.valor;
+	}
+
+	void conta(boolean acerto) {
+		(acerto ? acertos : falhas).incrementAndGet();
+	}
+
+	/**
+	 * Guarda sem conferir a geracao; quem chama ja decidiu, sob o lock da
+	 * regiao, que o valor pode entrar.
+	 */
+	synchronized void poe(Object chave, Object valor) {
+		entradas.put(chave, new Entrada(valor, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Geracao atual da regiao; muda a cada invalidacao. Quem consulta o
+	 * banco le a geracao antes e a passa para guarda, que descarta o valor
+	 * se a regiao foi invalidada no meio da consulta.
+	 */
+	public synchronized long getGeracao() {
+		return geracao;
+	}
+
+	public synchronized void guarda(Object chave, Object valor, long geracaoLida) {
+		if(geracaoLida != geracao) return;
+		entradas.put(chave, new Entrada(valor, System.currentTimeMillis() + ttl));
+	}
+
+	public synchronized void invalida(Object chave) {
+		entradas.remove(chave);
+		geracao++;
+	}
+
+	public synchronized void limpa() {
+		entradas.clear();
+		geracao++;
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public synchronized int getTamanho() {
+		return entradas.size();
+	}
+
+	public long getAcertos() {
+		return acertos.get();
+	}
+
+	public long getFalhas() {
+		return falhas.get();
+	}
+
+	public long getRemocoes() {
+		return remocoes.get();
+	}
+
+	@Override
+	public String toString() {
+		return nome + " [acertos=" + getAcertos() + ", falhas=" + getFalhas() +
+				", remocoes=" + getRemocoes() + ", tamanho=" + getTamanho() + "]";
+	}
+
+	private static class Entrada {
+
+		private final Object valor;
+		private final long expiraEm;
+
+		Entrada(Object valor, long expiraEm) {
+			this.valor = valor;
+			this.expiraEm = expiraEm;
+		}
+
+		boolean expirou() {
+			return System.currentTimeMillis() > expiraEm;
+		}
+	}
+}
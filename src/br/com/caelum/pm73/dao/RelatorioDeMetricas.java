@@ -0,0 +1,14 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collection;
+
+/**
+ * Destino das metricas dos DAOs: um log, um agente de monitoracao, etc.
+ * As implementacoes sao chamadas por varias threads ao mesmo tempo.
+ */
+public interface RelatorioDeMetricas {
+
+	void consultaLenta(String metodo, long micros, long linhas, long sqls, long entidades);
+
+	void reporta(Collection<MetricaDeMetodo> metricas);
+}
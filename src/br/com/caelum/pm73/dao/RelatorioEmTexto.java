@@ -0,0 +1,24 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.PrintStream;
+import java.util.Collection;
+
+public class RelatorioEmTexto implements RelatorioDeMetricas {
+
+	private final PrintStream saida;
+
+	public RelatorioEmTexto(PrintStream saida) {
+		this.saida = saida;
+	}
+
+	public void consultaLenta(String metodo, long micros, long linhas, long sqls, long entidades) {
+		saida.printf("[pm73] consulta lenta: %s levou %d ms (%d linhas, %d sql, %d entidades)%n",
+				metodo, micros / 1000, linhas, sqls, entidades);
+	}
+
+	public void reporta(Collection<MetricaDeMetodo> metricas) {
+		for(MetricaDeMetodo metrica : metricas) {
+			if(metrica.getChamadas() > 0) saida.println("[pm73] " + metrica);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+
+/**
+ * Base somente leitura com SessionFactory e PoolDeConexoes proprios,
+ * criada a partir da mesma configuracao da base principal.
+ */
+public class Replica {
+
+	private final String url;
+	private final Configuration config;
+	private final AtomicLong leituras = new AtomicLong();
+	private volatile SessionFactory fabrica;
+
+	Replica(String url, Configuration config) {
+		this.url = url;
+		this.config = config;
+	}
+
+	public Session abreSessao() {
+		leituras.incrementAndGet();
+		Session session = getSessionFactory().openSession();
+		session.setDefaultReadOnly(true);
+		return session;
+	}
+
+	@SuppressWarnings("deprecation")
+	public SessionFactory getSessionFactory() {
+		if(fabrica == null) {
+			synchronized(this) {
+				if(fabrica == null) fabrica = config.buildSessionFactory();
+			}
+		}
+		return fabrica;
+	}
+
+	public Configuration getConfig() {
+		return config;
+	}
+
+	public PoolDeConexoes getPool() {
+		return PoolDeConexoes.de(getSessionFactory());
+	}
+
+	/**
+	 * Conexoes emprestadas agora; zero enquanto a replica nao foi usada.
+	 */
+	public int getConexoesAtivas() {
+		return fabrica == null ? 0 : getPool().getConexoesAtivas();
+	}
+
+	public long getLeituras() {
+		return leituras.get();
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	@Override
+	public String toString() {
+		return url;
+	}
+}
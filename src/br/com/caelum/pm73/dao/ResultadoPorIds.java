@@ -0,0 +1,38 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resultado de porIds: as entidades encontradas na ordem em que os ids
+ * foram pedidos (sem repeticoes) e, a parte, os ids que nao existem.
+ */
+public class ResultadoPorIds<T> {
+
+	private final List<T> encontrados;
+	private final List<Integer> ausentes;
+	private final Map<Integer, T> porId;
+
+	ResultadoPorIds(List<T> encontrados, List<Integer> ausentes, Map<Integer, T> porId) {
+		this.encontrados = Collections.unmodifiableList(encontrados);
+		this.ausentes = Collections.unmodifiableList(ausentes);
+		this.porId = Collections.unmodifiableMap(porId);
+	}
+
+	public List<T> getEncontrados() {
+		return encontrados;
+	}
+
+	public List<Integer> getAusentes() {
+		return ausentes;
+	}
+
+	public T get(int id) {
+		return porId.get(id);
+	}
+
+	public boolean isCompleto() {
+		return ausentes.isEmpty();
+	}
+}
@@ -0,0 +1,40 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Calendar;
+
+public final class ResumoDeLeilao {
+
+	private final int id;
+	private final String nome;
+	private final Double valorInicial;
+	private final long dataAbertura;
+
+	public ResumoDeLeilao(int id, String nome, Double valorInicial, long dataAbertura) {
+		this.id = id;
+		this.nome = nome;
+		this.valorInicial = valorInicial;
+		this.dataAbertura = dataAbertura;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public Double getValorInicial() {
+		return valorInicial;
+	}
+
+	public Calendar getDataAbertura() {
+		Calendar data = Calendar.getInstance();
+		data.setTimeInMillis(dataAbertura);
+		return data;
+	}
+
+	public long getDataAberturaEmMilis() {
+		return dataAbertura;
+	}
+}
@@ -0,0 +1,67 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Escolhe a replica de cada sessao de leitura: em rodizio, ou a que tem
+ * menos conexoes emprestadas no PoolDeConexoes (empates seguem o rodizio).
+ */
+public class RoteadorDeLeitura {
+
+	public enum Balanceamento {
+		RODIZIO, MENOS_CARREGADA;
+
+		public static Balanceamento de(String nome) {
+			try {
+				return valueOf(nome.trim().toUpperCase());
+			} catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("Balanceamento de leitura invalido: " + nome, e);
+			}
+		}
+	}
+
+	private final List<Replica> replicas;
+	private final Balanceamento balanceamento;
+	private final AtomicInteger proxima = new AtomicInteger();
+
+	public RoteadorDeLeitura(List<Replica> replicas, Balanceamento balanceamento) {
+		this.replicas = Collections.unmodifiableList(new ArrayList<Replica>(replicas));
+		this.balanceamento = balanceamento;
+	}
+
+	public Replica escolhe() {
+		if(replicas.isEmpty()) {
+			throw new IllegalStateException("Nenhuma replica configurada em pm73.replicas.urls");
+		}
+
+		int inicio = (proxima.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+		if(balanceamento == Balanceamento.RODIZIO) return replicas.get(inicio);
+
+		Replica escolhida = null;
+		int menorCarga = Integer.MAX_VALUE;
+		for(int i = 0; i < replicas.size(); i++) {
+			Replica replica = replicas.get((inicio + i) % replicas.size());
+			int carga = replica.getConexoesAtivas();
+			if(carga < menorCarga) {
+				escolhida = replica;
+				menorCarga = carga;
+			}
+		}
+		return escolhida;
+	}
+
+	public boolean temReplicas() {
+		return !replicas.isEmpty();
+	}
+
+	public List<Replica> getReplicas() {
+		return replicas;
+	}
+
+	public Balanceamento getBalanceamento() {
+		return balanceamento;
+	}
+}
@@ -0,0 +1,86 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hibernate.ReplicationMode;
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Unidade de trabalho sobre os shards: abre sessao e transacao em cada
+ * shard so quando ele e usado. O commit e feito shard a shard, sem
+ * two-phase commit; uma falha no meio deixa os shards anteriores gravados.
+ *
+ * Cada sessao pode ser usada por uma thread de cada vez, o que basta para
+ * o scatter-gather do LeilaoDaoParticionado (uma tarefa por shard).
+ */
+public class SessoesParticionadas {
+
+	private final Shards shards;
+	private final Session[] sessoes;
+	private final List<Set<Integer>> usuariosReplicados;
+
+	public SessoesParticionadas(Shards shards) {
+		this.shards = shards;
+		this.sessoes = new Session[shards.getQuantidade()];
+		this.usuariosReplicados = new ArrayList<Set<Integer>>(shards.getQuantidade());
+		for(int i = 0; i < shards.getQuantidade(); i++) {
+			usuariosReplicados.add(new HashSet<Integer>());
+		}
+	}
+
+	public Session daShard(Shard shard) {
+		int indice = shard.getIndice();
+		if(sessoes[indice] == null) {
+			Session session = shard.abreSessao();
+			session.beginTransaction();
+			sessoes[indice] = session;
+			usuariosReplicados.get(indice).clear();
+		}
+		return sessoes[indice];
+	}
+
+	/**
+	 * Usuarios ficam na base principal e sao copiados, com o mesmo id,
+	 * para cada shard onde tem leilao ou lance.
+	 */
+	public void replica(Shard shard, Usuario usuario) {
+		Session session = daShard(shard);
+		if(usuariosReplicados.get(shard.getIndice()).add(usuario.getId())) {
+			session.replicate(usuario, ReplicationMode.OVERWRITE);
+		}
+	}
+
+	public Shards getShards() {
+		return shards;
+	}
+
+	public void commit() {
+		for(Session session : sessoes) {
+			if(session != null && session.getTransaction().isActive()) session.getTransaction().commit();
+		}
+	}
+
+	public void rollback() {
+		for(int i = 0; i < sessoes.length; i++) {
+			if(sessoes[i] != null && sessoes[i].getTransaction().isActive()) sessoes[i].getTransaction().rollback();
+			usuariosReplicados.get(i).clear();
+		}
+	}
+
+	public void close() {
+		for(int i = 0; i < sessoes.length; i++) {
+			if(sessoes[i] == null) continue;
+			try {
+				if(sessoes[i].getTransaction().isActive()) sessoes[i].getTransaction().rollback();
+			} finally {
+				sessoes[i].close();
+				sessoes[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package br.com.caelum.pm73.dao;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+
+/**
+ * Uma particao de Leilao/Lance: base propria, com SessionFactory e
+ * PoolDeConexoes proprios. Os ids gerados em cada shard caem numa faixa
+ * exclusiva (indice * FAIXA_DE_IDS ate o inicio da faixa seguinte), entao
+ * o shard de um leilao ou lance sai direto do id, sem tabela de roteamento.
+ * As sequencias tem MAXVALUE no fim da faixa: um shard que esgota a sua
+ * falha ao gerar id, em vez de invadir a faixa do proximo.
+ */
+public class Shard {
+
+	public static final int FAIXA_DE_IDS = 1 << 26;
+
+	private static final String[] SEQUENCIAS = { "LEILAO_SEQ", "LANCE_SEQ" };
+
+	private final int indice;
+	private final String url;
+	private final Configuration config;
+	private volatile SessionFactory fabrica;
+
+	Shard(int indice, String url, Configuration config) {
+		this.indice = indice;
+		this.url = url;
+		this.config = config;
+	}
+
+	public Session abreSessao() {
+		return getSessionFactory().openSession();
+	}
+
+	@SuppressWarnings("deprecation")
+	public SessionFactory getSessionFactory() {
+		if(fabrica == null) {
+			synchronized(this) {
+				if(fabrica == null) fabrica = config.buildSessionFactory();
+			}
+		}
+		return fabrica;
+	}
+
+	public boolean contem(int id) {
+		return id / FAIXA_DE_IDS == indice;
+	}
+
+	/**
+	 * Recria as tabelas e limita as sequencias a faixa do shard. A folga de
+	 * 100 no inicio cobre o bloco do otimizador pooled (allocationSize=50),
+	 * que comeca abaixo do valor lido da sequencia.
+	 */
+	public void criaTabelas() {
+		new SchemaExport(config).create(false, true);
+
+		Session session = abreSessao();
+		try {
+			session.beginTransaction();
+			for(String sequencia : SEQUENCIAS) {
+				if(indice > 0) {
+					session.createSQLQuery("alter sequence " + sequencia + " restart with " +
+							((long) indice * FAIXA_DE_IDS + 100))
+							.executeUpdate();
+				}
+				session.createSQLQuery("alter sequence " + sequencia + " maxvalue " + getUltimoId())
+						.executeUpdate();
+			}
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	public int getUltimoId() {
+		return (int) ((long) (indice + 1) * FAIXA_DE_IDS - 1);
+	}
+
+	public PoolDeConexoes getPool() {
+		return PoolDeConexoes.de(getSessionFactory());
+	}
+
+	public int getIndice() {
+		return indice;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	@Override
+	public String toString() {
+		return "shard " + indice + " (" + url + ")";
+	}
+}
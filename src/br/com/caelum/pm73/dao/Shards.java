@@ -0,0 +1,50 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conjunto de shards configurado em pm73.shards.urls. Leiloes novos sao
+ * distribuidos em rodizio; depois de salvo, o shard sai do id.
+ */
+public class Shards {
+
+	private final List<Shard> shards;
+	private final AtomicInteger proximo = new AtomicInteger();
+
+	Shards(List<Shard> shards) {
+		if(shards.isEmpty()) throw new IllegalArgumentException("Ao menos um shard e necessario");
+		if(shards.size() > Integer.MAX_VALUE / Shard.FAIXA_DE_IDS) {
+			throw new IllegalArgumentException("Shards demais para a faixa de ids: " + shards.size());
+		}
+		this.shards = Collections.unmodifiableList(new ArrayList<Shard>(shards));
+	}
+
+	public Shard doId(int id) {
+		int indice = id / Shard.FAIXA_DE_IDS;
+		if(id < 0 || indice >= shards.size()) {
+			throw new IllegalArgumentException("Id fora das faixas dos shards: " + id);
+		}
+		return shards.get(indice);
+	}
+
+	public Shard paraNovoLeilao() {
+		return shards.get((proximo.getAndIncrement() & Integer.MAX_VALUE) % shards.size());
+	}
+
+	public List<Shard> getTodos() {
+		return shards;
+	}
+
+	public int getQuantidade() {
+		return shards.size();
+	}
+
+	public void criaTabelas() {
+		for(Shard shard : shards) {
+			shard.criaTabelas();
+		}
+	}
+}
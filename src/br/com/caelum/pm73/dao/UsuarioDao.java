@@ -1,37 +1,132 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.Collection;
+
 import org.hibernate.Session;
 
+import br.com.caelum.pm73.dominio.TipoDeAlteracao;
 import br.com.caelum.pm73.dominio.Usuario;
 
 public class UsuarioDao {
 
 	private final Session session;
+	private final Session leitura;
+	private final CacheDeIdentidades identidades;
+	private final CaixaDeSaida caixaDeSaida;
 
 	public UsuarioDao(Session session) {
+		this(session, session);
+	}
+	
+	public UsuarioDao(Session session, Session leitura) {
+		this(session, leitura, CacheDeIdentidades.padrao());
+	}
+	
+	public UsuarioDao(Session session, Session leitura, CacheDeIdentidades identidades) {
 		this.session = session;
+		this.leitura = leitura;
+		this.identidades = identidades;
+		this.caixaDeSaida = new CaixaDeSaida(session);
 	}
 	
 	public Usuario porId(int id) {
 		return (Usuario) session.load(Usuario.class, id);
 	}
 	
+	/**
+	 * Varios usuarios de uma vez, em consultas "in" de ate 500 ids e
+	 * reaproveitando os que ja estao na sessao. Ao contrario de porId,
+	 * devolve entidades carregadas, nunca proxies.
+	 */
+	public ResultadoPorIds<Usuario> porIds(Collection<Integer> ids) {
+		return new BuscaPorIds<Usuario>(session, Usuario.class).busca(ids);
+	}
+	
+	/**
+	 * Busca pelo indice unico de email normalizado (ver
+	 * Usuario.getEmailNormalizado), entao o email e comparado sem levar em
+	 * conta maiusculas e espacos nas pontas; o nome tem de ser igual. O id
+	 * encontrado, ou a ausencia dele, fica no CacheDeIdentidades.
+	 */
 	public Usuario porNomeEEmail(String nome, String email) {
-		return (Usuario) session.createQuery("from Usuario u where u.nome = :nome and u.email = :email")
+		Session consulta = paraLeitura();
+		int conhecido = identidades.busca(nome, email);
+		if(conhecido == CacheDeIdentidades.AUSENTE) return null;
+		
+		if(conhecido != CacheDeIdentidades.DESCONHECIDO) {
+			Usuario usuario = (Usuario) consulta.get(Usuario.class, conhecido);
+			if(usuario != null && usuario.temIdentidade(nome, email)) return usuario;
+			identidades.invalida(conhecido);
+			identidades.invalida(nome, email);
+		}
+		
+		Usuario usuario = (Usuario) consulta.createQuery("from Usuario u " +
+				"where u.emailNormalizado = :email and u.nome = :nome")
+				.setParameter("email", Usuario.normaliza(email))
 				.setParameter("nome", nome)
-				.setParameter("email", email)
 				.uniqueResult();
+		if(usuario == null) {
+			identidades.guardaAusente(nome, email);
+		} else {
+			identidades.guarda(nome, email, usuario.getId());
+		}
+		return usuario;
 	}
 	
 	public void salvar(Usuario usuario) {
+		registraEscrita(usuario);
 		session.save(usuario);
+		caixaDeSaida.registra("Usuario", usuario.getId(), TipoDeAlteracao.CRIADO);
 	}
 	
 	public void atualizar(Usuario usuario) {
+		registraEscrita(usuario);
 		session.merge(usuario);
+		caixaDeSaida.registra("Usuario", usuario.getId(), TipoDeAlteracao.ALTERADO);
 	}
 	
 	public void deletar(Usuario usuario) {
+		registraEscrita(usuario);
+		new EstatisticasDoUsuarioDao(session).usuarioDeletado(usuario);
 		session.delete(usuario);
+		caixaDeSaida.registra("Usuario", usuario.getId(), TipoDeAlteracao.REMOVIDO);
+	}
+	
+	/**
+	 * Preenche o email normalizado dos usuarios gravados antes da coluna
+	 * existir, que ficaram com ela nula e nao sao achados por
+	 * porNomeEEmail. Devolve quantos foram preenchidos. Falha no indice
+	 * unico se dois deles tiverem o mesmo email com maiusculas diferentes.
+	 */
+	public int normalizaEmails() {
+		EscritasDaSessao.registra(session, new Runnable() {
+			public void run() {
+				identidades.limpa();
+			}
+		});
+		return session.createQuery("update Usuario u set u.emailNormalizado = lower(trim(u.email)) " +
+				"where u.emailNormalizado is null and u.email is not null")
+				.executeUpdate();
+	}
+	
+	private Session paraLeitura() {
+		return EscritasDaSessao.paraLeitura(session, leitura);
+	}
+	
+	/**
+	 * Esquece a identidade do usuario no CacheDeIdentidades agora e de novo
+	 * no fim da transacao, para que uma busca de outra sessao feita antes
+	 * do commit nao deixe la o id antigo ou a ausencia.
+	 */
+	private void registraEscrita(Usuario usuario) {
+		final int id = usuario.getId();
+		final String nome = usuario.getNome();
+		final String email = usuario.getEmail();
+		EscritasDaSessao.registra(session, new Runnable() {
+			public void run() {
+				identidades.invalida(id);
+				identidades.invalida(nome, email);
+			}
+		});
 	}
 }
@@ -0,0 +1,111 @@
+package br.com.caelum.pm73.dominio;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Version;
+
+@Entity
+public class EstatisticasDoUsuario {
+
+	@Id
+	private int usuarioId;
+	@Version
+	private int versao;
+	private int quantidadeDeLeiloes;
+	private double somaDosValoresIniciais;
+	private Double menorValorInicial;
+	private Double maiorValorInicial;
+	private int quantidadeDeLances;
+
+	protected EstatisticasDoUsuario() {}
+
+	public EstatisticasDoUsuario(int usuarioId) {
+		this.usuarioId = usuarioId;
+	}
+
+	public void adicionaLeilao(Double valorInicial) {
+		if(valorInicial == null) return;
+
+		quantidadeDeLeiloes++;
+		somaDosValoresIniciais += valorInicial;
+		if(menorValorInicial == null || valorInicial < menorValorInicial) menorValorInicial = valorInicial;
+		if(maiorValorInicial == null || valorInicial > maiorValorInicial) maiorValorInicial = valorInicial;
+	}
+
+	public boolean removeLeilao(Double valorInicial) {
+		if(valorInicial == null || quantidadeDeLeiloes == 0) return false;
+
+		quantidadeDeLeiloes--;
+		somaDosValoresIniciais -= valorInicial;
+		if(quantidadeDeLeiloes == 0) {
+			somaDosValoresIniciais = 0;
+			menorValorInicial = null;
+			maiorValorInicial = null;
+			return false;
+		}
+		return valorInicial.equals(menorValorInicial) || valorInicial.equals(maiorValorInicial);
+	}
+
+	public void redefine(int quantidadeDeLeiloes, double somaDosValoresIniciais,
+			Double menorValorInicial, Double maiorValorInicial) {
+		this.quantidadeDeLeiloes = quantidadeDeLeiloes;
+		this.somaDosValoresIniciais = somaDosValoresIniciais;
+		this.menorValorInicial = menorValorInicial;
+		this.maiorValorInicial = maiorValorInicial;
+	}
+
+	public void redefineExtremos(Double menorValorInicial, Double maiorValorInicial) {
+		this.menorValorInicial = menorValorInicial;
+		this.maiorValorInicial = maiorValorInicial;
+	}
+
+	public void adicionaLance() {
+		quantidadeDeLances++;
+	}
+
+	public void removeLance() {
+		if(quantidadeDeLances > 0) quantidadeDeLances--;
+	}
+
+	/**
+	 * Soma as estatisticas de outra particao do mesmo usuario (ver
+	 * LeilaoDaoParticionado).
+	 */
+	public void acumula(EstatisticasDoUsuario outra) {
+		quantidadeDeLeiloes += outra.getQuantidadeDeLeiloes();
+		somaDosValoresIniciais += outra.getSomaDosValoresIniciais();
+		Double menor = outra.getMenorValorInicial();
+		Double maior = outra.getMaiorValorInicial();
+		if(menor != null && (menorValorInicial == null || menor < menorValorInicial)) menorValorInicial = menor;
+		if(maior != null && (maiorValorInicial == null || maior > maiorValorInicial)) maiorValorInicial = maior;
+		quantidadeDeLances += outra.getQuantidadeDeLances();
+	}
+
+	public double getValorInicialMedio() {
+		return quantidadeDeLeiloes == 0 ? 0.0 : somaDosValoresIniciais / quantidadeDeLeiloes;
+	}
+
+	public int getUsuarioId() {
+		return usuarioId;
+	}
+
+	public int getQuantidadeDeLeiloes() {
+		return quantidadeDeLeiloes;
+	}
+
+	public double getSomaDosValoresIniciais() {
+		return somaDosValoresIniciais;
+	}
+
+	public Double getMenorValorInicial() {
+		return menorValorInicial;
+	}
+
+	public Double getMaiorValorInicial() {
+		return maiorValorInicial;
+	}
+
+	public int getQuantidadeDeLances() {
+		return quantidadeDeLances;
+	}
+}
@@ -0,0 +1,63 @@
+package br.com.caelum.pm73.dominio;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+
+/**
+ * Linha da caixa de saida: uma alteracao feita pelos DAOs, gravada na
+ * mesma transacao que ela. So diz o que mudou (entidade, id e tipo); quem
+ * precisar do estado atual le a entidade pelo id.
+ *
+ * O id e uma coluna identity para que INSERT ... SELECT em massa tambem
+ * gere ids, na ordem em que as linhas foram inseridas.
+ */
+@Entity
+public class EventoDeAlteracao {
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	private long id;
+	private String entidade;
+	private int entidadeId;
+	@Enumerated(EnumType.STRING)
+	private TipoDeAlteracao tipo;
+	private long criadoEm;
+
+	protected EventoDeAlteracao() {}
+
+	public EventoDeAlteracao(String entidade, int entidadeId, TipoDeAlteracao tipo) {
+		this.entidade = entidade;
+		this.entidadeId = entidadeId;
+		this.tipo = tipo;
+		this.criadoEm = System.currentTimeMillis();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getEntidade() {
+		return entidade;
+	}
+
+	public int getEntidadeId() {
+		return entidadeId;
+	}
+
+	public TipoDeAlteracao getTipo() {
+		return tipo;
+	}
+
+	public long getCriadoEmMilis() {
+		return criadoEm;
+	}
+
+	@Override
+	public String toString() {
+		return id + ": " + entidade + "#" + entidadeId + " " + tipo;
+	}
+}
@@ -0,0 +1,80 @@
+package br.com.caelum.pm73.dominio;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+
+/**
+ * Evento da caixa de saida que um assinante recusou em todas as
+ * tentativas. O RetransmissorDeEventos copia o evento para ca, com o
+ * assinante e o motivo, antes de tira-lo da caixa de saida; nada some sem
+ * deixar rastro.
+ */
+@Entity
+public class EventoNaoEntregue {
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	private long id;
+	private long eventoId;
+	private String entidade;
+	private int entidadeId;
+	@Enumerated(EnumType.STRING)
+	private TipoDeAlteracao tipo;
+	private long criadoEm;
+	private String assinante;
+	private String motivo;
+	private long falhouEm;
+
+	protected EventoNaoEntregue() {}
+
+	public EventoNaoEntregue(EventoDeAlteracao evento, String assinante, String motivo) {
+		this.eventoId = evento.getId();
+		this.entidade = evento.getEntidade();
+		this.entidadeId = evento.getEntidadeId();
+		this.tipo = evento.getTipo();
+		this.criadoEm = evento.getCriadoEmMilis();
+		this.assinante = assinante;
+		this.motivo = motivo;
+		this.falhouEm = System.currentTimeMillis();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getEventoId() {
+		return eventoId;
+	}
+
+	public String getEntidade() {
+		return entidade;
+	}
+
+	public int getEntidadeId() {
+		return entidadeId;
+	}
+
+	public TipoDeAlteracao getTipo() {
+		return tipo;
+	}
+
+	public long getCriadoEmMilis() {
+		return criadoEm;
+	}
+
+	public String getAssinante() {
+		return assinante;
+	}
+
+	public String getMotivo() {
+		return motivo;
+	}
+
+	public long getFalhouEmMilis() {
+		return falhouEm;
+	}
+}
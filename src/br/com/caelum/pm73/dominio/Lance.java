@@ -4,16 +4,30 @@ import java.util.Calendar;
 
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Version;
+
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 
 @Entity
+@Table(appliesTo="Lance", indexes={
+	@Index(name="IDX_LANCE_LEILAO", columnNames={"leilao_id"}),
+	@Index(name="IDX_LANCE_USUARIO_LEILAO", columnNames={"usuario_id", "leilao_id"})
+})
 public class Lance {
 
-	@Id @GeneratedValue
+	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="lanceSeq")
+	@SequenceGenerator(name="lanceSeq", sequenceName="LANCE_SEQ", allocationSize=50)
 	private int id;
+	@Version
+	private int versao;
 	private double valor;
-	private Calendar data;
+	private long data;
 	@ManyToOne
 	private Usuario usuario;
 	@ManyToOne
@@ -21,8 +35,11 @@ public class Lance {
 	
 	protected Lance() {}
 	public Lance(Calendar data, Usuario usuario, double valor, Leilao leilao) {
+		this(data.getTimeInMillis(), usuario, valor, leilao);
+	}
+	public Lance(long dataEmMilis, Usuario usuario, double valor, Leilao leilao) {
 		this.usuario = usuario;
-		this.data = data;
+		this.data = dataEmMilis;
 		this.valor = valor;
 		this.leilao = leilao;
 	}
@@ -40,9 +57,17 @@ public class Lance {
 		this.leilao = leilao;
 	}
 	public Calendar getData() {
-		return data;
+		Calendar copia = Calendar.getInstance();
+		copia.setTimeInMillis(data);
+		return copia;
 	}
 	public void setData(Calendar data) {
+		this.data = data.getTimeInMillis();
+	}
+	public long getDataEmMilis() {
+		return data;
+	}
+	public void setDataEmMilis(long data) {
 		this.data = data;
 	}
 	public Usuario getUsuario() {
@@ -0,0 +1,78 @@
+package br.com.caelum.pm73.dominio;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+
+/**
+ * Lance aceito fora do banco (MesaDeLances, DiarioDeLances) que nao pode
+ * ser gravado em LANCE: leilao inexistente ou encerrado, ou um lance que
+ * falhou sozinho em todas as tentativas. Fica aqui, com o motivo, em vez
+ * de sumir ou travar a fila de gravacao.
+ */
+@Entity
+public class LanceRejeitado {
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	private long id;
+	private String origem;
+	private long sequencia;
+	private int leilaoId;
+	private int usuarioId;
+	private double valor;
+	private long momento;
+	private String motivo;
+	private long rejeitadoEm;
+
+	protected LanceRejeitado() {}
+
+	public LanceRejeitado(String origem, long sequencia, int leilaoId, int usuarioId,
+			double valor, long momento, String motivo) {
+		this.origem = origem;
+		this.sequencia = sequencia;
+		this.leilaoId = leilaoId;
+		this.usuarioId = usuarioId;
+		this.valor = valor;
+		this.momento = momento;
+		this.motivo = motivo;
+		this.rejeitadoEm = System.currentTimeMillis();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getOrigem() {
+		return origem;
+	}
+
+	public long getSequencia() {
+		return sequencia;
+	}
+
+	public int getLeilaoId() {
+		return leilaoId;
+	}
+
+	public int getUsuarioId() {
+		return usuarioId;
+	}
+
+	public double getValor() {
+		return valor;
+	}
+
+	public long getMomentoEmMilis() {
+		return momento;
+	}
+
+	public String getMotivo() {
+		return motivo;
+	}
+
+	public long getRejeitadoEmMilis() {
+		return rejeitadoEm;
+	}
+}
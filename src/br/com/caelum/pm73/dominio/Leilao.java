@@ -2,33 +2,55 @@ package br.com.caelum.pm73.dominio;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Version;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Table;
 
 @Entity
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE, region="Leilao")
+@Table(appliesTo="Leilao", indexes={
+	@Index(name="IDX_LEILAO_ENCERRADO_DATA", columnNames={"encerrado", "dataAbertura", "id"}),
+	@Index(name="IDX_LEILAO_ENCERRADO_VALOR", columnNames={"encerrado", "valorInicial", "quantidadeDeLances"}),
+	@Index(name="IDX_LEILAO_USADO_DATA", columnNames={"usado", "dataAbertura", "id"}),
+	@Index(name="IDX_LEILAO_DATA", columnNames={"dataAbertura", "id"}),
+	@Index(name="IDX_LEILAO_DONO_VALOR", columnNames={"dono_id", "valorInicial"})
+})
 public class Leilao {
 
-	@Id @GeneratedValue
+	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="leilaoSeq")
+	@SequenceGenerator(name="leilaoSeq", sequenceName="LEILAO_SEQ", allocationSize=50)
 	private int id;
+	@Version
+	private int versao;
 	private String nome;
 	private Double valorInicial;
 	@ManyToOne
 	private Usuario dono;
-	private Calendar dataAbertura;
+	private long dataAbertura;
 	private boolean usado;
 	private boolean encerrado;
 	@OneToMany(cascade=CascadeType.ALL, orphanRemoval=true, mappedBy="leilao")
 	private List<Lance> lances;
+	private int quantidadeDeLances;
 	
 	public Leilao() {
 		this.lances = new ArrayList<Lance>();
-		this.dataAbertura = Calendar.getInstance();
+		this.dataAbertura = System.currentTimeMillis();
 	}
 	
 	public Leilao(String nome, Double valorInicial, Usuario dono, boolean usado) {
@@ -39,11 +61,25 @@ public class Leilao {
 		this.usado = usado;
 	}
 
+	/**
+	 * A data fica guardada como epoch millis (coluna bigint); o Calendar
+	 * e so uma copia para quem ainda trabalha com ele.
+	 */
 	public void setDataAbertura(Calendar dataAbertura) {
-		this.dataAbertura = dataAbertura;
+		this.dataAbertura = dataAbertura.getTimeInMillis();
 	}
 
 	public Calendar getDataAbertura() {
+		Calendar data = Calendar.getInstance();
+		data.setTimeInMillis(dataAbertura);
+		return data;
+	}
+
+	public void setDataAberturaEmMilis(long dataAbertura) {
+		this.dataAbertura = dataAbertura;
+	}
+
+	public long getDataAberturaEmMilis() {
 		return dataAbertura;
 	}
 
@@ -79,8 +115,16 @@ public class Leilao {
 		this.usado = usado;
 	}
 
+	/**
+	 * Somente leitura: lances entram e saem por adicionaLance e removeLance,
+	 * que mantem quantidadeDeLances em dia.
+	 */
 	public List<Lance> getLances() {
-		return lances;
+		return Collections.unmodifiableList(lances);
+	}
+
+	public int getQuantidadeDeLances() {
+		return quantidadeDeLances;
 	}
 
 	public int getId() {
@@ -98,6 +142,14 @@ public class Leilao {
 	public Lance adicionaLance(Lance lance) {
 		lance.setLeilao(this);
 		lances.add(lance);
+		quantidadeDeLances++;
 		return lance;
 	}
+	
+	public boolean removeLance(Lance lance) {
+		if(!lances.remove(lance)) return false;
+		
+		quantidadeDeLances--;
+		return true;
+	}
 }
@@ -0,0 +1,34 @@
+package br.com.caelum.pm73.dominio;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Ultimo registro do diario de lances ja gravado em LANCE. Atualizada na
+ * mesma transacao dos lances, e o que torna a reaplicacao idempotente.
+ */
+@Entity
+public class PosicaoDoDiario {
+
+	@Id
+	private String diario;
+	private long sequencia;
+
+	protected PosicaoDoDiario() {}
+
+	public PosicaoDoDiario(String diario) {
+		this.diario = diario;
+	}
+
+	public String getDiario() {
+		return diario;
+	}
+
+	public long getSequencia() {
+		return sequencia;
+	}
+
+	public void avancaPara(long sequencia) {
+		if(sequencia > this.sequencia) this.sequencia = sequencia;
+	}
+}
@@ -0,0 +1,5 @@
+package br.com.caelum.pm73.dominio;
+
+public enum TipoDeAlteracao {
+	CRIADO, ALTERADO, REMOVIDO
+}
@@ -1,22 +1,36 @@
 package br.com.caelum.pm73.dominio;
 
+import java.util.Locale;
+
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE, region="Usuario")
+@Table(uniqueConstraints=@UniqueConstraint(name="UK_USUARIO_EMAIL", columnNames="emailNormalizado"))
 public class Usuario {
 	
-	@Id @GeneratedValue
+	@Id
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="usuarioSeq")
+	@SequenceGenerator(name="usuarioSeq", sequenceName="USUARIO_SEQ", allocationSize=50)
 	private int id;
 	private String nome;
 	private String email;
+	private String emailNormalizado;
 
 	protected Usuario() {}
 	
 	public Usuario(String nome, String email) {
 		this.nome = nome;
-		this.email = email;
+		setEmail(email);
 	}
 
 	public void setNome(String nome) {
@@ -33,6 +47,26 @@ public class Usuario {
 
 	public void setEmail(String email) {
 		this.email = email;
+		this.emailNormalizado = normaliza(email);
+	}
+
+	/**
+	 * Chave de busca por email: sem espacos nas pontas e em minusculas.
+	 * Tem indice unico, entao dois usuarios nao podem ter o mesmo email
+	 * mesmo que escrito com maiusculas diferentes. Em banco criado antes
+	 * desta coluna, rode curso.NormalizaEmails para preenche-la.
+	 */
+	public String getEmailNormalizado() {
+		return emailNormalizado;
+	}
+
+	public boolean temIdentidade(String nome, String email) {
+		return this.nome != null && this.nome.equals(nome)
+				&& emailNormalizado != null && emailNormalizado.equals(normaliza(email));
+	}
+
+	public static String normaliza(String email) {
+		return email == null ? null : email.trim().toLowerCase(Locale.ENGLISH);
 	}
 
 	public int getId() {
@@ -42,6 +76,4 @@ public class Usuario {
 	public void setId(int id) {
 		this.id = id;
 	}
-
-	
 }
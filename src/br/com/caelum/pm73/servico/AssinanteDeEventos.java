@@ -0,0 +1,15 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.List;
+
+import br.com.caelum.pm73.dominio.EventoDeAlteracao;
+
+/**
+ * Recebe os eventos da caixa de saida, em lotes e em ordem de id. Um lote
+ * pode chegar de novo se o processo cair antes de ser confirmado, entao o
+ * tratamento deve ser idempotente.
+ */
+public interface AssinanteDeEventos {
+
+	void recebe(List<EventoDeAlteracao> eventos);
+}
@@ -0,0 +1,10 @@
+package br.com.caelum.pm73.servico;
+
+public class ConflitoDeLanceException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ConflitoDeLanceException(String mensagem, Throwable causa) {
+		super(mensagem, causa);
+	}
+}
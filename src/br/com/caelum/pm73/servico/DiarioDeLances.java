@@ -0,0 +1,288 @@
+package br.com.caelum.pm73.servico;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dominio.PosicaoDoDiario;
+import br.com.caelum.pm73.servico.SegmentoDoDiario.RegistroDoDiario;
+
+/**
+ * Diario local de lances, gravado antes do banco (write-behind duravel).
+ *
+ * registra() acrescenta o lance num segmento mapeado em memoria e so
+ * retorna depois do force() do segmento; uma thread de sincronizacao faz
+ * um unico force() para todos os lances que chegaram enquanto o anterior
+ * rodava (group commit). Os lances ja duraveis vao para o mesmo
+ * GravadorDeLances da MesaDeLances, que grava em LANCE em lote numa thread
+ * de fundo e avanca a PosicaoDoDiario na mesma transacao, inclusive pelos
+ * lances rejeitados (viram LanceRejeitado); ao reabrir o diario so o que
+ * passou da posicao e reaplicado, e nenhum lance entra duas vezes.
+ *
+ * A posicao e guardada pelo caminho canonico do diretorio, para que dois
+ * diarios com o mesmo nome em lugares diferentes nao dividam a posicao.
+ */
+public class DiarioDeLances {
+
+	private final CriadorDeSessao criador;
+	private final File diretorio;
+	private final String chave;
+	private final int tamanhoDoSegmento;
+	private final GravadorDeLances gravador;
+
+	private final TreeMap<Integer, SegmentoDoDiario> segmentos = new TreeMap<Integer, SegmentoDoDiario>();
+	private final Set<SegmentoDoDiario> sujos = new LinkedHashSet<SegmentoDoDiario>();
+	private final List<RegistroDoDiario> naoDuraveis = new ArrayList<RegistroDoDiario>();
+
+	private SegmentoDoDiario atual;
+	private long ultimaSequencia;
+	private long duravel;
+	private boolean aberto;
+	private boolean sincronizadorParou;
+	private Thread sincronizador;
+
+	private final AtomicLong sincronizacoes = new AtomicLong();
+
+	public DiarioDeLances(CriadorDeSessao criador, File diretorio, int tamanhoDoSegmento, int tamanhoDoLote) {
+		if(tamanhoDoSegmento < SegmentoDoDiario.TAMANHO_DO_REGISTRO) {
+			throw new IllegalArgumentException("Segmento menor que um registro: " + tamanhoDoSegmento);
+		}
+		this.criador = criador;
+		this.diretorio = diretorio;
+		this.chave = caminhoCanonico(diretorio);
+		this.tamanhoDoSegmento = tamanhoDoSegmento;
+		this.gravador = new GravadorDeLances(criador, chave, chave, tamanhoDoLote) {
+			@Override
+			protected void gravou(long posicao) {
+				synchronized(DiarioDeLances.this) {
+					apagaSegmentosGravados(posicao);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Le os segmentos existentes, enfileira o que ainda nao chegou ao banco
+	 * e inicia a thread de sincronizacao e o gravador de fundo.
+	 */
+	public synchronized void abre(long intervaloEmMilis) throws IOException {
+		if(aberto) return;
+		if(!diretorio.isDirectory() && !diretorio.mkdirs()) {
+			throw new IOException("Nao foi possivel criar o diretorio do diario: " + diretorio);
+		}
+
+		long gravadoNoBanco = posicaoNoBanco();
+		ultimaSequencia = gravadoNoBanco;
+		for(int numero : numerosDosSegmentos()) {
+			SegmentoDoDiario segmento = SegmentoDoDiario.abre(diretorio, numero, tamanhoDoSegmento);
+			for(RegistroDoDiario registro : segmento.le()) {
+				if(registro.getSequencia() > gravadoNoBanco) gravador.enfileira(registro);
+			}
+			ultimaSequencia = Math.max(ultimaSequencia, segmento.getUltimaSequencia());
+			segmentos.put(numero, segmento);
+		}
+		duravel = ultimaSequencia;
+		atual = segmentos.isEmpty() ? novoSegmento(0) : segmentos.lastEntry().getValue();
+		apagaSegmentosGravados(gravadoNoBanco);
+
+		aberto = true;
+		sincronizadorParou = false;
+		sincronizador = new Thread(new Runnable() {
+			public void run() {
+				try {
+					sincroniza();
+				} finally {
+					synchronized(DiarioDeLances.this) {
+						sincronizadorParou = true;
+						DiarioDeLances.this.notifyAll();
+					}
+				}
+			}
+		}, "pm73-diario-fsync");
+		sincronizador.setDaemon(true);
+		sincronizador.start();
+
+		gravador.inicia(intervaloEmMilis, "pm73-diario-gravador");
+	}
+
+	/**
+	 * Grava o lance no diario e espera ele ficar duravel em disco; a
+	 * gravacao em LANCE acontece depois, em segundo plano.
+	 */
+	public long registra(int leilaoId, int usuarioId, double valor) throws IOException, InterruptedException {
+		long sequencia;
+		synchronized(this) {
+			if(!aberto) throw new IllegalStateException("Diario de lances fechado");
+
+			if(!atual.cabe()) atual = novoSegmento(atual.getNumero() + 1);
+			sequencia = ++ultimaSequencia;
+			RegistroDoDiario registro = new RegistroDoDiario(sequencia, leilaoId, usuarioId, valor,
+					System.currentTimeMillis());
+			atual.escreve(registro);
+			sujos.add(atual);
+			naoDuraveis.add(registro);
+			notifyAll();
+
+			while(duravel < sequencia) {
+				if(sincronizadorParou) throw new IOException("Lance " + sequencia + " nao foi sincronizado em disco");
+				wait();
+			}
+		}
+		return sequencia;
+	}
+
+	/**
+	 * Grava um lote dos lances duraveis; ver GravadorDeLances.descarrega().
+	 */
+	public int descarrega() {
+		return gravador.descarrega();
+	}
+
+	public void fecha() throws InterruptedException {
+		Thread sincronizadorAtual;
+		synchronized(this) {
+			if(!aberto) return;
+			aberto = false;
+			notifyAll();
+			sincronizadorAtual = sincronizador;
+		}
+
+		sincronizadorAtual.join();
+		gravador.para();
+		while(descarrega() > 0) {
+		}
+
+		synchronized(this) {
+			for(SegmentoDoDiario segmento : segmentos.values()) {
+				segmento.fecha();
+			}
+			segmentos.clear();
+		}
+	}
+
+	public int getPendentes() {
+		return gravador.getPendentes();
+	}
+
+	public synchronized long getSequenciaDuravel() {
+		return duravel;
+	}
+
+	public long getSincronizacoes() {
+		return sincronizacoes.get();
+	}
+
+	public long getGravados() {
+		return gravador.getGravados();
+	}
+
+	public long getRejeitados() {
+		return gravador.getRejeitados();
+	}
+
+	public long getFalhasDeGravacao() {
+		return gravador.getFalhas();
+	}
+
+	public RuntimeException getUltimaFalhaDeGravacao() {
+		return gravador.getUltimaFalha();
+	}
+
+	String getChave() {
+		return chave;
+	}
+
+	private void sincroniza() {
+		while(true) {
+			List<SegmentoDoDiario> paraSincronizar;
+			List<RegistroDoDiario> lote;
+			synchronized(this) {
+				while(aberto && naoDuraveis.isEmpty()) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+				if(naoDuraveis.isEmpty()) return;
+
+				paraSincronizar = new ArrayList<SegmentoDoDiario>(sujos);
+				lote = new ArrayList<RegistroDoDiario>(naoDuraveis);
+				sujos.clear();
+				naoDuraveis.clear();
+			}
+
+			for(SegmentoDoDiario segmento : paraSincronizar) {
+				segmento.sincroniza();
+			}
+			sincronizacoes.incrementAndGet();
+
+			synchronized(this) {
+				for(RegistroDoDiario registro : lote) {
+					gravador.enfileira(registro);
+				}
+				duravel = lote.get(lote.size() - 1).getSequencia();
+				notifyAll();
+			}
+		}
+	}
+
+	private long posicaoNoBanco() {
+		Session session = criador.getSession();
+		try {
+			PosicaoDoDiario posicao = (PosicaoDoDiario) session.get(PosicaoDoDiario.class, chave);
+			return posicao == null ? 0 : posicao.getSequencia();
+		} finally {
+			session.close();
+		}
+	}
+
+	private SegmentoDoDiario novoSegmento(int numero) throws IOException {
+		SegmentoDoDiario segmento = SegmentoDoDiario.abre(diretorio, numero, tamanhoDoSegmento);
+		segmentos.put(numero, segmento);
+		return segmento;
+	}
+
+	private void apagaSegmentosGravados(long posicao) {
+		Iterator<Map.Entry<Integer, SegmentoDoDiario>> entradas = segmentos.entrySet().iterator();
+		while(entradas.hasNext()) {
+			SegmentoDoDiario segmento = entradas.next().getValue();
+			if(segmento == atual || segmento.getUltimaSequencia() > posicao || sujos.contains(segmento)) return;
+
+			segmento.apaga();
+			entradas.remove();
+		}
+	}
+
+	private static String caminhoCanonico(File diretorio) {
+		try {
+			return diretorio.getCanonicalPath();
+		} catch(IOException e) {
+			throw new IllegalArgumentException("Diretorio do diario invalido: " + diretorio, e);
+		}
+	}
+
+	private int[] numerosDosSegmentos() {
+		String[] nomes = diretorio.list();
+		int[] numeros = new int[nomes == null ? 0 : nomes.length];
+		int quantidade = 0;
+		for(int i = 0; i < numeros.length; i++) {
+			int numero = SegmentoDoDiario.numeroDoArquivo(nomes[i]);
+			if(numero >= 0) numeros[quantidade++] = numero;
+		}
+		int[] encontrados = Arrays.copyOf(numeros, quantidade);
+		Arrays.sort(encontrados);
+		return encontrados;
+	}
+}
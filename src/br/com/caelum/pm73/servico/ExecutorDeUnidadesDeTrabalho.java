@@ -0,0 +1,147 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.HistogramaDeLatencias;
+
+/**
+ * Executa cada UnidadeDeTrabalho numa thread propria, com sessao e
+ * transacao abertas e fechadas pelo executor. Quando a JVM oferece
+ * threads virtuais (Executors.newVirtualThreadPerTaskExecutor) elas sao
+ * usadas; senao cai num pool fixo com uma thread por vaga, para que as
+ * tarefas alem das vagas esperem na fila do pool e nao em threads novas.
+ *
+ * Milhares de tarefas podem estar esperando ao mesmo tempo, mas so
+ * "vagas" delas seguram uma conexao: o semaforo tem o tamanho do pool,
+ * entao ninguem espera dentro do PoolDeConexoes nem estoura o
+ * pm73.pool.espera_maxima_ms.
+ */
+public class ExecutorDeUnidadesDeTrabalho {
+
+	private final CriadorDeSessao criador;
+	private final ExecutorService threads;
+	private final Semaphore vagas;
+	private final boolean threadsVirtuais;
+
+	private final AtomicInteger emAndamento = new AtomicInteger();
+	private final AtomicLong falhas = new AtomicLong();
+	private final HistogramaDeLatencias latencias = new HistogramaDeLatencias();
+	private final HistogramaDeLatencias esperasPorVaga = new HistogramaDeLatencias();
+
+	public ExecutorDeUnidadesDeTrabalho(CriadorDeSessao criador) {
+		this(criador, criador.getPool().getMaximoDeConexoes());
+	}
+
+	public ExecutorDeUnidadesDeTrabalho(CriadorDeSessao criador, int vagas) {
+		if(vagas < 1) {
+			throw new IllegalArgumentException("Numero de vagas deve ser positivo: " + vagas);
+		}
+		this.criador = criador;
+		this.vagas = new Semaphore(vagas, true);
+
+		ExecutorService virtuais = threadsVirtuais();
+		this.threadsVirtuais = virtuais != null;
+		this.threads = virtuais != null ? virtuais : Executors.newFixedThreadPool(vagas);
+	}
+
+	public <T> Future<T> submete(UnidadeDeTrabalho<T> unidade) {
+		return threads.submit(tarefa(unidade, false));
+	}
+
+	/**
+	 * Para consultas: a sessao fica somente leitura, sem flush, e a
+	 * transacao e desfeita no final.
+	 */
+	public <T> Future<T> submeteLeitura(UnidadeDeTrabalho<T> unidade) {
+		return threads.submit(tarefa(unidade, true));
+	}
+
+	public void fecha(long esperaEmMilis) throws InterruptedException {
+		threads.shutdown();
+		if(!threads.awaitTermination(esperaEmMilis, TimeUnit.MILLISECONDS)) {
+			threads.shutdownNow();
+		}
+	}
+
+	public boolean isThreadsVirtuais() {
+		return threadsVirtuais;
+	}
+
+	public int getEmAndamento() {
+		return emAndamento.get();
+	}
+
+	public long getFalhas() {
+		return falhas.get();
+	}
+
+	public HistogramaDeLatencias getLatencias() {
+		return latencias;
+	}
+
+	public HistogramaDeLatencias getEsperasPorVaga() {
+		return esperasPorVaga;
+	}
+
+	private <T> Callable<T> tarefa(final UnidadeDeTrabalho<T> unidade, final boolean leitura) {
+		return new Callable<T>() {
+			public T call() throws Exception {
+				long inicio = System.nanoTime();
+				vagas.acquire();
+				esperasPorVaga.registra(System.nanoTime() - inicio);
+				emAndamento.incrementAndGet();
+				try {
+					return executa(unidade, leitura);
+				} catch(RuntimeException e) {
+					falhas.incrementAndGet();
+					throw e;
+				} finally {
+					emAndamento.decrementAndGet();
+					vagas.release();
+					latencias.registra(System.nanoTime() - inicio);
+				}
+			}
+		};
+	}
+
+	private <T> T executa(UnidadeDeTrabalho<T> unidade, boolean leitura) {
+		Session session = criador.getSession();
+		try {
+			if(leitura) {
+				session.setDefaultReadOnly(true);
+				session.setFlushMode(FlushMode.MANUAL);
+			}
+			session.beginTransaction();
+
+			T resultado = unidade.executa(session);
+
+			if(leitura) session.getTransaction().rollback();
+			else session.getTransaction().commit();
+			return resultado;
+		} catch(RuntimeException e) {
+			if(session.getTransaction().isActive()) session.getTransaction().rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private static ExecutorService threadsVirtuais() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(Exception e) {
+			return null;
+		}
+	}
+}
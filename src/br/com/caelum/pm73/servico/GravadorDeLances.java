@@ -0,0 +1,271 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.LanceRejeitado;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.PosicaoDoDiario;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.servico.SegmentoDoDiario.RegistroDoDiario;
+
+/**
+ * Grava em LANCE, em lote e numa thread de fundo, os lances aceitos fora
+ * do banco (Leilao.adicionaLance e LeilaoDao.salvaLance). Lance de leilao
+ * inexistente ou encerrado vira um LanceRejeitado na mesma transacao, em
+ * vez de ser descartado.
+ *
+ * Um lote que falha volta para a frente da fila e e repetido ate
+ * TENTATIVAS vezes; depois disso os lances do lote sao gravados um a um, e
+ * o que falhar sozinho tambem vira LanceRejeitado, com a excecao como
+ * motivo. Assim um lance envenenado nao trava a fila. So quando nem a
+ * rejeicao grava (banco fora do ar) o lance volta para a fila, para a
+ * proxima rodada. Toda falha conta em getFalhas() e a ultima fica em
+ * getUltimaFalha().
+ *
+ * Com um diario, cada lote tambem avanca a PosicaoDoDiario na mesma
+ * transacao, passando pelos lances gravados e pelos rejeitados; registros
+ * que ja estao atras da posicao sao pulados, o que torna a reaplicacao do
+ * diario idempotente.
+ */
+class GravadorDeLances {
+
+	static final int TENTATIVAS = 3;
+	private static final int TAMANHO_DO_MOTIVO = 255;
+
+	private final CriadorDeSessao criador;
+	private final String origem;
+	private final String diario;
+	private final int tamanhoDoLote;
+
+	private final LinkedBlockingDeque<RegistroDoDiario> pendentes = new LinkedBlockingDeque<RegistroDoDiario>();
+	private final Object gravacao = new Object();
+	private int falhasDoLote;
+	private ScheduledExecutorService agendador;
+
+	private final AtomicLong gravados = new AtomicLong();
+	private final AtomicLong rejeitados = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+	private volatile RuntimeException ultimaFalha;
+	private volatile long posicao;
+
+	GravadorDeLances(CriadorDeSessao criador, String origem, int tamanhoDoLote) {
+		this(criador, origem, null, tamanhoDoLote);
+	}
+
+	/**
+	 * diario e a chave da PosicaoDoDiario a avancar, ou null para gravar
+	 * sem posicao.
+	 */
+	GravadorDeLances(CriadorDeSessao criador, String origem, String diario, int tamanhoDoLote) {
+		if(tamanhoDoLote < 1) {
+			throw new IllegalArgumentException("Tamanho do lote deve ser positivo: " + tamanhoDoLote);
+		}
+		this.criador = criador;
+		this.origem = origem;
+		this.diario = diario;
+		this.tamanhoDoLote = tamanhoDoLote;
+	}
+
+	void enfileira(RegistroDoDiario registro) {
+		pendentes.offerLast(registro);
+	}
+
+	synchronized void inicia(long intervaloEmMilis, final String nomeDaThread) {
+		if(agendador != null) return;
+
+		agendador = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable tarefa) {
+				Thread thread = new Thread(tarefa, nomeDaThread);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		agendador.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					while(descarrega() == tamanhoDoLote) {
+					}
+				} catch(RuntimeException e) {
+					// ja contada em getFalhas(); o lote volta na proxima rodada
+				}
+			}
+		}, intervaloEmMilis, intervaloEmMilis, TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void para() throws InterruptedException {
+		if(agendador == null) return;
+
+		agendador.shutdown();
+		agendador.awaitTermination(1, TimeUnit.MINUTES);
+		agendador = null;
+	}
+
+	/**
+	 * Grava um lote e devolve quantos lances sairam da fila, gravados ou
+	 * rejeitados. Se o lote falhar antes da ultima tentativa, ele volta
+	 * para a frente da fila e a excecao e relancada.
+	 */
+	int descarrega() {
+		synchronized(gravacao) {
+			List<RegistroDoDiario> lote = new ArrayList<RegistroDoDiario>(tamanhoDoLote);
+			pendentes.drainTo(lote, tamanhoDoLote);
+			if(lote.isEmpty()) return 0;
+
+			try {
+				grava(lote, null);
+				falhasDoLote = 0;
+				return lote.size();
+			} catch(RuntimeException e) {
+				registraFalha(e);
+				if(++falhasDoLote < TENTATIVAS) {
+					devolve(lote);
+					throw e;
+				}
+				falhasDoLote = 0;
+				return isola(lote);
+			}
+		}
+	}
+
+	int getPendentes() {
+		return pendentes.size();
+	}
+
+	long getGravados() {
+		return gravados.get();
+	}
+
+	long getRejeitados() {
+		return rejeitados.get();
+	}
+
+	long getFalhas() {
+		return falhas.get();
+	}
+
+	RuntimeException getUltimaFalha() {
+		return ultimaFalha;
+	}
+
+	/**
+	 * Ultima sequencia do diario ja gravada (ou rejeitada) no banco por
+	 * este gravador.
+	 */
+	long getPosicao() {
+		return posicao;
+	}
+
+	/**
+	 * Chamado depois de cada commit, ainda dentro de descarrega().
+	 */
+	protected void gravou(long posicao) {
+	}
+
+	private int isola(List<RegistroDoDiario> lote) {
+		for(int i = 0; i < lote.size(); i++) {
+			List<RegistroDoDiario> sozinho = lote.subList(i, i + 1);
+			try {
+				grava(sozinho, null);
+			} catch(RuntimeException e) {
+				registraFalha(e);
+				try {
+					grava(sozinho, motivo(e));
+				} catch(RuntimeException naRejeicao) {
+					registraFalha(naRejeicao);
+					devolve(lote.subList(i, lote.size()));
+					throw naRejeicao;
+				}
+			}
+		}
+		return lote.size();
+	}
+
+	/**
+	 * Com falha nula grava os lances; com falha, grava todos como
+	 * LanceRejeitado com esse motivo, sem nem olhar o leilao.
+	 */
+	private void grava(List<RegistroDoDiario> lote, String falha) {
+		int gravadosNoLote = 0;
+		int rejeitadosNoLote = 0;
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			PosicaoDoDiario posicaoNoBanco = diario == null ? null : posicaoNoBanco(session);
+			LeilaoDao dao = new LeilaoDao(session);
+			for(RegistroDoDiario registro : lote) {
+				if(posicaoNoBanco != null && registro.getSequencia() <= posicaoNoBanco.getSequencia()) continue;
+
+				String motivo = falha;
+				Leilao leilao = null;
+				if(motivo == null) {
+					leilao = dao.porId(registro.getLeilaoId());
+					if(leilao == null) motivo = "Leilao inexistente: " + registro.getLeilaoId();
+					else if(leilao.isEncerrado()) motivo = "Leilao encerrado: " + registro.getLeilaoId();
+				}
+
+				if(motivo == null) {
+					Usuario usuario = (Usuario) session.load(Usuario.class, registro.getUsuarioId());
+					Lance lance = leilao.adicionaLance(new Lance(registro.getMomento(), usuario, registro.getValor(), leilao));
+					dao.salvaLance(lance);
+					gravadosNoLote++;
+				} else {
+					session.save(new LanceRejeitado(origem, registro.getSequencia(), registro.getLeilaoId(),
+							registro.getUsuarioId(), registro.getValor(), registro.getMomento(), motivo));
+					rejeitadosNoLote++;
+				}
+				if(posicaoNoBanco != null) posicaoNoBanco.avancaPara(registro.getSequencia());
+			}
+			session.getTransaction().commit();
+			if(posicaoNoBanco != null) posicao = posicaoNoBanco.getSequencia();
+		} catch(RuntimeException e) {
+			if(session.getTransaction().isActive()) session.getTransaction().rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+		gravados.addAndGet(gravadosNoLote);
+		rejeitados.addAndGet(rejeitadosNoLote);
+		gravou(posicao);
+	}
+
+	private PosicaoDoDiario posicaoNoBanco(Session session) {
+		PosicaoDoDiario posicaoNoBanco = (PosicaoDoDiario) session.get(PosicaoDoDiario.class, diario);
+		if(posicaoNoBanco == null) {
+			posicaoNoBanco = new PosicaoDoDiario(diario);
+			session.save(posicaoNoBanco);
+		}
+		return posicaoNoBanco;
+	}
+
+	private void devolve(List<RegistroDoDiario> lote) {
+		for(int i = lote.size() - 1; i >= 0; i--) {
+			pendentes.offerFirst(lote.get(i));
+		}
+	}
+
+	private void registraFalha(RuntimeException e) {
+		falhas.incrementAndGet();
+		ultimaFalha = e;
+	}
+
+	static String motivo(RuntimeException e) {
+		Throwable causa = e;
+		while(causa.getCause() != null && causa.getCause() != causa) {
+			causa = causa.getCause();
+		}
+		String motivo = e.getClass().getSimpleName() + ": " + causa.getMessage();
+		return motivo.length() > TAMANHO_DO_MOTIVO ? motivo.substring(0, TAMANHO_DO_MOTIVO) : motivo;
+	}
+}
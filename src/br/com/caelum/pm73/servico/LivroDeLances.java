@@ -0,0 +1,163 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maior lance e ranking dos K maiores licitantes de um leilao aberto.
+ * O maior lance e atualizado sem lock (CAS sobre os bits do double); o
+ * ranking usa o lock do proprio livro, entao leiloes diferentes nao
+ * disputam o mesmo lock. usuarios, valores e ocupados so sao lidos e
+ * escritos sob esse lock; fora dele, registra() olha apenas o piso, o
+ * menor valor que ainda entra no ranking cheio, publicado (volatile) a
+ * cada mudanca.
+ *
+ * encerra() fecha o livro: registra() confere isso sob a parte de leitura
+ * de um ReentrantReadWriteLock, que lances do mesmo leilao dividem entre
+ * si, e encerra() toma a de escrita. Depois que encerra() volta, nenhum
+ * lance muda mais o livro.
+ */
+public class LivroDeLances {
+
+	private static final long NENHUM = Double.doubleToLongBits(Double.NEGATIVE_INFINITY);
+
+	private final int leilaoId;
+	private final AtomicLong maior = new AtomicLong(NENHUM);
+	private final AtomicLong quantidade = new AtomicLong();
+
+	private final int[] usuarios;
+	private final double[] valores;
+	private int ocupados;
+	private volatile double piso = Double.NEGATIVE_INFINITY;
+
+	private final ReadWriteLock abertura = new ReentrantReadWriteLock();
+	private boolean encerrado;
+
+	public LivroDeLances(int leilaoId, int tamanhoDoRanking) {
+		if(tamanhoDoRanking < 1) {
+			throw new IllegalArgumentException("Tamanho do ranking deve ser positivo: " + tamanhoDoRanking);
+		}
+		this.leilaoId = leilaoId;
+		this.usuarios = new int[tamanhoDoRanking];
+		this.valores = new double[tamanhoDoRanking];
+	}
+
+	/**
+	 * Devolve false, sem registrar nada, se o livro ja foi encerrado.
+	 */
+	public boolean registra(int usuarioId, double valor) {
+		abertura.readLock().lock();
+		try {
+			if(encerrado) return false;
+			quantidade.incrementAndGet();
+
+			long atual = maior.get();
+			long novo = Double.doubleToLongBits(valor);
+			while(valor > Double.longBitsToDouble(atual) && !maior.compareAndSet(atual, novo)) {
+				atual = maior.get();
+			}
+
+			if(valor > piso) atualizaRanking(usuarioId, valor);
+			return true;
+		} finally {
+			abertura.readLock().unlock();
+		}
+	}
+
+	public void encerra() {
+		abertura.writeLock().lock();
+		try {
+			encerrado = true;
+		} finally {
+			abertura.writeLock().unlock();
+		}
+	}
+
+	public boolean isEncerrado() {
+		abertura.readLock().lock();
+		try {
+			return encerrado;
+		} finally {
+			abertura.readLock().unlock();
+		}
+	}
+
+	public boolean temLances() {
+		return maior.get() != NENHUM;
+	}
+
+	public double getMaiorLance() {
+		return Double.longBitsToDouble(maior.get());
+	}
+
+	public long getQuantidadeDeLances() {
+		return quantidade.get();
+	}
+
+	public int getLeilaoId() {
+		return leilaoId;
+	}
+
+	public synchronized List<PosicaoNoRanking> getRanking() {
+		if(ocupados == 0) return Collections.emptyList();
+
+		List<PosicaoNoRanking> ranking = new ArrayList<PosicaoNoRanking>(ocupados);
+		for(int i = 0; i < ocupados; i++) {
+			ranking.add(new PosicaoNoRanking(usuarios[i], valores[i]));
+		}
+		return ranking;
+	}
+
+	private synchronized void atualizaRanking(int usuarioId, double valor) {
+		int posicao = -1;
+		for(int i = 0; i < ocupados; i++) {
+			if(usuarios[i] == usuarioId) {
+				if(valores[i] >= valor) return;
+				posicao = i;
+				break;
+			}
+		}
+
+		if(posicao < 0) {
+			if(ocupados < valores.length) {
+				posicao = ocupados++;
+			} else if(valor > valores[ocupados - 1]) {
+				posicao = ocupados - 1;
+			} else {
+				return;
+			}
+		}
+
+		while(posicao > 0 && valores[posicao - 1] < valor) {
+			usuarios[posicao] = usuarios[posicao - 1];
+			valores[posicao] = valores[posicao - 1];
+			posicao--;
+		}
+		usuarios[posicao] = usuarioId;
+		valores[posicao] = valor;
+		if(ocupados == valores.length) piso = valores[ocupados - 1];
+	}
+
+	public static class PosicaoNoRanking {
+
+		private final int usuarioId;
+		private final double valor;
+
+		public PosicaoNoRanking(int usuarioId, double valor) {
+			this.usuarioId = usuarioId;
+			this.valor = valor;
+		}
+
+		public int getUsuarioId() {
+			return usuarioId;
+		}
+
+		public double getValor() {
+			return valor;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.ProcessadorDeLance;
+import br.com.caelum.pm73.servico.SegmentoDoDiario.RegistroDoDiario;
+
+/**
+ * Mantem um LivroDeLances em memoria para cada leilao aberto. Lances
+ * registrados atualizam o livro na hora e sao gravados em lote, em segundo
+ * plano, pelo GravadorDeLances; lances que o banco recusa (leilao
+ * inexistente ou encerrado, ou que falham em todas as tentativas) viram
+ * LanceRejeitado e aparecem em getLancesRejeitados().
+ *
+ * Um leilao encerrado por encerra() continua com o seu livro, fechado,
+ * no lugar do livro aberto: lances atrasados sao recusados por ele e o
+ * resultado final continua legivel. Nao ha outra estrutura para os
+ * encerrados, entao cada leilao ocupa uma entrada so, aberto ou nao.
+ */
+public class MesaDeLances {
+
+	private final CriadorDeSessao criador;
+	private final int tamanhoDoRanking;
+
+	private final ConcurrentMap<Integer, LivroDeLances> livros = new ConcurrentHashMap<Integer, LivroDeLances>();
+	private final GravadorDeLances gravador;
+
+	public MesaDeLances(CriadorDeSessao criador, int tamanhoDoRanking, int tamanhoDoLote) {
+		if(tamanhoDoRanking < 1) {
+			throw new IllegalArgumentException("Tamanho do ranking deve ser positivo: " + tamanhoDoRanking);
+		}
+		this.criador = criador;
+		this.tamanhoDoRanking = tamanhoDoRanking;
+		this.gravador = new GravadorDeLances(criador, "mesa", tamanhoDoLote);
+	}
+
+	public void aquece() {
+		Session session = criador.getSession();
+		try {
+			new LeilaoDao(session).percorreLancesDosLeiloesAbertos(new ProcessadorDeLance() {
+				public void processa(int leilaoId, int usuarioId, double valor) {
+					livroDo(leilaoId).registra(usuarioId, valor);
+				}
+			});
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Recusa na hora lances de leiloes encerrados por encerra(); os
+	 * encerrados direto no banco sao recusados na gravacao. Um lance que
+	 * o livro aceitou foi dado antes do encerramento e e gravado mesmo que
+	 * encerra() termine antes de ele entrar na fila.
+	 */
+	public void registra(int leilaoId, int usuarioId, double valor) {
+		if(!livroDo(leilaoId).registra(usuarioId, valor)) {
+			throw new IllegalStateException("Leilao encerrado: " + leilaoId);
+		}
+		gravador.enfileira(new RegistroDoDiario(0, leilaoId, usuarioId, valor, System.currentTimeMillis()));
+	}
+
+	public LivroDeLances livroDo(int leilaoId) {
+		LivroDeLances livro = livros.get(leilaoId);
+		if(livro != null) return livro;
+
+		LivroDeLances novo = new LivroDeLances(leilaoId, tamanhoDoRanking);
+		livro = livros.putIfAbsent(leilaoId, novo);
+		return livro == null ? novo : livro;
+	}
+
+	public void encerra(int leilaoId) {
+		livroDo(leilaoId).encerra();
+	}
+
+	public int getLancesPendentes() {
+		return gravador.getPendentes();
+	}
+
+	public long getLancesGravados() {
+		return gravador.getGravados();
+	}
+
+	public long getLancesRejeitados() {
+		return gravador.getRejeitados();
+	}
+
+	public long getFalhasDeGravacao() {
+		return gravador.getFalhas();
+	}
+
+	public RuntimeException getUltimaFalhaDeGravacao() {
+		return gravador.getUltimaFalha();
+	}
+
+	public void inicia(long intervaloEmMilis) {
+		gravador.inicia(intervaloEmMilis, "pm73-mesa-de-lances");
+	}
+
+	public void para() throws InterruptedException {
+		gravador.para();
+		while(gravador.descarrega() > 0) {
+		}
+	}
+
+	public int descarrega() {
+		return gravador.descarrega();
+	}
+}
@@ -0,0 +1,509 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.ConfiguracaoDoBanco;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.HistogramaDeLatencias;
+import br.com.caelum.pm73.dominio.EventoDeAlteracao;
+import br.com.caelum.pm73.dominio.EventoNaoEntregue;
+
+/**
+ * Le a caixa de saida (EventoDeAlteracao) em ordem de id e entrega os
+ * eventos, em lotes, aos assinantes registrados.
+ *
+ * Cada assinante tem a propria thread e uma fila de no maximo
+ * lotesPorAssinante lotes; quando a fila de algum deles enche, a leitura
+ * para ate ele consumir (contra-pressao), e os eventos esperam no banco.
+ * Um lote so e apagado da caixa de saida depois que todos os assinantes o
+ * receberam, entao a entrega e pelo menos uma vez: se o processo cair
+ * antes disso, o lote e entregue de novo. Um assinante que falha
+ * TENTATIVAS vezes seguidas no mesmo lote tem o lote copiado para
+ * EventoNaoEntregue; se nem essa copia for gravada, o lote fica retido
+ * com o assinante, que tenta de novo, e continua na caixa de saida.
+ *
+ * Os ids sao atribuidos no INSERT, mas uma transacao que demore a
+ * confirmar aparece depois de ids maiores. Por isso a leitura anda ate o
+ * primeiro buraco nos ids e espera ate esperaPorLacunaEmMilis que ele seja
+ * preenchido; depois disso o buraco e tratado como rollback e pulado.
+ * Evento que ainda assim apareca abaixo do ultimo id lido (transacao mais
+ * lenta que a espera, ou ja pendente quando o retransmissor iniciou) e
+ * entregue na passada seguinte, na frente dos novos e fora de ordem; esses
+ * contam em getAtrasados().
+ *
+ * Falhas da leitura e das entregas contam em getFalhas(), e a ultima fica
+ * em getUltimaFalha().
+ */
+public class RetransmissorDeEventos {
+
+	public static final int TENTATIVAS = 3;
+
+	private static final int IDS_POR_DELETE = 500;
+	private static final long PAUSA_APOS_FALHA_EM_MILIS = 100;
+
+	private final CriadorDeSessao criador;
+	private final int tamanhoDoLote;
+	private final int lotesPorAssinante;
+	private final long esperaPorLacunaEmMilis;
+
+	private final List<Assinatura> assinaturas = new CopyOnWriteArrayList<Assinatura>();
+	private final LinkedList<LoteDeEventos> emAndamento = new LinkedList<LoteDeEventos>();
+	private final Object leitura = new Object();
+	private long ultimoLido = -1;
+	private long lacunaEm;
+	private long lacunaDesde;
+
+	private volatile boolean ativo;
+	private Thread leitor;
+
+	private final AtomicLong lidos = new AtomicLong();
+	private final AtomicLong entregues = new AtomicLong();
+	private final AtomicLong naoEntregues = new AtomicLong();
+	private final AtomicLong atrasados = new AtomicLong();
+	private final AtomicLong lacunasPuladas = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+	private final AtomicLong esperasPorVaga = new AtomicLong();
+	private final HistogramaDeLatencias atrasos = new HistogramaDeLatencias();
+	private volatile RuntimeException ultimaFalha;
+
+	public RetransmissorDeEventos(CriadorDeSessao criador) {
+		this(criador, new ConfiguracaoDoBanco());
+	}
+
+	private RetransmissorDeEventos(CriadorDeSessao criador, ConfiguracaoDoBanco configuracao) {
+		this(criador, configuracao.getTamanhoDoLoteDeEventos(), configuracao.getLotesPorAssinante(),
+				configuracao.getEsperaPorLacunaEmMilis());
+	}
+
+	public RetransmissorDeEventos(CriadorDeSessao criador, int tamanhoDoLote, int lotesPorAssinante) {
+		this(criador, tamanhoDoLote, lotesPorAssinante, new ConfiguracaoDoBanco().getEsperaPorLacunaEmMilis());
+	}
+
+	public RetransmissorDeEventos(CriadorDeSessao criador, int tamanhoDoLote, int lotesPorAssinante,
+			long esperaPorLacunaEmMilis) {
+		if(tamanhoDoLote < 1 || lotesPorAssinante < 1) {
+			throw new IllegalArgumentException("Lote e fila devem ser positivos: " + tamanhoDoLote + ", " + lotesPorAssinante);
+		}
+		if(esperaPorLacunaEmMilis < 0) {
+			throw new IllegalArgumentException("Espera por lacuna negativa: " + esperaPorLacunaEmMilis);
+		}
+		this.criador = criador;
+		this.tamanhoDoLote = tamanhoDoLote;
+		this.lotesPorAssinante = lotesPorAssinante;
+		this.esperaPorLacunaEmMilis = esperaPorLacunaEmMilis;
+	}
+
+	public synchronized void assina(AssinanteDeEventos assinante) {
+		if(ativo) throw new IllegalStateException("Assine antes de iniciar o retransmissor");
+		assinaturas.add(new Assinatura(assinante));
+	}
+
+	/**
+	 * Inicia a leitura e as threads dos assinantes; sem eventos novos, ou
+	 * depois de uma falha, a caixa de saida e consultada a cada
+	 * intervaloEmMilis.
+	 */
+	public synchronized void inicia(final long intervaloEmMilis) {
+		if(ativo) return;
+		ativo = true;
+
+		for(Assinatura assinatura : assinaturas) {
+			assinatura.inicia();
+		}
+		leitor = new Thread(new Runnable() {
+			public void run() {
+				while(ativo) {
+					try {
+						int lidosNaPassada;
+						try {
+							lidosNaPassada = retransmite();
+						} catch(RuntimeException e) {
+							registraFalha(e);
+							lidosNaPassada = 0;
+						}
+						if(lidosNaPassada < tamanhoDoLote) Thread.sleep(intervaloEmMilis);
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "pm73-eventos");
+		leitor.setDaemon(true);
+		leitor.start();
+	}
+
+	/**
+	 * Para de ler, espera os assinantes consumirem o que ja receberam e
+	 * apaga os lotes entregues.
+	 */
+	public void fecha(long esperaMaximaEmMilis) throws InterruptedException {
+		Thread parado;
+		synchronized(this) {
+			if(!ativo) return;
+			ativo = false;
+			parado = leitor;
+			leitor = null;
+		}
+
+		parado.interrupt();
+		parado.join(esperaMaximaEmMilis);
+		for(Assinatura assinatura : assinaturas) {
+			assinatura.thread.join(esperaMaximaEmMilis);
+		}
+		synchronized(leitura) {
+			apagaEntregues();
+		}
+	}
+
+	/**
+	 * Uma passada: apaga os lotes ja entregues, le o proximo lote e o
+	 * coloca na fila de cada assinante, esperando se alguma estiver cheia.
+	 * Devolve quantos eventos foram lidos. Usado pela thread de leitura;
+	 * pode ser chamado diretamente quando o retransmissor nao foi iniciado
+	 * e os assinantes sao consumidos por quem chama (ver entregaPendentes).
+	 */
+	public int retransmite() throws InterruptedException {
+		synchronized(leitura) {
+			apagaEntregues();
+			if(assinaturas.isEmpty()) return 0;
+
+			List<EventoDeAlteracao> eventos = le();
+			if(eventos.isEmpty()) return 0;
+
+			LoteDeEventos lote = new LoteDeEventos(eventos, assinaturas.size());
+			synchronized(emAndamento) {
+				emAndamento.addLast(lote);
+			}
+			lidos.addAndGet(eventos.size());
+
+			for(Assinatura assinatura : assinaturas) {
+				if(!assinatura.fila.offer(lote)) {
+					esperasPorVaga.incrementAndGet();
+					assinatura.fila.put(lote);
+				}
+			}
+			return eventos.size();
+		}
+	}
+
+	/**
+	 * Entrega, na thread de quem chama, tudo o que esta nas filas dos
+	 * assinantes. Para uso sem inicia(), em testes e ferramentas. Um lote
+	 * retido (nem entregue nem copiado para EventoNaoEntregue) interrompe
+	 * a entrega daquele assinante ate a proxima chamada.
+	 */
+	public void entregaPendentes() {
+		for(Assinatura assinatura : assinaturas) {
+			assinatura.entregaPendentes();
+		}
+	}
+
+	public long getLidos() {
+		return lidos.get();
+	}
+
+	public long getEntregues() {
+		return entregues.get();
+	}
+
+	/**
+	 * Eventos copiados para EventoNaoEntregue, contados uma vez por
+	 * assinante que os recusou.
+	 */
+	public long getNaoEntregues() {
+		return naoEntregues.get();
+	}
+
+	/**
+	 * Eventos lidos abaixo do ultimo id ja lido, entregues fora de ordem.
+	 */
+	public long getAtrasados() {
+		return atrasados.get();
+	}
+
+	/**
+	 * Ids pulados depois de esperaPorLacunaEmMilis sem aparecer.
+	 */
+	public long getLacunasPuladas() {
+		return lacunasPuladas.get();
+	}
+
+	public long getFalhas() {
+		return falhas.get();
+	}
+
+	public RuntimeException getUltimaFalha() {
+		return ultimaFalha;
+	}
+
+	public long getEsperasPorVaga() {
+		return esperasPorVaga.get();
+	}
+
+	public int getLotesEmAndamento() {
+		synchronized(emAndamento) {
+			return emAndamento.size();
+		}
+	}
+
+	/**
+	 * Tempo entre a gravacao do primeiro evento de cada lote e a entrega
+	 * dele a um assinante.
+	 */
+	public HistogramaDeLatencias getAtrasos() {
+		return atrasos;
+	}
+
+	/**
+	 * Os atrasados primeiro, depois os novos ate o primeiro buraco que
+	 * ainda esteja dentro da espera. So a thread que segura leitura chama.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<EventoDeAlteracao> le() {
+		Set<Long> emVoo = new HashSet<Long>();
+		synchronized(emAndamento) {
+			for(LoteDeEventos lote : emAndamento) {
+				emVoo.addAll(lote.ids);
+			}
+		}
+
+		Session session = criador.getSession();
+		try {
+			List<EventoDeAlteracao> eventos = leAtrasados(session, emVoo);
+			if(eventos.size() >= tamanhoDoLote) return eventos;
+
+			List<EventoDeAlteracao> novos = session.createQuery("from EventoDeAlteracao e where e.id > :id order by e.id")
+					.setParameter("id", ultimoLido)
+					.setMaxResults(tamanhoDoLote - eventos.size())
+					.setReadOnly(true)
+					.list();
+			avancaAtePrimeiraLacuna(novos, eventos);
+			return eventos;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Tudo o que esta na caixa de saida com id ate ultimoLido ja foi lido e
+	 * espera ser apagado (emVoo), ou chegou atrasado.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<EventoDeAlteracao> leAtrasados(Session session, Set<Long> emVoo) {
+		List<EventoDeAlteracao> eventos = new ArrayList<EventoDeAlteracao>();
+		if(ultimoLido < 0) return eventos;
+
+		List<Long> ids = session.createQuery("select e.id from EventoDeAlteracao e where e.id <= :id order by e.id")
+				.setParameter("id", ultimoLido)
+				.setMaxResults(emVoo.size() + tamanhoDoLote)
+				.list();
+		List<Long> foraDeOrdem = new ArrayList<Long>();
+		for(Long id : ids) {
+			if(foraDeOrdem.size() == tamanhoDoLote) break;
+			if(!emVoo.contains(id)) foraDeOrdem.add(id);
+		}
+		if(foraDeOrdem.isEmpty()) return eventos;
+
+		eventos.addAll(session.createQuery("from EventoDeAlteracao e where e.id in (:ids) order by e.id")
+				.setParameterList("ids", foraDeOrdem)
+				.setReadOnly(true)
+				.list());
+		atrasados.addAndGet(eventos.size());
+		return eventos;
+	}
+
+	private void avancaAtePrimeiraLacuna(List<EventoDeAlteracao> novos, List<EventoDeAlteracao> eventos) {
+		long agora = System.currentTimeMillis();
+		for(EventoDeAlteracao evento : novos) {
+			long esperado = ultimoLido + 1;
+			if(ultimoLido >= 0 && evento.getId() != esperado) {
+				if(lacunaEm != esperado) {
+					lacunaEm = esperado;
+					lacunaDesde = agora;
+				}
+				if(agora - lacunaDesde < esperaPorLacunaEmMilis) return;
+				lacunasPuladas.addAndGet(evento.getId() - esperado);
+			}
+			eventos.add(evento);
+			ultimoLido = evento.getId();
+		}
+	}
+
+	/**
+	 * Apaga os lotes entregues do inicio de emAndamento; eles so saem de
+	 * emAndamento depois do commit, para que uma falha no delete nao os
+	 * faca parecer atrasados.
+	 */
+	private void apagaEntregues() {
+		int lotes = 0;
+		List<Long> ids = new ArrayList<Long>();
+		synchronized(emAndamento) {
+			for(LoteDeEventos lote : emAndamento) {
+				if(!lote.isEntregue()) break;
+				ids.addAll(lote.ids);
+				lotes++;
+			}
+		}
+		if(ids.isEmpty()) return;
+
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			for(int inicio = 0; inicio < ids.size(); inicio += IDS_POR_DELETE) {
+				session.createQuery("delete from EventoDeAlteracao e where e.id in (:ids)")
+						.setParameterList("ids", ids.subList(inicio, Math.min(ids.size(), inicio + IDS_POR_DELETE)))
+						.executeUpdate();
+			}
+			session.getTransaction().commit();
+		} catch(RuntimeException e) {
+			session.getTransaction().rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+
+		synchronized(emAndamento) {
+			for(int i = 0; i < lotes; i++) {
+				emAndamento.removeFirst();
+			}
+		}
+	}
+
+	private void guardaNaoEntregues(List<EventoDeAlteracao> eventos, String assinante, String motivo) {
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			for(EventoDeAlteracao evento : eventos) {
+				session.save(new EventoNaoEntregue(evento, assinante, motivo));
+			}
+			session.getTransaction().commit();
+		} catch(RuntimeException e) {
+			if(session.getTransaction().isActive()) session.getTransaction().rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private void registraFalha(RuntimeException e) {
+		falhas.incrementAndGet();
+		ultimaFalha = e;
+	}
+
+	private static class LoteDeEventos {
+
+		private final List<EventoDeAlteracao> eventos;
+		private final List<Long> ids;
+		private final AtomicInteger faltam;
+
+		LoteDeEventos(List<EventoDeAlteracao> eventos, int assinantes) {
+			this.eventos = Collections.unmodifiableList(eventos);
+			this.ids = new ArrayList<Long>(eventos.size());
+			for(EventoDeAlteracao evento : eventos) {
+				ids.add(evento.getId());
+			}
+			this.faltam = new AtomicInteger(assinantes);
+		}
+
+		void confirma() {
+			faltam.decrementAndGet();
+		}
+
+		boolean isEntregue() {
+			return faltam.get() <= 0;
+		}
+	}
+
+	private class Assinatura {
+
+		private final AssinanteDeEventos assinante;
+		private final BlockingQueue<LoteDeEventos> fila;
+		private Thread thread;
+		private LoteDeEventos retido;
+
+		Assinatura(AssinanteDeEventos assinante) {
+			this.assinante = assinante;
+			this.fila = new ArrayBlockingQueue<LoteDeEventos>(lotesPorAssinante);
+		}
+
+		void inicia() {
+			thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while(ativo || !fila.isEmpty()) {
+							if(retido != null) {
+								if(entrega(retido)) continue;
+								if(!ativo) return;
+								Thread.sleep(PAUSA_APOS_FALHA_EM_MILIS);
+								continue;
+							}
+							LoteDeEventos lote = fila.poll(100, TimeUnit.MILLISECONDS);
+							if(lote != null) entrega(lote);
+						}
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "pm73-eventos-" + assinante.getClass().getSimpleName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void entregaPendentes() {
+			if(retido != null && !entrega(retido)) return;
+			LoteDeEventos lote;
+			while((lote = fila.poll()) != null) {
+				if(!entrega(lote)) return;
+			}
+		}
+
+		/**
+		 * Devolve false se o lote ficou retido: o assinante falhou em todas
+		 * as tentativas e a copia para EventoNaoEntregue tambem falhou.
+		 */
+		boolean entrega(LoteDeEventos lote) {
+			RuntimeException falha = null;
+			for(int tentativa = 1; tentativa <= TENTATIVAS; tentativa++) {
+				try {
+					assinante.recebe(lote.eventos);
+					entregues.addAndGet(lote.eventos.size());
+					atrasos.registra(TimeUnit.MILLISECONDS.toNanos(
+							System.currentTimeMillis() - lote.eventos.get(0).getCriadoEmMilis()));
+					return confirma(lote);
+				} catch(RuntimeException e) {
+					falha = e;
+				}
+			}
+
+			registraFalha(falha);
+			try {
+				guardaNaoEntregues(lote.eventos, assinante.getClass().getName(), GravadorDeLances.motivo(falha));
+			} catch(RuntimeException naCopia) {
+				registraFalha(naCopia);
+				retido = lote;
+				return false;
+			}
+			naoEntregues.addAndGet(lote.eventos.size());
+			return confirma(lote);
+		}
+
+		private boolean confirma(LoteDeEventos lote) {
+			retido = null;
+			lote.confirma();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package br.com.caelum.pm73.servico;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Arquivo de tamanho fixo, mapeado em memoria, com registros de lance de
+ * 36 bytes: sequencia, leilao, usuario, valor, momento e CRC32 dos 32
+ * bytes anteriores. Um registro com sequencia zero ou CRC errado marca o
+ * fim do que foi gravado (o resto do arquivo e zerado na criacao).
+ */
+class SegmentoDoDiario {
+
+	static final int TAMANHO_DO_REGISTRO = 36;
+
+	private final int numero;
+	private final File arquivo;
+	private final RandomAccessFile acesso;
+	private final MappedByteBuffer mapa;
+	private int posicao;
+	private long ultimaSequencia;
+
+	private SegmentoDoDiario(int numero, File arquivo, int tamanho) throws IOException {
+		this.numero = numero;
+		this.arquivo = arquivo;
+		this.acesso = new RandomAccessFile(arquivo, "rw");
+		this.mapa = acesso.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(tamanho, acesso.length()));
+	}
+
+	static SegmentoDoDiario abre(File diretorio, int numero, int tamanho) throws IOException {
+		return new SegmentoDoDiario(numero, new File(diretorio, nomeDoArquivo(numero)), tamanho);
+	}
+
+	static String nomeDoArquivo(int numero) {
+		return String.format("lances-%08d.diario", numero);
+	}
+
+	static int numeroDoArquivo(String nome) {
+		if(!nome.startsWith("lances-") || !nome.endsWith(".diario")) return -1;
+		try {
+			return Integer.parseInt(nome.substring("lances-".length(), nome.length() - ".diario".length()));
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Le os registros validos e posiciona a escrita logo depois do ultimo;
+	 * um registro pela metade (queda no meio da escrita) sera sobrescrito.
+	 */
+	List<RegistroDoDiario> le() {
+		List<RegistroDoDiario> registros = new ArrayList<RegistroDoDiario>();
+		byte[] bytes = new byte[TAMANHO_DO_REGISTRO];
+		ByteBuffer leitura = mapa.duplicate();
+		posicao = 0;
+
+		while(posicao + TAMANHO_DO_REGISTRO <= mapa.capacity()) {
+			leitura.position(posicao);
+			leitura.get(bytes);
+			RegistroDoDiario registro = RegistroDoDiario.de(bytes);
+			if(registro == null) break;
+
+			registros.add(registro);
+			ultimaSequencia = registro.getSequencia();
+			posicao += TAMANHO_DO_REGISTRO;
+		}
+		return registros;
+	}
+
+	boolean cabe() {
+		return posicao + TAMANHO_DO_REGISTRO <= mapa.capacity();
+	}
+
+	void escreve(RegistroDoDiario registro) {
+		ByteBuffer escrita = mapa.duplicate();
+		escrita.position(posicao);
+		escrita.put(registro.emBytes());
+		posicao += TAMANHO_DO_REGISTRO;
+		ultimaSequencia = registro.getSequencia();
+	}
+
+	void sincroniza() {
+		mapa.force();
+	}
+
+	void fecha() {
+		try {
+			acesso.close();
+		} catch(IOException e) {
+		}
+	}
+
+	boolean apaga() {
+		fecha();
+		return arquivo.delete();
+	}
+
+	int getNumero() {
+		return numero;
+	}
+
+	long getUltimaSequencia() {
+		return ultimaSequencia;
+	}
+
+	static class RegistroDoDiario {
+
+		private final long sequencia;
+		private final int leilaoId;
+		private final int usuarioId;
+		private final double valor;
+		private final long momento;
+
+		RegistroDoDiario(long sequencia, int leilaoId, int usuarioId, double valor, long momento) {
+			this.sequencia = sequencia;
+			this.leilaoId = leilaoId;
+			this.usuarioId = usuarioId;
+			this.valor = valor;
+			this.momento = momento;
+		}
+
+		static RegistroDoDiario de(byte[] bytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long sequencia = buffer.getLong();
+			if(sequencia <= 0) return null;
+
+			RegistroDoDiario registro = new RegistroDoDiario(sequencia, buffer.getInt(), buffer.getInt(),
+					buffer.getDouble(), buffer.getLong());
+			return buffer.getInt() == crc(bytes) ? registro : null;
+		}
+
+		byte[] emBytes() {
+			byte[] bytes = new byte[TAMANHO_DO_REGISTRO];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			buffer.putLong(sequencia).putInt(leilaoId).putInt(usuarioId).putDouble(valor).putLong(momento);
+			buffer.putInt(crc(bytes));
+			return bytes;
+		}
+
+		private static int crc(byte[] bytes) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, TAMANHO_DO_REGISTRO - 4);
+			return (int) crc.getValue();
+		}
+
+		long getSequencia() {
+			return sequencia;
+		}
+
+		int getLeilaoId() {
+			return leilaoId;
+		}
+
+		int getUsuarioId() {
+			return usuarioId;
+		}
+
+		double getValor() {
+			return valor;
+		}
+
+		long getMomento() {
+			return momento;
+		}
+	}
+}
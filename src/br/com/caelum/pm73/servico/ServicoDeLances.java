@@ -0,0 +1,116 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Registra lances com controle otimista: cada lance incrementa a versao
+ * do Leilao, e um conflito com outro no (ou thread) faz a operacao ser
+ * repetida numa nova transacao, com espera exponencial limitada.
+ */
+public class ServicoDeLances {
+
+	private final CriadorDeSessao criador;
+	private final int maximoDeTentativas;
+	private final long esperaInicialEmMilis;
+	private final long esperaMaximaEmMilis;
+	private final Random aleatorio = new Random();
+
+	private final AtomicLong aceitos = new AtomicLong();
+	private final AtomicLong conflitos = new AtomicLong();
+	private final AtomicLong desistencias = new AtomicLong();
+
+	public ServicoDeLances(CriadorDeSessao criador, int maximoDeTentativas,
+			long esperaInicialEmMilis, long esperaMaximaEmMilis) {
+		this.criador = criador;
+		this.maximoDeTentativas = maximoDeTentativas;
+		this.esperaInicialEmMilis = esperaInicialEmMilis;
+		this.esperaMaximaEmMilis = esperaMaximaEmMilis;
+	}
+
+	public int daLance(int leilaoId, int usuarioId, double valor) {
+		HibernateException ultimoConflito = null;
+
+		for(int tentativa = 1; tentativa <= maximoDeTentativas; tentativa++) {
+			try {
+				int lanceId = tenta(leilaoId, usuarioId, valor);
+				aceitos.incrementAndGet();
+				return lanceId;
+			} catch(StaleStateException e) {
+				ultimoConflito = e;
+			} catch(LockAcquisitionException e) {
+				ultimoConflito = e;
+			}
+
+			conflitos.incrementAndGet();
+			espera(tentativa);
+		}
+
+		desistencias.incrementAndGet();
+		throw new ConflitoDeLanceException("Lance no leilao " + leilaoId +
+				" nao aceito apos " + maximoDeTentativas + " tentativas", ultimoConflito);
+	}
+
+	private int tenta(int leilaoId, int usuarioId, double valor) {
+		Session session = criador.getSession();
+		try {
+			session.beginTransaction();
+			LeilaoDao dao = new LeilaoDao(session);
+
+			Leilao leilao = dao.porId(leilaoId);
+			if(leilao == null) {
+				throw new IllegalArgumentException("Leilao inexistente: " + leilaoId);
+			}
+			if(leilao.isEncerrado()) {
+				throw new IllegalStateException("Leilao encerrado: " + leilaoId);
+			}
+
+			Usuario usuario = (Usuario) session.load(Usuario.class, usuarioId);
+			Lance lance = leilao.adicionaLance(new Lance(System.currentTimeMillis(), usuario, valor, leilao));
+			dao.salvaLance(lance);
+
+			session.getTransaction().commit();
+			return lance.getId();
+		} catch(RuntimeException e) {
+			if(session.getTransaction().isActive()) session.getTransaction().rollback();
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private void espera(int tentativa) {
+		long teto = Math.min(esperaMaximaEmMilis, esperaInicialEmMilis << Math.min(tentativa - 1, 20));
+		if(teto <= 0) return;
+
+		try {
+			Thread.sleep(1 + (long) (aleatorio.nextDouble() * teto));
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConflitoDeLanceException("Interrompido esperando nova tentativa", e);
+		}
+	}
+
+	public long getAceitos() {
+		return aceitos.get();
+	}
+
+	public long getConflitos() {
+		return conflitos.get();
+	}
+
+	public long getDesistencias() {
+		return desistencias.get();
+	}
+}
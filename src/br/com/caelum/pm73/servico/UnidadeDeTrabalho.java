@@ -0,0 +1,13 @@
+package br.com.caelum.pm73.servico;
+
+import org.hibernate.Session;
+
+/**
+ * Trabalho executado pelo ExecutorDeUnidadesDeTrabalho dentro de uma
+ * sessao e transacao proprias. Os DAOs devem ser criados com a sessao
+ * recebida e nao podem escapar do metodo.
+ */
+public interface UnidadeDeTrabalho<T> {
+
+	T executa(Session session);
+}
@@ -0,0 +1,125 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Bytes alocados e retidos por lance ao carregar N lances (1M por padrao).
+ * "epoch" e o mapeamento atual (long em millis); "Calendar" reproduz o
+ * mapeamento antigo guardando um Calendar por lance, como o CalendarType
+ * do Hibernate fazia ao hidratar cada linha.
+ *
+ * Alocacao por thread usa com.sun.management.ThreadMXBean quando a JVM
+ * oferece; senao so o heap retido e mostrado. Rode com -Xmx grande.
+ *
+ * Argumentos: [lances] [lancesPorLeilao]
+ */
+public class AlocacaoDeLancesBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int lances = BancoDeBenchmark.argumento(args, 0, 1000000);
+        int lancesPorLeilao = BancoDeBenchmark.argumento(args, 1, 1000);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("alocacao");
+        popula(criador, lances, lancesPorLeilao);
+
+        for (int rodada = 0; rodada < 2; rodada++) {
+            mede(criador, "epoch", false, lances);
+            mede(criador, "Calendar (antes)", true, lances);
+        }
+    }
+
+    private static void mede(CriadorDeSessao criador, String nome, boolean comCalendar, int lances) throws Exception {
+        List<Object> retidos = new ArrayList<Object>(comCalendar ? lances * 2 : lances);
+        long heapAntes = heapUsado();
+        long alocadoAntes = alocadoNaThread();
+
+        Session session = criador.getSession();
+        try {
+            ScrollableResults resultados = session.createQuery("from Lance")
+                    .setReadOnly(true)
+                    .setFetchSize(1000)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+            try {
+                while (resultados.next()) {
+                    Lance lance = (Lance) resultados.get(0);
+                    retidos.add(lance);
+                    if (comCalendar) retidos.add(lance.getData());
+                    session.evict(lance);
+                }
+            } finally {
+                resultados.close();
+            }
+        } finally {
+            session.close();
+        }
+
+        long alocado = alocadoNaThread() - alocadoAntes;
+        long retido = heapUsado() - heapAntes;
+        System.out.printf("%-18s %d lances: %s alocados/lance, %d bytes retidos/lance%n",
+                nome, lances,
+                alocadoAntes < 0 ? "?" : String.valueOf(alocado / lances),
+                retido / lances);
+        retidos.clear();
+    }
+
+    private static long heapUsado() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long alocadoNaThread() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Method alocados = threads.getClass().getMethod("getThreadAllocatedBytes", long.class);
+            alocados.setAccessible(true);
+            return (Long) alocados.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void popula(CriadorDeSessao criador, int lances, int lancesPorLeilao) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario usuario = new Usuario("licitante", "licitante@benchmark.com");
+            new UsuarioDao(session).salvar(usuario);
+            session.getTransaction().commit();
+
+            long agora = System.currentTimeMillis();
+            LeilaoDao dao = new LeilaoDao(session);
+            for (int feitos = 0; feitos < lances; feitos += lancesPorLeilao) {
+                session.beginTransaction();
+                Leilao leilao = new LeilaoBuilder().comDono(usuario).comNome("leilao").constroi();
+                for (int i = 0; i < lancesPorLeilao && feitos + i < lances; i++) {
+                    leilao.adicionaLance(new Lance(agora - i, usuario, 100.0 + i, leilao));
+                }
+                List<Leilao> lote = new ArrayList<Leilao>();
+                lote.add(leilao);
+                dao.salvarEmLote(lote);
+                session.getTransaction().commit();
+            }
+        } finally {
+            session.close();
+        }
+    }
+}
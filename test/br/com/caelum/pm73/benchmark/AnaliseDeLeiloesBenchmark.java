@@ -0,0 +1,197 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.AnaliseDeLeiloes;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.InstantaneoDeLeiloes;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Consultas de relatorio no LeilaoDao (HQL) contra o InstantaneoDeLeiloes
+ * em colunas, com 1M de leiloes por padrao (1% antigos, um em cada quatro
+ * com 5 lances). Mede tambem a carga completa e a atualizacao incremental
+ * depois de alterar 1% dos leiloes. Rode com -Xmx grande.
+ *
+ * Argumentos: [leiloes] [usuarios] [repeticoes] [threads]
+ */
+public class AnaliseDeLeiloesBenchmark {
+
+    public static void main(String[] args) {
+        int leiloes = BancoDeBenchmark.argumento(args, 0, 1000000);
+        int quantidadeDeUsuarios = BancoDeBenchmark.argumento(args, 1, 1000);
+        int repeticoes = BancoDeBenchmark.argumento(args, 2, 10);
+        int threads = BancoDeBenchmark.argumento(args, 3, Runtime.getRuntime().availableProcessors());
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("analise");
+        List<Usuario> usuarios = popula(criador, leiloes, quantidadeDeUsuarios);
+        Usuario usuario = usuarios.get(usuarios.size() / 2);
+
+        ExecutorService paralelo = Executors.newFixedThreadPool(threads);
+        try {
+            AnaliseDeLeiloes analise = new AnaliseDeLeiloes(criador, paralelo);
+
+            long inicio = System.nanoTime();
+            InstantaneoDeLeiloes instantaneo = analise.carrega();
+            System.out.printf("carga completa: %d leiloes, %d lances em %.0f ms%n",
+                    instantaneo.getQuantidadeDeLeiloes(), instantaneo.getQuantidadeDeLances(),
+                    (System.nanoTime() - inicio) / 1000000.0);
+
+            for (int rodada = 0; rodada < 2; rodada++) {
+                compara(criador, instantaneo, usuario, repeticoes);
+            }
+
+            alteraUmPorCento(criador);
+            inicio = System.nanoTime();
+            instantaneo = analise.atualiza();
+            System.out.printf("atualizacao incremental (1%% alterado): %.0f ms, %d linhas relidas%n",
+                    (System.nanoTime() - inicio) / 1000000.0, analise.getLinhasRelidas());
+            System.out.printf("total depois da atualizacao: %d%n", instantaneo.total());
+        } finally {
+            paralelo.shutdownNow();
+        }
+    }
+
+    private static void compara(CriadorDeSessao criador, final InstantaneoDeLeiloes instantaneo,
+            final Usuario usuario, int repeticoes) {
+        mede("total", repeticoes, criador, new Consulta() {
+            public Object hql(LeilaoDao dao, Session session) {
+                return dao.total();
+            }
+            public Object colunas() {
+                return instantaneo.total();
+            }
+        });
+        mede("antigos", repeticoes, criador, new Consulta() {
+            public Object hql(LeilaoDao dao, Session session) {
+                return dao.antigos().size();
+            }
+            public Object colunas() {
+                return instantaneo.antigos().length;
+            }
+        });
+        mede("disputadosEntre(100, 200)", repeticoes, criador, new Consulta() {
+            public Object hql(LeilaoDao dao, Session session) {
+                return dao.disputadosEntre(100.0, 200.0).size();
+            }
+            public Object colunas() {
+                return instantaneo.disputadosEntre(100.0, 200.0).length;
+            }
+        });
+        mede("valorInicialMedioDoUsuario", repeticoes, criador, new Consulta() {
+            public Object hql(LeilaoDao dao, Session session) {
+                return session.createQuery("select avg(l.valorInicial) from Leilao l where l.dono = :dono")
+                        .setParameter("dono", usuario)
+                        .uniqueResult();
+            }
+            public Object colunas() {
+                return instantaneo.valorInicialMedioDoUsuario(usuario.getId());
+            }
+        });
+        mede("listaLeiloesDoUsuario", repeticoes, criador, new Consulta() {
+            public Object hql(LeilaoDao dao, Session session) {
+                return dao.listaLeiloesDoUsuario(usuario).size();
+            }
+            public Object colunas() {
+                return instantaneo.leiloesDoUsuario(usuario.getId()).length;
+            }
+        });
+    }
+
+    private interface Consulta {
+        Object hql(LeilaoDao dao, Session session);
+        Object colunas();
+    }
+
+    private static void mede(String nome, int repeticoes, CriadorDeSessao criador, Consulta consulta) {
+        Medicao hql = new Medicao(nome + " hql", repeticoes);
+        Medicao colunas = new Medicao(nome + " colunas", repeticoes);
+        Object doHql = null;
+        Object dasColunas = null;
+
+        for (int i = 0; i < repeticoes; i++) {
+            Session session = criador.getSession();
+            try {
+                long inicio = System.nanoTime();
+                doHql = consulta.hql(new LeilaoDao(session), session);
+                hql.registra(System.nanoTime() - inicio);
+            } finally {
+                session.close();
+            }
+
+            long inicio = System.nanoTime();
+            dasColunas = consulta.colunas();
+            colunas.registra(System.nanoTime() - inicio);
+        }
+
+        System.out.println(hql + "  -> " + doHql);
+        System.out.println(colunas + "  -> " + dasColunas);
+    }
+
+    private static void alteraUmPorCento(CriadorDeSessao criador) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            session.createSQLQuery("update Leilao set encerrado = true, versao = versao + 1 where mod(id, 100) = 0")
+                    .executeUpdate();
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static List<Usuario> popula(CriadorDeSessao criador, int leiloes, int quantidadeDeUsuarios) {
+        List<Usuario> usuarios = new ArrayList<Usuario>();
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            UsuarioDao usuarioDao = new UsuarioDao(session);
+            for (int i = 0; i < quantidadeDeUsuarios; i++) {
+                Usuario usuario = new Usuario("usuario " + i, "usuario" + i + "@benchmark.com");
+                usuarioDao.salvar(usuario);
+                usuarios.add(usuario);
+            }
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+
+        long agora = System.currentTimeMillis();
+        for (int feitos = 0; feitos < leiloes; feitos += 10000) {
+            session = criador.getSession();
+            try {
+                session.beginTransaction();
+                List<Leilao> lote = new ArrayList<Leilao>();
+                for (int i = feitos; i < Math.min(leiloes, feitos + 10000); i++) {
+                    Leilao leilao = new LeilaoBuilder()
+                            .comDono(usuarios.get(i % usuarios.size()))
+                            .comNome("leilao " + i)
+                            .comValor(i % 1000)
+                            .diasAtras(i % 100 == 0 ? 10 : 0)
+                            .constroi();
+                    if (i % 4 == 0) {
+                        for (int j = 0; j < 5; j++) {
+                            Usuario licitante = usuarios.get((i + j + 1) % usuarios.size());
+                            leilao.adicionaLance(new Lance(agora - j, licitante, i % 1000 + j + 1.0, leilao));
+                        }
+                    }
+                    lote.add(leilao);
+                }
+                new LeilaoDao(session).salvarEmLote(lote);
+                session.getTransaction().commit();
+            } finally {
+                session.close();
+            }
+        }
+        return usuarios;
+    }
+}
@@ -0,0 +1,26 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+
+public class BancoDeBenchmark {
+
+    public static CriadorDeSessao emMemoria(String nome) {
+        if (System.getProperty("pm73.connection.url") == null) {
+            System.setProperty("pm73.connection.url", "jdbc:hsqldb:mem:" + nome);
+        }
+
+        CriadorDeSessao criador = new CriadorDeSessao();
+        new SchemaExport(criador.getConfig()).create(false, true);
+
+        return criador;
+    }
+
+    public static int argumento(String[] args, int posicao, int padrao) {
+        return args.length > posicao ? Integer.parseInt(args[posicao]) : padrao;
+    }
+
+    public static double porSegundo(long quantidade, long nanos) {
+        return quantidade * 1000000000.0 / nanos;
+    }
+}
@@ -0,0 +1,108 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.servico.ConflitoDeLanceException;
+import br.com.caelum.pm73.servico.ServicoDeLances;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Varias threads dando lances no mesmo leilao pelo ServicoDeLances.
+ * Reporta lances aceitos/s, taxa de conflito e confere que nenhum lance
+ * aceito se perdeu (linhas em LANCE e Leilao.quantidadeDeLances).
+ *
+ * Argumentos: [threads] [lancesPorThread] [tentativas]
+ */
+public class ConcorrenciaDeLancesBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = BancoDeBenchmark.argumento(args, 0, 16);
+        final int lancesPorThread = BancoDeBenchmark.argumento(args, 1, 200);
+        int tentativas = BancoDeBenchmark.argumento(args, 2, 20);
+
+        final CriadorDeSessao criador = BancoDeBenchmark.emMemoria("concorrencia");
+        final List<Usuario> usuarios = new ArrayList<Usuario>();
+        final int leilaoId = popula(criador, threads, usuarios);
+
+        final ServicoDeLances servico = new ServicoDeLances(criador, tentativas, 1, 50);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch largada = new CountDownLatch(1);
+
+        for (int t = 0; t < threads; t++) {
+            final Usuario usuario = usuarios.get(t);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        largada.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < lancesPorThread; i++) {
+                        try {
+                            servico.daLance(leilaoId, usuario.getId(), 100.0 + i);
+                        } catch (ConflitoDeLanceException e) {
+                            // contabilizado em servico.getDesistencias()
+                        }
+                    }
+                }
+            });
+        }
+
+        long inicio = System.nanoTime();
+        largada.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long tempo = System.nanoTime() - inicio;
+
+        long aceitos = servico.getAceitos();
+        long tentativasFeitas = aceitos + servico.getConflitos();
+        System.out.printf("%d threads: %.0f lances aceitos/s, %d conflitos (%.1f%% das tentativas), %d desistencias%n",
+                threads, BancoDeBenchmark.porSegundo(aceitos, tempo), servico.getConflitos(),
+                100.0 * servico.getConflitos() / Math.max(1, tentativasFeitas), servico.getDesistencias());
+
+        Session session = criador.getSession();
+        try {
+            Long noBanco = (Long) session.createQuery("select count(la) from Lance la where la.leilao.id = :id")
+                    .setParameter("id", leilaoId)
+                    .uniqueResult();
+            Leilao leilao = new LeilaoDao(session).porId(leilaoId);
+
+            boolean correto = noBanco == aceitos && leilao.getQuantidadeDeLances() == aceitos;
+            System.out.printf("aceitos %d | linhas em LANCE %d | quantidadeDeLances %d -> %s%n",
+                    aceitos, noBanco, leilao.getQuantidadeDeLances(), correto ? "OK" : "LANCES PERDIDOS");
+        } finally {
+            session.close();
+        }
+    }
+
+    private static int popula(CriadorDeSessao criador, int quantidade, List<Usuario> usuarios) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            UsuarioDao usuarioDao = new UsuarioDao(session);
+            for (int i = 0; i < quantidade; i++) {
+                Usuario usuario = new Usuario("licitante " + i, "licitante" + i + "@benchmark.com");
+                usuarioDao.salvar(usuario);
+                usuarios.add(usuario);
+            }
+
+            Leilao leilao = new LeilaoBuilder().comDono(usuarios.get(0)).comNome("disputado").constroi();
+            new LeilaoDao(session).salvar(leilao);
+            session.getTransaction().commit();
+            return leilao.getId();
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.MetricasDeDao;
+import br.com.caelum.pm73.dao.PlanoDeBusca;
+import br.com.caelum.pm73.dao.ProcessadorDeLeilao;
+import br.com.caelum.pm73.dao.RelatorioEmTexto;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Mede vazao e percentis de latencia de cada metodo publico de LeilaoDao
+ * e UsuarioDao sobre uma massa gerada com LeilaoBuilder.
+ *
+ * Roda sem rede: por padrao num HSQLDB em memoria; para usar arquivo,
+ * passe -Dpm73.connection.url=jdbc:hsqldb:file:/tmp/benchmark.
+ * Escritas rodam dentro de uma transacao desfeita a cada iteracao, para
+ * que a massa nao mude entre as medicoes. Com
+ * -Dpm73.metricas.habilitadas=true imprime tambem as metricas por metodo.
+ *
+ * Argumentos: [usuarios] [leiloes] [lancesPorLeilao] [iteracoes] [aquecimento]
+ */
+public class DaoBenchmark {
+
+    private final CriadorDeSessao criador;
+    private final List<Usuario> usuarios = new ArrayList<Usuario>();
+    private final List<Integer> leiloes = new ArrayList<Integer>();
+    private final Random aleatorio = new Random(42);
+
+    public DaoBenchmark(CriadorDeSessao criador) {
+        this.criador = criador;
+    }
+
+    public static void main(String[] args) {
+        int usuarios = BancoDeBenchmark.argumento(args, 0, 100);
+        int leiloes = BancoDeBenchmark.argumento(args, 1, 10000);
+        int lancesPorLeilao = BancoDeBenchmark.argumento(args, 2, 10);
+        int iteracoes = BancoDeBenchmark.argumento(args, 3, 200);
+        int aquecimento = BancoDeBenchmark.argumento(args, 4, 50);
+
+        DaoBenchmark benchmark = new DaoBenchmark(BancoDeBenchmark.emMemoria("dao"));
+        benchmark.popula(usuarios, leiloes, lancesPorLeilao);
+
+        System.out.printf("massa: %d usuarios, %d leiloes, %d lances por leilao%n",
+                usuarios, leiloes, lancesPorLeilao);
+        for (Operacao operacao : benchmark.operacoes()) {
+            benchmark.executa(operacao, aquecimento);
+            System.out.println(benchmark.executa(operacao, iteracoes));
+        }
+
+        MetricasDeDao metricas = benchmark.criador.getMetricas();
+        if (metricas.isHabilitadas()) {
+            System.out.println("metricas dos DAOs (inclui aquecimento):");
+            metricas.setRelatorio(new RelatorioEmTexto(System.out));
+            metricas.reporta();
+        }
+    }
+
+    public Medicao executa(Operacao operacao, int iteracoes) {
+        Medicao medicao = new Medicao(operacao.nome, iteracoes);
+        for (int i = 0; i < iteracoes; i++) {
+            Session session = criador.getSession();
+            try {
+                session.beginTransaction();
+                LeilaoDao leilaoDao = criador.getMetricas().cria(LeilaoDao.class, session);
+                UsuarioDao usuarioDao = criador.getMetricas().cria(UsuarioDao.class, session);
+
+                long inicio = System.nanoTime();
+                operacao.executa(session, leilaoDao, usuarioDao);
+                medicao.registra(System.nanoTime() - inicio);
+            } finally {
+                session.getTransaction().rollback();
+                session.close();
+            }
+        }
+        return medicao;
+    }
+
+    public void popula(int quantidadeDeUsuarios, int quantidadeDeLeiloes, int lancesPorLeilao) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            UsuarioDao usuarioDao = new UsuarioDao(session);
+            for (int i = 0; i < quantidadeDeUsuarios; i++) {
+                Usuario usuario = new Usuario("usuario " + i, "usuario" + i + "@benchmark.com");
+                usuarioDao.salvar(usuario);
+                usuarios.add(usuario);
+            }
+
+            LeilaoDao leilaoDao = new LeilaoDao(session);
+            List<Leilao> lote = new ArrayList<Leilao>();
+            for (int i = 0; i < quantidadeDeLeiloes; i++) {
+                LeilaoBuilder builder = new LeilaoBuilder()
+                        .comDono(usuarioAleatorio())
+                        .comNome("leilao " + i)
+                        .comValor(aleatorio.nextInt(5000))
+                        .diasAtras(aleatorio.nextInt(30));
+                if (i % 3 == 0) builder.usado();
+                if (i % 5 == 0) builder.encerrado();
+
+                Leilao leilao = builder.constroi();
+                for (int j = 0; j < lancesPorLeilao; j++) {
+                    leilao.adicionaLance(new Lance(Calendar.getInstance(), usuarioAleatorio(), 100.0 + j, leilao));
+                }
+                lote.add(leilao);
+
+                if (lote.size() == 500) {
+                    salva(leilaoDao, lote);
+                }
+            }
+            salva(leilaoDao, lote);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    private void salva(LeilaoDao dao, List<Leilao> lote) {
+        dao.salvarEmLote(lote);
+        for (Leilao leilao : lote) {
+            leiloes.add(leilao.getId());
+        }
+        lote.clear();
+    }
+
+    private Usuario usuarioAleatorio() {
+        return usuarios.get(aleatorio.nextInt(usuarios.size()));
+    }
+
+    private int leilaoAleatorio() {
+        return leiloes.get(aleatorio.nextInt(leiloes.size()));
+    }
+
+    private static Calendar diasAtras(int dias) {
+        Calendar data = Calendar.getInstance();
+        data.add(Calendar.DAY_OF_MONTH, -dias);
+        return data;
+    }
+
+    public List<Operacao> operacoes() {
+        final ProcessadorDeLeilao ignora = new ProcessadorDeLeilao() {
+            public void processa(Leilao leilao) {
+            }
+        };
+
+        return Arrays.asList(
+            new Operacao("LeilaoDao.salvar") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    Leilao leilao = new LeilaoBuilder().comDono(usuarioAleatorio()).constroi();
+                    leilao.adicionaLance(new Lance(Calendar.getInstance(), usuarioAleatorio(), 10.0, leilao));
+                    leilaoDao.salvar(leilao);
+                    session.flush();
+                }
+            },
+            new Operacao("LeilaoDao.salvarEmLote(100)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    List<Leilao> lote = new ArrayList<Leilao>();
+                    for (int i = 0; i < 100; i++) {
+                        lote.add(new LeilaoBuilder().comDono(usuarioAleatorio()).constroi());
+                    }
+                    leilaoDao.salvarEmLote(lote);
+                }
+            },
+            new Operacao("LeilaoDao.porId") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.porId(leilaoAleatorio());
+                }
+            },
+            new Operacao("LeilaoDao.novos") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.novos();
+                }
+            },
+            new Operacao("LeilaoDao.novos(RESUMO)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.novos(PlanoDeBusca.RESUMO);
+                }
+            },
+            new Operacao("LeilaoDao.novos(COMPLETO)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.novos(PlanoDeBusca.COMPLETO);
+                }
+            },
+            new Operacao("LeilaoDao.novos(pagina de 50)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.novos(null, 50);
+                }
+            },
+            new Operacao("LeilaoDao.resumoDosNovos") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.resumoDosNovos();
+                }
+            },
+            new Operacao("LeilaoDao.percorreNovos") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.percorreNovos(ignora);
+                }
+            },
+            new Operacao("LeilaoDao.antigos") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.antigos();
+                }
+            },
+            new Operacao("LeilaoDao.antigos(pagina de 50)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.antigos(null, 50);
+                }
+            },
+            new Operacao("LeilaoDao.percorreAntigos") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.percorreAntigos(ignora);
+                }
+            },
+            new Operacao("LeilaoDao.porPeriodo") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.porPeriodo(diasAtras(10), diasAtras(0));
+                }
+            },
+            new Operacao("LeilaoDao.porPeriodo(pagina de 50)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.porPeriodo(diasAtras(10), diasAtras(0), null, 50);
+                }
+            },
+            new Operacao("LeilaoDao.resumoPorPeriodo") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.resumoPorPeriodo(diasAtras(10), diasAtras(0));
+                }
+            },
+            new Operacao("LeilaoDao.percorrePorPeriodo") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.percorrePorPeriodo(diasAtras(10), diasAtras(0), ignora);
+                }
+            },
+            new Operacao("LeilaoDao.disputadosEntre") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.disputadosEntre(1000.0, 2000.0);
+                }
+            },
+            new Operacao("LeilaoDao.total") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.total();
+                }
+            },
+            new Operacao("LeilaoDao.atualiza") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    Leilao leilao = leilaoDao.porId(leilaoAleatorio());
+                    leilao.setNome("alterado");
+                    leilaoDao.atualiza(leilao);
+                    session.flush();
+                }
+            },
+            new Operacao("LeilaoDao.deleta") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.deleta(leilaoDao.porId(leilaoAleatorio()));
+                    session.flush();
+                }
+            },
+            new Operacao("LeilaoDao.deletaEncerrados") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.deletaEncerrados();
+                }
+            },
+            new Operacao("LeilaoDao.corrigeQuantidadeDeLances") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.corrigeQuantidadeDeLances();
+                }
+            },
+            new Operacao("LeilaoDao.listaLeiloesDoUsuario") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.listaLeiloesDoUsuario(usuarioAleatorio());
+                }
+            },
+            new Operacao("LeilaoDao.listaLeiloesDoUsuario(COMPLETO)") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.listaLeiloesDoUsuario(usuarioAleatorio(), PlanoDeBusca.COMPLETO);
+                }
+            },
+            new Operacao("LeilaoDao.percorreLeiloesDoUsuario") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.percorreLeiloesDoUsuario(usuarioAleatorio(), ignora);
+                }
+            },
+            new Operacao("LeilaoDao.getValorInicialMedioDoUsuario") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    leilaoDao.getValorInicialMedioDoUsuario(usuarioAleatorio());
+                }
+            },
+            new Operacao("UsuarioDao.porId") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    usuarioDao.porId(usuarioAleatorio().getId()).getNome();
+                }
+            },
+            new Operacao("UsuarioDao.porNomeEEmail") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    Usuario usuario = usuarioAleatorio();
+                    usuarioDao.porNomeEEmail(usuario.getNome(), usuario.getEmail());
+                }
+            },
+            new Operacao("UsuarioDao.salvar") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    usuarioDao.salvar(new Usuario("novo", "novo@benchmark.com"));
+                    session.flush();
+                }
+            },
+            new Operacao("UsuarioDao.atualizar") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    Usuario usuario = usuarioDao.porId(usuarioAleatorio().getId());
+                    usuario.setNome("alterado");
+                    usuarioDao.atualizar(usuario);
+                    session.flush();
+                }
+            },
+            new Operacao("UsuarioDao.deletar") {
+                void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao) {
+                    Usuario usuario = new Usuario("temporario", "temporario@benchmark.com");
+                    usuarioDao.salvar(usuario);
+                    usuarioDao.deletar(usuario);
+                    session.flush();
+                }
+            }
+        );
+    }
+
+    public abstract static class Operacao {
+
+        private final String nome;
+
+        protected Operacao(String nome) {
+            this.nome = nome;
+        }
+
+        abstract void executa(Session session, LeilaoDao leilaoDao, UsuarioDao usuarioDao);
+    }
+}
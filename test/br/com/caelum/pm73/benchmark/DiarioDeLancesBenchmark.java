@@ -0,0 +1,116 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.servico.DiarioDeLances;
+import org.hibernate.Session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lances confirmados/s pelo DiarioDeLances (fsync em grupo) e tamanho
+ * medio do grupo. Depois simula uma queda: um segundo diario abre os
+ * mesmos segmentos antes do primeiro gravar no banco, e confere que cada
+ * lance entra em LANCE uma unica vez.
+ *
+ * Argumentos: [threads] [lancesPorThread] [diretorio]
+ */
+public class DiarioDeLancesBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = BancoDeBenchmark.argumento(args, 0, 16);
+        final int lancesPorThread = BancoDeBenchmark.argumento(args, 1, 2000);
+        File diretorio = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir") + "/pm73-diario-" + System.nanoTime());
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("diario");
+        final int[] ids = popula(criador);
+
+        final DiarioDeLances diario = new DiarioDeLances(criador, diretorio, 4 * 1024 * 1024, 500);
+        diario.abre(50);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch largada = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        largada.await();
+                        for (int i = 0; i < lancesPorThread; i++) {
+                            diario.registra(ids[0], ids[1], 100.0 + i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+
+        long inicio = System.nanoTime();
+        largada.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long tempo = System.nanoTime() - inicio;
+        long total = (long) threads * lancesPorThread;
+
+        System.out.printf("%d threads: %.0f lances confirmados/s, %d fsyncs (%.1f lances por fsync), %d ainda por gravar%n",
+                threads, BancoDeBenchmark.porSegundo(total, tempo), diario.getSincronizacoes(),
+                (double) total / Math.max(1, diario.getSincronizacoes()), diario.getPendentes());
+        diario.fecha();
+        System.out.printf("depois de fechar: %d lances em LANCE (esperado %d)%n", contaLances(criador, ids[0]), total);
+
+        DiarioDeLances semGravador = new DiarioDeLances(criador, diretorio, 4 * 1024 * 1024, 500);
+        semGravador.abre(TimeUnit.HOURS.toMillis(1));
+        for (int i = 0; i < 1000; i++) {
+            semGravador.registra(ids[0], ids[1], 50.0);
+        }
+
+        DiarioDeLances aposAQueda = new DiarioDeLances(criador, diretorio, 4 * 1024 * 1024, 500);
+        aposAQueda.abre(TimeUnit.HOURS.toMillis(1));
+        System.out.printf("reaplicando %d lances do diario%n", aposAQueda.getPendentes());
+        while (aposAQueda.descarrega() > 0) {
+        }
+        while (semGravador.descarrega() > 0) {
+        }
+        System.out.printf("depois da reaplicacao: %d lances em LANCE (esperado %d)%n",
+                contaLances(criador, ids[0]), total + 1000);
+        aposAQueda.fecha();
+        semGravador.fecha();
+    }
+
+    private static long contaLances(CriadorDeSessao criador, int leilaoId) {
+        Session session = criador.getSession();
+        try {
+            return (Long) session.createQuery("select count(la) from Lance la where la.leilao.id = :id")
+                    .setParameter("id", leilaoId)
+                    .uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static int[] popula(CriadorDeSessao criador) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario usuario = new Usuario("licitante", "licitante@benchmark.com");
+            new UsuarioDao(session).salvar(usuario);
+            Leilao leilao = new LeilaoBuilder().comDono(usuario).comNome("disputado").constroi();
+            new LeilaoDao(session).salvar(leilao);
+            session.getTransaction().commit();
+            return new int[] { leilao.getId(), usuario.getId() };
+        } finally {
+            session.close();
+        }
+    }
+}
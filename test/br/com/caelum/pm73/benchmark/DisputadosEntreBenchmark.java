@@ -0,0 +1,112 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Latencia de disputadosEntre usando a coluna quantidadeDeLances contra
+ * a consulta antiga com size(l.lances), para 10k, 100k e 1M lances.
+ *
+ * Argumentos: [lancesPorLeilao] [repeticoes]
+ */
+public class DisputadosEntreBenchmark {
+
+    private static final String CONSULTA_ANTIGA = "from Leilao l where l.valorInicial " +
+            "between :inicio and :fim and l.encerrado = false and size(l.lances) > 3";
+
+    public static void main(String[] args) {
+        int lancesPorLeilao = BancoDeBenchmark.argumento(args, 0, 10);
+        int repeticoes = BancoDeBenchmark.argumento(args, 1, 20);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("disputados-entre");
+        Usuario usuario = salvaUsuario(criador);
+
+        int lancesNoBanco = 0;
+        for (int volume : new int[] { 10000, 100000, 1000000 }) {
+            lancesNoBanco += popula(criador, usuario, volume - lancesNoBanco, lancesPorLeilao);
+
+            System.out.printf("%d lances: coluna %.2f ms | size() %.2f ms%n",
+                    lancesNoBanco,
+                    mede(criador, repeticoes, false),
+                    mede(criador, repeticoes, true));
+        }
+    }
+
+    private static double mede(CriadorDeSessao criador, int repeticoes, boolean consultaAntiga) {
+        long total = 0;
+        for (int i = 0; i < repeticoes; i++) {
+            Session session = criador.getSession();
+            try {
+                long inicio = System.nanoTime();
+                if (consultaAntiga) {
+                    session.createQuery(CONSULTA_ANTIGA)
+                            .setParameter("inicio", 100.0)
+                            .setParameter("fim", 200.0)
+                            .list();
+                } else {
+                    new LeilaoDao(session).disputadosEntre(100.0, 200.0);
+                }
+                total += System.nanoTime() - inicio;
+            } finally {
+                session.close();
+            }
+        }
+        return total / repeticoes / 1000000.0;
+    }
+
+    private static int popula(CriadorDeSessao criador, Usuario usuario, int lances, int lancesPorLeilao) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            LeilaoDao dao = new LeilaoDao(session);
+
+            List<Leilao> lote = new ArrayList<Leilao>();
+            int criados = 0;
+            for (int i = 0; criados < lances; i++) {
+                Leilao leilao = new LeilaoBuilder()
+                        .comDono(usuario)
+                        .comValor(i % 1000)
+                        .constroi();
+                int quantidade = i % (lancesPorLeilao + 1);
+                for (int j = 0; j < quantidade && criados < lances; j++, criados++) {
+                    leilao.adicionaLance(new Lance(Calendar.getInstance(), usuario, j, leilao));
+                }
+                lote.add(leilao);
+
+                if (lote.size() == 1000) {
+                    dao.salvarEmLote(lote);
+                    lote.clear();
+                }
+            }
+            dao.salvarEmLote(lote);
+
+            session.getTransaction().commit();
+            return criados;
+        } finally {
+            session.close();
+        }
+    }
+
+    private static Usuario salvaUsuario(CriadorDeSessao criador) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario usuario = new Usuario("lances", "lances@benchmark.com");
+            new UsuarioDao(session).salvar(usuario);
+            session.getTransaction().commit();
+            return usuario;
+        } finally {
+            session.close();
+        }
+    }
+}
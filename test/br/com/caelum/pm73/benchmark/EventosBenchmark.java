@@ -0,0 +1,121 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.EventoDeAlteracao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.servico.AssinanteDeEventos;
+import br.com.caelum.pm73.servico.RetransmissorDeEventos;
+import org.hibernate.Session;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Escritores salvam e atualizam leiloes pelo LeilaoDao enquanto o
+ * RetransmissorDeEventos entrega a caixa de saida a dois assinantes, um
+ * rapido e um que demora [atrasoMs] por lote. Mostra vazao de escrita e
+ * de entrega, atraso de entrega e quantas vezes a leitura esperou o
+ * assinante lento (contra-pressao). Roda em HSQLDB em memoria.
+ *
+ * Argumentos: [escritores] [segundos] [lote] [lotesPorAssinante] [atrasoMs]
+ */
+public class EventosBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int escritores = BancoDeBenchmark.argumento(args, 0, 4);
+        int segundos = BancoDeBenchmark.argumento(args, 1, 10);
+        int lote = BancoDeBenchmark.argumento(args, 2, 500);
+        int lotesPorAssinante = BancoDeBenchmark.argumento(args, 3, 4);
+        final int atraso = BancoDeBenchmark.argumento(args, 4, 5);
+
+        if (System.getProperty("pm73.eventos.habilitados") == null) {
+            System.setProperty("pm73.eventos.habilitados", "true");
+        }
+        final CriadorDeSessao criador = BancoDeBenchmark.emMemoria("eventos");
+        final Usuario dono = salvaDono(criador);
+
+        final AtomicLong rapidos = new AtomicLong();
+        final AtomicLong lentos = new AtomicLong();
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, lote, lotesPorAssinante);
+        retransmissor.assina(new AssinanteDeEventos() {
+            public void recebe(List<EventoDeAlteracao> eventos) {
+                rapidos.addAndGet(eventos.size());
+            }
+        });
+        retransmissor.assina(new AssinanteDeEventos() {
+            public void recebe(List<EventoDeAlteracao> eventos) {
+                try {
+                    Thread.sleep(atraso);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lentos.addAndGet(eventos.size());
+            }
+        });
+        retransmissor.inicia(10);
+
+        final AtomicLong escritas = new AtomicLong();
+        final long fim = System.currentTimeMillis() + segundos * 1000L;
+        ExecutorService threads = Executors.newFixedThreadPool(escritores);
+        for (int i = 0; i < escritores; i++) {
+            threads.execute(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < fim) {
+                        Session session = criador.getSession();
+                        try {
+                            session.beginTransaction();
+                            LeilaoDao dao = new LeilaoDao(session);
+                            Leilao leilao = new LeilaoBuilder()
+                                    .comDono((Usuario) session.load(Usuario.class, dono.getId()))
+                                    .comNome("leilao")
+                                    .constroi();
+                            dao.salvar(leilao);
+                            leilao.setNome("alterado");
+                            dao.atualiza(leilao);
+                            session.getTransaction().commit();
+                            escritas.addAndGet(2);
+                        } finally {
+                            session.close();
+                        }
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(segundos + 60, TimeUnit.SECONDS);
+
+        long inicio = System.nanoTime();
+        while (lentos.get() < escritas.get() && System.nanoTime() - inicio < TimeUnit.SECONDS.toNanos(60)) {
+            Thread.sleep(10);
+        }
+        long drenagem = System.nanoTime() - inicio;
+        retransmissor.fecha(10000);
+
+        System.out.printf("%d escritores: %.0f eventos gravados/s%n", escritores, escritas.get() / (double) segundos);
+        System.out.printf("entregues: rapido %d, lento %d de %d (drenagem final %.0f ms)%n",
+                rapidos.get(), lentos.get(), escritas.get(), drenagem / 1000000.0);
+        System.out.printf("esperas por vaga (contra-pressao): %d, falhas: %d%n",
+                retransmissor.getEsperasPorVaga(), retransmissor.getFalhas());
+        System.out.println("atraso de entrega    " + retransmissor.getAtrasos());
+    }
+
+    private static Usuario salvaDono(CriadorDeSessao criador) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario dono = new Usuario("dono", "dono@benchmark.com");
+            new UsuarioDao(session).salvar(dono);
+            session.getTransaction().commit();
+            return dono;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CacheDeIdentidades;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UsuarioDao.porNomeEEmail numa tabela com milhoes de usuarios (2M por
+ * padrao): a consulta antiga por nome e email sem indice, a consulta pelo
+ * indice unico de email normalizado, o CacheDeIdentidades quente e buscas
+ * sem resultado com cache negativo. No fim, vazao de buscas com o cache
+ * quente em varias threads, cada uma com a propria sessao.
+ *
+ * Argumentos: [usuarios] [repeticoes] [threads] [segundos]
+ */
+public class IdentidadesBenchmark {
+
+    private static final String CONSULTA_ANTIGA = "from Usuario u where u.nome = :nome and u.email = :email";
+
+    public static void main(String[] args) throws InterruptedException {
+        final int usuarios = BancoDeBenchmark.argumento(args, 0, 2000000);
+        int repeticoes = BancoDeBenchmark.argumento(args, 1, 1000);
+        int threads = BancoDeBenchmark.argumento(args, 2, 8);
+        int segundos = BancoDeBenchmark.argumento(args, 3, 10);
+
+        final CriadorDeSessao criador = BancoDeBenchmark.emMemoria("identidades");
+        popula(criador, usuarios);
+
+        System.out.println(mede(criador, "sem indice (nome, email)", Math.min(repeticoes, 20), usuarios, null, false));
+        System.out.println(mede(criador, "indice de email normalizado", repeticoes, usuarios,
+                CacheDeIdentidades.DESLIGADO, false));
+
+        final CacheDeIdentidades identidades = new CacheDeIdentidades(usuarios, 5000);
+        mede(criador, "aquecimento", repeticoes, usuarios, identidades, false);
+        System.out.println(mede(criador, "cache de identidades", repeticoes, usuarios, identidades, false));
+        System.out.println(mede(criador, "ausentes com cache negativo", repeticoes, usuarios, identidades, true));
+
+        final AtomicLong buscas = new AtomicLong();
+        final long fim = System.currentTimeMillis() + segundos * 1000L;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final long semente = t;
+            executor.execute(new Runnable() {
+                public void run() {
+                    Random aleatorio = new Random(semente);
+                    while (System.currentTimeMillis() < fim) {
+                        Session session = criador.getSession();
+                        try {
+                            UsuarioDao dao = new UsuarioDao(session, session,
+                                    identidades);
+                            for (int i = 0; i < 100; i++) {
+                                int n = aleatorio.nextInt(Math.min(usuarios, 1000));
+                                dao.porNomeEEmail("usuario " + n, "usuario" + n + "@benchmark.com");
+                            }
+                            buscas.addAndGet(100);
+                        } finally {
+                            session.close();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(segundos + 60, TimeUnit.SECONDS);
+
+        System.out.printf("%d threads com cache quente: %.0f buscas/s (acertos %d, falhas %d, remocoes %d)%n",
+                threads, buscas.get() / (double) segundos,
+                identidades.getAcertos(), identidades.getFalhas(), identidades.getRemocoes());
+    }
+
+    private static Medicao mede(CriadorDeSessao criador, String nome, int repeticoes, int usuarios,
+            CacheDeIdentidades identidades, boolean ausentes) {
+        Medicao medicao = new Medicao(nome, repeticoes);
+        Random aleatorio = new Random(42);
+        Session session = criador.getSession();
+        try {
+            UsuarioDao dao = identidades == null ? null : new UsuarioDao(session, session,
+                    identidades);
+            for (int i = 0; i < repeticoes; i++) {
+                int n = aleatorio.nextInt(Math.min(usuarios, 1000));
+                String email = (ausentes ? "ninguem" : "usuario") + n + "@benchmark.com";
+
+                long inicio = System.nanoTime();
+                if (dao == null) {
+                    session.createQuery(CONSULTA_ANTIGA)
+                            .setParameter("nome", "usuario " + n)
+                            .setParameter("email", email)
+                            .uniqueResult();
+                } else {
+                    dao.porNomeEEmail("usuario " + n, email);
+                }
+                medicao.registra(System.nanoTime() - inicio);
+                session.clear();
+            }
+        } finally {
+            session.close();
+        }
+        return medicao;
+    }
+
+    private static void popula(CriadorDeSessao criador, int usuarios) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            for (int i = 0; i < usuarios; i++) {
+                session.save(new Usuario("usuario " + i, "usuario" + i + "@benchmark.com"));
+                if (i % 1000 == 999) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.PoolDeConexoes;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import br.com.caelum.pm73.servico.ExecutorDeUnidadesDeTrabalho;
+import br.com.caelum.pm73.servico.UnidadeDeTrabalho;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Dispara milhares de leituras concorrentes (LeilaoDao.porId) pelo
+ * ExecutorDeUnidadesDeTrabalho e mostra vazao, latencia por tarefa,
+ * espera por vaga e se o pool de conexoes chegou a esgotar.
+ *
+ * Argumentos: [leiloes] [leituras]
+ */
+public class LeiturasConcorrentesBenchmark {
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int leiloes = BancoDeBenchmark.argumento(args, 0, 1000);
+        int leituras = BancoDeBenchmark.argumento(args, 1, 20000);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("leituras-concorrentes");
+        final List<Integer> ids = popula(criador, leiloes);
+
+        ExecutorDeUnidadesDeTrabalho executor = new ExecutorDeUnidadesDeTrabalho(criador);
+        List<Future<String>> resultados = new ArrayList<Future<String>>(leituras);
+
+        long inicio = System.nanoTime();
+        for (int i = 0; i < leituras; i++) {
+            final int id = ids.get(i % ids.size());
+            resultados.add(executor.submeteLeitura(new UnidadeDeTrabalho<String>() {
+                public String executa(Session session) {
+                    return new LeilaoDao(session).porId(id).getNome();
+                }
+            }));
+        }
+        int lidos = 0;
+        for (Future<String> resultado : resultados) {
+            if (resultado.get() != null) lidos++;
+        }
+        long tempo = System.nanoTime() - inicio;
+        executor.fecha(10000);
+
+        PoolDeConexoes pool = criador.getPool();
+        System.out.printf("%s: %d leituras em %.0f ms (%.0f leituras/s), %d falhas%n",
+                executor.isThreadsVirtuais() ? "threads virtuais" : "pool de threads",
+                lidos, tempo / 1000000.0, BancoDeBenchmark.porSegundo(lidos, tempo), executor.getFalhas());
+        System.out.println("latencia por tarefa  " + executor.getLatencias());
+        System.out.println("espera por vaga      " + executor.getEsperasPorVaga());
+        System.out.printf("pool: maximo %d, criadas %d, esgotamentos %d, espera media %d us%n",
+                pool.getMaximoDeConexoes(), pool.getConexoesCriadas(),
+                pool.getEsgotamentos(), pool.getEsperaMediaEmMicros());
+    }
+
+    private static List<Integer> popula(CriadorDeSessao criador, int quantidade) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario dono = new Usuario("dono", "dono@benchmark.com");
+            new UsuarioDao(session).salvar(dono);
+
+            LeilaoDao dao = new LeilaoDao(session);
+            List<Integer> ids = new ArrayList<Integer>(quantidade);
+            for (int i = 0; i < quantidade; i++) {
+                Leilao leilao = new LeilaoBuilder().comDono(dono).comNome("leilao " + i).constroi();
+                dao.salvar(leilao);
+                ids.add(leilao.getId());
+            }
+            session.getTransaction().commit();
+            return ids;
+        } finally {
+            session.close();
+        }
+    }
+}
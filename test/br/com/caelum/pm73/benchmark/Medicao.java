@@ -0,0 +1,41 @@
+package br.com.caelum.pm73.benchmark;
+
+import java.util.Arrays;
+
+public class Medicao {
+
+    private final String nome;
+    private final long[] amostras;
+    private int quantidade;
+    private long total;
+
+    public Medicao(String nome, int capacidade) {
+        this.nome = nome;
+        this.amostras = new long[capacidade];
+    }
+
+    public void registra(long nanos) {
+        amostras[quantidade++] = nanos;
+        total += nanos;
+    }
+
+    public double getOperacoesPorSegundo() {
+        return BancoDeBenchmark.porSegundo(quantidade, total);
+    }
+
+    public double percentilEmMicros(double percentil) {
+        if (quantidade == 0) return 0;
+
+        long[] ordenadas = Arrays.copyOf(amostras, quantidade);
+        Arrays.sort(ordenadas);
+        int posicao = (int) Math.ceil(percentil / 100.0 * quantidade) - 1;
+        return ordenadas[Math.max(0, posicao)] / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-45s %10.1f ops/s  p50 %9.1f us  p90 %9.1f us  p99 %9.1f us  max %9.1f us",
+                nome, getOperacoesPorSegundo(),
+                percentilEmMicros(50), percentilEmMicros(90), percentilEmMicros(99), percentilEmMicros(100));
+    }
+}
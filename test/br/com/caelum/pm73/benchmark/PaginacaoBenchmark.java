@@ -0,0 +1,94 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.Pagina;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Latencia por pagina de LeilaoDao.novos(continuacao, tamanho) ao longo de
+ * toda a tabela, comparada com OFFSET (setFirstResult) na mesma pagina.
+ *
+ * Argumentos: [leiloes] [tamanhoDaPagina]
+ */
+public class PaginacaoBenchmark {
+
+    private static final String CONSULTA_COM_OFFSET =
+            "from Leilao l where l.usado = false order by l.dataAbertura, l.id";
+
+    public static void main(String[] args) {
+        int leiloes = BancoDeBenchmark.argumento(args, 0, 1000000);
+        int tamanhoDaPagina = BancoDeBenchmark.argumento(args, 1, 50);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("paginacao");
+        popula(criador, leiloes);
+
+        Session session = criador.getSession();
+        try {
+            LeilaoDao dao = new LeilaoDao(session);
+            String continuacao = null;
+            int proximaMedicao = 1;
+
+            for (int numero = 1; ; numero++) {
+                long inicio = System.nanoTime();
+                Pagina<Leilao> pagina = dao.novos(continuacao, tamanhoDaPagina);
+                long keyset = System.nanoTime() - inicio;
+
+                if (numero == proximaMedicao) {
+                    inicio = System.nanoTime();
+                    session.createQuery(CONSULTA_COM_OFFSET)
+                            .setFirstResult((numero - 1) * tamanhoDaPagina)
+                            .setMaxResults(tamanhoDaPagina)
+                            .list();
+                    long offset = System.nanoTime() - inicio;
+
+                    System.out.printf("pagina %d: keyset %.2f ms | offset %.2f ms%n",
+                            numero, keyset / 1000000.0, offset / 1000000.0);
+                    proximaMedicao *= 10;
+                }
+
+                session.clear();
+                if (!pagina.temProxima()) break;
+                continuacao = pagina.getContinuacao();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void popula(CriadorDeSessao criador, int quantidade) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario dono = new Usuario("dono", "dono@benchmark.com");
+            new UsuarioDao(session).salvar(dono);
+
+            LeilaoDao dao = new LeilaoDao(session);
+            List<Leilao> lote = new ArrayList<Leilao>();
+            for (int i = 0; i < quantidade; i++) {
+                Leilao leilao = new LeilaoBuilder().comDono(dono).comNome("leilao " + i).constroi();
+                Calendar data = Calendar.getInstance();
+                data.add(Calendar.SECOND, -i);
+                leilao.setDataAbertura(data);
+                lote.add(leilao);
+
+                if (lote.size() == 1000) {
+                    dao.salvarEmLote(lote);
+                    lote.clear();
+                }
+            }
+            dao.salvarEmLote(lote);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+}
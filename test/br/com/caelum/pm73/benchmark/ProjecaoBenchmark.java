@@ -0,0 +1,85 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap retido por linha e linhas/s de LeilaoDao.novos() (entidades
+ * gerenciadas) contra LeilaoDao.resumoDosNovos() (projecao).
+ *
+ * Argumentos: [leiloes] [rodadas]
+ */
+public class ProjecaoBenchmark {
+
+    public static void main(String[] args) {
+        int leiloes = BancoDeBenchmark.argumento(args, 0, 100000);
+        int rodadas = BancoDeBenchmark.argumento(args, 1, 5);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("projecao");
+        popula(criador, leiloes);
+
+        for (int rodada = 0; rodada < rodadas; rodada++) {
+            mede(criador, "entidade", false);
+            mede(criador, "projecao", true);
+        }
+    }
+
+    private static void mede(CriadorDeSessao criador, String nome, boolean projecao) {
+        Session session = criador.getSession();
+        try {
+            LeilaoDao dao = new LeilaoDao(session);
+            long antes = heapUsado();
+
+            long inicio = System.nanoTime();
+            List<?> linhas = projecao ? dao.resumoDosNovos() : dao.novos();
+            long tempo = System.nanoTime() - inicio;
+
+            long retido = heapUsado() - antes;
+            System.out.printf("%s: %d linhas, %.0f linhas/s, %d bytes/linha%n",
+                    nome, linhas.size(),
+                    BancoDeBenchmark.porSegundo(linhas.size(), tempo),
+                    retido / Math.max(1, linhas.size()));
+        } finally {
+            session.close();
+        }
+    }
+
+    private static long heapUsado() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void popula(CriadorDeSessao criador, int quantidade) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario dono = new Usuario("dono", "dono@benchmark.com");
+            new UsuarioDao(session).salvar(dono);
+
+            LeilaoDao dao = new LeilaoDao(session);
+            List<Leilao> lote = new ArrayList<Leilao>();
+            for (int i = 0; i < quantidade; i++) {
+                lote.add(new LeilaoBuilder().comDono(dono).comNome("leilao " + i).comValor(i).constroi());
+                if (lote.size() == 1000) {
+                    dao.salvarEmLote(lote);
+                    lote.clear();
+                }
+            }
+            dao.salvarEmLote(lote);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.Replica;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.tool.hbm2ddl.SchemaExport;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leituras de relatorio (antigos, listaLeiloesDoUsuario) concorrendo com
+ * escritas de leiloes. Cada replica e um HSQLDB em memoria separado que
+ * recebe a mesma massa inicial (nao ha replicacao de verdade: as escritas
+ * do teste ficam so na principal).
+ *
+ * Argumentos: [replicas] [leitores] [escritores] [segundos] [rodizio|menos_carregada|primaria]
+ */
+public class ReplicasBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int quantidadeDeReplicas = BancoDeBenchmark.argumento(args, 0, 2);
+        int leitores = BancoDeBenchmark.argumento(args, 1, 8);
+        int escritores = BancoDeBenchmark.argumento(args, 2, 2);
+        int segundos = BancoDeBenchmark.argumento(args, 3, 10);
+        final String modo = args.length > 4 ? args[4] : "rodizio";
+
+        if (!"primaria".equals(modo)) {
+            StringBuilder urls = new StringBuilder();
+            for (int i = 0; i < quantidadeDeReplicas; i++) {
+                urls.append(i == 0 ? "" : ",").append("jdbc:hsqldb:mem:replica").append(i);
+            }
+            System.setProperty("pm73.replicas.urls", urls.toString());
+            System.setProperty("pm73.replicas.balanceamento", modo);
+        }
+
+        final CriadorDeSessao criador = BancoDeBenchmark.emMemoria("replicas-principal");
+        final Usuario licitante = popula(criador.getSessionFactory());
+        for (Replica replica : criador.getRoteadorDeLeitura().getReplicas()) {
+            new SchemaExport(replica.getConfig()).create(false, true);
+            popula(replica.getSessionFactory());
+        }
+
+        final AtomicLong leituras = new AtomicLong();
+        final AtomicLong escritas = new AtomicLong();
+        final long fim = System.currentTimeMillis() + segundos * 1000L;
+        ExecutorService threads = Executors.newFixedThreadPool(leitores + escritores);
+
+        for (int i = 0; i < leitores; i++) {
+            threads.execute(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < fim) {
+                        Session leitura = criador.getSessionDeLeitura();
+                        try {
+                            LeilaoDao dao = new LeilaoDao(leitura);
+                            dao.antigos();
+                            dao.listaLeiloesDoUsuario(licitante);
+                            leituras.addAndGet(2);
+                        } finally {
+                            leitura.close();
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < escritores; i++) {
+            threads.execute(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < fim) {
+                        Session session = criador.getSession();
+                        try {
+                            session.beginTransaction();
+                            Usuario doBanco = (Usuario) session.load(Usuario.class, licitante.getId());
+                            new LeilaoDao(session).salvar(new LeilaoBuilder().comDono(doBanco).comNome("novo").constroi());
+                            session.getTransaction().commit();
+                            escritas.incrementAndGet();
+                        } finally {
+                            session.close();
+                        }
+                    }
+                }
+            });
+        }
+
+        threads.shutdown();
+        threads.awaitTermination(segundos + 60, TimeUnit.SECONDS);
+
+        System.out.printf("%s: %.0f leituras/s, %.0f escritas/s%n", modo,
+                leituras.get() / (double) segundos, escritas.get() / (double) segundos);
+        System.out.printf("  principal: %d emprestimos, espera media %d us%n",
+                criador.getPool().getEmprestimos(), criador.getPool().getEsperaMediaEmMicros());
+        for (Replica replica : criador.getRoteadorDeLeitura().getReplicas()) {
+            System.out.printf("  %s: %d sessoes, espera media %d us%n",
+                    replica, replica.getLeituras(), replica.getPool().getEsperaMediaEmMicros());
+        }
+    }
+
+    /**
+     * Devolve o licitante, que tem o mesmo id em todas as bases.
+     */
+    private static Usuario popula(SessionFactory fabrica) {
+        Session session = fabrica.openSession();
+        try {
+            session.beginTransaction();
+            Usuario dono = new Usuario("dono", "dono@benchmark.com");
+            Usuario licitante = new Usuario("licitante", "licitante@benchmark.com");
+            UsuarioDao usuarioDao = new UsuarioDao(session);
+            usuarioDao.salvar(dono);
+            usuarioDao.salvar(licitante);
+
+            List<Leilao> leiloes = new ArrayList<Leilao>();
+            for (int i = 0; i < 2000; i++) {
+                Leilao leilao = new LeilaoBuilder()
+                        .comDono(dono)
+                        .comNome("leilao " + i)
+                        .diasAtras(i % 30)
+                        .constroi();
+                if (i % 2 == 0) {
+                    leilao.adicionaLance(new Lance(Calendar.getInstance(), licitante, 100.0 + i, leilao));
+                }
+                leiloes.add(leilao);
+            }
+            new LeilaoDao(session).salvarEmLote(leiloes);
+            session.getTransaction().commit();
+            return licitante;
+        } finally {
+            session.close();
+        }
+    }
+}
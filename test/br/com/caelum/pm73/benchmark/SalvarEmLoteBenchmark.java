@@ -0,0 +1,101 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Compara linhas/s entre LeilaoDao.salvar e LeilaoDao.salvarEmLote.
+ *
+ * Argumentos: [leiloes] [lancesPorLeilao] [tamanhoDoLote]
+ */
+public class SalvarEmLoteBenchmark {
+
+    public static void main(String[] args) {
+        int leiloes = BancoDeBenchmark.argumento(args, 0, 200);
+        int lancesPorLeilao = BancoDeBenchmark.argumento(args, 1, 50);
+        int tamanhoDoLote = BancoDeBenchmark.argumento(args, 2, 50);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("salvar-em-lote");
+        Usuario dono = salvaUsuario(criador, "dono");
+        long linhas = (long) leiloes * (lancesPorLeilao + 1);
+
+        for (int rodada = 0; rodada < 3; rodada++) {
+            long umAUm = salvaUmAUm(criador, geraLeiloes(dono, leiloes, lancesPorLeilao));
+            long emLote = salvaEmLote(criador, geraLeiloes(dono, leiloes, lancesPorLeilao), tamanhoDoLote);
+
+            System.out.printf("rodada %d: salvar %.0f linhas/s | salvarEmLote %.0f linhas/s%n",
+                    rodada,
+                    BancoDeBenchmark.porSegundo(linhas, umAUm),
+                    BancoDeBenchmark.porSegundo(linhas, emLote));
+        }
+    }
+
+    private static long salvaUmAUm(CriadorDeSessao criador, List<Leilao> leiloes) {
+        Session session = criador.getSession();
+        try {
+            long inicio = System.nanoTime();
+            session.beginTransaction();
+            LeilaoDao dao = new LeilaoDao(session);
+            for (Leilao leilao : leiloes) {
+                dao.salvar(leilao);
+            }
+            session.getTransaction().commit();
+            return System.nanoTime() - inicio;
+        } finally {
+            session.close();
+        }
+    }
+
+    private static long salvaEmLote(CriadorDeSessao criador, List<Leilao> leiloes, int tamanhoDoLote) {
+        Session session = criador.getSession();
+        try {
+            long inicio = System.nanoTime();
+            session.beginTransaction();
+            new LeilaoDao(session).salvarEmLote(leiloes, tamanhoDoLote);
+            session.getTransaction().commit();
+            return System.nanoTime() - inicio;
+        } finally {
+            session.close();
+        }
+    }
+
+    private static List<Leilao> geraLeiloes(Usuario dono, int quantidade, int lancesPorLeilao) {
+        List<Leilao> leiloes = new ArrayList<Leilao>(quantidade);
+        for (int i = 0; i < quantidade; i++) {
+            Leilao leilao = new LeilaoBuilder()
+                    .comDono(dono)
+                    .comNome("leilao " + i)
+                    .comValor(100.0 + i)
+                    .constroi();
+
+            for (int j = 0; j < lancesPorLeilao; j++) {
+                leilao.adicionaLance(new Lance(Calendar.getInstance(), dono, 100.0 + j, leilao));
+            }
+            leiloes.add(leilao);
+        }
+        return leiloes;
+    }
+
+    private static Usuario salvaUsuario(CriadorDeSessao criador, String nome) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            Usuario usuario = new Usuario(nome, nome + "@benchmark.com");
+            new UsuarioDao(session).salvar(usuario);
+            session.getTransaction().commit();
+            return usuario;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package br.com.caelum.pm73.benchmark;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDaoParticionado;
+import br.com.caelum.pm73.dao.SessoesParticionadas;
+import br.com.caelum.pm73.dao.Shards;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Vazao de escrita (leiloes com lances) pelo LeilaoDaoParticionado com
+ * 1, 2, 4... shards, cada um num HSQLDB em memoria separado. No fim de
+ * cada rodada confere o total pelo scatter-gather.
+ *
+ * Argumentos: [maximoDeShards] [escritores] [lancesPorLeilao] [segundos]
+ */
+public class ShardingBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int maximoDeShards = BancoDeBenchmark.argumento(args, 0, 4);
+        int escritores = BancoDeBenchmark.argumento(args, 1, 8);
+        int lancesPorLeilao = BancoDeBenchmark.argumento(args, 2, 5);
+        int segundos = BancoDeBenchmark.argumento(args, 3, 10);
+
+        CriadorDeSessao criador = BancoDeBenchmark.emMemoria("sharding-principal");
+        List<Usuario> usuarios = salvaUsuarios(criador, escritores);
+
+        for (int quantidade = 1; quantidade <= maximoDeShards; quantidade *= 2) {
+            List<String> urls = new ArrayList<String>();
+            for (int i = 0; i < quantidade; i++) {
+                urls.add("jdbc:hsqldb:mem:sharding" + quantidade + "_" + i);
+            }
+            Shards shards = criador.criaShards(urls);
+            shards.criaTabelas();
+
+            rodada(shards, usuarios, escritores, lancesPorLeilao, segundos);
+        }
+    }
+
+    private static void rodada(final Shards shards, final List<Usuario> usuarios, int escritores,
+            final int lancesPorLeilao, int segundos) throws InterruptedException {
+        final AtomicLong leiloes = new AtomicLong();
+        final long fim = System.currentTimeMillis() + segundos * 1000L;
+        final ExecutorService paralelo = Executors.newCachedThreadPool();
+        ExecutorService threads = Executors.newFixedThreadPool(escritores);
+
+        for (int t = 0; t < escritores; t++) {
+            final Usuario dono = usuarios.get(t);
+            final Usuario licitante = usuarios.get((t + 1) % usuarios.size());
+            threads.execute(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < fim) {
+                        SessoesParticionadas sessoes = new SessoesParticionadas(shards);
+                        try {
+                            Leilao leilao = new LeilaoBuilder().comDono(dono).comNome("leilao").constroi();
+                            for (int i = 0; i < lancesPorLeilao; i++) {
+                                leilao.adicionaLance(new Lance(Calendar.getInstance(), licitante, 100.0 + i, leilao));
+                            }
+                            new LeilaoDaoParticionado(sessoes, paralelo).salvar(leilao);
+                            sessoes.commit();
+                            leiloes.incrementAndGet();
+                        } finally {
+                            sessoes.close();
+                        }
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(segundos + 60, TimeUnit.SECONDS);
+
+        SessoesParticionadas sessoes = new SessoesParticionadas(shards);
+        try {
+            Long total = new LeilaoDaoParticionado(sessoes, paralelo).total();
+            System.out.printf("%d shard(s): %.0f leiloes/s, %.0f linhas/s (total por scatter-gather: %d)%n",
+                    shards.getQuantidade(),
+                    leiloes.get() / (double) segundos,
+                    leiloes.get() * (lancesPorLeilao + 1) / (double) segundos,
+                    total);
+        } finally {
+            sessoes.close();
+            paralelo.shutdown();
+        }
+    }
+
+    private static List<Usuario> salvaUsuarios(CriadorDeSessao criador, int quantidade) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            List<Usuario> usuarios = new ArrayList<Usuario>();
+            UsuarioDao dao = new UsuarioDao(session);
+            for (int i = 0; i < Math.max(2, quantidade); i++) {
+                Usuario usuario = new Usuario("usuario " + i, "usuario" + i + "@benchmark.com");
+                dao.salvar(usuario);
+                usuarios.add(usuario);
+            }
+            session.getTransaction().commit();
+            return usuarios;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package br.com.caelum.pm73.dao;
+
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class AnaliseDeLeiloesTest {
+
+    private static final int LEILOES_DE_ENCHIMENTO = 20;
+
+    private CriadorDeSessao criador;
+    private ExecutorService paralelo;
+    private AnaliseDeLeiloes analise;
+
+    private Usuario jose;
+    private Usuario maria;
+    private Usuario joao;
+    private Usuario pedro;
+    private Leilao antigoDisputado;
+    private Leilao novoComUmLance;
+    private Leilao encerrado;
+    private Leilao caroEAntigo;
+    private Leilao doPedro;
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+        this.paralelo = Executors.newFixedThreadPool(2);
+        this.analise = new AnaliseDeLeiloes(criador, paralelo);
+
+        this.jose = new Usuario("jose", "jose@jose.com");
+        this.maria = new Usuario("maria", "maria@maria.com");
+        this.joao = new Usuario("joao", "joao@joao.com");
+        this.pedro = new Usuario("pedro", "pedro@pedro.com");
+
+        this.antigoDisputado = new LeilaoBuilder().comDono(jose).comValor(100.0).diasAtras(10).constroi();
+        lances(antigoDisputado, maria, joao, maria, joao);
+        this.novoComUmLance = new LeilaoBuilder().comDono(jose).comValor(300.0).constroi();
+        lances(novoComUmLance, maria);
+        this.encerrado = new LeilaoBuilder().comDono(maria).comValor(250.0).encerrado().constroi();
+        lances(encerrado, joao, joao, joao, joao, joao);
+        this.caroEAntigo = new LeilaoBuilder().comDono(maria).comValor(1000.0).diasAtras(20).constroi();
+        lances(caroEAntigo, jose, jose, jose, jose);
+
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            UsuarioDao usuarioDao = new UsuarioDao(session);
+            for (Usuario usuario : usuarios()) {
+                usuarioDao.salvar(usuario);
+            }
+            LeilaoDao leilaoDao = new LeilaoDao(session);
+            leilaoDao.salvar(antigoDisputado);
+            leilaoDao.salvar(novoComUmLance);
+            leilaoDao.salvar(encerrado);
+            leilaoDao.salvar(caroEAntigo);
+            for (int i = 0; i < LEILOES_DE_ENCHIMENTO; i++) {
+                Leilao leilao = new LeilaoBuilder().comDono(pedro).comValor(10.0 * (i + 1)).diasAtras(i).constroi();
+                lances(leilao, pedro);
+                leilaoDao.salvar(leilao);
+                if (i == 0) doPedro = leilao;
+            }
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    @After
+    public void fecha() {
+        paralelo.shutdown();
+    }
+
+    @Test
+    public void cargaCompletaDeveResponderComoOLeilaoDao() {
+        InstantaneoDeLeiloes instantaneo = analise.carrega();
+
+        assertEquals(LEILOES_DE_ENCHIMENTO + 4, instantaneo.getQuantidadeDeLeiloes());
+        assertEquals(LEILOES_DE_ENCHIMENTO + 14, instantaneo.getQuantidadeDeLances());
+        confere(instantaneo);
+    }
+
+    @Test
+    public void atualizacaoIncrementalDeveResponderComoOLeilaoDao() {
+        analise.carrega();
+        long relidasNaCarga = analise.getLinhasRelidas();
+
+        Leilao inserido = new LeilaoBuilder().comDono(maria).comValor(400.0).constroi();
+        lances(inserido, jose, joao, jose, joao);
+
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            LeilaoDao leilaoDao = new LeilaoDao(session);
+            leilaoDao.salvar(inserido);
+
+            Leilao maisDisputado = leilaoDao.porId(novoComUmLance.getId());
+            for (Lance lance : lances(maisDisputado, joao, joao, joao)) {
+                leilaoDao.salvaLance(lance);
+            }
+
+            Leilao agoraEncerrado = leilaoDao.porId(antigoDisputado.getId());
+            agoraEncerrado.encerra();
+            leilaoDao.atualiza(agoraEncerrado);
+
+            Leilao maisCaro = leilaoDao.porId(doPedro.getId());
+            maisCaro.setValorInicial(450.0);
+            leilaoDao.atualiza(maisCaro);
+
+            leilaoDao.deleta(leilaoDao.porId(caroEAntigo.getId()));
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+
+        InstantaneoDeLeiloes instantaneo = analise.atualiza();
+
+        assertEquals(1, analise.getCargasCompletas());
+        assertEquals(1, analise.getAtualizacoes());
+        long relidas = analise.getLinhasRelidas() - relidasNaCarga;
+        assertTrue(relidas + " linhas relidas", relidas < instantaneo.getQuantidadeDeLeiloes() / 4
+                + instantaneo.getQuantidadeDeLances() / 4);
+        assertEquals(LEILOES_DE_ENCHIMENTO + 4, instantaneo.getQuantidadeDeLeiloes());
+        assertEquals(LEILOES_DE_ENCHIMENTO + 17, instantaneo.getQuantidadeDeLances());
+        confere(instantaneo);
+    }
+
+    private void confere(InstantaneoDeLeiloes instantaneo) {
+        Session session = criador.getSession();
+        try {
+            LeilaoDao dao = new LeilaoDao(session);
+            assertEquals(dao.total().longValue(), instantaneo.total());
+            assertEquals(ids(dao.antigos()), ids(instantaneo.antigos()));
+            assertFalse(ids(dao.disputadosEntre(50.0, 500.0)).isEmpty());
+            assertEquals(ids(dao.disputadosEntre(50.0, 500.0)), ids(instantaneo.disputadosEntre(50.0, 500.0)));
+            assertEquals(ids(dao.disputadosEntre(0.0, 10000.0)), ids(instantaneo.disputadosEntre(0.0, 10000.0)));
+            for (Usuario usuario : usuarios()) {
+                String quem = usuario.getNome();
+                assertEquals(quem, dao.getValorInicialMedioDoUsuario(usuario),
+                        instantaneo.valorInicialMedioDoUsuario(usuario.getId()), 0.00001);
+                assertEquals(quem, ids(dao.listaLeiloesDoUsuario(usuario)),
+                        ids(instantaneo.leiloesDoUsuario(usuario.getId())));
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private List<Usuario> usuarios() {
+        return Arrays.asList(jose, maria, joao, pedro);
+    }
+
+    private static List<Lance> lances(Leilao leilao, Usuario... licitantes) {
+        List<Lance> lances = new ArrayList<Lance>();
+        double valor = leilao.getValorInicial() == null ? 0.0 : leilao.getValorInicial();
+        for (Usuario licitante : licitantes) {
+            valor += 10.0;
+            lances.add(leilao.adicionaLance(new Lance(Calendar.getInstance(), licitante, valor, leilao)));
+        }
+        return lances;
+    }
+
+    private static List<Integer> ids(List<Leilao> leiloes) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Leilao leilao : leiloes) {
+            ids.add(leilao.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<Integer> ids(int[] doInstantaneo) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int id : doInstantaneo) {
+            ids.add(id);
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
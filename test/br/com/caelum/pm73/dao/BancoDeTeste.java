@@ -0,0 +1,78 @@
+package br.com.caelum.pm73.dao;
+
+import br.com.caelum.pm73.curso.CriaTabelas;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Banco dos testes de DAO: HSQLDB em memoria, um por JVM, para que cada
+ * fork do JUnit tenha o seu e a suite rode em paralelo sem arquivos de
+ * lock. As tabelas sao criadas uma vez, pelo CriaTabelas; restaura()
+ * esvazia todas antes de cada teste. Para rodar contra caelum.db, use
+ * -Dpm73.banco.memoria=false. A caixa de saida fica ligada, para que os
+ * testes confiram os eventos de cada escrita.
+ */
+public class BancoDeTeste {
+
+    private static volatile boolean criado;
+
+    public static CriadorDeSessao criador() {
+        if (!criado) {
+            synchronized (BancoDeTeste.class) {
+                if (!criado) {
+                    if (System.getProperty("pm73.banco.memoria") == null) {
+                        System.setProperty("pm73.banco.memoria", "true");
+                    }
+                    if (System.getProperty("pm73.eventos.habilitados") == null) {
+                        System.setProperty("pm73.eventos.habilitados", "true");
+                    }
+                    if (new ConfiguracaoDoBanco().isBancoEmMemoria()) {
+                        CriaTabelas.criaEsquema(new CriadorDeSessao(), CriaTabelas.TipoDeTabela.MEMORY, false);
+                    }
+                    criado = true;
+                }
+            }
+        }
+        return new CriadorDeSessao();
+    }
+
+    /**
+     * Volta o banco em memoria ao estado logo depois do CriaTabelas e
+     * esvazia os caches compartilhados entre sessoes (CacheDeConsultas e
+     * CacheDeEntidades do CriadorDeSessao e CacheDeIdentidades), que de
+     * outro modo passariam resultados de um teste para o seguinte. As
+     * sequences continuam de onde estavam, porque o otimizador pooled do
+     * Hibernate guarda blocos de ids ja reservados.
+     */
+    public static void restaura() {
+        CriadorDeSessao criador = criador();
+        if (new ConfiguracaoDoBanco().isBancoEmMemoria()) {
+            esvazia(criador);
+        }
+        criador.getCache().limpa();
+        criador.getSessionFactory().getCache().evictEntityRegions();
+        CacheDeIdentidades.padrao().limpa();
+    }
+
+    private static void esvazia(CriadorDeSessao criador) {
+        Session session = criador.getSession();
+        try {
+            session.doWork(new Work() {
+                public void execute(Connection conexao) throws SQLException {
+                    Statement statement = conexao.createStatement();
+                    try {
+                        statement.execute("TRUNCATE SCHEMA PUBLIC AND COMMIT NO CHECK");
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package br.com.caelum.pm73.dao;
+
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CriadorDeSessaoTest {
+
+    private CriadorDeSessao criador;
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+    }
+
+    @Test
+    public void semReplicasASessaoDeLeituraDeveAbrirNaBasePrincipal() {
+        assertFalse(criador.getRoteadorDeLeitura().temReplicas());
+
+        Usuario jose = new Usuario("jose", "jose@jose.com");
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            session.save(jose);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+
+        Session leitura = criador.getSessionDeLeitura();
+        try {
+            assertTrue(leitura.isDefaultReadOnly());
+            Usuario lido = (Usuario) leitura.get(Usuario.class, jose.getId());
+            assertEquals("jose", lido.getNome());
+            assertTrue(leitura.isReadOnly(lido));
+        } finally {
+            leitura.close();
+        }
+    }
+
+    @Test
+    public void cadaSessaoDeLeituraDeveSerNova() {
+        Session primeira = criador.getSessionDeLeitura();
+        Session segunda = criador.getSessionDeLeitura();
+        try {
+            assertNotSame(primeira, segunda);
+        } finally {
+            primeira.close();
+            segunda.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package br.com.caelum.pm73.dao;
+
+import br.com.caelum.pm73.dominio.EstatisticasDoUsuario;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class LeilaoDaoParticionadoTest {
+
+    private static Shards shards;
+    private static ExecutorService paralelo;
+
+    private Usuario jose;
+    private Usuario maria;
+    private SessoesParticionadas sessoes;
+    private LeilaoDaoParticionado dao;
+
+    @BeforeClass
+    public static void criaShards() {
+        shards = BancoDeTeste.criador().criaShards(Arrays.asList(
+                "jdbc:hsqldb:mem:pm73_shard0", "jdbc:hsqldb:mem:pm73_shard1"));
+        shards.criaTabelas();
+        paralelo = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterClass
+    public static void fechaShards() {
+        paralelo.shutdown();
+    }
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        for (Shard shard : shards.getTodos()) {
+            esvazia(shard);
+        }
+
+        this.jose = new Usuario("jose", "jose@jose.com");
+        this.maria = new Usuario("maria", "maria@maria.com");
+        Session principal = BancoDeTeste.criador().getSession();
+        try {
+            principal.beginTransaction();
+            new UsuarioDao(principal).salvar(jose);
+            new UsuarioDao(principal).salvar(maria);
+            principal.getTransaction().commit();
+        } finally {
+            principal.close();
+        }
+
+        this.sessoes = new SessoesParticionadas(shards);
+        this.dao = new LeilaoDaoParticionado(sessoes, paralelo);
+    }
+
+    @After
+    public void fecha() {
+        sessoes.close();
+    }
+
+    @Test
+    public void deveDistribuirOsLeiloesEAcharCadaUmPeloId() {
+        Leilao primeiro = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+        Leilao segundo = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+
+        dao.salvar(primeiro);
+        dao.salvar(segundo);
+        sessoes.commit();
+
+        Shard doPrimeiro = shards.doId(primeiro.getId());
+        Shard doSegundo = shards.doId(segundo.getId());
+        assertNotSame(doPrimeiro, doSegundo);
+        assertTrue(doPrimeiro.contem(primeiro.getId()));
+        assertTrue(doSegundo.contem(segundo.getId()));
+
+        sessoes.close();
+        assertEquals("xbox", dao.porId(primeiro.getId()).getNome());
+        assertEquals("geladeira", dao.porId(segundo.getId()).getNome());
+        assertEquals(1L, contaLeiloes(doPrimeiro));
+        assertEquals(1L, contaLeiloes(doSegundo));
+    }
+
+    @Test
+    public void deveJuntarOsResultadosDeTodosOsShards() {
+        Leilao xbox = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+        xbox.adicionaLance(new Lance(Calendar.getInstance(), maria, 100.0, xbox));
+        Leilao geladeira = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+        geladeira.adicionaLance(new Lance(Calendar.getInstance(), maria, 200.0, geladeira));
+        Leilao usado = new LeilaoBuilder().comNome("carro").comDono(jose).usado().constroi();
+
+        dao.salvar(xbox);
+        dao.salvar(geladeira);
+        dao.salvar(usado);
+        sessoes.commit();
+        sessoes.close();
+
+        assertEquals(Long.valueOf(3), dao.total());
+        assertEquals(new HashSet<String>(Arrays.asList("xbox", "geladeira")), nomes(dao.novos()));
+        assertEquals(new HashSet<String>(Arrays.asList("xbox", "geladeira")), nomes(dao.listaLeiloesDoUsuario(maria)));
+
+        final List<Double> lances = new ArrayList<Double>();
+        dao.percorreLancesDosLeiloesAbertos(new ProcessadorDeLance() {
+            public void processa(int leilaoId, int usuarioId, double valor) {
+                lances.add(valor);
+            }
+        });
+        assertEquals(2, lances.size());
+    }
+
+    @Test
+    public void deveCopiarOsUsuariosSoParaOsShardsOndeSaoUsados() {
+        Leilao xbox = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+        xbox.adicionaLance(new Lance(Calendar.getInstance(), maria, 100.0, xbox));
+        Leilao geladeira = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+
+        dao.salvar(xbox);
+        dao.salvar(geladeira);
+        sessoes.commit();
+        sessoes.close();
+
+        Shard doXbox = shards.doId(xbox.getId());
+        Shard daGeladeira = shards.doId(geladeira.getId());
+        assertEquals("jose", usuarioNoShard(doXbox, jose.getId()).getNome());
+        assertEquals("maria", usuarioNoShard(doXbox, maria.getId()).getNome());
+        assertEquals("jose", usuarioNoShard(daGeladeira, jose.getId()).getNome());
+        assertNull(usuarioNoShard(daGeladeira, maria.getId()));
+    }
+
+    @Test
+    public void deveSomarAsEstatisticasDoUsuarioDeTodosOsShards() {
+        Leilao barato = new LeilaoBuilder().comDono(jose).comValor(100.0).constroi();
+        barato.adicionaLance(new Lance(Calendar.getInstance(), maria, 150.0, barato));
+        Leilao caro = new LeilaoBuilder().comDono(jose).comValor(300.0).constroi();
+        caro.adicionaLance(new Lance(Calendar.getInstance(), maria, 350.0, caro));
+
+        dao.salvar(barato);
+        dao.salvar(caro);
+        sessoes.commit();
+        sessoes.close();
+
+        EstatisticasDoUsuario doJose = dao.getEstatisticasDoUsuario(jose);
+        assertEquals(2, doJose.getQuantidadeDeLeiloes());
+        assertEquals(200.0, doJose.getValorInicialMedio(), 0.00001);
+        assertEquals(100.0, doJose.getMenorValorInicial(), 0.00001);
+        assertEquals(300.0, doJose.getMaiorValorInicial(), 0.00001);
+        assertEquals(2, dao.getEstatisticasDoUsuario(maria).getQuantidadeDeLances());
+        assertEquals(200.0, dao.getValorInicialMedioDoUsuario(jose), 0.00001);
+    }
+
+    @Test
+    public void sequenciasDevemTerminarNoFimDaFaixaDoShard() {
+        for (Shard shard : shards.getTodos()) {
+            Session session = shard.abreSessao();
+            try {
+                List<?> maximos = session.createSQLQuery("select maximum_value from information_schema.sequences " +
+                        "where sequence_name in ('LEILAO_SEQ', 'LANCE_SEQ')").list();
+                assertEquals(2, maximos.size());
+                for (Object maximo : maximos) {
+                    assertEquals(BigInteger.valueOf(shard.getUltimoId()), new BigInteger(maximo.toString()));
+                }
+            } finally {
+                session.close();
+            }
+        }
+        assertTrue(shards.getTodos().get(0).contem(shards.getTodos().get(0).getUltimoId()));
+        assertFalse(shards.getTodos().get(0).contem(shards.getTodos().get(0).getUltimoId() + 1));
+    }
+
+    private static Set<String> nomes(List<Leilao> leiloes) {
+        Set<String> nomes = new HashSet<String>();
+        for (Leilao leilao : leiloes) {
+            nomes.add(leilao.getNome());
+        }
+        return nomes;
+    }
+
+    private static long contaLeiloes(Shard shard) {
+        Session session = shard.abreSessao();
+        try {
+            return (Long) session.createQuery("select count(l) from Leilao l").uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static Usuario usuarioNoShard(Shard shard, int id) {
+        Session session = shard.abreSessao();
+        try {
+            return (Usuario) session.get(Usuario.class, id);
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void esvazia(Shard shard) {
+        Session session = shard.abreSessao();
+        try {
+            session.doWork(new Work() {
+                public void execute(Connection conexao) throws SQLException {
+                    Statement statement = conexao.createStatement();
+                    try {
+                        statement.execute("TRUNCATE SCHEMA PUBLIC AND COMMIT NO CHECK");
+                    } finally {
+                        statement.close();
+                    }
+                }
+            });
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -1,21 +1,29 @@
 package br.com.caelum.pm73.dao;
 
+import br.com.caelum.pm73.dominio.EstatisticasDoUsuario;
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.TipoDeAlteracao;
 import br.com.caelum.pm73.dominio.Usuario;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleStateException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.Properties;
 
 import static org.junit.Assert.*;
 
 public class LeilaoDaoTest {
 
     private Session session;
+    private ContadorDeSql contadorDeSql;
     private UsuarioDao usuarioDao;
     private LeilaoDao leilaoDao;
 
@@ -24,7 +32,9 @@ public class LeilaoDaoTest {
 
     @Before
     public void init() {
-        this.session = new CriadorDeSessao().getSession();
+        BancoDeTeste.restaura();
+        this.contadorDeSql = new ContadorDeSql();
+        this.session = BancoDeTeste.criador().getSession(contadorDeSql);
         this.usuarioDao = new UsuarioDao(session);
         this.leilaoDao = new LeilaoDao(session);
 
@@ -269,6 +279,190 @@ public class LeilaoDaoTest {
         assertEquals(600.0, valorInicialMedio, 0.00001);
     }
 
+    @Test
+    public void mediaDeUsuarioSemLeiloesEhZero() {
+        usuarioDao.salvar(jose);
+
+        assertEquals(0.0, leilaoDao.getValorInicialMedioDoUsuario(jose), 0.00001);
+    }
+
+    @Test
+    public void deveManterEstatisticasDoUsuarioAoDeletarLeilao() {
+        Leilao barato = new LeilaoBuilder().comDono(jose).comValor(100.0).constroi();
+        Leilao medio = new LeilaoBuilder().comDono(jose).comValor(300.0).constroi();
+        Leilao caro = new LeilaoBuilder().comDono(jose).comValor(800.0).constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(barato);
+        leilaoDao.salvar(medio);
+        leilaoDao.salvar(caro);
+
+        leilaoDao.deleta(caro);
+
+        EstatisticasDoUsuario estatisticas = leilaoDao.getEstatisticasDoUsuario(jose);
+        assertEquals(2, estatisticas.getQuantidadeDeLeiloes());
+        assertEquals(200.0, estatisticas.getValorInicialMedio(), 0.00001);
+        assertEquals(100.0, estatisticas.getMenorValorInicial(), 0.00001);
+        assertEquals(300.0, estatisticas.getMaiorValorInicial(), 0.00001);
+    }
+
+    @Test
+    public void deveContarLancesNovosERemovidosAoAtualizarLeilao() {
+        Usuario maria = new Usuario("Maria", "maria@maria.com.br");
+        Leilao leilao = new LeilaoBuilder().comDono(jose).constroi();
+        leilao.adicionaLance(new Lance(Calendar.getInstance(), maria, 100.0, leilao));
+
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+        leilaoDao.salvar(leilao);
+        session.flush();
+        session.clear();
+
+        Leilao destacado = leilaoDao.porId(leilao.getId());
+        destacado.getLances().size();
+        session.evict(destacado);
+        destacado.adicionaLance(new Lance(Calendar.getInstance(), maria, 200.0, destacado));
+        destacado.adicionaLance(new Lance(Calendar.getInstance(), jose, 300.0, destacado));
+        leilaoDao.atualiza(destacado);
+        session.flush();
+        session.clear();
+
+        assertEquals(2, leilaoDao.getEstatisticasDoUsuario(maria).getQuantidadeDeLances());
+        assertEquals(1, leilaoDao.getEstatisticasDoUsuario(jose).getQuantidadeDeLances());
+
+        destacado = leilaoDao.porId(leilao.getId());
+        Lance primeiro = null;
+        for(Lance lance : destacado.getLances()) {
+            if(lance.getValor() == 100.0) primeiro = lance;
+        }
+        session.evict(destacado);
+        destacado.removeLance(primeiro);
+        leilaoDao.atualiza(destacado);
+        session.flush();
+        session.clear();
+
+        assertEquals(1, leilaoDao.getEstatisticasDoUsuario(maria).getQuantidadeDeLances());
+        assertEquals(1, leilaoDao.getEstatisticasDoUsuario(jose).getQuantidadeDeLances());
+    }
+
+    @Test
+    public void deveContarOLanceNumUpdateAtomicoQueSobeAVersaoDasEstatisticas() {
+        Leilao doJose = new LeilaoBuilder().comDono(jose).comValor(100.0).constroi();
+        Leilao daMaria = new LeilaoBuilder().comDono(maria).comValor(300.0).constroi();
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+        leilaoDao.salvar(doJose);
+        leilaoDao.salvar(daMaria);
+        session.getTransaction().commit();
+        session.clear();
+
+        Session outra = BancoDeTeste.criador().getSession();
+        try {
+            outra.beginTransaction();
+            EstatisticasDoUsuario lidaAntes = (EstatisticasDoUsuario) outra.get(EstatisticasDoUsuario.class, maria.getId());
+
+            session.beginTransaction();
+            Leilao leilao = leilaoDao.porId(doJose.getId());
+            contadorDeSql.zera();
+            leilaoDao.salvaLance(leilao.adicionaLance(new Lance(Calendar.getInstance(), maria, 150.0, leilao)));
+            session.getTransaction().commit();
+
+            for (String sql : contadorDeSql.getSqls()) {
+                assertFalse(sql, sql.startsWith("select") && sql.contains("EstatisticasDoUsuario"));
+            }
+            lidaAntes.adicionaLeilao(500.0);
+            try {
+                outra.flush();
+                fail("as estatisticas lidas antes do lance deveriam estar desatualizadas");
+            } catch (StaleStateException esperada) {
+            }
+        } finally {
+            outra.getTransaction().rollback();
+            outra.close();
+        }
+
+        session.clear();
+        session.beginTransaction();
+        EstatisticasDoUsuario daMariaAgora = leilaoDao.getEstatisticasDoUsuario(maria);
+        assertEquals(1, daMariaAgora.getQuantidadeDeLances());
+        assertEquals(1, daMariaAgora.getQuantidadeDeLeiloes());
+    }
+
+    @Test
+    public void deveRefazerSoAsEstatisticasDosAfetadosAoDeletarEncerrados() {
+        Usuario maria = new Usuario("Maria", "maria@maria.com.br");
+        Usuario joao = new Usuario("Joao", "joao@joao.com.br");
+        Leilao encerrado = new LeilaoBuilder().comDono(jose).comValor(500.0).encerrado().constroi();
+        encerrado.adicionaLance(new Lance(Calendar.getInstance(), maria, 600.0, encerrado));
+        Leilao aberto = new LeilaoBuilder().comDono(jose).comValor(100.0).constroi();
+        Leilao deJoao = new LeilaoBuilder().comDono(joao).comValor(50.0).constroi();
+
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+        usuarioDao.salvar(joao);
+        leilaoDao.salvar(encerrado);
+        leilaoDao.salvar(aberto);
+        leilaoDao.salvar(deJoao);
+        session.flush();
+        session.createSQLQuery("update EstatisticasDoUsuario set quantidadeDeLances = 7 " +
+                "where usuarioId = :joao").setParameter("joao", joao.getId()).executeUpdate();
+        session.clear();
+
+        leilaoDao.deletaEncerrados();
+        session.clear();
+
+        EstatisticasDoUsuario doJose = leilaoDao.getEstatisticasDoUsuario(jose);
+        assertEquals(1, doJose.getQuantidadeDeLeiloes());
+        assertEquals(100.0, doJose.getValorInicialMedio(), 0.00001);
+        assertEquals(0, leilaoDao.getEstatisticasDoUsuario(maria).getQuantidadeDeLances());
+        assertEquals(7, leilaoDao.getEstatisticasDoUsuario(joao).getQuantidadeDeLances());
+    }
+
+    @Test
+    public void deveArquivarEmLotesRefazendoAsEstatisticasDeCadaLote() {
+        Usuario maria = new Usuario("Maria", "maria@maria.com.br");
+        Usuario joao = new Usuario("Joao", "joao@joao.com.br");
+        Leilao primeiro = new LeilaoBuilder().comDono(jose).comValor(500.0).encerrado().constroi();
+        primeiro.adicionaLance(new Lance(Calendar.getInstance(), maria, 600.0, primeiro));
+        Leilao segundo = new LeilaoBuilder().comDono(maria).comValor(300.0).encerrado().constroi();
+        segundo.adicionaLance(new Lance(Calendar.getInstance(), jose, 400.0, segundo));
+        Leilao aberto = new LeilaoBuilder().comDono(jose).comValor(100.0).constroi();
+        Leilao deJoao = new LeilaoBuilder().comDono(joao).comValor(50.0).constroi();
+
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+        usuarioDao.salvar(joao);
+        leilaoDao.salvar(primeiro);
+        leilaoDao.salvar(segundo);
+        leilaoDao.salvar(aberto);
+        leilaoDao.salvar(deJoao);
+        session.flush();
+        session.createSQLQuery("update EstatisticasDoUsuario set quantidadeDeLances = 7 " +
+                "where usuarioId = :joao").setParameter("joao", joao.getId()).executeUpdate();
+        session.getTransaction().commit();
+        session.clear();
+
+        Session doArquivador = BancoDeTeste.criador().getSession();
+        try {
+            ArquivadorDeLeiloes arquivador = new ArquivadorDeLeiloes(doArquivador, 1);
+            assertEquals(2, arquivador.arquivaEncerrados());
+            assertEquals(0, arquivador.arquivaEncerrados());
+        } finally {
+            doArquivador.close();
+        }
+
+        session.beginTransaction();
+        EstatisticasDoUsuario doJose = leilaoDao.getEstatisticasDoUsuario(jose);
+        assertEquals(1, doJose.getQuantidadeDeLeiloes());
+        assertEquals(100.0, doJose.getValorInicialMedio(), 0.00001);
+        assertEquals(0, doJose.getQuantidadeDeLances());
+        assertEquals(0, leilaoDao.getEstatisticasDoUsuario(maria).getQuantidadeDeLeiloes());
+        assertEquals(0, leilaoDao.getEstatisticasDoUsuario(maria).getQuantidadeDeLances());
+        assertEquals(7, leilaoDao.getEstatisticasDoUsuario(joao).getQuantidadeDeLances());
+        assertEquals(2L, ((Number) session.createSQLQuery("select count(*) from LeilaoArquivado")
+                .uniqueResult()).longValue());
+    }
+
     @Test
     public void deveDeletarUmUsuario() {
 
@@ -316,10 +510,672 @@ public class LeilaoDaoTest {
         assertNotNull(joseAtualizado);
     }
 
+    @Test
+    public void deveSalvarLeiloesELancesEmLote() {
+        usuarioDao.salvar(jose);
+
+        List<Leilao> leiloes = new ArrayList<Leilao>();
+        for (int i = 0; i < 3; i++) {
+            Leilao leilao = new LeilaoBuilder()
+                    .comNome("leilao " + i)
+                    .comDono(jose)
+                    .constroi();
+            leilao.adicionaLance(new Lance(Calendar.getInstance(), jose, 100.0, leilao));
+            leilao.adicionaLance(new Lance(Calendar.getInstance(), jose, 200.0, leilao));
+            leiloes.add(leilao);
+        }
+
+        leilaoDao.salvarEmLote(leiloes, 2);
+
+        assertTrue(session.contains(jose));
+        assertFalse(session.contains(leiloes.get(1)));
+        assertEquals(3L, (long) leilaoDao.total());
+        assertEquals(2, leilaoDao.porId(leiloes.get(1).getId()).getLances().size());
+    }
+
+    @Test
+    public void deveTrazerLeiloesDisputadosNoIntervaloDeValor() {
+        Leilao disputado = new LeilaoBuilder()
+                .comDono(jose)
+                .comValor(800.0)
+                .constroi();
+        for (int i = 0; i < 4; i++) {
+            disputado.adicionaLance(new Lance(Calendar.getInstance(), maria, 900.0 + i, disputado));
+        }
+
+        Leilao poucosLances = new LeilaoBuilder()
+                .comDono(jose)
+                .comValor(800.0)
+                .constroi();
+        poucosLances.adicionaLance(new Lance(Calendar.getInstance(), maria, 900.0, poucosLances));
+
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+        leilaoDao.salvar(disputado);
+        leilaoDao.salvar(poucosLances);
+
+        List<Leilao> leiloes = leilaoDao.disputadosEntre(500.0, 1000.0);
+
+        assertEquals(1, leiloes.size());
+        assertEquals(disputado, leiloes.get(0));
+    }
+
+    @Test
+    public void deveCorrigirQuantidadeDeLancesDesatualizada() {
+        Leilao leilao = new LeilaoBuilder()
+                .comDono(jose)
+                .constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(leilao);
+        leilaoDao.salvaLance(new Lance(Calendar.getInstance(), jose, 100.0, leilao));
+        leilaoDao.salvaLance(new Lance(Calendar.getInstance(), jose, 200.0, leilao));
+        session.flush();
+
+        assertEquals(1, leilaoDao.corrigeQuantidadeDeLances());
+
+        session.clear();
+        assertEquals(2, leilaoDao.porId(leilao.getId()).getQuantidadeDeLances());
+    }
+
+    @Test
+    public void devePercorrerLeiloesNovosSemManteLosNaSessao() {
+        Leilao usado = new LeilaoBuilder()
+                .comNome("geladeira")
+                .comDono(jose)
+                .usado()
+                .constroi();
+
+        Leilao novo = new LeilaoBuilder()
+                .comNome("xbox")
+                .comDono(jose)
+                .constroi();
+
+        Usuario maria = new Usuario("Maria", "maria@maria.com.br");
+        novo.adicionaLance(new Lance(Calendar.getInstance(), maria, 100.0, novo));
+
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+        leilaoDao.salvar(usado);
+        leilaoDao.salvar(novo);
+        session.flush();
+        session.clear();
+
+        final List<Leilao> percorridos = new ArrayList<Leilao>();
+        leilaoDao.percorreNovos(new ProcessadorDeLeilao() {
+            public void processa(Leilao leilao) {
+                percorridos.add(leilao);
+                assertEquals("jose", leilao.getDono().getNome());
+                assertEquals(1, leilao.getLances().size());
+                assertEquals("Maria", leilao.getLances().get(0).getUsuario().getNome());
+            }
+        });
+
+        assertEquals(1, percorridos.size());
+        Leilao percorrido = percorridos.get(0);
+        assertEquals("xbox", percorrido.getNome());
+        assertFalse(session.contains(percorrido));
+        assertFalse(session.contains(percorrido.getDono()));
+        assertFalse(session.contains(percorrido.getLances().get(0)));
+        assertFalse(session.contains(percorrido.getLances().get(0).getUsuario()));
+    }
+
+    @Test
+    public void devePercorrerMaisLeiloesQueOLimiteDaSessaoDoPercurso() {
+        usuarioDao.salvar(jose);
+        for(int i = 0; i < 250; i++) {
+            leilaoDao.salvar(new LeilaoBuilder().comNome("leilao " + i).comDono(jose).constroi());
+        }
+        session.flush();
+        session.clear();
+
+        final List<String> nomes = new ArrayList<String>();
+        int processados = leilaoDao.percorreNovos(new ProcessadorDeLeilao() {
+            public void processa(Leilao leilao) {
+                nomes.add(leilao.getNome());
+                assertEquals("jose", leilao.getDono().getNome());
+            }
+        });
+
+        assertEquals(250, processados);
+        assertEquals(250, nomes.size());
+    }
+
+    @Test
+    public void devePaginarLeiloesNovosPorContinuacao() {
+        Leilao primeiro = new LeilaoBuilder().comNome("primeiro").comDono(jose).diasAtras(3).constroi();
+        Leilao segundo = new LeilaoBuilder().comNome("segundo").comDono(jose).diasAtras(2).constroi();
+        Leilao terceiro = new LeilaoBuilder().comNome("terceiro").comDono(jose).diasAtras(1).constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(terceiro);
+        leilaoDao.salvar(primeiro);
+        leilaoDao.salvar(segundo);
+
+        Pagina<Leilao> pagina1 = leilaoDao.novos(null, 2);
+        assertEquals(2, pagina1.getItens().size());
+        assertEquals(primeiro, pagina1.getItens().get(0));
+        assertEquals(segundo, pagina1.getItens().get(1));
+        assertTrue(pagina1.temProxima());
+
+        Pagina<Leilao> pagina2 = leilaoDao.novos(pagina1.getContinuacao(), 2);
+        assertEquals(1, pagina2.getItens().size());
+        assertEquals(terceiro, pagina2.getItens().get(0));
+        assertFalse(pagina2.temProxima());
+    }
+
+    @Test
+    public void planoResumoBuscaLeiloesEDonosNumaUnicaConsulta() {
+        salvaLeiloesComLancesDeJose();
+
+        List<Leilao> leiloes = leilaoDao.listaLeiloesDoUsuario(jose, PlanoDeBusca.RESUMO);
+        for (Leilao leilao : leiloes) {
+            leilao.getDono().getNome();
+        }
+
+        assertEquals(2, leiloes.size());
+        assertEquals(1, contadorDeSql.getQuantidade());
+    }
+
+    @Test
+    public void planoCompletoBuscaLancesEUsuariosNumaUnicaConsulta() {
+        salvaLeiloesComLancesDeJose();
+
+        List<Leilao> leiloes = leilaoDao.listaLeiloesDoUsuario(jose, PlanoDeBusca.COMPLETO);
+        int lances = 0;
+        for (Leilao leilao : leiloes) {
+            leilao.getDono().getNome();
+            for (Lance lance : leilao.getLances()) {
+                lance.getUsuario().getNome();
+                lances++;
+            }
+        }
+
+        assertEquals(2, leiloes.size());
+        assertEquals(4, lances);
+        assertEquals(1, contadorDeSql.getQuantidade());
+    }
+
+    private void salvaLeiloesComLancesDeJose() {
+        usuarioDao.salvar(jose);
+        usuarioDao.salvar(maria);
+
+        for (int i = 0; i < 2; i++) {
+            Leilao leilao = new LeilaoBuilder().comDono(maria).constroi();
+            leilao.adicionaLance(new Lance(Calendar.getInstance(), jose, 100.0, leilao));
+            leilao.adicionaLance(new Lance(Calendar.getInstance(), maria, 200.0, leilao));
+            leilaoDao.salvar(leilao);
+        }
+
+        session.flush();
+        session.clear();
+        contadorDeSql.zera();
+    }
+
+    @Test
+    public void deveTrazerResumoDosLeiloesNovosForaDaSessao() {
+        Leilao usado = new LeilaoBuilder()
+                .comNome("geladeira")
+                .comDono(jose)
+                .usado()
+                .constroi();
+
+        Leilao novo = new LeilaoBuilder()
+                .comNome("xbox")
+                .comValor(700.0)
+                .comDono(jose)
+                .constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(usado);
+        leilaoDao.salvar(novo);
+        session.flush();
+        session.clear();
+
+        List<ResumoDeLeilao> resumos = leilaoDao.resumoDosNovos();
+
+        assertEquals(1, resumos.size());
+        assertEquals(novo.getId(), resumos.get(0).getId());
+        assertEquals("xbox", resumos.get(0).getNome());
+        assertEquals(700.0, resumos.get(0).getValorInicial(), 0.00001);
+    }
+
+    @Test
+    public void deveDeletarEncerradosJuntoComSeusLances() {
+        Leilao encerrado = new LeilaoBuilder()
+                .comDono(jose)
+                .encerrado()
+                .constroi();
+        encerrado.adicionaLance(new Lance(Calendar.getInstance(), jose, 100.0, encerrado));
+
+        Leilao aberto = new LeilaoBuilder()
+                .comDono(jose)
+                .constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(encerrado);
+        leilaoDao.salvar(aberto);
+        session.flush();
+
+        leilaoDao.deletaEncerrados();
+        session.clear();
+
+        assertNull(leilaoDao.porId(encerrado.getId()));
+        assertNotNull(leilaoDao.porId(aberto.getId()));
+    }
+
+    @Test
+    public void deveEncerrarEmMassaLeiloesAbertosAntesDaData() {
+        Leilao antigo = new LeilaoBuilder()
+                .comDono(jose)
+                .diasAtras(10)
+                .constroi();
+
+        Leilao recente = new LeilaoBuilder()
+                .comDono(jose)
+                .diasAtras(1)
+                .constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(antigo);
+        leilaoDao.salvar(recente);
+        session.flush();
+
+        int encerrados = leilaoDao.encerraAbertosAntesDe(manipularInstante(-5));
+        session.clear();
+
+        assertEquals(1, encerrados);
+        assertTrue(leilaoDao.porId(antigo.getId()).isEncerrado());
+        assertFalse(leilaoDao.porId(recente.getId()).isEncerrado());
+    }
+
     private static Calendar manipularInstante(int dias) {
         Calendar instante = Calendar.getInstance();
         instante.add(Calendar.DAY_OF_MONTH, dias);
 
         return instante;
     }
+
+    @Test
+    public void deveRegistrarMetricasDeCadaMetodo() {
+        Properties semJmx = new Properties();
+        semJmx.setProperty("pm73.metricas.jmx", "false");
+        semJmx.setProperty("pm73.metricas.habilitadas", "true");
+        MetricasDeDao metricas = new MetricasDeDao(new ConfiguracaoDoBanco(semJmx));
+        LeilaoDao dao = metricas.cria(LeilaoDao.class, session);
+
+        usuarioDao.salvar(jose);
+        dao.salvar(new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi());
+        dao.salvar(new LeilaoBuilder().comNome("xbox").comDono(jose).constroi());
+        session.flush();
+        session.clear();
+
+        dao.novos();
+        dao.novos();
+
+        MetricaDeMetodo novos = metricas.metrica("LeilaoDao.novos()");
+        assertEquals(2L, novos.getChamadas());
+        assertEquals(4L, novos.getLinhas());
+        assertTrue(novos.getSqls() >= 2);
+        assertTrue(novos.getEntidadesCarregadas() >= 2);
+        assertEquals(2L, metricas.metrica("LeilaoDao.salvar(Leilao)").getChamadas());
+
+        dao.salvarEmLote(Arrays.asList(new LeilaoBuilder().comDono(jose).constroi()));
+        assertEquals(1L, metricas.metrica("LeilaoDao.salvarEmLote(Collection)").getChamadas());
+        assertEquals(0L, metricas.metrica("LeilaoDao.salvarEmLote(Collection,int)").getChamadas());
+    }
+
+    @Test
+    public void deveLerNaSessaoDeLeituraAteAPrimeiraEscrita() {
+        ContadorDeSql sqlDaLeitura = new ContadorDeSql();
+        Session leitura = BancoDeTeste.criador().getSession(sqlDaLeitura);
+        try {
+            LeilaoDao dao = new LeilaoDao(session, leitura);
+            contadorDeSql.zera();
+
+            dao.total();
+            assertEquals(1, sqlDaLeitura.getQuantidade());
+            assertEquals(0, contadorDeSql.getQuantidade());
+
+            usuarioDao.salvar(jose);
+            dao.salvar(new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi());
+            assertEquals(1L, dao.total().longValue());
+            assertEquals(1, sqlDaLeitura.getQuantidade());
+        } finally {
+            leitura.close();
+        }
+    }
+
+    @Test
+    public void deveGuardarDataDeAberturaEmMilis() {
+        Leilao leilao = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+        leilao.setDataAberturaEmMilis(1325376000123L);
+        leilao.adicionaLance(new Lance(1325376000456L, jose, 100.0, leilao));
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(leilao);
+        session.flush();
+        session.clear();
+
+        Leilao doBanco = leilaoDao.porId(leilao.getId());
+        assertEquals(1325376000123L, doBanco.getDataAberturaEmMilis());
+        assertEquals(1325376000123L, doBanco.getDataAbertura().getTimeInMillis());
+        assertEquals(1325376000456L, doBanco.getLances().get(0).getDataEmMilis());
+    }
+
+    @Test
+    public void deveBuscarVariosPorIdsNaOrdemPedidaReaproveitandoASessao() {
+        Leilao geladeira = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+        Leilao xbox = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+        Leilao tv = new LeilaoBuilder().comNome("tv").comDono(jose).constroi();
+
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(geladeira);
+        leilaoDao.salvar(xbox);
+        leilaoDao.salvar(tv);
+        session.flush();
+        session.clear();
+
+        Leilao jaCarregado = leilaoDao.porId(xbox.getId());
+        contadorDeSql.zera();
+
+        int inexistente = tv.getId() + 1000;
+        ResultadoPorIds<Leilao> resultado = leilaoDao.porIds(
+                Arrays.asList(tv.getId(), inexistente, xbox.getId(), geladeira.getId(), tv.getId()));
+
+        assertEquals(1, contadorDeSql.getQuantidade());
+        assertEquals(3, resultado.getEncontrados().size());
+        assertEquals("tv", resultado.getEncontrados().get(0).getNome());
+        assertSame(jaCarregado, resultado.getEncontrados().get(1));
+        assertEquals("geladeira", resultado.getEncontrados().get(2).getNome());
+        assertEquals(Arrays.asList(inexistente), resultado.getAusentes());
+        assertNull(resultado.get(inexistente));
+    }
+
+    @Test
+    public void carregadorEmLoteJuntaBuscasPorIdNumaUnicaConsulta() {
+        usuarioDao.salvar(maria);
+        usuarioDao.salvar(jose);
+        session.flush();
+        session.clear();
+        contadorDeSql.zera();
+
+        CarregadorEmLote<Usuario> carregador = CarregadorEmLote.deUsuarios(usuarioDao);
+        CarregadorEmLote<Usuario>.Adiado primeiro = carregador.carrega(maria.getId());
+        CarregadorEmLote<Usuario>.Adiado segundo = carregador.carrega(jose.getId());
+        CarregadorEmLote<Usuario>.Adiado repetido = carregador.carrega(maria.getId());
+
+        assertEquals("maria", primeiro.get().getNome());
+        assertEquals("jose", segundo.get().getNome());
+        assertSame(primeiro.get(), repetido.get());
+        assertEquals(1, carregador.getBuscas());
+        assertEquals(1, contadorDeSql.getQuantidade());
+    }
+
+    @Test
+    public void deveGravarEventosDeAlteracaoNaMesmaTransacao() {
+        Leilao leilao = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(leilao);
+
+        Calendar amanha = Calendar.getInstance();
+        amanha.add(Calendar.DAY_OF_MONTH, 1);
+        leilaoDao.encerraAbertosAntesDe(amanha);
+        leilaoDao.deletaEncerrados();
+
+        List<?> tipos = session.createQuery("select e.tipo from EventoDeAlteracao e " +
+                "where e.entidade = 'Leilao' and e.entidadeId = :id order by e.id")
+                .setParameter("id", leilao.getId())
+                .list();
+        assertEquals(Arrays.asList(TipoDeAlteracao.CRIADO, TipoDeAlteracao.ALTERADO, TipoDeAlteracao.REMOVIDO), tipos);
+    }
+
+    @Test
+    public void deveGravarEventosDosLancesCriadosERemovidosJuntoComOLeilao() {
+        Leilao leilao = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+        Lance primeiro = leilao.adicionaLance(new Lance(Calendar.getInstance(), jose, 100.0, leilao));
+        usuarioDao.salvar(jose);
+        leilaoDao.salvar(leilao);
+        session.flush();
+        session.clear();
+
+        Leilao destacado = leilaoDao.porId(leilao.getId());
+        destacado.getLances().size();
+        session.evict(destacado);
+        for (Lance lance : new ArrayList<Lance>(destacado.getLances())) {
+            destacado.removeLance(lance);
+        }
+        destacado.adicionaLance(new Lance(Calendar.getInstance(), jose, 200.0, destacado));
+        leilaoDao.atualiza(destacado);
+        session.flush();
+        int segundo = leilaoDao.porId(leilao.getId()).getLances().get(0).getId();
+
+        leilaoDao.deleta(leilaoDao.porId(leilao.getId()));
+
+        assertEquals(Arrays.asList(TipoDeAlteracao.CRIADO, TipoDeAlteracao.REMOVIDO), eventos("Lance", primeiro.getId()));
+        assertEquals(Arrays.asList(TipoDeAlteracao.CRIADO, TipoDeAlteracao.REMOVIDO), eventos("Lance", segundo));
+        assertEquals(Arrays.asList(TipoDeAlteracao.CRIADO, TipoDeAlteracao.ALTERADO, TipoDeAlteracao.REMOVIDO),
+                eventos("Leilao", leilao.getId()));
+    }
+
+    @Test
+    public void deveGravarEventosDosLancesEmLoteEDosEncerradosApagados() {
+        usuarioDao.salvar(jose);
+        List<Leilao> leiloes = new ArrayList<Leilao>();
+        for (int i = 0; i < 3; i++) {
+            Leilao leilao = new LeilaoBuilder().comDono(jose).encerrado().constroi();
+            leilao.adicionaLance(new Lance(Calendar.getInstance(), jose, 100.0, leilao));
+            leiloes.add(leilao);
+        }
+
+        leilaoDao.salvarEmLote(leiloes, 2);
+        leilaoDao.deletaEncerrados();
+
+        for (Leilao leilao : leiloes) {
+            assertEquals(Arrays.asList(TipoDeAlteracao.CRIADO, TipoDeAlteracao.REMOVIDO),
+                    eventos("Lance", leilao.getLances().get(0).getId()));
+        }
+    }
+
+    @Test
+    public void atualizaDeLeilaoNovoDeveGravarOEventoComOIdGerado() {
+        usuarioDao.salvar(jose);
+        Leilao novo = new LeilaoBuilder().comDono(jose).constroi();
+
+        leilaoDao.atualiza(novo);
+
+        Leilao gravado = leilaoDao.novos().get(0);
+        assertEquals(Arrays.asList(TipoDeAlteracao.CRIADO), eventos("Leilao", gravado.getId()));
+        assertTrue(eventos("Leilao", 0).isEmpty());
+    }
+
+    private List<?> eventos(String entidade, int id) {
+        return session.createQuery("select e.tipo from EventoDeAlteracao e " +
+                "where e.entidade = :entidade and e.entidadeId = :id order by e.id")
+                .setParameter("entidade", entidade)
+                .setParameter("id", id)
+                .list();
+    }
+
+    @Test
+    public void naoDeveGuardarNoCacheOQueAindaNaoFoiCommitado() {
+        CacheDeConsultas cache = new CacheDeConsultas(new ConfiguracaoDoBanco());
+        LeilaoDao comCache = new LeilaoDao(session, cache);
+
+        usuarioDao.salvar(jose);
+        comCache.salvar(new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi());
+        session.flush();
+
+        assertEquals(1, comCache.novos().size());
+        assertEquals(Long.valueOf(1L), comCache.total());
+        session.getTransaction().rollback();
+
+        Session outra = BancoDeTeste.criador().getSession();
+        try {
+            LeilaoDao deOutraSessao = new LeilaoDao(outra, cache);
+            assertTrue(deOutraSessao.novos().isEmpty());
+            assertEquals(Long.valueOf(0L), deOutraSessao.total());
+        } finally {
+            outra.close();
+        }
+        session.beginTransaction();
+    }
+
+    @Test
+    public void deveInvalidarOCacheDepoisDoCommitGuardandoSoIds() {
+        CacheDeConsultas cache = new CacheDeConsultas(new ConfiguracaoDoBanco());
+        Session outra = BancoDeTeste.criador().getSession();
+        try {
+            LeilaoDao leitor = new LeilaoDao(outra, cache);
+            assertTrue(leitor.novos().isEmpty());
+
+            usuarioDao.salvar(jose);
+            new LeilaoDao(session, cache).salvar(new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi());
+            session.getTransaction().commit();
+
+            List<Leilao> novos = leitor.novos();
+            assertEquals(1, novos.size());
+            assertTrue(outra.contains(novos.get(0)));
+            assertSame(novos.get(0), leitor.novos().get(0));
+            assertEquals(1L, cache.getRegiao(CacheDeConsultas.LEILAO_NOVOS).getAcertos());
+        } finally {
+            outra.close();
+        }
+        session.beginTransaction();
+    }
+
+    @Test
+    public void deveServirUsuarioELeilaoDoCacheDeEntidadesMontandoUmaInstanciaPorSessao() {
+        SessionFactory fabrica = fabricaComCacheDeEntidades();
+        try {
+            Leilao geladeira = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+            Session escrita = fabrica.openSession();
+            try {
+                escrita.beginTransaction();
+                new UsuarioDao(escrita).salvar(jose);
+                new LeilaoDao(escrita).salvar(geladeira);
+                escrita.getTransaction().commit();
+            } finally {
+                escrita.close();
+            }
+
+            Leilao primeiro;
+            Session uma = fabrica.openSession();
+            try {
+                primeiro = new LeilaoDao(uma).porId(geladeira.getId());
+                assertEquals("jose", new UsuarioDao(uma).porNomeEEmail("jose", "jose@jose.com").getNome());
+            } finally {
+                uma.close();
+            }
+
+            ContadorDeSql sqls = new ContadorDeSql();
+            Session outra = fabrica.withOptions().interceptor(sqls).openSession();
+            try {
+                Leilao segundo = new LeilaoDao(outra).porId(geladeira.getId());
+                Usuario dono = new UsuarioDao(outra).porNomeEEmail("jose", "jose@jose.com");
+
+                assertEquals(0, sqls.getQuantidade());
+                assertEquals("geladeira", segundo.getNome());
+                assertNotSame(primeiro, segundo);
+                assertTrue(outra.contains(segundo));
+                assertSame(segundo.getDono(), dono);
+            } finally {
+                outra.close();
+            }
+            assertEquals(2L, regiao(fabrica, "Leilao").getAcertos());
+            assertTrue(regiao(fabrica, "Usuario").getAcertos() >= 2L);
+        } finally {
+            fabrica.close();
+        }
+    }
+
+    @Test
+    public void naoDeveServirDoCacheDeEntidadesAlteracaoDesfeitaNemLeilaoAlteradoEmMassa() {
+        SessionFactory fabrica = fabricaComCacheDeEntidades();
+        try {
+            Leilao geladeira = new LeilaoBuilder().comNome("geladeira").comDono(jose).constroi();
+            Session escrita = fabrica.openSession();
+            try {
+                escrita.beginTransaction();
+                new UsuarioDao(escrita).salvar(jose);
+                new LeilaoDao(escrita).salvar(geladeira);
+                escrita.getTransaction().commit();
+
+                escrita.beginTransaction();
+                new LeilaoDao(escrita).porId(geladeira.getId()).setNome("freezer");
+                escrita.flush();
+                escrita.getTransaction().rollback();
+                escrita.clear();
+            } finally {
+                escrita.close();
+            }
+            assertEquals("geladeira", nomeEmNovaSessao(fabrica, geladeira.getId()));
+
+            Session alteracao = fabrica.openSession();
+            try {
+                alteracao.beginTransaction();
+                new LeilaoDao(alteracao).porId(geladeira.getId()).setNome("freezer");
+                alteracao.getTransaction().commit();
+            } finally {
+                alteracao.close();
+            }
+            long acertos = regiao(fabrica, "Leilao").getAcertos();
+            assertEquals("freezer", nomeEmNovaSessao(fabrica, geladeira.getId()));
+            assertEquals(acertos + 1, regiao(fabrica, "Leilao").getAcertos());
+
+            Session emMassa = fabrica.openSession();
+            try {
+                emMassa.beginTransaction();
+                Calendar amanha = Calendar.getInstance();
+                amanha.add(Calendar.DAY_OF_MONTH, 1);
+                assertEquals(1, new LeilaoDao(emMassa).encerraAbertosAntesDe(amanha));
+                emMassa.getTransaction().commit();
+            } finally {
+                emMassa.close();
+            }
+            Session leitura = fabrica.openSession();
+            try {
+                assertTrue(new LeilaoDao(leitura).porId(geladeira.getId()).isEncerrado());
+            } finally {
+                leitura.close();
+            }
+        } finally {
+            fabrica.close();
+        }
+    }
+
+    private static SessionFactory fabricaComCacheDeEntidades() {
+        Properties propriedades = new Properties();
+        propriedades.setProperty("pm73.cache.habilitado", "true");
+        return new CriadorDeSessao().criaConfig(new ConfiguracaoDoBanco(propriedades)).buildSessionFactory();
+    }
+
+    private static RegiaoDeCache regiao(SessionFactory fabrica, String nome) {
+        for (RegiaoDeCache regiao : CriadorDeSessao.regioesDeEntidades(fabrica)) {
+            if (regiao.getNome().equals(nome)) return regiao;
+        }
+        throw new AssertionError("sem a regiao " + nome);
+    }
+
+    private static String nomeEmNovaSessao(SessionFactory fabrica, int id) {
+        Session leitura = fabrica.openSession();
+        try {
+            return new LeilaoDao(leitura).porId(id).getNome();
+        } finally {
+            leitura.close();
+        }
+    }
+
+    @Test
+    public void regiaoDeCacheDescartaResultadoLidoAntesDeUmaInvalidacao() {
+        RegiaoDeCache regiao = new RegiaoDeCache("teste", 60000, 10);
+
+        long geracao = regiao.getGeracao();
+        regiao.limpa();
+        regiao.guarda("novos", Arrays.asList(1, 2), geracao);
+        assertNull(regiao.busca("novos"));
+
+        regiao.guarda("novos", Arrays.asList(1, 2), regiao.getGeracao());
+        assertEquals(Arrays.asList(1, 2), regiao.busca("novos"));
+    }
 }
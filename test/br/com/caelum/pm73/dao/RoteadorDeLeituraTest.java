@@ -0,0 +1,95 @@
+package br.com.caelum.pm73.dao;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class RoteadorDeLeituraTest {
+
+    @Test
+    public void deveRevezarAsReplicasEmRodizio() {
+        Replica a = replica("a", 0);
+        Replica b = replica("b", 0);
+        Replica c = replica("c", 0);
+        RoteadorDeLeitura roteador = new RoteadorDeLeitura(Arrays.asList(a, b, c),
+                RoteadorDeLeitura.Balanceamento.RODIZIO);
+
+        assertSame(a, roteador.escolhe());
+        assertSame(b, roteador.escolhe());
+        assertSame(c, roteador.escolhe());
+        assertSame(a, roteador.escolhe());
+    }
+
+    @Test
+    public void rodizioNaoDeveConsiderarACarga() {
+        Replica ocupada = replica("ocupada", 50);
+        Replica livre = replica("livre", 0);
+        RoteadorDeLeitura roteador = new RoteadorDeLeitura(Arrays.asList(ocupada, livre),
+                RoteadorDeLeitura.Balanceamento.RODIZIO);
+
+        assertSame(ocupada, roteador.escolhe());
+        assertSame(livre, roteador.escolhe());
+    }
+
+    @Test
+    public void deveEscolherAReplicaComMenosConexoesAtivas() {
+        Replica a = replica("a", 5);
+        Replica b = replica("b", 1);
+        Replica c = replica("c", 3);
+        RoteadorDeLeitura roteador = new RoteadorDeLeitura(Arrays.asList(a, b, c),
+                RoteadorDeLeitura.Balanceamento.MENOS_CARREGADA);
+
+        for (int i = 0; i < 5; i++) {
+            assertSame(b, roteador.escolhe());
+        }
+    }
+
+    @Test
+    public void empateNaCargaDeveSeguirORodizio() {
+        Replica a = replica("a", 2);
+        Replica b = replica("b", 2);
+        Replica c = replica("c", 7);
+        RoteadorDeLeitura roteador = new RoteadorDeLeitura(Arrays.asList(a, b, c),
+                RoteadorDeLeitura.Balanceamento.MENOS_CARREGADA);
+
+        assertSame(a, roteador.escolhe());
+        assertSame(b, roteador.escolhe());
+        assertSame(a, roteador.escolhe());
+    }
+
+    @Test
+    public void semReplicasNaoHaOQueEscolher() {
+        RoteadorDeLeitura roteador = new RoteadorDeLeitura(Collections.<Replica>emptyList(),
+                RoteadorDeLeitura.Balanceamento.RODIZIO);
+
+        assertFalse(roteador.temReplicas());
+        try {
+            roteador.escolhe();
+            fail("sem replicas, escolhe() deveria falhar");
+        } catch (IllegalStateException esperada) {
+        }
+    }
+
+    @Test
+    public void deveLerOBalanceamentoPeloNome() {
+        assertEquals(RoteadorDeLeitura.Balanceamento.MENOS_CARREGADA,
+                RoteadorDeLeitura.Balanceamento.de(" menos_carregada "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void naoDeveAceitarBalanceamentoDesconhecido() {
+        RoteadorDeLeitura.Balanceamento.de("aleatorio");
+    }
+
+    private static Replica replica(String url, final int conexoesAtivas) {
+        return new Replica(url, null) {
+            @Override
+            public int getConexoesAtivas() {
+                return conexoesAtivas;
+            }
+        };
+    }
+}
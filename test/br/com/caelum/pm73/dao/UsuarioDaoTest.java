@@ -1,12 +1,14 @@
 package br.com.caelum.pm73.dao;
 
 import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
 public class UsuarioDaoTest {
@@ -16,7 +18,8 @@ public class UsuarioDaoTest {
 
     @Before
     public void init() {
-        this.session = new CriadorDeSessao().getSession();
+        BancoDeTeste.restaura();
+        this.session = BancoDeTeste.criador().getSession();
         this.usuarioDao = new UsuarioDao(session);
 
         this.session.beginTransaction();
@@ -46,4 +49,107 @@ public class UsuarioDaoTest {
         Usuario usuario = usuarioDao.porNomeEEmail("João da Silva", "joao@dasilva.com");
         assertNull(usuario);
     }
+
+    @Test
+    public void deveGuardarIdentidadeAteOUsuarioSerAtualizado() {
+        CacheDeIdentidades identidades = new CacheDeIdentidades(100, 60000);
+        UsuarioDao usuarioDaoComCache = new UsuarioDao(session, session,
+                identidades);
+
+        Usuario novoUsuario = new Usuario("João da Silva", "joao@dasilva.com");
+        usuarioDaoComCache.salvar(novoUsuario);
+
+        usuarioDaoComCache.porNomeEEmail("João da Silva", "joao@dasilva.com");
+        usuarioDaoComCache.porNomeEEmail("João da Silva", "joao@dasilva.com");
+        assertEquals(1L, identidades.getAcertos());
+
+        usuarioDaoComCache.atualizar(novoUsuario);
+        usuarioDaoComCache.porNomeEEmail("João da Silva", "joao@dasilva.com");
+        assertEquals(2L, identidades.getFalhas());
+    }
+
+    @Test
+    public void deveGuardarBuscaSemResultadoAteOUsuarioSerSalvo() {
+        CacheDeIdentidades identidades = new CacheDeIdentidades(100, 60000);
+        UsuarioDao usuarioDaoComCache = new UsuarioDao(session, session,
+                identidades);
+
+        assertNull(usuarioDaoComCache.porNomeEEmail("João da Silva", "joao@dasilva.com"));
+        assertNull(usuarioDaoComCache.porNomeEEmail("João da Silva", "joao@dasilva.com"));
+        assertEquals(1L, identidades.getAcertosDeAusentes());
+
+        usuarioDaoComCache.salvar(new Usuario("João da Silva", "joao@dasilva.com"));
+        assertNotNull(usuarioDaoComCache.porNomeEEmail("João da Silva", "joao@dasilva.com"));
+    }
+
+    @Test
+    public void deveBuscarPeloEmailNormalizado() {
+        usuarioDao.salvar(new Usuario("João da Silva", "Joao@DaSilva.com"));
+
+        Usuario usuario = usuarioDao.porNomeEEmail("João da Silva", " joao@dasilva.COM ");
+
+        assertNotNull(usuario);
+        assertEquals("Joao@DaSilva.com", usuario.getEmail());
+    }
+
+    @Test(expected = HibernateException.class)
+    public void naoDevePermitirDoisUsuariosComOMesmoEmail() {
+        usuarioDao.salvar(new Usuario("João da Silva", "joao@dasilva.com"));
+        usuarioDao.salvar(new Usuario("Joao Silva", "JOAO@dasilva.com"));
+        session.flush();
+    }
+
+    @Test
+    public void deveLerDaSessaoPrincipalDepoisDaEscritaDeOutroDaoDaMesmaSessao() {
+        Session replica = replicaFechada();
+        UsuarioDao escritor = new UsuarioDao(session, replica, CacheDeIdentidades.DESLIGADO);
+        UsuarioDao leitor = new UsuarioDao(session, replica, CacheDeIdentidades.DESLIGADO);
+
+        escritor.salvar(new Usuario("João da Silva", "joao@dasilva.com"));
+
+        assertNotNull(leitor.porNomeEEmail("João da Silva", "joao@dasilva.com"));
+    }
+
+    @Test
+    public void deveLerDaSessaoPrincipalComAlteracoesFeitasForaDoDao() {
+        Session replica = replicaFechada();
+        session.save(new Usuario("João da Silva", "joao@dasilva.com"));
+
+        UsuarioDao leitor = new UsuarioDao(session, replica, CacheDeIdentidades.DESLIGADO);
+
+        assertNotNull(leitor.porNomeEEmail("João da Silva", "joao@dasilva.com"));
+    }
+
+    @Test(expected = HibernateException.class)
+    public void semEscritasNaSessaoDeveLerDaSessaoDeLeitura() {
+        UsuarioDao leitor = new UsuarioDao(session, replicaFechada(), CacheDeIdentidades.DESLIGADO);
+
+        leitor.porNomeEEmail("João da Silva", "joao@dasilva.com");
+    }
+
+    /**
+     * Uma leitura que cair na "replica" falha, em vez de travar esperando
+     * as escritas nao commitadas da sessao principal.
+     */
+    private Session replicaFechada() {
+        Session replica = BancoDeTeste.criador().getSessionDeLeitura();
+        replica.close();
+        return replica;
+    }
+
+    @Test
+    public void deveNormalizarOEmailDeUsuariosGravadosSemEle() {
+        session.createSQLQuery("insert into Usuario (id, nome, email, emailNormalizado) " +
+                "values (999999, 'Maria', '  Maria@Silva.com ', null)")
+                .executeUpdate();
+        assertNull(usuarioDao.porNomeEEmail("Maria", "maria@silva.com"));
+
+        assertEquals(1, usuarioDao.normalizaEmails());
+
+        session.clear();
+        Usuario maria = usuarioDao.porNomeEEmail("Maria", "maria@silva.com");
+        assertNotNull(maria);
+        assertEquals("maria@silva.com", maria.getEmailNormalizado());
+        assertEquals(0, usuarioDao.normalizaEmails());
+    }
 }
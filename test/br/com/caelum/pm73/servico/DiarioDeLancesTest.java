@@ -0,0 +1,173 @@
+package br.com.caelum.pm73.servico;
+
+import br.com.caelum.pm73.dao.BancoDeTeste;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.LanceRejeitado;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DiarioDeLancesTest {
+
+    private static final int SEGMENTO = 64 * SegmentoDoDiario.TAMANHO_DO_REGISTRO;
+    private static final long SEM_GRAVADOR = TimeUnit.HOURS.toMillis(1);
+
+    private CriadorDeSessao criador;
+    private File base;
+    private File diretorio;
+    private Usuario maria;
+    private Leilao leilao;
+    private final List<DiarioDeLances> abertos = new ArrayList<DiarioDeLances>();
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+        this.base = new File(System.getProperty("java.io.tmpdir"), "pm73-diario-teste-" + System.nanoTime());
+        this.diretorio = new File(base, "lances");
+
+        Usuario jose = new Usuario("jose", "jose@jose.com");
+        this.maria = new Usuario("maria", "maria@maria.com");
+        this.leilao = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            new UsuarioDao(session).salvar(jose);
+            new UsuarioDao(session).salvar(maria);
+            new LeilaoDao(session).salvar(leilao);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    @After
+    public void fecha() throws InterruptedException {
+        for (DiarioDeLances diario : abertos) {
+            diario.fecha();
+        }
+        apaga(base);
+    }
+
+    @Test
+    public void deveGravarCadaLanceUmaUnicaVezAoReabrirAntesDeDescarregar() throws Exception {
+        DiarioDeLances antesDaQueda = abre();
+        for (int i = 0; i < 5; i++) {
+            antesDaQueda.registra(leilao.getId(), maria.getId(), 100.0 + i);
+        }
+        assertEquals(5, antesDaQueda.getPendentes());
+        assertEquals(0L, lancesNoBanco());
+
+        DiarioDeLances aposAQueda = abre();
+        assertEquals(5, aposAQueda.getPendentes());
+        assertEquals(5, aposAQueda.descarrega());
+        assertEquals(5L, lancesNoBanco());
+
+        assertEquals(5, antesDaQueda.descarrega());
+        assertEquals(0, antesDaQueda.getGravados());
+        assertEquals(5L, lancesNoBanco());
+
+        assertEquals(0, abre().getPendentes());
+        assertEquals(5L, lancesNoBanco());
+    }
+
+    @Test
+    public void deveIgnorarRegistroPelaMetadeNoFimDoSegmento() throws Exception {
+        DiarioDeLances diario = abre();
+        for (int i = 0; i < 3; i++) {
+            diario.registra(leilao.getId(), maria.getId(), 100.0 + i);
+        }
+
+        RandomAccessFile arquivo = new RandomAccessFile(new File(diretorio, SegmentoDoDiario.nomeDoArquivo(0)), "rw");
+        try {
+            arquivo.seek(3 * SegmentoDoDiario.TAMANHO_DO_REGISTRO);
+            arquivo.writeLong(4);
+            arquivo.writeInt(leilao.getId());
+        } finally {
+            arquivo.close();
+        }
+
+        DiarioDeLances reaberto = abre();
+        assertEquals(3, reaberto.getPendentes());
+        assertEquals(3, reaberto.descarrega());
+        assertEquals(3L, lancesNoBanco());
+
+        assertEquals(4L, reaberto.registra(leilao.getId(), maria.getId(), 500.0));
+        assertEquals(1, reaberto.descarrega());
+        assertEquals(4L, lancesNoBanco());
+        assertEquals(0, abre().getPendentes());
+    }
+
+    @Test
+    public void deveRejeitarLanceDeLeilaoInexistenteEAvancarAPosicao() throws Exception {
+        DiarioDeLances diario = abre();
+        diario.registra(999999, maria.getId(), 100.0);
+        diario.registra(leilao.getId(), maria.getId(), 200.0);
+
+        assertEquals(2, diario.descarrega());
+
+        assertEquals(1L, lancesNoBanco());
+        assertEquals(1, diario.getRejeitados());
+        Session session = criador.getSession();
+        try {
+            LanceRejeitado rejeitado = (LanceRejeitado) session.createQuery("from LanceRejeitado").uniqueResult();
+            assertEquals(1L, rejeitado.getSequencia());
+            assertEquals(diario.getChave(), rejeitado.getOrigem());
+            assertEquals("Leilao inexistente: 999999", rejeitado.getMotivo());
+        } finally {
+            session.close();
+        }
+        assertEquals(0, abre().getPendentes());
+    }
+
+    @Test
+    public void deveGuardarAPosicaoPeloCaminhoCanonico() throws Exception {
+        String um = new DiarioDeLances(criador, new File(base, "um/lances"), SEGMENTO, 10).getChave();
+        String dois = new DiarioDeLances(criador, new File(base, "dois/lances"), SEGMENTO, 10).getChave();
+        String volta = new DiarioDeLances(criador, new File(base, "dois/../um/lances"), SEGMENTO, 10).getChave();
+
+        assertFalse(um.equals(dois));
+        assertEquals(um, volta);
+    }
+
+    private DiarioDeLances abre() throws Exception {
+        DiarioDeLances diario = new DiarioDeLances(criador, diretorio, SEGMENTO, 10);
+        diario.abre(SEM_GRAVADOR);
+        abertos.add(diario);
+        return diario;
+    }
+
+    private long lancesNoBanco() {
+        Session session = criador.getSession();
+        try {
+            return (Long) session.createQuery("select count(l) from Lance l").uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static void apaga(File arquivo) {
+        File[] filhos = arquivo.listFiles();
+        if (filhos != null) {
+            for (File filho : filhos) {
+                apaga(filho);
+            }
+        }
+        arquivo.delete();
+    }
+}
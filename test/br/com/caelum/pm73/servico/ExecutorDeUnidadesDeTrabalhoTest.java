@@ -0,0 +1,129 @@
+package br.com.caelum.pm73.servico;
+
+import br.com.caelum.pm73.dao.BancoDeTeste;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ExecutorDeUnidadesDeTrabalhoTest {
+
+    private static final int VAGAS = 2;
+    private static final long ESPERA_EM_MILIS = 30;
+
+    private CriadorDeSessao criador;
+    private ExecutorDeUnidadesDeTrabalho executor;
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+        this.executor = new ExecutorDeUnidadesDeTrabalho(criador, VAGAS);
+    }
+
+    @After
+    public void fecha() throws InterruptedException {
+        executor.fecha(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Test
+    public void naoDeveRodarMaisUnidadesQueVagas() throws Exception {
+        final AtomicInteger simultaneas = new AtomicInteger();
+        final AtomicInteger maximo = new AtomicInteger();
+        final Set<Thread> usadas = Collections.synchronizedSet(new HashSet<Thread>());
+
+        List<Future<Integer>> resultados = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            resultados.add(executor.submete(new UnidadeDeTrabalho<Integer>() {
+                public Integer executa(Session session) {
+                    int agora = simultaneas.incrementAndGet();
+                    atualizaMaximo(maximo, agora);
+                    usadas.add(Thread.currentThread());
+                    dorme(ESPERA_EM_MILIS);
+                    simultaneas.decrementAndGet();
+                    return agora;
+                }
+            }));
+        }
+        for (Future<Integer> resultado : resultados) {
+            resultado.get(10, TimeUnit.SECONDS);
+        }
+
+        assertTrue("maximo de " + maximo.get() + " unidades ao mesmo tempo", maximo.get() <= VAGAS);
+        if (!executor.isThreadsVirtuais()) {
+            assertTrue(usadas.size() + " threads para " + VAGAS + " vagas", usadas.size() <= VAGAS);
+        }
+        assertEquals(0, executor.getEmAndamento());
+    }
+
+    @Test
+    public void deveRegistrarLatenciaEEsperaPorVagaDeCadaUnidade() throws Exception {
+        List<Future<Void>> resultados = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 4; i++) {
+            resultados.add(executor.submeteLeitura(new UnidadeDeTrabalho<Void>() {
+                public Void executa(Session session) {
+                    dorme(ESPERA_EM_MILIS);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> resultado : resultados) {
+            resultado.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(4, executor.getLatencias().getQuantidade());
+        assertEquals(4, executor.getEsperasPorVaga().getQuantidade());
+        assertTrue(executor.getLatencias().getMaximoEmMicros() >= TimeUnit.MILLISECONDS.toMicros(ESPERA_EM_MILIS));
+    }
+
+    @Test
+    public void deveContarUnidadeQueFalha() throws Exception {
+        Future<Void> resultado = executor.submete(new UnidadeDeTrabalho<Void>() {
+            public Void executa(Session session) {
+                throw new IllegalStateException("falhou");
+            }
+        });
+
+        try {
+            resultado.get(10, TimeUnit.SECONDS);
+            fail("a unidade deveria falhar");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, executor.getFalhas());
+        assertEquals(1, executor.getLatencias().getQuantidade());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void naoDeveAceitarExecutorSemVagas() {
+        new ExecutorDeUnidadesDeTrabalho(criador, 0);
+    }
+
+    private static void atualizaMaximo(AtomicInteger maximo, int valor) {
+        int atual = maximo.get();
+        while (valor > atual && !maximo.compareAndSet(atual, valor)) {
+            atual = maximo.get();
+        }
+    }
+
+    private static void dorme(long milis) {
+        try {
+            Thread.sleep(milis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package br.com.caelum.pm73.servico;
+
+import br.com.caelum.pm73.servico.LivroDeLances.PosicaoNoRanking;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LivroDeLancesTest {
+
+    @Test
+    public void deveOrdenarORankingDoMaiorParaOMenor() {
+        LivroDeLances livro = new LivroDeLances(1, 3);
+
+        livro.registra(10, 100.0);
+        livro.registra(20, 300.0);
+        livro.registra(30, 200.0);
+
+        List<PosicaoNoRanking> ranking = livro.getRanking();
+        assertEquals(3, ranking.size());
+        assertEquals(20, ranking.get(0).getUsuarioId());
+        assertEquals(30, ranking.get(1).getUsuarioId());
+        assertEquals(10, ranking.get(2).getUsuarioId());
+        assertEquals(300.0, livro.getMaiorLance(), 0.00001);
+        assertEquals(3, livro.getQuantidadeDeLances());
+    }
+
+    @Test
+    public void deveManterSoOMaiorLanceDeCadaUsuario() {
+        LivroDeLances livro = new LivroDeLances(1, 3);
+
+        livro.registra(10, 100.0);
+        livro.registra(20, 150.0);
+        livro.registra(10, 400.0);
+        livro.registra(10, 50.0);
+
+        List<PosicaoNoRanking> ranking = livro.getRanking();
+        assertEquals(2, ranking.size());
+        assertEquals(10, ranking.get(0).getUsuarioId());
+        assertEquals(400.0, ranking.get(0).getValor(), 0.00001);
+        assertEquals(20, ranking.get(1).getUsuarioId());
+        assertEquals(4, livro.getQuantidadeDeLances());
+    }
+
+    @Test
+    public void rankingCheioSoAceitaLanceAcimaDoUltimo() {
+        LivroDeLances livro = new LivroDeLances(1, 2);
+
+        livro.registra(10, 100.0);
+        livro.registra(20, 200.0);
+        livro.registra(30, 100.0);
+        livro.registra(40, 150.0);
+
+        List<PosicaoNoRanking> ranking = livro.getRanking();
+        assertEquals(2, ranking.size());
+        assertEquals(20, ranking.get(0).getUsuarioId());
+        assertEquals(40, ranking.get(1).getUsuarioId());
+        assertEquals(150.0, ranking.get(1).getValor(), 0.00001);
+    }
+
+    @Test
+    public void livroSemLancesTemRankingVazio() {
+        LivroDeLances livro = new LivroDeLances(1, 5);
+
+        assertFalse(livro.temLances());
+        assertTrue(livro.getRanking().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void naoDeveAceitarRankingSemPosicoes() {
+        new LivroDeLances(1, 0);
+    }
+
+    @Test
+    public void deveManterORankingOrdenadoComLancesConcorrentes() throws InterruptedException {
+        final LivroDeLances livro = new LivroDeLances(1, 10);
+        int threads = 8;
+        final int lancesPorThread = 2000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch largada = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            final int usuario = t;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        largada.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 1; i <= lancesPorThread; i++) {
+                        livro.registra(usuario, i * 10.0 + usuario);
+                    }
+                }
+            });
+        }
+        largada.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        List<PosicaoNoRanking> ranking = livro.getRanking();
+        assertEquals(threads, ranking.size());
+        for (int i = 0; i < threads; i++) {
+            int usuario = threads - 1 - i;
+            assertEquals(usuario, ranking.get(i).getUsuarioId());
+            assertEquals(lancesPorThread * 10.0 + usuario, ranking.get(i).getValor(), 0.00001);
+        }
+        assertEquals(lancesPorThread * 10.0 + threads - 1, livro.getMaiorLance(), 0.00001);
+        assertEquals((long) threads * lancesPorThread, livro.getQuantidadeDeLances());
+    }
+}
@@ -0,0 +1,179 @@
+package br.com.caelum.pm73.servico;
+
+import br.com.caelum.pm73.dao.BancoDeTeste;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.LanceRejeitado;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.Session;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MesaDeLancesTest {
+
+    private CriadorDeSessao criador;
+    private Usuario maria;
+    private Leilao aberto;
+    private Leilao encerrado;
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+
+        Usuario jose = new Usuario("jose", "jose@jose.com");
+        this.maria = new Usuario("maria", "maria@maria.com");
+        this.aberto = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+        this.encerrado = new LeilaoBuilder().comNome("geladeira").comDono(jose).encerrado().constroi();
+
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            new UsuarioDao(session).salvar(jose);
+            new UsuarioDao(session).salvar(maria);
+            new LeilaoDao(session).salvar(aberto);
+            new LeilaoDao(session).salvar(encerrado);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void deveGravarEmLoteOsLancesRegistrados() {
+        MesaDeLances mesa = new MesaDeLances(criador, 3, 2);
+
+        mesa.registra(aberto.getId(), maria.getId(), 100.0);
+        mesa.registra(aberto.getId(), maria.getId(), 200.0);
+        mesa.registra(aberto.getId(), maria.getId(), 300.0);
+
+        assertEquals(300.0, mesa.livroDo(aberto.getId()).getMaiorLance(), 0.00001);
+        assertEquals(3, mesa.getLancesPendentes());
+        assertEquals(2, mesa.descarrega());
+        assertEquals(1, mesa.descarrega());
+        assertEquals(0, mesa.descarrega());
+
+        assertEquals(3L, lancesNoBanco());
+        assertEquals(3, mesa.getLancesGravados());
+        assertEquals(0, mesa.getLancesPendentes());
+    }
+
+    @Test
+    public void deveRejeitarLanceDeLeilaoInexistenteOuEncerradoSemPerderOLote() {
+        MesaDeLances mesa = new MesaDeLances(criador, 3, 10);
+
+        mesa.registra(aberto.getId(), maria.getId(), 100.0);
+        mesa.registra(encerrado.getId(), maria.getId(), 150.0);
+        mesa.registra(999999, maria.getId(), 200.0);
+
+        assertEquals(3, mesa.descarrega());
+
+        assertEquals(1L, lancesNoBanco());
+        assertEquals(1, mesa.getLancesGravados());
+        assertEquals(2, mesa.getLancesRejeitados());
+        List<LanceRejeitado> rejeitados = rejeitados();
+        assertEquals(2, rejeitados.size());
+        assertEquals("Leilao encerrado: " + encerrado.getId(), rejeitados.get(0).getMotivo());
+        assertEquals("Leilao inexistente: 999999", rejeitados.get(1).getMotivo());
+        assertEquals(200.0, rejeitados.get(1).getValor(), 0.00001);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void deveRecusarLanceDeLeilaoEncerradoNaMesa() {
+        MesaDeLances mesa = new MesaDeLances(criador, 3, 10);
+
+        mesa.encerra(aberto.getId());
+        mesa.registra(aberto.getId(), maria.getId(), 100.0);
+    }
+
+    @Test
+    public void deveManterOLivroEncerradoSemAceitarNemEnfileirarLances() {
+        MesaDeLances mesa = new MesaDeLances(criador, 3, 10);
+        mesa.registra(aberto.getId(), maria.getId(), 100.0);
+        LivroDeLances livro = mesa.livroDo(aberto.getId());
+
+        mesa.encerra(aberto.getId());
+        try {
+            mesa.registra(aberto.getId(), maria.getId(), 500.0);
+            fail("o lance deveria ser recusado");
+        } catch (IllegalStateException esperada) {
+        }
+
+        assertSame(livro, mesa.livroDo(aberto.getId()));
+        assertTrue(livro.isEncerrado());
+        assertEquals(100.0, livro.getMaiorLance(), 0.00001);
+        assertEquals(1, livro.getQuantidadeDeLances());
+        assertEquals(1, mesa.getLancesPendentes());
+    }
+
+    @Test
+    public void deveIsolarOLanceQueFalhaDepoisDasTentativas() {
+        MesaDeLances mesa = new MesaDeLances(criador, 3, 10);
+
+        mesa.registra(aberto.getId(), maria.getId(), 100.0);
+        mesa.registra(aberto.getId(), 999999, 200.0);
+        mesa.registra(aberto.getId(), maria.getId(), 300.0);
+
+        for (int tentativa = 1; tentativa < GravadorDeLances.TENTATIVAS; tentativa++) {
+            try {
+                mesa.descarrega();
+                fail("o lote com usuario inexistente deveria falhar");
+            } catch (RuntimeException esperada) {
+                assertEquals(3, mesa.getLancesPendentes());
+            }
+        }
+        assertEquals(3, mesa.descarrega());
+
+        assertEquals(0, mesa.getLancesPendentes());
+        assertEquals(2L, lancesNoBanco());
+        assertEquals(2, mesa.getLancesGravados());
+        assertEquals(1, mesa.getLancesRejeitados());
+        assertTrue(mesa.getFalhasDeGravacao() > GravadorDeLances.TENTATIVAS);
+        assertNotNull(mesa.getUltimaFalhaDeGravacao());
+
+        List<LanceRejeitado> rejeitados = rejeitados();
+        assertEquals(1, rejeitados.size());
+        assertEquals(999999, rejeitados.get(0).getUsuarioId());
+        assertEquals("mesa", rejeitados.get(0).getOrigem());
+    }
+
+    @Test
+    public void deveDescarregarTudoAoParar() throws InterruptedException {
+        MesaDeLances mesa = new MesaDeLances(criador, 3, 2);
+        mesa.inicia(60000);
+
+        for (int i = 0; i < 5; i++) {
+            mesa.registra(aberto.getId(), maria.getId(), 100.0 + i);
+        }
+        mesa.para();
+
+        assertEquals(0, mesa.getLancesPendentes());
+        assertEquals(5L, lancesNoBanco());
+    }
+
+    private long lancesNoBanco() {
+        Session session = criador.getSession();
+        try {
+            return (Long) session.createQuery("select count(l) from Lance l").uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<LanceRejeitado> rejeitados() {
+        Session session = criador.getSession();
+        try {
+            return session.createQuery("from LanceRejeitado r order by r.id").list();
+        } finally {
+            session.close();
+        }
+    }
+}
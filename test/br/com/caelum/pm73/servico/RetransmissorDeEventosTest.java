@@ -0,0 +1,295 @@
+package br.com.caelum.pm73.servico;
+
+import br.com.caelum.pm73.dao.BancoDeTeste;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dominio.EventoDeAlteracao;
+import br.com.caelum.pm73.dominio.EventoNaoEntregue;
+import br.com.caelum.pm73.dominio.TipoDeAlteracao;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RetransmissorDeEventosTest {
+
+    private static final long SEM_ESPERA = 0;
+    private static final long ESPERA_LONGA = TimeUnit.HOURS.toMillis(1);
+    private static final long PRAZO_EM_MILIS = TimeUnit.SECONDS.toMillis(10);
+
+    private CriadorDeSessao criador;
+    private final List<RetransmissorDeEventos> iniciados = new ArrayList<RetransmissorDeEventos>();
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+    }
+
+    @After
+    public void fecha() throws InterruptedException {
+        for (RetransmissorDeEventos retransmissor : iniciados) {
+            retransmissor.fecha(PRAZO_EM_MILIS);
+        }
+    }
+
+    @Test
+    public void deveEntregarEmLotesNaOrdemDosIdsEApagarOsEntregues() throws Exception {
+        List<Long> ids = gravaEventos(7);
+        Guarda primeiro = new Guarda();
+        Guarda segundo = new Guarda();
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, 3, 10, SEM_ESPERA);
+        retransmissor.assina(primeiro);
+        retransmissor.assina(segundo);
+
+        assertEquals(3, retransmissor.retransmite());
+        assertEquals(3, retransmissor.retransmite());
+        assertEquals(1, retransmissor.retransmite());
+        assertEquals(0, retransmissor.retransmite());
+        assertEquals(3, retransmissor.getLotesEmAndamento());
+
+        retransmissor.entregaPendentes();
+        assertEquals(Arrays.asList(3, 3, 1), primeiro.tamanhos);
+        assertEquals(ids, primeiro.ids);
+        assertEquals(ids, segundo.ids);
+        assertEquals(7L, eventosNaCaixa());
+
+        retransmissor.retransmite();
+        assertEquals(0L, eventosNaCaixa());
+        assertEquals(0, retransmissor.getLotesEmAndamento());
+        assertEquals(14, retransmissor.getEntregues());
+    }
+
+    @Test
+    public void deveSegurarALeituraQuandoAFilaDoAssinanteEnche() throws Exception {
+        gravaEventos(6);
+        final Semaphore liberados = new Semaphore(0);
+        Guarda lento = new Guarda() {
+            @Override
+            public void recebe(List<EventoDeAlteracao> eventos) {
+                liberados.acquireUninterruptibly();
+                super.recebe(eventos);
+            }
+        };
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, 1, 1, SEM_ESPERA);
+        retransmissor.assina(lento);
+        inicia(retransmissor);
+
+        long fim = System.currentTimeMillis() + PRAZO_EM_MILIS;
+        while (retransmissor.getEsperasPorVaga() == 0 && System.currentTimeMillis() < fim) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertTrue(retransmissor.getEsperasPorVaga() > 0);
+        assertTrue(retransmissor.getLidos() + " lidos", retransmissor.getLidos() <= 3);
+        assertEquals(6L, eventosNaCaixa());
+
+        liberados.release(6);
+        while ((lento.ids.size() < 6 || eventosNaCaixa() > 0) && System.currentTimeMillis() < fim) {
+            Thread.sleep(10);
+        }
+        assertEquals(6, lento.ids.size());
+        assertEquals(0L, eventosNaCaixa());
+    }
+
+    @Test
+    public void deveEntregarDeNovoOQueNaoFoiApagadoAntesDaQueda() throws Exception {
+        List<Long> ids = gravaEventos(3);
+        Guarda antesDaQueda = new Guarda();
+        RetransmissorDeEventos caiu = new RetransmissorDeEventos(criador, 10, 10, SEM_ESPERA);
+        caiu.assina(antesDaQueda);
+        caiu.retransmite();
+        caiu.entregaPendentes();
+
+        Guarda aposAQueda = new Guarda();
+        RetransmissorDeEventos novo = new RetransmissorDeEventos(criador, 10, 10, SEM_ESPERA);
+        novo.assina(aposAQueda);
+        assertEquals(3, novo.retransmite());
+        novo.entregaPendentes();
+
+        assertEquals(ids, antesDaQueda.ids);
+        assertEquals(ids, aposAQueda.ids);
+        novo.retransmite();
+        assertEquals(0L, eventosNaCaixa());
+    }
+
+    @Test
+    public void deveTentarDeNovoQuandoOAssinanteFalha() throws Exception {
+        List<Long> ids = gravaEventos(2);
+        Guarda instavel = new Guarda() {
+            private int falhas;
+
+            @Override
+            public void recebe(List<EventoDeAlteracao> eventos) {
+                if (falhas++ < RetransmissorDeEventos.TENTATIVAS - 1) throw new IllegalStateException("fora do ar");
+                super.recebe(eventos);
+            }
+        };
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, 10, 10, SEM_ESPERA);
+        retransmissor.assina(instavel);
+
+        retransmissor.retransmite();
+        retransmissor.entregaPendentes();
+
+        assertEquals(ids, instavel.ids);
+        assertEquals(0, retransmissor.getFalhas());
+        assertEquals(0, retransmissor.getNaoEntregues());
+        assertTrue(naoEntregues().isEmpty());
+    }
+
+    @Test
+    public void deveGuardarComoNaoEntregueOLoteRecusadoEmTodasAsTentativas() throws Exception {
+        List<Long> ids = gravaEventos(2);
+        Guarda bom = new Guarda();
+        AssinanteDeEventos quebrado = new AssinanteDeEventos() {
+            public void recebe(List<EventoDeAlteracao> eventos) {
+                throw new IllegalStateException("quebrado");
+            }
+        };
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, 10, 10, SEM_ESPERA);
+        retransmissor.assina(bom);
+        retransmissor.assina(quebrado);
+
+        retransmissor.retransmite();
+        retransmissor.entregaPendentes();
+        retransmissor.retransmite();
+
+        assertEquals(ids, bom.ids);
+        assertEquals(0L, eventosNaCaixa());
+        assertEquals(2, retransmissor.getNaoEntregues());
+        assertEquals(1, retransmissor.getFalhas());
+        assertEquals("quebrado", retransmissor.getUltimaFalha().getMessage());
+
+        List<EventoNaoEntregue> naoEntregues = naoEntregues();
+        assertEquals(2, naoEntregues.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i).longValue(), naoEntregues.get(i).getEventoId());
+            assertEquals(quebrado.getClass().getName(), naoEntregues.get(i).getAssinante());
+            assertEquals("IllegalStateException: quebrado", naoEntregues.get(i).getMotivo());
+        }
+    }
+
+    @Test
+    public void deveEsperarOBuracoNosIdsSerPreenchidoParaManterAOrdem() throws Exception {
+        long base = gravaEventos(1).get(0);
+        insere(base + 1);
+        insere(base + 3);
+        Guarda guarda = new Guarda();
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, 10, 10, ESPERA_LONGA);
+        retransmissor.assina(guarda);
+
+        assertEquals(2, retransmissor.retransmite());
+        assertEquals(0, retransmissor.retransmite());
+
+        insere(base + 2);
+        assertEquals(2, retransmissor.retransmite());
+        retransmissor.entregaPendentes();
+
+        assertEquals(Arrays.asList(base, base + 1, base + 2, base + 3), guarda.ids);
+        assertEquals(0, retransmissor.getLacunasPuladas());
+        assertEquals(0, retransmissor.getAtrasados());
+    }
+
+    @Test
+    public void deveEntregarForaDeOrdemOQueConfirmarDepoisDaEspera() throws Exception {
+        long base = gravaEventos(1).get(0);
+        insere(base + 2);
+        Guarda guarda = new Guarda();
+        RetransmissorDeEventos retransmissor = new RetransmissorDeEventos(criador, 10, 10, SEM_ESPERA);
+        retransmissor.assina(guarda);
+
+        assertEquals(2, retransmissor.retransmite());
+        assertEquals(1, retransmissor.getLacunasPuladas());
+
+        insere(base + 1);
+        insere(base + 3);
+        assertEquals(2, retransmissor.retransmite());
+        retransmissor.entregaPendentes();
+
+        assertEquals(Arrays.asList(base, base + 2, base + 1, base + 3), guarda.ids);
+        assertEquals(1, retransmissor.getAtrasados());
+        retransmissor.retransmite();
+        assertEquals(0L, eventosNaCaixa());
+    }
+
+    private void inicia(RetransmissorDeEventos retransmissor) {
+        retransmissor.inicia(10);
+        iniciados.add(retransmissor);
+    }
+
+    private List<Long> gravaEventos(int quantidade) {
+        List<Long> ids = new ArrayList<Long>();
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            for (int i = 0; i < quantidade; i++) {
+                EventoDeAlteracao evento = new EventoDeAlteracao("Leilao", i, TipoDeAlteracao.CRIADO);
+                session.save(evento);
+                ids.add(evento.getId());
+            }
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Grava com o id escolhido, como faria uma transacao que pegou o id
+     * antes e so confirmou agora.
+     */
+    private void insere(long id) {
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            session.createSQLQuery("insert into EventoDeAlteracao (id, entidade, entidadeId, tipo, criadoEm) " +
+                    "values (:id, 'Leilao', 0, 'ALTERADO', :agora)")
+                    .setParameter("id", id)
+                    .setParameter("agora", System.currentTimeMillis())
+                    .executeUpdate();
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    private long eventosNaCaixa() {
+        Session session = criador.getSession();
+        try {
+            return (Long) session.createQuery("select count(e) from EventoDeAlteracao e").uniqueResult();
+        } finally {
+            session.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<EventoNaoEntregue> naoEntregues() {
+        Session session = criador.getSession();
+        try {
+            return session.createQuery("from EventoNaoEntregue e order by e.eventoId").list();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static class Guarda implements AssinanteDeEventos {
+
+        final List<Long> ids = new CopyOnWriteArrayList<Long>();
+        final List<Integer> tamanhos = new CopyOnWriteArrayList<Integer>();
+
+        public void recebe(List<EventoDeAlteracao> eventos) {
+            tamanhos.add(eventos.size());
+            for (EventoDeAlteracao evento : eventos) {
+                ids.add(evento.getId());
+            }
+        }
+    }
+}
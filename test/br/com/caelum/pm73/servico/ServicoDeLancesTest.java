@@ -0,0 +1,168 @@
+package br.com.caelum.pm73.servico;
+
+import br.com.caelum.pm73.dao.BancoDeTeste;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoBuilder;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Session;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServicoDeLancesTest {
+
+    private static final int TENTATIVAS = 3;
+
+    private CriadorDeSessao criador;
+    private Usuario maria;
+    private Leilao leilao;
+
+    @Before
+    public void init() {
+        BancoDeTeste.restaura();
+        this.criador = BancoDeTeste.criador();
+
+        Usuario jose = new Usuario("jose", "jose@jose.com");
+        this.maria = new Usuario("maria", "maria@maria.com");
+        this.leilao = new LeilaoBuilder().comNome("xbox").comDono(jose).constroi();
+
+        Session session = criador.getSession();
+        try {
+            session.beginTransaction();
+            new UsuarioDao(session).salvar(jose);
+            new UsuarioDao(session).salvar(maria);
+            new LeilaoDao(session).salvar(leilao);
+            session.getTransaction().commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void deveRepetirOLanceQuandoOutraTransacaoAlteraOLeilao() {
+        ComConcorrente concorrente = new ComConcorrente(TENTATIVAS - 1, false);
+        ServicoDeLances servico = new ServicoDeLances(concorrente, TENTATIVAS, 0, 0);
+
+        int lanceId = servico.daLance(leilao.getId(), maria.getId(), 250.0);
+
+        assertEquals(TENTATIVAS - 1, concorrente.conflitosForcados.get());
+        assertEquals(1, servico.getAceitos());
+        assertEquals(TENTATIVAS - 1, servico.getConflitos());
+        assertEquals(0, servico.getDesistencias());
+
+        Session session = criador.getSession();
+        try {
+            assertEquals(1L, lancesNoBanco(session));
+            Lance lance = (Lance) session.get(Lance.class, lanceId);
+            assertEquals(250.0, lance.getValor(), 0.00001);
+            assertEquals(1, ((Leilao) session.get(Leilao.class, leilao.getId())).getQuantidadeDeLances());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void deveDesistirComConflitoDeLanceDepoisDeTodasAsTentativas() {
+        ComConcorrente concorrente = new ComConcorrente(Integer.MAX_VALUE, false);
+        ServicoDeLances servico = new ServicoDeLances(concorrente, TENTATIVAS, 0, 0);
+
+        try {
+            servico.daLance(leilao.getId(), maria.getId(), 250.0);
+            fail("o lance deveria ser recusado");
+        } catch (ConflitoDeLanceException e) {
+            assertTrue(e.getCause() instanceof StaleStateException);
+        }
+
+        assertEquals(TENTATIVAS, concorrente.conflitosForcados.get());
+        assertEquals(0, servico.getAceitos());
+        assertEquals(TENTATIVAS, servico.getConflitos());
+        assertEquals(1, servico.getDesistencias());
+        Session session = criador.getSession();
+        try {
+            assertEquals(0L, lancesNoBanco(session));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void deveRepetirOLanceQuandoNaoConsegueOLock() {
+        ComConcorrente concorrente = new ComConcorrente(1, true);
+        ServicoDeLances servico = new ServicoDeLances(concorrente, TENTATIVAS, 0, 0);
+
+        servico.daLance(leilao.getId(), maria.getId(), 250.0);
+
+        assertEquals(1, servico.getAceitos());
+        assertEquals(1, servico.getConflitos());
+        Session session = criador.getSession();
+        try {
+            assertEquals(1L, lancesNoBanco(session));
+        } finally {
+            session.close();
+        }
+    }
+
+    private static long lancesNoBanco(Session session) {
+        return (Long) session.createQuery("select count(l) from Lance l").uniqueResult();
+    }
+
+    /**
+     * Nas primeiras sessoes, logo antes do flush do lance, confirma em
+     * outra transacao uma alteracao no mesmo leilao (ou, com semLock,
+     * simula o lock negado), como faria outro no dando lance ao mesmo
+     * tempo.
+     */
+    private static class ComConcorrente extends CriadorDeSessao {
+
+        private final int conflitos;
+        private final boolean semLock;
+        private final AtomicInteger conflitosForcados = new AtomicInteger();
+
+        ComConcorrente(int conflitos, boolean semLock) {
+            this.conflitos = conflitos;
+            this.semLock = semLock;
+        }
+
+        @Override
+        public Session getSession() {
+            return getSession(new EmptyInterceptor() {
+                private static final long serialVersionUID = 1L;
+                private boolean forcou;
+
+                @Override
+                public void preFlush(@SuppressWarnings("rawtypes") Iterator entidades) {
+                    if (forcou || conflitosForcados.get() >= conflitos) return;
+                    forcou = true;
+                    conflitosForcados.incrementAndGet();
+                    if (semLock) {
+                        throw new LockAcquisitionException("lock negado", new SQLException("lock negado"));
+                    }
+                    alteraOsLeiloesEmOutraTransacao();
+                }
+            });
+        }
+
+        private void alteraOsLeiloesEmOutraTransacao() {
+            Session outra = super.getSession();
+            try {
+                outra.beginTransaction();
+                outra.createQuery("update Leilao l set l.versao = l.versao + 1").executeUpdate();
+                outra.getTransaction().commit();
+            } finally {
+                outra.close();
+            }
+        }
+    }
+}